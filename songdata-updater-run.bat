@@ -2,5 +2,7 @@
 set JAVA_CMD=.\jre\bin\java.exe
 REM OPTION="rebuild" will delete and rebuild the song/folder table, keeping favorites and tags.
 set OPTION=
-%JAVA_CMD% -Xms4g -jar songdata-updater.jar %OPTION%
+REM JVM_OPTION tunes the updater with system properties, e.g. "-Dsongdata.decodeThreads=8". See README.md.
+set JVM_OPTION=
+%JAVA_CMD% -Xms4g %JVM_OPTION% -jar songdata-updater.jar %OPTION%
 pause
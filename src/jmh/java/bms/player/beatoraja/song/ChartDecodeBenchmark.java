@@ -0,0 +1,93 @@
+package bms.player.beatoraja.song;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import bms.model.BMSDecoder;
+import bms.model.BMSModel;
+import bms.model.BMSONDecoder;
+import jp.howan.songdata.bench.SyntheticCharts;
+
+/**
+ * 1譜面あたりのデコード処理(デコード用ワーカースレッドで行う処理)のベンチマーク
+ * - decode: BMSDecoder / BMSONDecoder によるファイルのデコード
+ * - songData: new SongData(model, false)(BMSPlayerRule.validate と charthash の計算を含む)
+ * - songInformation: new SongInformation(model)
+ * - decodedChart: DecodedChart.decode(上記すべて + 難易度の自動設定)
+ * 譜面は SyntheticCharts で生成したものを一時フォルダに書き出して使う。
+ *
+ * gradlew jmh -Pjmh.includes=ChartDecodeBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChartDecodeBenchmark {
+
+	@Param({ "BME", "BML", "PMS", "BMSON" })
+	public SyntheticCharts.Format format;
+
+	/**
+	 * 小節数(64小節で2分前後の譜面になる)
+	 */
+	@Param({ "64" })
+	public int measures;
+
+	private Path dir;
+	private Path chart;
+	private BMSModel model;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("decode-bench");
+		chart = dir.resolve("chart" + format.extension);
+		Files.write(chart, SyntheticCharts.chart(format, 1, measures));
+		model = decode();
+		// SongInformation の生成には validate 済みの model が必要
+		new SongData(model, false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public BMSModel decode() {
+		if (format == SyntheticCharts.Format.BMSON) {
+			return new BMSONDecoder(BMSModel.LNTYPE_LONGNOTE).decode(chart);
+		}
+		return new BMSDecoder(BMSModel.LNTYPE_LONGNOTE).decode(chart);
+	}
+
+	@Benchmark
+	public SongData songData() {
+		return new SongData(model, false);
+	}
+
+	@Benchmark
+	public SongInformation songInformation() {
+		return new SongInformation(model);
+	}
+
+	@Benchmark
+	public DecodedChart decodedChart() {
+		return DecodedChart.decode(chart, chart.toString(), false, null, true, false);
+	}
+}
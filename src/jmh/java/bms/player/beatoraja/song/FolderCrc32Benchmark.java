@@ -0,0 +1,125 @@
+package bms.player.beatoraja.song;
+
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * folder / parent 列のCRC32計算のベンチマーク
+ * - legacy: 変更前の SongUtils.crc32(1ビットずつのCRC計算、呼び出しごとにルートディレクトリの親フォルダを計算)
+ * - current: SongUtils.crc32(path, rootdirs, bmspath)
+ * - memoized: SongUtils.FolderCrc32(更新処理中に使うもの、同じフォルダは計算済みの値を返す)
+ * 1譜面あたり folder / parent の2回、同じフォルダの譜面が chartsPerFolder 個ある想定で呼び出す。
+ *
+ * gradlew jmh -Pjmh.includes=FolderCrc32Benchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FolderCrc32Benchmark {
+
+	/**
+	 * パスに日本語を含めるかどうか(含む場合は符号拡張の補正が必要な計算になる)
+	 */
+	@Param({ "false", "true" })
+	public boolean japanese;
+
+	@Param({ "4" })
+	public int chartsPerFolder;
+
+	private static final int FOLDERS = 1000;
+
+	private final String[] rootdirs = { "BMS", "BMS2", "D:\\BMS" };
+	private final String bmspath = Paths.get(".").toString();
+	private String[] folders;
+	private String[] parents;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final Random rnd = new Random(1);
+		final String ascii = "abcdefghijklmnopqrstuvwxyz0123456789 _-[]()";
+		final String kana = "あいうえおかきくけこさしすせそ楽曲譜面";
+		folders = new String[FOLDERS];
+		parents = new String[FOLDERS];
+		for (int i = 0; i < FOLDERS; i++) {
+			StringBuilder sb = new StringBuilder();
+			final int n = 10 + rnd.nextInt(30);
+			for (int j = 0; j < n; j++) {
+				final String chars = japanese && rnd.nextInt(3) == 0 ? kana : ascii;
+				sb.append(chars.charAt(rnd.nextInt(chars.length())));
+			}
+			parents[i] = "BMS\\pack" + (i / 50);
+			folders[i] = parents[i] + "\\" + sb;
+		}
+	}
+
+	@Benchmark
+	public void legacy(Blackhole bh) {
+		for (int i = 0; i < FOLDERS; i++) {
+			for (int c = 0; c < chartsPerFolder; c++) {
+				bh.consume(legacyCrc32(folders[i], rootdirs, bmspath));
+				bh.consume(legacyCrc32(parents[i], rootdirs, bmspath));
+			}
+		}
+	}
+
+	@Benchmark
+	public void current(Blackhole bh) {
+		for (int i = 0; i < FOLDERS; i++) {
+			for (int c = 0; c < chartsPerFolder; c++) {
+				bh.consume(SongUtils.crc32(folders[i], rootdirs, bmspath));
+				bh.consume(SongUtils.crc32(parents[i], rootdirs, bmspath));
+			}
+		}
+	}
+
+	@Benchmark
+	public void memoized(Blackhole bh) {
+		// 更新処理1回分と同じく、毎回新しく作る
+		final SongUtils.FolderCrc32 crc = new SongUtils.FolderCrc32(rootdirs, bmspath);
+		for (int i = 0; i < FOLDERS; i++) {
+			for (int c = 0; c < chartsPerFolder; c++) {
+				bh.consume(crc.crc32(folders[i]));
+				bh.consume(crc.crc32(parents[i]));
+			}
+		}
+	}
+
+	/**
+	 * 変更前の SongUtils.crc32
+	 */
+	static String legacyCrc32(String path, String[] rootdirs, String bmspath) {
+		for (String s : rootdirs) {
+			if (Paths.get(s).toAbsolutePath().getParent().toString().equals(path)) {
+				return "e2977170";
+			}
+		}
+
+		if (path.startsWith(bmspath)) {
+			path = path.substring(bmspath.length() + 1);
+		}
+		final int previousCrc32 = 0;
+		int crc = ~previousCrc32; // same as previousCrc32 ^ 0xFFFFFFFF
+
+		for (byte b : (path + "\\\0").getBytes()) {
+			crc ^= b;
+			for (int j = 0; j < 8; j++)
+				if ((crc & 1) != 0)
+					crc = (crc >>> 1) ^ 0xEDB88320;
+				else
+					crc = crc >>> 1;
+		}
+		return Integer.toHexString(~crc); // same as crc ^ 0xFFFFFFFF
+	}
+}
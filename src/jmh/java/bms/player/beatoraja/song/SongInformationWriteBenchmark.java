@@ -0,0 +1,167 @@
+package bms.player.beatoraja.song;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+import bms.player.beatoraja.SQLiteDatabaseAccessor;
+
+/**
+ * songinfo.db への書き込みベンチマーク
+ * - batched: SongInformationAccessor の startUpdate/update/endUpdate(PreparedStatement + バッチ)
+ * - singleRow: 従来の SQLiteDatabaseAccessor.insert による1件ずつの qr.update(RowBinder 導入前はSQL組み立てとPropertyDescriptor経由のgetter呼び出しも毎回行っていた)
+ * どちらも1トランザクションで rows 件を空のDBファイルに書き込む。
+ *
+ * gradlew jmh -Pjmh.includes=SongInformationWriteBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SongInformationWriteBenchmark {
+
+	@Param({ "1000", "20000" })
+	public int rows;
+
+	private Path dir;
+	private Path dbfile;
+	private SongInformation[] infos;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		dir = Files.createTempDirectory("songinfo-bench");
+		final Random rnd = new Random(12345);
+		infos = new SongInformation[rows];
+		for (int i = 0; i < rows; i++) {
+			infos[i] = syntheticInformation(rnd, i);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() throws IOException {
+		// 毎回空のDBファイルに書き込む
+		dbfile = dir.resolve("songinfo.db");
+		Files.deleteIfExists(dbfile);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws IOException {
+		Files.deleteIfExists(dir.resolve("songinfo.db"));
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public void batched() throws Exception {
+		SongInformationAccessor accessor = new SongInformationAccessor(dbfile.toString());
+		accessor.startUpdate();
+		for (SongInformation info : infos) {
+			accessor.update(info);
+		}
+		accessor.endUpdate();
+	}
+
+	@Benchmark
+	public void singleRow() throws Exception {
+		SingleRowInformationWriter writer = new SingleRowInformationWriter(dbfile.toString());
+		writer.write(infos);
+	}
+
+	/**
+	 * 適当な値を持つSongInformationを生成する(sha256は一意)
+	 */
+	static SongInformation syntheticInformation(Random rnd, int i) {
+		SongInformation info = new SongInformation();
+		info.setSha256(String.format("%064x", i));
+		info.setN(500 + rnd.nextInt(2000));
+		info.setLn(rnd.nextInt(300));
+		info.setS(rnd.nextInt(200));
+		info.setLs(rnd.nextInt(20));
+		info.setTotal(200 + rnd.nextInt(300));
+		info.setDensity(rnd.nextDouble() * 20);
+		info.setPeakdensity(rnd.nextDouble() * 40);
+		info.setEnddensity(rnd.nextDouble() * 30);
+		info.setMainbpm(100 + rnd.nextInt(100));
+		final int seconds = 90 + rnd.nextInt(60);
+		int[][] distribution = new int[seconds][7];
+		for (int[] d : distribution) {
+			for (int j = 0; j < d.length; j++) {
+				d[j] = rnd.nextInt(8);
+			}
+		}
+		info.setDistributionValues(distribution);
+		info.setSpeedchangeValues(new double[][] { { 150.0, 0.0 }, { 150.0, seconds * 1000.0 } });
+		int[][] lanenotes = new int[8][3];
+		for (int[] l : lanenotes) {
+			l[0] = rnd.nextInt(300);
+			l[1] = rnd.nextInt(30);
+		}
+		info.setLanenotesValues(lanenotes);
+		return info;
+	}
+
+	/**
+	 * 従来の書き込み方法(SQLiteDatabaseAccessor.insert)で information テーブルに書き込む
+	 */
+	static class SingleRowInformationWriter extends SQLiteDatabaseAccessor {
+
+		private final SQLiteDataSource ds;
+		private final QueryRunner qr;
+
+		SingleRowInformationWriter(String filepath) throws SQLException {
+			super(new Table("information",
+					new Column("sha256", "TEXT",1,1),
+					new Column("n", "INTEGER"),
+					new Column("ln", "INTEGER"),
+					new Column("s", "INTEGER"),
+					new Column("ls", "INTEGER"),
+					new Column("total", "REAL"),
+					new Column("density", "REAL"),
+					new Column("peakdensity", "REAL"),
+					new Column("enddensity", "REAL"),
+					new Column("mainbpm", "REAL"),
+					new Column("distribution", "TEXT"),
+					new Column("speedchange", "TEXT"),
+					new Column("lanenotes", "TEXT")
+					));
+			// SongInformationAccessor と同じ設定
+			SQLiteConfig conf = new SQLiteConfig();
+			conf.setSharedCache(true);
+			conf.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+			conf.setJournalMode(SQLiteConfig.JournalMode.MEMORY);
+			conf.setTempStore(SQLiteConfig.TempStore.MEMORY);
+			conf.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
+			conf.setCacheSize(-50000);
+			ds = new SQLiteDataSource(conf);
+			ds.setUrl("jdbc:sqlite:" + filepath);
+			qr = new QueryRunner(ds);
+			validate(qr);
+		}
+
+		void write(SongInformation[] infos) throws SQLException {
+			try (Connection conn = ds.getConnection()) {
+				conn.setAutoCommit(false);
+				for (SongInformation info : infos) {
+					insert(qr, conn, "information", info);
+				}
+				conn.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package bms.player.beatoraja.song;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * song テーブルへのバッチ書き込み(更新処理の psSong と同じ方法)のベンチマーク
+ * インメモリのSQLiteに rows 件を batchSize 件ごとの executeBatch で書き込み、最後に1回コミットする。
+ * ディスクI/Oを除いた、バインドと INSERT OR REPLACE 自体のコストを計測する。
+ * スキーマは SQLiteSongDatabaseAccessor が一時ファイルに作成したものの DDL をそのままコピーする。
+ *
+ * gradlew jmh -Pjmh.includes=SongInsertBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SongInsertBenchmark {
+
+	@Param({ "10000" })
+	public int rows;
+
+	@Param({ "1000" })
+	public int batchSize;
+
+	private Path dir;
+	private SQLiteSongDatabaseAccessor accessor;
+	private Connection conn;
+	private SongData[] songs;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws Exception {
+		dir = Files.createTempDirectory("song-insert-bench");
+		accessor = new SQLiteSongDatabaseAccessor(dir.resolve("songdata.db").toString());
+
+		conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+		try (Connection file = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("songdata.db"));
+			 Statement src = file.createStatement();
+			 ResultSet rs = src.executeQuery("SELECT sql FROM sqlite_master WHERE tbl_name = 'song' AND sql IS NOT NULL");
+			 Statement dest = conn.createStatement()) {
+			while (rs.next()) {
+				dest.execute(rs.getString(1));
+			}
+		}
+		conn.setAutoCommit(false);
+
+		final Random rnd = new Random(12345);
+		songs = new SongData[rows];
+		for (int i = 0; i < rows; i++) {
+			songs[i] = syntheticSong(rnd, i);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() throws SQLException {
+		// 毎回空のテーブルに書き込む
+		try (Statement st = conn.createStatement()) {
+			st.execute("DELETE FROM song");
+		}
+		conn.commit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws SQLException, IOException {
+		conn.close();
+		Files.deleteIfExists(dir.resolve("songdata.db"));
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public void batched() throws SQLException {
+		try (PreparedStatement ps = accessor.songBinder.prepare(conn)) {
+			int pending = 0;
+			for (SongData sd : songs) {
+				accessor.songBinder.addBatch(ps, sd);
+				if (++pending >= batchSize) {
+					ps.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending > 0) {
+				ps.executeBatch();
+			}
+		}
+		conn.commit();
+	}
+
+	/**
+	 * 適当な値を持つSongDataを生成する(path, sha256 は一意、フォルダあたり4譜面)
+	 */
+	static SongData syntheticSong(Random rnd, int i) {
+		SongData sd = new SongData();
+		final String folder = "BMS\\pack" + (i / 200) + "\\song" + (i / 4);
+		sd.setMd5(String.format("%032x", i));
+		sd.setSha256(String.format("%064x", i));
+		sd.setTitle("合成譜面 " + (i / 4));
+		sd.setSubtitle(new String[] { "[BEGINNER]", "[NORMAL]", "[HYPER]", "[ANOTHER]" }[i % 4]);
+		sd.setArtist("artist" + rnd.nextInt(1000));
+		sd.setSubartist("");
+		sd.setPath(folder + "\\chart" + (i % 4) + ".bme");
+		sd.setFolder(Integer.toHexString(folder.hashCode()));
+		sd.setParent(Integer.toHexString(("BMS\\pack" + (i / 200)).hashCode()));
+		sd.setStagefile("stage.png");
+		sd.setBanner("banner.png");
+		sd.setBackbmp("");
+		sd.setPreview(rnd.nextInt(4) == 0 ? "preview.ogg" : "");
+		sd.setLevel(1 + rnd.nextInt(12));
+		sd.setDifficulty(1 + i % 4);
+		sd.setMinbpm(120 + rnd.nextInt(40));
+		sd.setMaxbpm(sd.getMinbpm() + rnd.nextInt(40));
+		sd.setLength(90000 + rnd.nextInt(60000));
+		sd.setMode(7);
+		sd.setJudge(2);
+		sd.setDate(1600000000 + rnd.nextInt(100000000));
+		sd.setAdddate(1600000000 + rnd.nextInt(100000000));
+		sd.setNotes(300 + rnd.nextInt(2000));
+		sd.setCharthash(String.format("%064x", rnd.nextLong()));
+		return sd;
+	}
+}
@@ -0,0 +1,95 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.howan.songdata.bench.LibraryGenerator;
+
+/**
+ * 通常のディレクトリ走査での1ディレクトリ分の列挙・分類のベンチマーク(全フォルダを更新ありとして列挙する)
+ * - legacy: 変更前の方法。エントリごとに Files.isDirectory、名前を toLowerCase して endsWith、
+ *   BMSファイルごとに filter ステージで Files.getLastModifiedTime(stat はエントリ数 + BMSファイル数)
+ * - listing: DirectoryListing.scan。エントリごとに属性を1回だけ取得し、更新日時もそこから取る(stat はエントリ数、Windows では0)
+ * LibraryGenerator で生成した合成ライブラリの全ディレクトリを1回列挙する時間を計測する。
+ *
+ * gradlew jmh -Pjmh.includes=DirectoryScanBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DirectoryScanBenchmark {
+
+    @Param({ "5000" })
+    public int charts;
+
+    private Path root;
+    private List<Path> dirs;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("scan-bench");
+        final LibraryGenerator.Settings d = LibraryGenerator.Settings.defaults();
+        LibraryGenerator.generate(root, new LibraryGenerator.Settings(charts, d.depth(), d.fanout(), d.chartsPerFolder(),
+                d.malformedRatio(), 4, d.seed()));
+        try (Stream<Path> paths = Files.walk(root)) {
+            dirs = paths.filter(Files::isDirectory).toList();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LibraryGenerator.deleteTree(root);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) throws IOException {
+        for (Path dir : dirs) {
+            boolean hasTxt = false;
+            String previewFileName = null;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    if (Files.isDirectory(p)) continue;
+                    final String name = p.getFileName().toString();
+                    final String lname = name.toLowerCase();
+                    if (lname.endsWith(".bms") || lname.endsWith(".bme") || lname.endsWith(".bml") || lname.endsWith(".pms") || lname.endsWith(".bmson")) {
+                        // filter ステージでの更新日時取得
+                        bh.consume(Files.getLastModifiedTime(p).toMillis() / 1000);
+                    } else {
+                        if (previewFileName == null) {
+                            if (lname.startsWith("preview") && (lname.endsWith(".wav") || lname.endsWith(".ogg") || lname.endsWith(".mp3") || lname.endsWith(".flac"))) {
+                                previewFileName = name;
+                            }
+                        }
+                        if (!hasTxt && lname.endsWith(".txt")) hasTxt = true;
+                    }
+                }
+            }
+            bh.consume(hasTxt);
+            bh.consume(previewFileName);
+        }
+    }
+
+    @Benchmark
+    public void listing(Blackhole bh) throws IOException {
+        for (Path dir : dirs) {
+            bh.consume(DirectoryListing.scan(dir, true, false));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jp.howan.songdata.bench.LibraryGenerator;
+
+/**
+ * 複数のルートフォルダのファイル一覧を Everything の検索で作る時間のベンチマーク
+ * InMemoryEverythingResultSource でページごとに pageLatency ミリ秒待つ(IPC の往復の代わり)。
+ * - serialized=false: Everything 1.5 と同じく同時に検索できる。ルートごとの検索を並行して実行する
+ * - serialized=true: Everything 1.4 と同じく検索は1つずつ。全ルートを1回の検索で取得する
+ * Setup で、ルートごとの検索と1回の検索で同じファイル一覧になることを確かめ、
+ * TearDown で、serialized=false では検索が実際に並行して実行され、serialized=true では1つずつ実行されたことを確かめる。
+ *
+ * gradlew jmh -Pjmh.includes=EverythingConcurrencyBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EverythingConcurrencyBenchmark {
+
+    @Param({ "4" })
+    public int roots;
+
+    @Param({ "1000" })
+    public int chartsPerRoot;
+
+    @Param({ "100" })
+    public int pageSize;
+
+    @Param({ "2" })
+    public long pageLatency;
+
+    @Param({ "false", "true" })
+    public boolean serialized;
+
+    private Path base;
+    private String[] rootPaths;
+    private InMemoryEverythingResultSource source;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        base = Files.createTempDirectory("everything-bench");
+        rootPaths = new String[roots];
+        source = new InMemoryEverythingResultSource();
+        final LibraryGenerator.Settings d = LibraryGenerator.Settings.defaults();
+        for (int i = 0; i < roots; i++) {
+            final Path root = Files.createDirectories(base.resolve("root" + i));
+            LibraryGenerator.generate(root, new LibraryGenerator.Settings(chartsPerRoot, d.depth(), d.fanout(), d.chartsPerFolder(),
+                    d.malformedRatio(), 1, d.seed() + i));
+            rootPaths[i] = root.toString();
+            source.addTree(root);
+        }
+
+        // ルートごとの検索と1回の検索で同じファイル一覧になること
+        final PathTrie combined = new PathTrie();
+        new EverythingBatchIndexer(rootPaths, source, 500, 1).addFolders(combined);
+        final PathTrie perRoot = new PathTrie();
+        new EverythingBatchIndexer(rootPaths, source, 500, roots).addFolders(perRoot);
+        if (combined.scanFolderCount() != perRoot.scanFolderCount() || combined.bmsFolderCount() != perRoot.bmsFolderCount()) {
+            throw new IllegalStateException("ルートごとの検索の結果が1回の検索と異なります: " + perRoot.scanFolderCount() + "/" + perRoot.bmsFolderCount()
+                    + " != " + combined.scanFolderCount() + "/" + combined.bmsFolderCount());
+        }
+
+        source = new InMemoryEverythingResultSource().serialized(serialized).pageLatency(pageLatency);
+        for (String root : rootPaths) {
+            source.addTree(Path.of(root));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LibraryGenerator.deleteTree(base);
+        final int maxConcurrent = source.maxConcurrentSearches();
+        if (serialized ? maxConcurrent != 1 : maxConcurrent < 2) {
+            throw new IllegalStateException("同時に実行された検索の数が想定と異なります: " + maxConcurrent + " (serialized=" + serialized + ")");
+        }
+    }
+
+    @Benchmark
+    public void addFolders(Blackhole bh) throws IOException {
+        final PathTrie folders = new PathTrie();
+        new EverythingBatchIndexer(rootPaths, source, pageSize, roots).addFolders(folders);
+        bh.consume(folders.bmsFolderCount());
+    }
+}
@@ -0,0 +1,119 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ファイル一覧(走査フォルダと BmsFolder)の構築と、discover ステージでの走査フォルダの取り出しのベンチマーク
+ * - legacy: 変更前の方法。走査フォルダを TreeMap&lt;Path, Long&gt;、BmsFolder を HashMap&lt;Path, BmsFolder&gt; に入れ、
+ *   先頭から取り出しながら直下BMSフォルダの子孫を tailMap の各キーの toString と前方一致で除外する
+ * - trie: PathTrie に入れ、深さ優先でたどって直下BMSフォルダのサブツリーをたどらない
+ * Everything の検索結果と同じ形式のパス文字列(譜面フォルダごとにサブフォルダを2つ持つ)から構築して取り出すまでの時間を計測する。
+ *
+ * gradlew jmh -Pjmh.includes=ScanFolderIndexBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanFolderIndexBenchmark {
+
+    @Param({ "20000" })
+    public int chartFolders;
+
+    private final List<String> folders = new ArrayList<>();
+    private final List<String> charts = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final char sep = File.separatorChar;
+        final String root = File.separatorChar == '\\' ? "D:\\BMS" : "/mnt/bms";
+        folders.add(root);
+        for (int i = 0; i < chartFolders; i++) {
+            final String pack = root + sep + "pack" + (i / 500);
+            if (i % 500 == 0) folders.add(pack);
+            final String dir = pack + sep + "song " + i + " [" + (i % 7) + "]";
+            folders.add(dir);
+            folders.add(dir + sep + "bga");
+            folders.add(dir + sep + "sounds");
+            for (int c = 0; c < 4; c++) {
+                charts.add(dir + sep + "chart_" + c + ".bms");
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        final NavigableMap<Path, Long> scanFolders = new TreeMap<>();
+        for (String f : folders) {
+            scanFolders.put(Paths.get(f), 1L);
+        }
+        final Map<Path, BmsFolder> bmsFolderMap = new HashMap<>();
+        for (String c : charts) {
+            final Path p = Paths.get(c);
+            bmsFolderMap.computeIfAbsent(p.getParent(), k -> new BmsFolder()).bmsFiles.add(new EverythingSearchResult(p, 1L));
+        }
+        while (!scanFolders.isEmpty()) {
+            final Map.Entry<Path, Long> entry = scanFolders.pollFirstEntry();
+            final Path dir = entry.getKey();
+            final String dirKey = dir.toString() + File.separatorChar;
+            final BmsFolder bf = bmsFolderMap.get(dir);
+            if (bf != null && !bf.bmsFiles.isEmpty()) {
+                final Iterator<Path> it = scanFolders.tailMap(dir, true).keySet().iterator();
+                while (it.hasNext()) {
+                    final String key = it.next().toString();
+                    if (!key.startsWith(dirKey) && !key.startsWith(dir.toString())) break;
+                    if (key.startsWith(dirKey)) it.remove();
+                }
+            }
+            bh.consume(dirKey);
+        }
+    }
+
+    @Benchmark
+    public void trie(Blackhole bh) {
+        final PathTrie tree = new PathTrie();
+        for (String f : folders) {
+            tree.putScanFolder(f, 1L);
+        }
+        for (String c : charts) {
+            final int sep = c.lastIndexOf(File.separatorChar);
+            tree.bmsFolder(c, sep).bmsFiles.add(new EverythingSearchResult(Paths.get(c), 1L));
+        }
+        final Deque<PathTrie.Node> pending = new ArrayDeque<>();
+        pending.push(tree.root());
+        while (!pending.isEmpty()) {
+            final PathTrie.Node node = pending.pop();
+            final BmsFolder bf = node.bmsFolder();
+            if (node.isScanFolder()) {
+                bh.consume(node.toString() + File.separatorChar);
+            }
+            if (bf == null || bf.bmsFiles.isEmpty()) {
+                for (int i = node.childCount() - 1; i >= 0; i--) {
+                    pending.push(node.child(i));
+                }
+            }
+        }
+    }
+}
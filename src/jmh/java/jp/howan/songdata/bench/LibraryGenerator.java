@@ -0,0 +1,284 @@
+package jp.howan.songdata.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * LibraryGenerator: 負荷試験用の合成BMSライブラリを生成する
+ * ルート以下に depth 階層の途中フォルダを作り、その下の楽曲フォルダに譜面を置く。
+ * - 楽曲フォルダ: chartsPerFolder 個の譜面(.bms/.bme/.bml/.pms/.bmson)、一部に readme.txt と preview.ogg(中身のないスタブ)
+ * - malformedRatio の割合でデコードできない譜面に置き換える
+ * 同じ設定と seed からは常に同じツリーを生成する。
+ *
+ * gradlew generateLibrary -Pargs="出力先 --charts 20000 --depth 2"
+ */
+public final class LibraryGenerator {
+
+    /**
+     * 生成設定
+     * - charts: 譜面の総数
+     * - depth: ルートから楽曲フォルダまでの途中フォルダの階層数(0ならルート直下に楽曲フォルダ)
+     * - fanout: 途中フォルダ1つあたりの子フォルダ数
+     * - chartsPerFolder: 楽曲フォルダ1つあたりの譜面数
+     * - malformedRatio: デコードできない譜面の割合(0.0-1.0)
+     * - measures: 1譜面の小節数
+     */
+    public record Settings(int charts, int depth, int fanout, int chartsPerFolder, double malformedRatio,
+                           int measures, long seed) {
+
+        public static Settings defaults() {
+            return new Settings(10000, 2, 20, 4, 0.01, 32, 1);
+        }
+    }
+
+    /**
+     * 変更の内訳
+     */
+    public record Mutation(int modified, int added, int deleted, int removedFolders) {
+
+        @Override
+        public String toString() {
+            return "modified=" + modified + " added=" + added + " deleted=" + deleted + " removedFolders=" + removedFolders;
+        }
+    }
+
+    private static final SyntheticCharts.Format[] FORMATS = SyntheticCharts.Format.values();
+    // 生成したファイル・フォルダに付ける更新日時(実行時刻に依存しないよう固定値)
+    private static final long BASE_TIME = 1_700_000_000L;
+    private static final FileTime BASE = FileTime.from(BASE_TIME, TimeUnit.SECONDS);
+
+    private LibraryGenerator() {
+        // static utility
+    }
+
+    /**
+     * ライブラリを生成する
+     *
+     * @param root 出力先(存在しない場合は作成する)
+     * @return 生成した楽曲フォルダ
+     */
+    public static List<Path> generate(Path root, Settings s) throws IOException {
+        final Random rnd = new Random(s.seed());
+        final int folders = (s.charts() + s.chartsPerFolder() - 1) / s.chartsPerFolder();
+        final List<Path> songFolders = new ArrayList<>(folders);
+        int chart = 0;
+        for (int f = 0; f < folders; f++) {
+            final Path dir = songFolder(root, s, f);
+            Files.createDirectories(dir);
+            final int n = Math.min(s.chartsPerFolder(), s.charts() - chart);
+            for (int c = 0; c < n; c++, chart++) {
+                writeChart(dir, rnd, s, chart, c, BASE);
+            }
+            if (rnd.nextInt(2) == 0) {
+                Files.writeString(dir.resolve("readme.txt"), "synthetic song " + f + "\r\n");
+            }
+            if (rnd.nextInt(3) == 0) {
+                Files.write(dir.resolve("preview.ogg"), new byte[] { 'O', 'g', 'g', 'S' });
+            }
+            songFolders.add(dir);
+        }
+        // フォルダの更新日時はファイル作成後に設定する
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                Files.setLastModifiedTime(d, BASE);
+            }
+        }
+        return songFolders;
+    }
+
+    /**
+     * 楽曲フォルダの ratio の割合に変更を加える(譜面の内容変更、追加、削除、フォルダごとの削除)
+     * 変更した譜面とフォルダの更新日時は元の値より進める(同じ秒の間に実行しても更新として検出されるように)
+     *
+     * @param songFolders generate で生成した楽曲フォルダ
+     * @param ratio 変更する楽曲フォルダの割合(0.0-1.0)
+     */
+    public static Mutation mutate(List<Path> songFolders, Settings s, double ratio, long seed) throws IOException {
+        final Random rnd = new Random(seed);
+        final FileTime later = FileTime.from(BASE_TIME + 3600 + rnd.nextInt(3600), TimeUnit.SECONDS);
+        int modified = 0, added = 0, deleted = 0, removedFolders = 0;
+        int chart = s.charts();
+        for (Path dir : songFolders) {
+            if (!Files.isDirectory(dir) || rnd.nextDouble() >= ratio) {
+                continue;
+            }
+            final List<Path> charts = listCharts(dir);
+            switch (rnd.nextInt(4)) {
+                case 0 -> {
+                    // 譜面1つの内容を変更
+                    if (!charts.isEmpty()) {
+                        final Path p = charts.get(rnd.nextInt(charts.size()));
+                        Files.write(p, SyntheticCharts.chart(format(p), rnd.nextLong(), s.measures()));
+                        Files.setLastModifiedTime(p, later);
+                        modified++;
+                    }
+                }
+                case 1 -> {
+                    // 譜面を1つ追加
+                    writeChart(dir, rnd, s, chart, 50 + chart % 50, later);
+                    chart++;
+                    added++;
+                }
+                case 2 -> {
+                    // 譜面を1つ削除
+                    if (!charts.isEmpty()) {
+                        Files.delete(charts.get(rnd.nextInt(charts.size())));
+                        deleted++;
+                    }
+                }
+                default -> {
+                    // 楽曲フォルダごと削除
+                    deleteTree(dir);
+                    deleted += charts.size();
+                    removedFolders++;
+                    Files.setLastModifiedTime(dir.getParent(), later);
+                    continue;
+                }
+            }
+            Files.setLastModifiedTime(dir, later);
+        }
+        return new Mutation(modified, added, deleted, removedFolders);
+    }
+
+    /**
+     * ツリー内の譜面数を数える
+     */
+    public static int countCharts(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return (int) files.filter(p -> isChart(p.getFileName().toString())).count();
+        }
+    }
+
+    public static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    /**
+     * f番目の楽曲フォルダのパス
+     * 最下層の途中フォルダに fanout 個ずつ楽曲フォルダを入れ、上の階層も fanout 個ずつに分ける(最上位の階層だけは数の上限なし)
+     */
+    private static Path songFolder(Path root, Settings s, int f) {
+        Path dir = root;
+        for (int l = 0; l < s.depth(); l++) {
+            long div = 1;
+            for (int k = l; k < s.depth(); k++) {
+                div *= s.fanout();
+            }
+            final long index = l == 0 ? f / div : (f / div) % s.fanout();
+            dir = dir.resolve(String.format("level%d_%03d", l, index));
+        }
+        return dir.resolve(String.format("song%06d", f));
+    }
+
+    /**
+     * 譜面を1つ書き出す(malformedRatio の割合でデコードできない譜面にする)
+     *
+     * @param chart ライブラリ全体での通し番号(内容の seed に使う)
+     * @param index フォルダ内の番号(ファイル名に使う)
+     * @return 書き出したファイル
+     */
+    private static Path writeChart(Path dir, Random rnd, Settings s, int chart, int index, FileTime time) throws IOException {
+        final SyntheticCharts.Format format = FORMATS[rnd.nextInt(FORMATS.length)];
+        final Path p;
+        if (rnd.nextDouble() < s.malformedRatio()) {
+            p = dir.resolve(String.format("broken%02d.bms", index));
+            Files.write(p, SyntheticCharts.malformed(s.seed() + chart));
+        } else {
+            p = dir.resolve(String.format("chart%02d%s", index, format.extension));
+            Files.write(p, SyntheticCharts.chart(format, s.seed() + chart, s.measures()));
+        }
+        Files.setLastModifiedTime(p, time);
+        return p;
+    }
+
+    private static List<Path> listCharts(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> isChart(p.getFileName().toString())).sorted().toList();
+        }
+    }
+
+    private static boolean isChart(String name) {
+        final String lname = name.toLowerCase();
+        for (SyntheticCharts.Format f : FORMATS) {
+            if (lname.endsWith(f.extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SyntheticCharts.Format format(Path chart) {
+        final String lname = chart.getFileName().toString().toLowerCase();
+        for (SyntheticCharts.Format f : FORMATS) {
+            if (lname.endsWith(f.extension)) {
+                return f;
+            }
+        }
+        return SyntheticCharts.Format.BMS;
+    }
+
+    /**
+     * 使い方: LibraryGenerator 出力先 [--charts N] [--depth N] [--fanout N] [--charts-per-folder N]
+     *                               [--malformed 割合] [--measures N] [--seed N]
+     * 出力先が既に存在する場合は削除してから生成する
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: LibraryGenerator <output> [--charts N] [--depth N] [--fanout N] [--charts-per-folder N]"
+                    + " [--malformed RATIO] [--measures N] [--seed N]");
+            System.exit(1);
+        }
+        final Path root = Paths.get(args[0]).toAbsolutePath();
+        final Settings s = parse(args, 1);
+        deleteTree(root);
+        final long t = System.currentTimeMillis();
+        final List<Path> folders = generate(root, s);
+        System.out.println("generated " + s.charts() + " charts in " + folders.size() + " folders under " + root
+                + " (" + (System.currentTimeMillis() - t) + "ms) " + s);
+    }
+
+    /**
+     * args[from] 以降の --xxx 値 の組から設定を読む(指定のない項目はデフォルト値)
+     */
+    static Settings parse(String[] args, int from) {
+        final Settings d = Settings.defaults();
+        int charts = d.charts(), depth = d.depth(), fanout = d.fanout(), perFolder = d.chartsPerFolder(), measures = d.measures();
+        double malformed = d.malformedRatio();
+        long seed = d.seed();
+        for (int i = from; i + 1 < args.length; i++) {
+            final String value = args[i + 1];
+            switch (args[i]) {
+                case "--charts" -> charts = Integer.parseInt(value);
+                case "--depth" -> depth = Integer.parseInt(value);
+                case "--fanout" -> fanout = Integer.parseInt(value);
+                case "--charts-per-folder" -> perFolder = Integer.parseInt(value);
+                case "--malformed" -> malformed = Double.parseDouble(value);
+                case "--measures" -> measures = Integer.parseInt(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                default -> {
+                    // 他のコマンド(UpdateHarness)のオプションは無視する
+                    continue;
+                }
+            }
+            i++;
+        }
+        return new Settings(Math.max(1, charts), Math.max(0, depth), Math.max(1, fanout), Math.max(1, perFolder),
+                Math.min(1.0, Math.max(0.0, malformed)), Math.max(1, measures), seed);
+    }
+}
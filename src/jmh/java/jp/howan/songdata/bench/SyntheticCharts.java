@@ -0,0 +1,206 @@
+package jp.howan.songdata.bench;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * SyntheticCharts: ベンチマーク・負荷試験用の合成譜面を生成する
+ * 同じ seed からは常に同じ内容の譜面を生成するので、環境が違っても同じ入力で計測できる。
+ * - BMS/BME/BML: 7鍵(BMSは5鍵)、BMLはロングノート多め
+ * - PMS: 9ボタン
+ * - BMSON: beat-7k
+ * BMS系はMS932で書き出す(タイトルに日本語を含む)
+ */
+public final class SyntheticCharts {
+
+    private SyntheticCharts() {
+        // static utility
+    }
+
+    /**
+     * 譜面の形式
+     */
+    public enum Format {
+        BMS(".bms"), BME(".bme"), BML(".bml"), PMS(".pms"), BMSON(".bmson");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private static final Charset MS932 = Charset.forName("MS932");
+    private static final String BASE36 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final int WAVS = 64;
+    // 1小節を分割するスロット数
+    private static final int SLOTS = 16;
+
+    // 鍵盤のチャンネル(5鍵、7鍵、9ボタン)
+    private static final String[] CHANNELS_5K = { "11", "12", "13", "14", "15", "16" };
+    private static final String[] CHANNELS_7K = { "11", "12", "13", "14", "15", "18", "19", "16" };
+    private static final String[] CHANNELS_9B = { "11", "12", "13", "14", "15", "22", "23", "24", "25" };
+
+    /**
+     * 譜面を生成する
+     *
+     * @param format 形式
+     * @param seed 乱数の種
+     * @param measures 小節数
+     * @return ファイルの内容
+     */
+    public static byte[] chart(Format format, long seed, int measures) {
+        return format == Format.BMSON ? bmson(seed, measures) : bms(format, seed, measures);
+    }
+
+    /**
+     * デコードできない(または壊れた)譜面を生成する
+     * 半分はランダムなバイト列、半分はヘッダだけで途中で切れたBMS
+     */
+    public static byte[] malformed(long seed) {
+        final Random rnd = new Random(seed);
+        if (rnd.nextBoolean()) {
+            final byte[] b = new byte[64 + rnd.nextInt(4096)];
+            rnd.nextBytes(b);
+            return b;
+        }
+        final byte[] full = bms(Format.BMS, seed, 4);
+        final byte[] truncated = new byte[Math.min(full.length, 16 + rnd.nextInt(48))];
+        System.arraycopy(full, 0, truncated, 0, truncated.length);
+        return truncated;
+    }
+
+    /**
+     * 指定フォルダに形式の異なる譜面を count 個書き出す(ファイル名は chartNNNN.拡張子)
+     *
+     * @return 書き出したファイル
+     */
+    public static List<Path> writeCorpus(Path dir, int count, long seed, int measures) throws IOException {
+        Files.createDirectories(dir);
+        final Format[] formats = Format.values();
+        final List<Path> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Format f = formats[i % formats.length];
+            final Path p = dir.resolve(String.format("chart%04d%s", i, f.extension));
+            Files.write(p, chart(f, seed + i, measures));
+            files.add(p);
+        }
+        return files;
+    }
+
+    private static byte[] bms(Format format, long seed, int measures) {
+        final Random rnd = new Random(seed);
+        final String[] channels = format == Format.PMS ? CHANNELS_9B : format == Format.BMS ? CHANNELS_5K : CHANNELS_7K;
+        final double lnRate = format == Format.BML ? 0.3 : 0.05;
+        final int bpm = 120 + rnd.nextInt(80);
+
+        final StringBuilder sb = new StringBuilder(measures * channels.length * 48);
+        sb.append("*---------------------- HEADER FIELD\r\n");
+        sb.append("#PLAYER 1\r\n");
+        sb.append("#GENRE SYNTHETIC\r\n");
+        sb.append("#TITLE 合成譜面 ").append(seed).append("\r\n");
+        sb.append("#SUBTITLE [").append(new String[] { "BEGINNER", "NORMAL", "HYPER", "ANOTHER" }[rnd.nextInt(4)]).append("]\r\n");
+        sb.append("#ARTIST songdata-updater bench\r\n");
+        sb.append("#BPM ").append(bpm).append("\r\n");
+        sb.append("#PLAYLEVEL ").append(1 + rnd.nextInt(12)).append("\r\n");
+        sb.append("#RANK ").append(rnd.nextInt(4)).append("\r\n");
+        sb.append("#TOTAL ").append(200 + rnd.nextInt(200)).append("\r\n");
+        sb.append("#STAGEFILE stage.png\r\n");
+        sb.append("#BANNER banner.png\r\n");
+        sb.append("#LNTYPE 1\r\n");
+        for (int w = 1; w <= WAVS; w++) {
+            sb.append("#WAV").append(id(w)).append(" sound").append(w).append(".ogg\r\n");
+        }
+        sb.append("\r\n*---------------------- MAIN DATA FIELD\r\n");
+
+        for (int m = 0; m < measures; m++) {
+            final String measure = String.format("%03d", m);
+            // BGM
+            sb.append('#').append(measure).append("01:").append(pattern(rnd, 0.25)).append("\r\n");
+            // 途中でBPM変化
+            if (m > 0 && rnd.nextInt(32) == 0) {
+                sb.append('#').append(measure).append("03:").append(String.format("%02X", 100 + rnd.nextInt(100))).append("\r\n");
+            }
+            for (String ch : channels) {
+                if (rnd.nextDouble() < lnRate) {
+                    // ロングノート(5x/6x チャンネル、始点と終点のペア)
+                    final String lnch = (ch.charAt(0) == '1' ? "5" : "6") + ch.charAt(1);
+                    final String w = id(1 + rnd.nextInt(WAVS));
+                    sb.append('#').append(measure).append(lnch).append(':').append(w).append("0000000000000000").append(w).append("\r\n");
+                } else {
+                    sb.append('#').append(measure).append(ch).append(':').append(pattern(rnd, 0.2 + rnd.nextDouble() * 0.3)).append("\r\n");
+                }
+            }
+        }
+        return sb.toString().getBytes(MS932);
+    }
+
+    private static byte[] bmson(long seed, int measures) {
+        final Random rnd = new Random(seed);
+        final int resolution = 240;
+        final int measureTicks = resolution * 4;
+        final int bpm = 120 + rnd.nextInt(80);
+
+        final StringBuilder sb = new StringBuilder(measures * 512);
+        sb.append("{\"version\":\"1.0.0\",\"info\":{");
+        sb.append("\"title\":\"合成譜面 ").append(seed).append("\",");
+        sb.append("\"subtitle\":\"\",\"genre\":\"SYNTHETIC\",\"artist\":\"songdata-updater bench\",\"subartists\":[],");
+        sb.append("\"mode_hint\":\"beat-7k\",\"chart_name\":\"HYPER\",");
+        sb.append("\"level\":").append(1 + rnd.nextInt(12)).append(',');
+        sb.append("\"init_bpm\":").append(bpm).append(',');
+        sb.append("\"judge_rank\":100,\"total\":").append(100 + rnd.nextInt(100)).append(',');
+        sb.append("\"back_image\":\"\",\"eyecatch_image\":\"\",\"banner_image\":\"banner.png\",\"preview_music\":\"\",");
+        sb.append("\"resolution\":").append(resolution).append("},");
+
+        sb.append("\"lines\":[");
+        for (int m = 0; m <= measures; m++) {
+            sb.append(m > 0 ? "," : "").append("{\"y\":").append(m * measureTicks).append('}');
+        }
+        sb.append("],\"bpm_events\":[],\"stop_events\":[],\"sound_channels\":[");
+
+        for (int w = 1; w <= WAVS; w++) {
+            sb.append(w > 1 ? "," : "").append("{\"name\":\"sound").append(w).append(".ogg\",\"notes\":[");
+            boolean first = true;
+            for (int m = 0; m < measures; m++) {
+                // このwavを使うノートを小節あたり0-2個置く(同じ位置に同じレーンが重ならないよう、wavごとにスロットをずらす)
+                final int n = rnd.nextInt(3);
+                for (int k = 0; k < n; k++) {
+                    final int slot = (w * 3 + k * 5) % SLOTS;
+                    final int lane = 1 + (w + k) % 8;
+                    final int y = m * measureTicks + slot * (measureTicks / SLOTS);
+                    final int l = rnd.nextInt(20) == 0 ? measureTicks / 4 : 0;
+                    sb.append(first ? "" : ",").append("{\"x\":").append(lane).append(",\"y\":").append(y)
+                            .append(",\"l\":").append(l).append(",\"c\":false}");
+                    first = false;
+                }
+            }
+            sb.append("]}");
+        }
+        sb.append("],\"bga\":{\"bga_header\":[],\"bga_events\":[],\"layer_events\":[],\"poor_events\":[]}}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 1小節分のオブジェ列(SLOTS分割)、density の確率でノートを置く
+     */
+    private static String pattern(Random rnd, double density) {
+        final StringBuilder sb = new StringBuilder(SLOTS * 2);
+        for (int s = 0; s < SLOTS; s++) {
+            sb.append(rnd.nextDouble() < density ? id(1 + rnd.nextInt(WAVS)) : "00");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 2桁の36進数
+     */
+    private static String id(int v) {
+        return "" + BASE36.charAt(v / 36) + BASE36.charAt(v % 36);
+    }
+}
@@ -0,0 +1,122 @@
+package jp.howan.songdata.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import bms.player.beatoraja.song.SQLiteSongDatabaseAccessor;
+import bms.player.beatoraja.song.SongInformationAccessor;
+import jp.howan.songdata.InMemoryFileIndexProvider;
+import jp.howan.songdata.TreeWalkIndexProvider;
+import jp.howan.songdata.UpdateResult;
+
+/**
+ * UpdateHarness: 合成ライブラリに対して更新処理(SQLiteSongDatabaseAccessor.updateSongDatas)を実行し、処理時間とDB操作件数を計測する
+ * 1. cold: 空の songdata.db / songinfo.db に全譜面を登録する
+ * 2. warm: 変更なしで再度更新する(走査と更新日時の比較だけのコスト)
+ * 3. mutated: 楽曲フォルダの N% に変更を加えてから更新する(差分更新のコスト)
+ * ライブラリは LibraryGenerator で作業フォルダ内に生成する。OSのファイルキャッシュは消さないので、cold はDBが空という意味。
+ * 更新処理のオプションは本体と同じくシステムプロパティ(-Dsongdata.xxx)で指定する。
+ * --index でファイル検索を指定できる(auto: オプションに従う、walk: TreeWalkIndexProvider、
+ * memory: 更新処理の直前のライブラリの内容を InMemoryFileIndexProvider に登録し、ファイル検索のコストなしで計測する)
+ *
+ * gradlew updateHarness -Pargs="作業フォルダ --charts 20000 --mutate 10"
+ */
+public final class UpdateHarness {
+
+    private UpdateHarness() {
+        // static utility
+    }
+
+    /**
+     * 1回分の計測結果
+     */
+    private record Run(String name, int charts, long wallMillis, UpdateResult result) {
+    }
+
+    /**
+     * 使い方: UpdateHarness 作業フォルダ [--mutate 変更する楽曲フォルダの割合(%)] [--index auto|walk|memory] [--no-info] [--verbose] [LibraryGenerator のオプション]
+     * 作業フォルダ以下の library, songdata.db, songinfo.db は実行のたびに作り直す
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: UpdateHarness <workdir> [--mutate PERCENT] [--index auto|walk|memory] [--no-info] [--verbose] [LibraryGenerator options]");
+            System.exit(1);
+        }
+        final Path work = Paths.get(args[0]).toAbsolutePath();
+        final LibraryGenerator.Settings settings = LibraryGenerator.parse(args, 1);
+        double mutatePercent = 10;
+        boolean withInfo = true;
+        boolean verbose = false;
+        String index = "auto";
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mutate" -> mutatePercent = Double.parseDouble(args[++i]);
+                case "--index" -> index = args[++i];
+                case "--no-info" -> withInfo = false;
+                case "--verbose" -> verbose = true;
+                default -> {
+                    // LibraryGenerator のオプション
+                }
+            }
+        }
+        if (!verbose) {
+            // 更新処理のログ(INFO)は計測結果の邪魔になるので警告以上だけにする
+            Logger.getGlobal().setLevel(Level.WARNING);
+        }
+
+        final Path library = work.resolve("library");
+        final Path songdb = work.resolve("songdata.db");
+        final Path infodb = work.resolve("songinfo.db");
+        Files.createDirectories(work);
+        LibraryGenerator.deleteTree(library);
+        for (Path p : List.of(songdb, infodb, work.resolve("songdata_decodecache.db"))) {
+            Files.deleteIfExists(p);
+        }
+
+        long t = System.currentTimeMillis();
+        final List<Path> songFolders = LibraryGenerator.generate(library, settings);
+        System.out.println("library: " + settings + " -> " + songFolders.size() + " folders ("
+                + (System.currentTimeMillis() - t) + "ms)");
+
+        final SQLiteSongDatabaseAccessor accessor = new SQLiteSongDatabaseAccessor(songdb.toString());
+        final SongInformationAccessor info = withInfo ? new SongInformationAccessor(infodb.toString()) : null;
+        final String[] roots = { library.toString() };
+        final List<Run> runs = new ArrayList<>();
+
+        runs.add(run("cold", library, accessor, roots, info, index));
+        runs.add(run("warm", library, accessor, roots, info, index));
+        final LibraryGenerator.Mutation mutation = LibraryGenerator.mutate(songFolders, settings, mutatePercent / 100.0, settings.seed() + 1);
+        System.out.println("mutation(" + mutatePercent + "% of folders): " + mutation);
+        runs.add(run("mutated", library, accessor, roots, info, index));
+
+        System.out.println();
+        System.out.println(String.format("%-8s %8s %10s %12s %8s  %s", "run", "charts", "wall(ms)", "per chart(us)", "decoded", "db operations"));
+        for (Run r : runs) {
+            System.out.println(String.format("%-8s %8d %10d %12.1f %8d  %s", r.name(), r.charts(), r.wallMillis(),
+                    r.charts() > 0 ? r.wallMillis() * 1000.0 / r.charts() : 0.0,
+                    r.result() != null ? r.result().decodedCount() : 0,
+                    r.result() != null ? r.result().operations() : "(更新処理の結果なし)"));
+        }
+    }
+
+    private static Run run(String name, Path library, SQLiteSongDatabaseAccessor accessor, String[] roots,
+                           SongInformationAccessor info, String index) throws IOException {
+        final int charts = LibraryGenerator.countCharts(library);
+        switch (index) {
+            case "walk" -> accessor.setFileIndexProvider(new TreeWalkIndexProvider());
+            case "memory" -> accessor.setFileIndexProvider(new InMemoryFileIndexProvider().addTree(library));
+            default -> accessor.setFileIndexProvider(null);
+        }
+        final long t = System.currentTimeMillis();
+        accessor.updateSongDatas(null, roots, false, info);
+        final long wall = System.currentTimeMillis() - t;
+        System.out.println(name + ": " + wall + "ms");
+        return new Run(name, charts, wall, accessor.getLastUpdateResult());
+    }
+}
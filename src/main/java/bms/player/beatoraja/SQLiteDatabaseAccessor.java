@@ -1,13 +1,24 @@
 package bms.player.beatoraja;
 
-import java.beans.IntrospectionException;
-import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
@@ -24,6 +35,11 @@ public abstract class SQLiteDatabaseAccessor {
 	private final ResultSetHandler<List<Column>> columnhandler = new BeanListHandler<Column>(Column.class);
 
 	private final Table[] tables;
+
+	/**
+	 * テーブル名+エンティティクラスごとのRowBinder
+	 */
+	private final Map<String, RowBinder<?>> binders = new ConcurrentHashMap<>();
 	
 	public SQLiteDatabaseAccessor(Table... tables) {
 		this.tables = tables;
@@ -92,49 +108,440 @@ public abstract class SQLiteDatabaseAccessor {
 
 	protected void insert(QueryRunner qr, Connection con, String tablename,
 			Object entity) throws SQLException {
-		Column[] columns = null;
-		for(Table table : tables) {
-			if(table.getName().equals(tablename)) {
-				columns = table.getColumn();
-				break;
-			}
-		}
-		if(columns == null) {
+		final RowBinder<Object> binder = binder(tablename, entity);
+		if(binder == null) {
 			return;
 		}
 		
-		StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO " + tablename + " (");
-		boolean comma = false;
-		for (Column column : columns) {
-			sql.append(comma ? "," : "").append(column.getName());
-			comma = true;
+		if(con != null) {
+			qr.update(con, binder.getInsertSQL(), binder.toParams(entity));
+		} else {
+			qr.update(binder.getInsertSQL(), binder.toParams(entity));			
+		}
+	}
+
+	/**
+	 * 指定テーブルに指定クラスのエンティティを書き込むRowBinderを取得する。初回のみ生成し、以降はキャッシュを返す
+	 * 
+	 * @param tablename
+	 *            テーブル名
+	 * @param type
+	 *            エンティティのクラス
+	 * @return RowBinder、テーブルが存在しない場合はnull
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> RowBinder<T> binder(String tablename, Class<T> type) {
+		final String key = tablename + '\0' + type.getName();
+		RowBinder<?> binder = binders.get(key);
+		if(binder == null) {
+			for(Table table : tables) {
+				if(table.getName().equals(tablename)) {
+					binder = binders.computeIfAbsent(key, k -> new RowBinder<>(table, type));
+					break;
+				}
+			}
+		}
+		return (RowBinder<T>) binder;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RowBinder<Object> binder(String tablename, Object entity) {
+		return (RowBinder<Object>) binder(tablename, entity.getClass());
+	}
+
+	/**
+	 * 別のデータベースファイルを接続に ATTACH する(トランザクションの外で呼び出すこと)
+	 *
+	 * @param schema
+	 *            スキーマ名
+	 */
+	protected static void attach(Connection con, Path file, String schema) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement("ATTACH DATABASE ? AS " + schema)) {
+			ps.setString(1, file.toString());
+			ps.execute();
+		}
+	}
+
+	/**
+	 * データベースファイルを置き換える(同じフォルダ内で移動する。可能ならアトミックに置き換える)
+	 */
+	protected static void replaceFile(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * テーブル定義とエンティティクラスから生成する書き込み用バインダ
+	 * INSERT OR REPLACE文と各カラムのgetter(MethodHandle)を生成時に1度だけ解決し、
+	 * 以降はPreparedStatementにgetterの戻り値の型に合わせたsetXXXで直接バインドする。
+	 * getterは getXxx / isXxx / xxx() (record) の順に探す。見つからないカラムはNULLを書き込む
+	 * 
+	 * @author exch
+	 */
+	public static final class RowBinder<T> {
+
+		private final String insertSQL;
+
+		private final String tableName;
+
+		/**
+		 * INSERT文の " (カラム,...) VALUES(?,...)" 部分
+		 */
+		private final String columnsAndValues;
+
+		private final String[] columnNames;
+
+		private final ColumnBinder[] columns;
+
+		RowBinder(Table table, Class<T> type) {
+			final Column[] cols = table.getColumn();
+			tableName = table.getName();
+			columnNames = new String[cols.length];
+			for (int i = 0; i < cols.length; i++) {
+				columnNames[i] = cols[i].getName();
+			}
+			StringBuilder sql = new StringBuilder(" (");
+			boolean comma = false;
+			for (Column column : cols) {
+				sql.append(comma ? "," : "").append(column.getName());
+				comma = true;
+			}
+			sql.append(") VALUES(");
+			comma = false;
+			for (int i = 0; i < cols.length; i++) {
+				sql.append(comma ? ",?" : "?");
+				comma = true;
+			}
+			sql.append(")");
+			columnsAndValues = sql.toString();
+			insertSQL = "INSERT OR REPLACE INTO " + tableName + columnsAndValues + ";";
+
+			columns = new ColumnBinder[cols.length];
+			for (int i = 0; i < cols.length; i++) {
+				columns[i] = compile(type, cols[i].getName(), i + 1);
+			}
+		}
+
+		/**
+		 * INSERT OR REPLACE文(テーブル定義のカラム順)
+		 */
+		public String getInsertSQL() {
+			return insertSQL;
+		}
+
+		/**
+		 * INSERT ... ON CONFLICT DO UPDATE文(テーブル定義のカラム順、バインドはINSERT OR REPLACE文と同じ)
+		 * 既存の行と conflict の値が衝突した場合は行を消さずに各カラムを更新する。
+		 * ただし preserved のカラムは、sameKey の値が既存の行と同じ場合は既存の値を残す
+		 * (INSERT OR REPLACE と違い、ユーザーが設定した値を書き込み側が上書きしない)
+		 *
+		 * @param conflict
+		 *            衝突を判定するカラム(主キーなど)
+		 * @param sameKey
+		 *            preserved のカラムを残すかどうかを判定するカラム
+		 * @param preserved
+		 *            残すカラム
+		 */
+		public String getUpsertSQL(String conflict, String sameKey, String... preserved) {
+			StringBuilder sql = new StringBuilder("INSERT INTO " + tableName + columnsAndValues);
+			sql.append(" ON CONFLICT(").append(conflict).append(") DO UPDATE SET ");
+			boolean comma = false;
+			for (String name : columnNames) {
+				if (name.equals(conflict)) {
+					continue;
+				}
+				sql.append(comma ? "," : "").append(name).append('=');
+				if (Arrays.asList(preserved).contains(name)) {
+					sql.append("CASE WHEN ").append(tableName).append('.').append(sameKey).append(" = excluded.").append(sameKey)
+							.append(" THEN ").append(tableName).append('.').append(name).append(" ELSE excluded.").append(name).append(" END");
+				} else {
+					sql.append("excluded.").append(name);
+				}
+				comma = true;
+			}
+			sql.append(';');
+			return sql.toString();
+		}
+
+		/**
+		 * INSERT OR REPLACE文のPreparedStatementを生成する。呼び出し側で再利用しcloseすること
+		 */
+		public PreparedStatement prepare(Connection con) throws SQLException {
+			return con.prepareStatement(insertSQL);
+		}
+
+		/**
+		 * エンティティの値をPreparedStatementにバインドする
+		 */
+		public void bind(PreparedStatement ps, T entity) throws SQLException {
+			for (ColumnBinder column : columns) {
+				column.bind(ps, entity);
+			}
+		}
+
+		/**
+		 * エンティティの値をPreparedStatementにバインドしてバッチに追加する
+		 */
+		public void addBatch(PreparedStatement ps, T entity) throws SQLException {
+			bind(ps, entity);
+			ps.addBatch();
+		}
+
+		/**
+		 * エンティティの値をパラメータ配列で返す(QueryRunner用)
+		 */
+		public Object[] toParams(T entity) throws SQLException {
+			Object[] params = new Object[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				params[i] = columns[i].get(entity);
+			}
+			return params;
+		}
+
+		/**
+		 * エンティティの値を不変な行にする(値を取り出すスレッドと書き込むスレッドが異なる場合に使う)
+		 */
+		public Row row(T entity) throws SQLException {
+			final Row row = new Row(this);
+			for (ColumnBinder column : columns) {
+				column.capture(entity, row);
+			}
+			return row;
+		}
+
+		/**
+		 * 行の値をPreparedStatementにバインドしてバッチに追加する
+		 */
+		public void addRow(PreparedStatement ps, Row row) throws SQLException {
+			if (row.binder != this) {
+				throw new IllegalArgumentException("別のバインダで作った行です");
+			}
+			for (ColumnBinder column : columns) {
+				column.bind(ps, row);
+			}
+			ps.addBatch();
 		}
-		sql.append(") VALUES(");
 
-		Object[] params = new Object[columns.length];
-		comma = false;
-		for (int i = 0; i < columns.length; i++) {
-			sql.append(comma ? ",?" : "?");
-			comma = true;
+		private ColumnBinder column(String name) {
+			for (int i = 0; i < columnNames.length; i++) {
+				if (columnNames[i].equals(name)) {
+					return columns[i];
+				}
+			}
+			throw new IllegalArgumentException("カラム " + name + " はありません");
+		}
 
-			PropertyDescriptor pd;
+		private static ColumnBinder compile(Class<?> type, String name, int index) {
+			final Method getter = findGetter(type, name);
+			if (getter == null) {
+				Logger.getGlobal().warning(type.getSimpleName() + " にカラム " + name + " のgetterがないのでNULLを書き込みます");
+				return new ColumnBinder(index, Kind.NULL, null, null);
+			}
+			final MethodHandle mh;
 			try {
-				pd = new PropertyDescriptor(columns[i].getName(), entity.getClass());
-				Method getterMethod = pd.getReadMethod();
-				params[i] = getterMethod.invoke(entity);
-			} catch (IntrospectionException | ReflectiveOperationException | IllegalArgumentException e) {
-				e.printStackTrace();
+				// 非publicクラス(パッケージプライベートなrecord等)のgetterも使えるようにする
+				getter.setAccessible(true);
+				mh = MethodHandles.lookup().unreflect(getter);
+			} catch (IllegalAccessException | RuntimeException e) {
+				throw new IllegalArgumentException(type.getName() + "." + getter.getName() + " にアクセスできません", e);
+			}
+			final Class<?> rt = getter.getReturnType();
+			final MethodHandle objectGetter = mh.asType(MethodType.methodType(Object.class, Object.class));
+			if (rt == int.class) {
+				return new ColumnBinder(index, Kind.INT, mh.asType(MethodType.methodType(int.class, Object.class)), objectGetter);
+			}
+			if (rt == long.class) {
+				return new ColumnBinder(index, Kind.LONG, mh.asType(MethodType.methodType(long.class, Object.class)), objectGetter);
 			}
+			if (rt == double.class) {
+				return new ColumnBinder(index, Kind.DOUBLE, mh.asType(MethodType.methodType(double.class, Object.class)), objectGetter);
+			}
+			if (rt == String.class) {
+				return new ColumnBinder(index, Kind.STRING, mh.asType(MethodType.methodType(String.class, Object.class)), objectGetter);
+			}
+			return new ColumnBinder(index, Kind.OBJECT, objectGetter, objectGetter);
 		}
-		sql.append(");");
 
-		if(con != null) {
-			qr.update(con, sql.toString(), params);
-		} else {
-			qr.update(sql.toString(), params);			
+		private static Method findGetter(Class<?> type, String name) {
+			final String cap = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+			for (String candidate : new String[] { "get" + cap, "is" + cap, name }) {
+				try {
+					Method m = type.getMethod(candidate);
+					if (m.getReturnType() != void.class) {
+						return m;
+					}
+				} catch (NoSuchMethodException e) {
+					// 次の候補へ
+				}
+			}
+			return null;
+		}
+
+		private static SQLException rethrow(Throwable t) {
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			if (t instanceof SQLException) return (SQLException) t;
+			return new SQLException(t);
+		}
+
+		/**
+		 * getterの戻り値の型
+		 */
+		private enum Kind {
+			INT, LONG, DOUBLE, STRING, OBJECT, NULL
+		}
+
+		/**
+		 * 1カラム分のバインド処理
+		 * getterの戻り値の型に合わせたsetXXXでバインドする。Row には int / long / double をボックス化せずに保持する
+		 */
+		private static final class ColumnBinder {
+
+			final int index;
+			private final Kind kind;
+			// 戻り値の型に合わせた (Object)int などの getter
+			private final MethodHandle typed;
+			private final MethodHandle getter;
+
+			ColumnBinder(int index, Kind kind, MethodHandle typed, MethodHandle getter) {
+				this.index = index;
+				this.kind = kind;
+				this.typed = typed;
+				this.getter = getter;
+			}
+
+			void bind(PreparedStatement ps, Object entity) throws SQLException {
+				try {
+					switch (kind) {
+					case INT -> ps.setInt(index, (int) typed.invokeExact(entity));
+					case LONG -> ps.setLong(index, (long) typed.invokeExact(entity));
+					case DOUBLE -> ps.setDouble(index, (double) typed.invokeExact(entity));
+					case STRING -> ps.setString(index, (String) typed.invokeExact(entity));
+					case OBJECT -> ps.setObject(index, (Object) typed.invokeExact(entity));
+					case NULL -> ps.setNull(index, Types.NULL);
+					}
+				} catch (Throwable t) {
+					throw rethrow(t);
+				}
+			}
+
+			/**
+			 * エンティティの値を行に取り出す
+			 */
+			void capture(Object entity, Row row) throws SQLException {
+				final int i = index - 1;
+				try {
+					switch (kind) {
+					case INT -> row.numbers[i] = (int) typed.invokeExact(entity);
+					case LONG -> row.numbers[i] = (long) typed.invokeExact(entity);
+					case DOUBLE -> row.reals[i] = (double) typed.invokeExact(entity);
+					case STRING -> row.objects[i] = (String) typed.invokeExact(entity);
+					case OBJECT -> row.objects[i] = (Object) typed.invokeExact(entity);
+					case NULL -> {
+					}
+					}
+				} catch (Throwable t) {
+					throw rethrow(t);
+				}
+			}
+
+			void bind(PreparedStatement ps, Row row) throws SQLException {
+				final int i = index - 1;
+				switch (kind) {
+				case INT -> ps.setInt(index, (int) row.numbers[i]);
+				case LONG -> ps.setLong(index, row.numbers[i]);
+				case DOUBLE -> ps.setDouble(index, row.reals[i]);
+				case STRING -> ps.setString(index, (String) row.objects[i]);
+				case OBJECT -> ps.setObject(index, row.objects[i]);
+				case NULL -> ps.setNull(index, Types.NULL);
+				}
+			}
+
+			Object get(Row row) {
+				final int i = index - 1;
+				return switch (kind) {
+				case INT -> (int) row.numbers[i];
+				case LONG -> row.numbers[i];
+				case DOUBLE -> row.reals[i];
+				case STRING, OBJECT -> row.objects[i];
+				case NULL -> null;
+				};
+			}
+
+			void set(Row row, Object value) {
+				final int i = index - 1;
+				switch (kind) {
+				case INT, LONG -> row.numbers[i] = ((Number) value).longValue();
+				case DOUBLE -> row.reals[i] = ((Number) value).doubleValue();
+				case STRING, OBJECT -> row.objects[i] = value;
+				case NULL -> {
+				}
+				}
+			}
+
+			Object get(Object entity) throws SQLException {
+				if (getter == null) {
+					return null;
+				}
+				try {
+					return (Object) getter.invokeExact(entity);
+				} catch (Throwable t) {
+					throw rethrow(t);
+				}
+			}
 		}
 	}
-	
+
+	/**
+	 * RowBinder で取り出したエンティティの値(テーブル定義のカラム順)
+	 * int / long / double のカラムはボックス化せずに保持し、RowBinder と同じ型のsetXXXでバインドする。
+	 * 不変なので、生成したスレッドから書き込みスレッドにそのまま渡してよい
+	 */
+	public static final class Row {
+
+		private final RowBinder<?> binder;
+
+		private final long[] numbers;
+
+		private final double[] reals;
+
+		private final Object[] objects;
+
+		private Row(RowBinder<?> binder) {
+			final int n = binder.columns.length;
+			this.binder = binder;
+			this.numbers = new long[n];
+			this.reals = new double[n];
+			this.objects = new Object[n];
+		}
+
+		private Row(Row row) {
+			this.binder = row.binder;
+			this.numbers = row.numbers.clone();
+			this.reals = row.reals.clone();
+			this.objects = row.objects.clone();
+		}
+
+		/**
+		 * カラムの値を返す
+		 */
+		public Object get(String name) {
+			return binder.column(name).get(this);
+		}
+
+		/**
+		 * カラムの値を置き換えた行を返す
+		 */
+		public Row with(String name, Object value) {
+			final Row copy = new Row(this);
+			binder.column(name).set(copy, value);
+			return copy;
+		}
+	}
+
 	/**
 	 * SQLiteテーブル
 	 * 
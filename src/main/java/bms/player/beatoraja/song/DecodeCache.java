@@ -0,0 +1,280 @@
+package bms.player.beatoraja.song;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+import org.sqlite.SQLiteConfig.SynchronousMode;
+
+import bms.player.beatoraja.SQLiteDatabaseAccessor;
+
+/**
+ * デコード結果のキャッシュ(songdata.db と同じ場所のサイドカーDB)
+ * BMSファイルのパスごとにサイズ、更新日時、内容のハッシュ(CRC32C)、デコード時の sha256 を保持する。
+ * 更新日時だけが変わった譜面(コピーツールや同期ソフトで日時だけ変わった場合など)は、
+ * サイズとハッシュが一致し、songテーブルの sha256 もキャッシュと一致すれば内容が同じとみなしてデコードを省略する。
+ * songテーブル / songinfo.db の既存レコードをそのまま使うので、差分更新の場合のみ有効。
+ * キャッシュのエントリはこのキャッシュが有効な状態でデコードした譜面について作られる(全譜面を載せるには一度 rebuild する)
+ *
+ * filter ステージ(複数スレッド)から参照し、write ステージから更新する。DBへの保存は songdata.db のコミット(チェックポイントと更新の完了)後に行う
+ */
+final class DecodeCache extends SQLiteDatabaseAccessor {
+
+	/**
+	 * キャッシュの1エントリ
+	 */
+	record Entry(String path, long size, long date, long hash, String sha256) {
+	}
+
+	private static final int BATCH_SIZE = 1000;
+
+	private final SQLiteDataSource ds;
+
+	private final QueryRunner qr;
+
+	// パス順(フォルダ以下のエントリの削除に使う)
+	private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+	// 前回保存以降に追加・更新したエントリ
+	private final Map<String, Entry> updated = new ConcurrentHashMap<>();
+	// 前回保存以降に削除したパス
+	private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+	private final AtomicInteger hits = new AtomicInteger(0);
+	private final AtomicInteger misses = new AtomicInteger(0);
+	private final AtomicInteger hashed = new AtomicInteger(0);
+
+	private DecodeCache(String filepath) throws SQLException {
+		super(new Table("decodecache",
+				new Column("path", "TEXT", 1, 1),
+				new Column("size", "INTEGER"),
+				new Column("date", "INTEGER"),
+				new Column("hash", "INTEGER"),
+				new Column("sha256", "TEXT")
+				));
+		SQLiteConfig conf = new SQLiteConfig();
+		conf.setSharedCache(true);
+		conf.setSynchronous(SynchronousMode.OFF);
+		conf.setJournalMode(SQLiteConfig.JournalMode.MEMORY);
+		conf.setTempStore(SQLiteConfig.TempStore.MEMORY);
+		ds = new SQLiteDataSource(conf);
+		ds.setUrl("jdbc:sqlite:" + filepath);
+		qr = new QueryRunner(ds);
+		validate(qr);
+	}
+
+	/**
+	 * キャッシュを開いて読み込む
+	 *
+	 * @param filepath キャッシュDBのパス
+	 * @param clear 既存のエントリを破棄するかどうか(rebuild 時)
+	 * @return キャッシュ、開けなかった場合はnull(キャッシュなしで更新を続ける)
+	 */
+	static DecodeCache open(String filepath, boolean clear) {
+		try {
+			DecodeCache cache = new DecodeCache(filepath);
+			if (clear) {
+				cache.qr.update("DELETE FROM decodecache");
+			} else {
+				try (Connection conn = cache.ds.getConnection();
+					 Statement st = conn.createStatement();
+					 ResultSet rs = st.executeQuery("SELECT path, size, date, hash, sha256 FROM decodecache")) {
+					while (rs.next()) {
+						final String path = rs.getString(1);
+						cache.entries.put(path, new Entry(path, rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getString(5)));
+					}
+				}
+			}
+			Logger.getGlobal().info("デコードキャッシュを読み込みました : " + filepath + " エントリ数: " + cache.entries.size());
+			return cache;
+		} catch (SQLException e) {
+			Logger.getGlobal().log(Level.SEVERE, "デコードキャッシュを開けないのでキャッシュなしで更新します", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 更新日時が変わった譜面の内容がキャッシュ時点から変わっていないかを判定する
+	 * サイズが違えば変更あり、更新日時も同じなら変更なし、それ以外は内容のハッシュで判定する
+	 * (BMSON はデコード時に CRC32C を求めていないので、内容の sha256 をキャッシュの sha256 と比べる)。
+	 * 変更なしの場合はエントリの更新日時を新しい値にする
+	 *
+	 * @param pathname songテーブルのパス
+	 * @param bmsPath BMSファイルのパス
+	 * @param bmsModTime BMSファイルの更新日時
+	 * @param sha256 songテーブルに登録されている sha256
+	 * @return 変更なし(デコード不要)の場合はtrue
+	 */
+	boolean isUnchanged(String pathname, Path bmsPath, long bmsModTime, String sha256) {
+		final Entry e = entries.get(pathname);
+		if (e == null || e.sha256() == null || !e.sha256().equals(sha256)) {
+			misses.incrementAndGet();
+			return false;
+		}
+		try {
+			if (Files.size(bmsPath) != e.size()) {
+				misses.incrementAndGet();
+				return false;
+			}
+			if (e.date() != bmsModTime) {
+				hashed.incrementAndGet();
+				final boolean same = pathname.toLowerCase().endsWith(".bmson") ? sha256(bmsPath).equalsIgnoreCase(e.sha256())
+						: hash(bmsPath) == e.hash();
+				if (!same) {
+					misses.incrementAndGet();
+					return false;
+				}
+				put(new Entry(pathname, e.size(), bmsModTime, e.hash(), e.sha256()));
+			}
+		} catch (IOException ex) {
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * デコードした内容のハッシュ(CRC32C、デコード用ワーカースレッドでデコーダが読んだバイト列から求める)
+	 */
+	static long hash(byte[] data) {
+		final CRC32C crc = new CRC32C();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * ファイル内容のハッシュ(CRC32C)
+	 */
+	static long hash(Path path) throws IOException {
+		final CRC32C crc = new CRC32C();
+		final byte[] buf = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(path)) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				crc.update(buf, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * ファイル内容の sha256(BMSON 用、デコーダが求める sha256 と同じ16進文字列)
+	 */
+	static String sha256(Path path) throws IOException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		final byte[] buf = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(path)) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		}
+		return HexFormat.of().formatHex(md.digest());
+	}
+
+	void put(Entry e) {
+		entries.put(e.path(), e);
+		updated.put(e.path(), e);
+		removed.remove(e.path());
+	}
+
+	void remove(String pathname) {
+		if (entries.remove(pathname) != null) {
+			removed.add(pathname);
+		}
+		updated.remove(pathname);
+	}
+
+	/**
+	 * 指定フォルダ以下のエントリを削除する
+	 */
+	void removeUnder(String prefix) {
+		for (String path : entries.tailMap(prefix).keySet()) {
+			if (!path.startsWith(prefix)) {
+				break;
+			}
+			remove(path);
+		}
+	}
+
+	/**
+	 * 追加・更新・削除したエントリをキャッシュDBに保存する(songdata.db のコミット後に呼ぶ)
+	 * 保存中に filter ステージが追加・更新したエントリは次回の保存に回す
+	 */
+	void save() {
+		if (updated.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+		final List<String> removing = new ArrayList<>(removed);
+		final List<Entry> saving = new ArrayList<>(updated.values());
+		try (Connection conn = ds.getConnection()) {
+			conn.setAutoCommit(false);
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM decodecache WHERE path = ?")) {
+				int pending = 0;
+				for (String path : removing) {
+					ps.setString(1, path);
+					ps.addBatch();
+					if (++pending >= BATCH_SIZE) {
+						ps.executeBatch();
+						pending = 0;
+					}
+				}
+				if (pending > 0) ps.executeBatch();
+			}
+			final RowBinder<Entry> binder = binder("decodecache", Entry.class);
+			try (PreparedStatement ps = binder.prepare(conn)) {
+				int pending = 0;
+				for (Entry e : saving) {
+					binder.addBatch(ps, e);
+					if (++pending >= BATCH_SIZE) {
+						ps.executeBatch();
+						pending = 0;
+					}
+				}
+				if (pending > 0) ps.executeBatch();
+			}
+			conn.commit();
+			removed.removeAll(removing);
+			for (Entry e : saving) {
+				updated.remove(e.path(), e);
+			}
+		} catch (SQLException e) {
+			Logger.getGlobal().log(Level.SEVERE, "デコードキャッシュ保存中の例外", e);
+		}
+	}
+
+	/**
+	 * キャッシュの統計をログ出力用の文字列で返す
+	 */
+	String summary() {
+		return "decodecache entries=" + entries.size() + " hit=" + hits.get() + " miss=" + misses.get() + " hashed=" + hashed.get();
+	}
+}
@@ -0,0 +1,174 @@
+package bms.player.beatoraja.song;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import bms.model.BMSDecoder;
+import bms.model.BMSModel;
+import bms.model.BMSONDecoder;
+import bms.model.ChartInformation;
+
+/**
+ * 1譜面分のデコード結果
+ * デコード用ワーカースレッドで生成し、同じスレッドで書き込み用の不変な行に変換してから書き込みスレッドに渡す
+ * (songData / information は書き込みスレッドからは触らない)。BMSModel自体は保持しない(メモリ節約のため)
+ * - songData: songテーブル用のデータ、デコード失敗時はnull
+ * - information: songinfo.db用のデータ、不要な場合や生成失敗時はnull
+ * - registrable: songテーブルに登録対象かどうか(0ノーツかつWAV定義0の譜面はfalse)
+ * - size / hash: デコードした内容のサイズとハッシュ(CRC32C、デコードキャッシュ用)、求めていない場合は size が -1。
+ *   BMSON はデコーダがファイルを直接読むので、hash は求めずデコーダが求めた sha256 で内容を判定する(DecodeCache.isUnchanged)
+ */
+final class DecodedChart {
+
+	final SongData songData;
+	final SongInformation information;
+	final boolean registrable;
+	final long size;
+	final long hash;
+
+	private DecodedChart(SongData songData, SongInformation information, boolean registrable) {
+		this(songData, information, registrable, -1, 0);
+	}
+
+	private DecodedChart(SongData songData, SongInformation information, boolean registrable, long size, long hash) {
+		this.songData = songData;
+		this.information = information;
+		this.registrable = registrable;
+		this.size = size;
+		this.hash = hash;
+	}
+
+	boolean hasHash() {
+		return size >= 0;
+	}
+
+	boolean isFailed() {
+		return songData == null;
+	}
+
+	/**
+	 * BMSをデコードしてSongData/SongInformationを生成する。複数スレッドから同時に呼び出してよい
+	 *
+	 * @param bmsPath BMSファイルのパス
+	 * @param pathname songテーブルに登録するパス文字列(ログ出力用)
+	 * @param hasTxt フォルダ内に.txtがあるかどうか
+	 * @param previewFileName フォルダ内に実在するpreview音源のファイル名、ない場合はnull
+	 * @param withInformation SongInformationも生成するかどうか
+	 * @param withHash デコードした内容のハッシュ(デコードキャッシュ用)も求めるかどうか
+	 * @return デコード結果、失敗した場合はisFailed()がtrue
+	 */
+	static DecodedChart decode(Path bmsPath, String pathname, boolean hasTxt, String previewFileName, boolean withInformation,
+							   boolean withHash) {
+		BMSModel model = null;
+		long size = -1;
+		long hash = 0;
+		try {
+			final String lower = pathname.toLowerCase();
+			if (lower.endsWith(".bmson")) {
+				// BMSONDecoder はバイト列から読めないので読み直さない。
+				// 内容はデコーダが読んだバイト列の sha256 で判定し、サイズは読む前に求める(途中で変わっても sha256 が一致しなくなる)
+				if (withHash) {
+					size = Files.size(bmsPath);
+				}
+				BMSONDecoder decoder = new BMSONDecoder(BMSModel.LNTYPE_LONGNOTE);
+				model = decoder.decode(bmsPath);
+			} else if (withHash) {
+				// 読み込んだバイト列をデコードし、デコードキャッシュ用のハッシュも同じバイト列から求める(ファイルを読むのは1回)
+				final byte[] data = Files.readAllBytes(bmsPath);
+				BMSDecoder decoder = new BMSDecoder(BMSModel.LNTYPE_LONGNOTE);
+				model = decoder.decode(data, lower.endsWith(".pms"), null);
+				if (model != null) {
+					// バイト列からデコードした場合はパスが入らないので、パスからデコードした場合と同じにする
+					final ChartInformation decoded = model.getChartInformation();
+					model.setChartInformation(new ChartInformation(bmsPath, decoded != null ? decoded.lntype : BMSModel.LNTYPE_LONGNOTE,
+							decoded != null ? decoded.selectedRandoms : null));
+				}
+				size = data.length;
+				hash = DecodeCache.hash(data);
+			} else {
+				// デコードキャッシュを使わない場合はパスからデコードする(デコーダのログにパスが出る)
+				BMSDecoder decoder = new BMSDecoder(BMSModel.LNTYPE_LONGNOTE);
+				model = decoder.decode(bmsPath);
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().log(Level.SEVERE, "Error while reading " + pathname + ": " + e.getMessage(), e);
+		} catch (Exception e) {
+			Logger.getGlobal().log(Level.SEVERE, "Error while decoding " + pathname + ": " + e.getMessage(), e);
+		}
+		if (model == null) return new DecodedChart(null, null, false); // デコードできなかった
+
+		SongData sd;
+		try {
+			sd = new SongData(model, hasTxt);
+		} catch (Throwable t) {
+			Logger.getGlobal().log(Level.SEVERE, "SongData 生成失敗 : path=" + pathname + " cause=" + t.getMessage(), t);
+			return new DecodedChart(null, null, false); // BMSをmodelにデコードできたのに、songdataにできなかった
+		}
+
+		// 0ノーツかつWAV定義0の譜面は登録しない
+		if (sd.getNotes() == 0 && model.getWavList().length == 0) {
+			return new DecodedChart(sd, null, false);
+		}
+
+		// 難易度未設定時の自動設定
+		if (sd.getDifficulty() == 0) {
+			final String fulltitle = (sd.getTitle() + sd.getSubtitle()).toLowerCase();
+			final String diffname = (sd.getSubtitle()).toLowerCase();
+			if (diffname.contains("beginner")) {
+				sd.setDifficulty(1);
+			} else if (diffname.contains("normal")) {
+				sd.setDifficulty(2);
+			} else if (diffname.contains("hyper")) {
+				sd.setDifficulty(3);
+			} else if (diffname.contains("another")) {
+				sd.setDifficulty(4);
+			} else if (diffname.contains("insane") || diffname.contains("leggendaria")) {
+				sd.setDifficulty(5);
+			} else {
+				if (fulltitle.contains("beginner")) {
+					sd.setDifficulty(1);
+				} else if (fulltitle.contains("normal")) {
+					sd.setDifficulty(2);
+				} else if (fulltitle.contains("hyper")) {
+					sd.setDifficulty(3);
+				} else if (fulltitle.contains("another")) {
+					sd.setDifficulty(4);
+				} else if (fulltitle.contains("insane") || fulltitle.contains("leggendaria")) {
+					sd.setDifficulty(5);
+				} else {
+					if (sd.getNotes() < 250) {
+						sd.setDifficulty(1);
+					} else if (sd.getNotes() < 600) {
+						sd.setDifficulty(2);
+					} else if (sd.getNotes() < 1000) {
+						sd.setDifficulty(3);
+					} else if (sd.getNotes() < 2000) {
+						sd.setDifficulty(4);
+					} else {
+						sd.setDifficulty(5);
+					}
+				}
+			}
+		}
+
+		// BMSの#PREVIEWに記載がない、かつ、フォルダ内にpreviewがあった場合は、フォルダ内のpreviewをセットする
+		// フォルダ内に実在するpreviewファイル名を優先したほうが良いような気が？
+		if ((sd.getPreview() == null || sd.getPreview().isEmpty()) && previewFileName != null) {
+			sd.setPreview(previewFileName);
+		}
+
+		// songinfo.db用のデータもワーカー側で生成しておく(SongDataの生成でmodelがvalidate済みである必要がある)
+		SongInformation information = null;
+		if (withInformation) {
+			try {
+				information = new SongInformation(model);
+			} catch (Throwable t) {
+				Logger.getGlobal().log(Level.SEVERE, "SongInformation 生成失敗 : path=" + pathname + " cause=" + t.getMessage(), t);
+			}
+		}
+		return new DecodedChart(sd, information, true, size, hash);
+	}
+}
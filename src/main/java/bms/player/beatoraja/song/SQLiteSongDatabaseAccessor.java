@@ -1,22 +1,31 @@
 package bms.player.beatoraja.song;
 
-import jp.howan.songdata.EverythingBatchIndexer;
+import jp.howan.songdata.DirectoryListing;
 import jp.howan.songdata.EverythingSearchResult;
+import jp.howan.songdata.FileIndexProvider;
+import jp.howan.songdata.LimitedExecutor;
+import jp.howan.songdata.ParallelTreeWalker;
+import jp.howan.songdata.PathTrie;
 import jp.howan.songdata.BmsFolder;
+import jp.howan.songdata.DatabaseProfile;
+import jp.howan.songdata.PipelineQueue;
+import jp.howan.songdata.StageStatistics;
+import jp.howan.songdata.StorageDevices;
+import jp.howan.songdata.TreeWalkIndexProvider;
+import jp.howan.songdata.UpdateProgress;
+import jp.howan.songdata.UpdateResult;
+import jp.howan.songdata.UpdaterOptions;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.FileVisitResult;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 //import java.util.stream.Collectors;
@@ -34,8 +43,6 @@ import org.sqlite.SQLiteDataSource;
 
 import bms.model.*;
 
-import static jp.howan.songdata.EverythingFacade.EverythingIsAvailable;
-
 /**
  * 楽曲データベースへのアクセスクラス
  * 
@@ -47,10 +54,56 @@ public class SQLiteSongDatabaseAccessor extends SQLiteDatabaseAccessor implement
 
 	private final Path root;
 
+	/**
+	 * songdata.db のパス
+	 */
+	private final Path songdbPath;
+
+	/**
+	 * rebuild で作り直す songdata.db(songdata.db と同じ場所、置き換えるまで使う)のパス
+	 */
+	private final Path rebuildPath;
+
+	/**
+	 * デコードキャッシュ(songdata.db と同じ場所のサイドカーDB)のパス
+	 */
+	private final String decodeCachePath;
+
+	/**
+	 * ファイル一覧の保存ファイル(-Dsongdata.fileIndex=persistent、songdata.db と同じ場所)のパス
+	 */
+	private final Path fileIndexPath;
+
+	/**
+	 * 前回の更新日時と楽曲ルートフォルダの保存ファイル(-Dsongdata.incremental、songdata.db と同じ場所)のパス
+	 */
+	private final Path lastUpdatePath;
+
+	/**
+	 * 更新の進捗(チェックポイント)の記録ファイル(songdata.db と同じ場所)のパス
+	 */
+	private final Path progressPath;
+
+	/**
+	 * song / folder テーブルへの書き込み用バインダ（SQL 文とgetterはテーブル定義から1度だけ生成）
+	 */
+	final RowBinder<SongData> songBinder;
+	final RowBinder<FolderData> folderBinder;
+
 	private final ResultSetHandler<List<SongData>> songhandler = new BeanListHandler<>(SongData.class);
 	private final ResultSetHandler<List<FolderData>> folderhandler = new BeanListHandler<>(FolderData.class);
 
 	private final QueryRunner qr;
+
+	/**
+	 * 最後に実行した更新処理の結果
+	 */
+	private volatile UpdateResult lastUpdateResult;
+
+	/**
+	 * 更新処理で使うファイル検索(nullの場合はオプションで選ぶ)
+	 */
+	private volatile FileIndexProvider fileIndexProvider;
 	
 //	private List<SongDatabaseAccessorPlugin> plugins = new ArrayList();
 	
@@ -100,23 +153,52 @@ public class SQLiteSongDatabaseAccessor extends SQLiteDatabaseAccessor implement
 						));
 		
 		Class.forName("org.sqlite.JDBC");
+		ds = dataSource(filepath);
+		qr = new QueryRunner(ds);
+		root = Paths.get(".");
+		songdbPath = Paths.get(filepath);
+		final String songdb = Paths.get(filepath).getFileName().toString();
+		decodeCachePath = Paths.get(filepath).resolveSibling(
+				(songdb.endsWith(".db") ? songdb.substring(0, songdb.length() - 3) : songdb) + "_decodecache.db").toString();
+		fileIndexPath = Paths.get(filepath).resolveSibling(
+				(songdb.endsWith(".db") ? songdb.substring(0, songdb.length() - 3) : songdb) + "_fileindex.bin");
+		lastUpdatePath = Paths.get(filepath).resolveSibling(
+				(songdb.endsWith(".db") ? songdb.substring(0, songdb.length() - 3) : songdb) + "_lastupdate.properties");
+		progressPath = Paths.get(filepath).resolveSibling(
+				(songdb.endsWith(".db") ? songdb.substring(0, songdb.length() - 3) : songdb) + "_progress.properties");
+		rebuildPath = Paths.get(filepath).resolveSibling(
+				(songdb.endsWith(".db") ? songdb.substring(0, songdb.length() - 3) : songdb) + "_rebuild.db");
+		songBinder = binder("song", SongData.class);
+		folderBinder = binder("folder", FolderData.class);
+		createTable();
+	}
+		
+//	public void addPlugin(SongDatabaseAccessorPlugin plugin) {
+//		plugins.add(plugin);
+//	}
+
+	private static SQLiteDataSource dataSource(String filepath) {
+		return dataSource(filepath, 0);
+	}
+
+	/**
+	 * @param pageSize 新しく作るファイルのページサイズ、0 の場合は SQLite の既定
+	 */
+	private static SQLiteDataSource dataSource(String filepath, int pageSize) {
 		SQLiteConfig conf = new SQLiteConfig();
+		if (pageSize > 0) {
+			conf.setPageSize(pageSize);
+		}
 		conf.setSharedCache(true);
 		conf.setSynchronous(SynchronousMode.OFF);
 		conf.setJournalMode(SQLiteConfig.JournalMode.MEMORY);
         conf.setTempStore(SQLiteConfig.TempStore.MEMORY);
         conf.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
         conf.setCacheSize(-50000);
-		ds = new SQLiteDataSource(conf);
+		SQLiteDataSource ds = new SQLiteDataSource(conf);
 		ds.setUrl("jdbc:sqlite:" + filepath);
-		qr = new QueryRunner(ds);
-		root = Paths.get(".");
-		createTable();
+		return ds;
 	}
-		
-//	public void addPlugin(SongDatabaseAccessorPlugin plugin) {
-//		plugins.add(plugin);
-//	}
 	
 	/**
 	 * 楽曲データベースを初期テーブルを作成する。 すでに初期テーブルを作成している場合は何もしない。
@@ -142,6 +224,77 @@ public class SQLiteSongDatabaseAccessor extends SQLiteDatabaseAccessor implement
 		}
 	}
 
+	/**
+	 * rebuild で作り直す songdata.db を開く。テーブルは空の状態から作る(書き込みは songdata.db をロックしない)
+	 *
+	 * @param resume 中断された rebuild を続ける(作りかけのファイルをそのまま使う)
+	 * @param profile 新しく作るファイルのページサイズ
+	 */
+	private SQLiteDataSource openRebuild(boolean resume, DatabaseProfile profile) throws SQLException, IOException {
+		if (!resume) {
+			Files.deleteIfExists(rebuildPath);
+		}
+		final SQLiteDataSource rebuildDs = dataSource(rebuildPath.toString(), profile.pageSize());
+		validate(new QueryRunner(rebuildDs));
+		return rebuildDs;
+	}
+
+	/**
+	 * rebuild で作り直した songdata.db を主キー(path)順に新しいファイルへ詰め直し、songdata.db と置き換える
+	 * - 主キー順に書き込むので、テーブルと主キーのインデックスはページの末尾への追加だけで作られ、空きページも残らない
+	 * - タグ・FAVORITEはこの時点の songdata.db から sha256 で引き継ぐ(rebuild 中に beatoraja で付けたものも残る)
+	 * - songinfo.db も同様に置き換える(songinfo.db を先に置き換え、作り直したファイルは両方置き換えてから消す)
+	 * 途中で失敗しても songdata.db / songinfo.db はそのまま残り、次回の更新で置き換えからやり直す
+	 *
+	 * @param profile 新しいファイルのページサイズとキャッシュ
+	 * @return 詰め直しと置き換えにかかった時間(ms)
+	 */
+	private long replaceWithRebuild(SongInformationAccessor info, DatabaseProfile profile) throws SQLException, IOException {
+		final long start = System.currentTimeMillis();
+		final Path compact = rebuildPath.resolveSibling(rebuildPath.getFileName() + ".tmp");
+		Files.deleteIfExists(compact);
+		final SQLiteDataSource compactDs = dataSource(compact.toString(), profile.pageSize());
+		validate(new QueryRunner(compactDs));
+		try (Connection conn = compactDs.getConnection();
+			 Statement st = conn.createStatement()) {
+			for (String pragma : profile.pragmas()) {
+				st.execute(pragma);
+			}
+			// ATTACH はトランザクションの外で実行する
+			attach(conn, rebuildPath, "rebuild");
+			attach(conn, songdbPath, "live");
+			st.executeUpdate("CREATE TEMP TABLE temp_tags(sha256 TEXT PRIMARY KEY, tag TEXT, favorite INTEGER);");
+			st.executeUpdate("INSERT OR REPLACE INTO temp_tags (sha256, tag, favorite) " +
+					"SELECT sha256, tag, favorite FROM live.song " +
+					"WHERE (tag IS NOT NULL AND tag <> '') OR favorite > 0 " +
+					"ORDER BY rowid;");
+			conn.setAutoCommit(false);
+			st.executeUpdate("INSERT INTO folder SELECT * FROM rebuild.folder ORDER BY path;");
+			st.executeUpdate("INSERT INTO song SELECT * FROM rebuild.song ORDER BY path;");
+			st.executeUpdate("UPDATE song SET " +
+					"tag = COALESCE((SELECT tag FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.tag), " +
+					"favorite = COALESCE((SELECT favorite FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.favorite) " +
+					"WHERE EXISTS (SELECT 1 FROM temp_tags WHERE temp_tags.sha256 = song.sha256);");
+			conn.commit();
+			conn.setAutoCommit(true);
+			st.executeUpdate("DROP TABLE IF EXISTS temp_tags;");
+			st.execute("DETACH DATABASE live;");
+			st.execute("DETACH DATABASE rebuild;");
+		}
+
+		if (info != null) {
+			info.replaceWithRebuild(profile);
+		}
+		replaceFile(compact, songdbPath);
+		Files.deleteIfExists(rebuildPath);
+		if (info != null) {
+			info.discardRebuild();
+		}
+		final long elapsed = System.currentTimeMillis() - start;
+		Logger.getGlobal().info("作り直した songdata.db / songinfo.db に置き換えました : Time - " + elapsed);
+		return elapsed;
+	}
+
 	
 //	/**
 //	 * 楽曲を取得する
@@ -312,15 +465,34 @@ public class SQLiteSongDatabaseAccessor extends SQLiteDatabaseAccessor implement
 			return;
 		}
 		SongDatabaseUpdater updater = new SongDatabaseUpdater(updateAll, bmsroot, info);
-        if (EverythingIsAvailable()) {
-            Logger.getGlobal().info("Everythingをファイル検索に利用します(Everythingのインデックスは最新化されている前提です)");
-            updater.updateSongDatasWithEverything();
-        } else {
-            Logger.getGlobal().info("Everythingが利用できないので通常のディレクトリ走査を行います");
-		    updater.updateSongDatas(path == null ? Stream.of(bmsroot).map(Paths::get) : Stream.of(Paths.get(path)));
-        }
+		final FileIndexProvider provider = fileIndexProvider != null ? fileIndexProvider : FileIndexProvider.fromOptions(fileIndexPath, lastUpdatePath);
+		if (provider != null) {
+			Logger.getGlobal().info("ファイル検索 " + provider.name() + " を利用します(Everythingの場合はインデックスが最新化されている前提です)");
+			updater.updateSongDatas(provider);
+		} else {
+			Logger.getGlobal().info("通常のディレクトリ走査を行います");
+			updater.updateSongDatas(path == null ? Stream.of(bmsroot).map(Paths::get) : Stream.of(Paths.get(path)));
+		}
+	}
+
+	/**
+	 * 更新処理で使うファイル検索を指定する(計測・動作確認用)
+	 *
+	 * @param provider ファイル検索、nullの場合は -Dsongdata.fileIndex で選ぶ
+	 */
+	public void setFileIndexProvider(FileIndexProvider provider) {
+		this.fileIndexProvider = provider;
 	}
 	
+	/**
+	 * 最後に実行した更新処理の結果(処理時間、DB操作件数)を返す
+	 *
+	 * @return 更新処理の結果、まだ更新処理を実行していない場合はnull
+	 */
+	public UpdateResult getLastUpdateResult() {
+		return lastUpdateResult;
+	}
+
 	/**
 	 * song database更新用クラス
 	 * 
@@ -340,1003 +512,1432 @@ public class SQLiteSongDatabaseAccessor extends SQLiteDatabaseAccessor implement
         private final AtomicInteger folderDeleteCount = new AtomicInteger(0);
 
         private final int BATCH_SIZE = 1000; // バッチサイズ（必要に応じて調整）
-        // SQL 文（テーブル定義の列順に合わせること）
-        private final String songInsertSQL = "INSERT OR REPLACE INTO song (md5, sha256, title, subtitle, genre, artist, subartist, tag, path, folder, stagefile, banner, backbmp, preview, parent, level, difficulty, maxbpm, minbpm, length, mode, judge, feature, content, date, favorite, adddate, notes, charthash) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
-        private final String folderInsertSQL = "INSERT OR REPLACE INTO folder (title, subtitle, command, path, banner, parent, type, date, adddate, max) VALUES (?,?,?,?,?,?,?,?,?,?)";
-
         private final long updatetime = Calendar.getInstance().getTimeInMillis() / 1000;
         private final long starttime = System.currentTimeMillis();
         private final AtomicInteger newBmsCount = new AtomicInteger(0);
 
+        // BMSファイルの更新日時が未取得であることを示す値(discoverステージで取得できなかった場合、filterステージで取得する)
+        private static final long UNKNOWN_MODTIME = DirectoryListing.UNKNOWN_MODTIME;
+
+        // パイプラインの各ステージの統計(ログ出力用)
+        private final List<String> pipelineSummary = new ArrayList<>();
+
+        // デコードキャッシュ(-Dsongdata.decodeCache=true の場合のみ)
+        private DecodeCache decodeCache;
+
+        // folder / parent 列のCRC32(フォルダごとに保持、decode ステージから呼び出す)
+        private final SongUtils.FolderCrc32 folderCrc;
+
+        // information テーブルの行を作るバインダ(songinfo.db を更新しない場合は null)
+        private final RowBinder<SongInformation> infoBinder;
+
+        // SQLite の設定と、その効果の計測(write ステージの処理時間、確定と詰め直しにかかった時間)
+        private DatabaseProfile profile;
+        private long writeBusyMillis;
+        private long commitNanos;
+        private long compactMillis;
+
+        // 終了要求(シャットダウンフック)を受けたかどうかと、実行中のパイプラインを中断する処理
+        private volatile boolean stopRequested;
+        private volatile Runnable stopPipeline;
+        // update() の終了(シャットダウンフックは確定が終わるまで待つ)
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // シャットダウンフックが確定を待つ最大時間(秒)
+        private static final int STOP_TIMEOUT_SECONDS = 30;
+
 		public SongDatabaseUpdater(boolean updateAll, String[] bmsroot, SongInformationAccessor info) {
 			this.updateAll = updateAll;
 			this.bmsroot = bmsroot;
 			this.info = info;
+			this.folderCrc = new SongUtils.FolderCrc32(bmsroot, root.toString());
+			this.infoBinder = info != null ? info.informationBinder() : null;
 		}
 
 		/**
-		 * データベースを更新する
+		 * データベースを更新する(通常のディレクトリ走査)
 		 * 
 		 * @param paths
 		 *            更新するディレクトリ(ルートディレクトリでなくても可)
 		 */
 		public void updateSongDatas(Stream<Path> paths) {
-			if(info != null) {
-                // songinfo.db用トランザクション開始
-				info.startUpdate();
-			}
-            
+			update(paths.toList(), null);
+		}
+
+        /**
+         * データベースを更新する(ファイル検索でルートフォルダ以下のファイル一覧を作ってから走査する)
+         */
+        public void updateSongDatas(FileIndexProvider provider) {
+            update(Stream.of(bmsroot).map(Paths::get).toList(), provider);
+        }
+
+        /**
+         * データベースを更新する
+         * タグ・FAVORITEの保持、既存レコードの読み込み、走査パイプライン、残ったレコードの削除、タグ・FAVORITEの復元を行う。
+         * discover ステージだけがファイル検索の方法によって変わる
+         * - provider が null: scanRoots 以下のツリーを格納デバイスごとに直接走査する(走査とデコードが重なる)
+         * - provider あり: 既存レコードの読み込みと並行してファイル一覧を作り、一覧の走査フォルダを順に送る
+         *
+         * @param scanRoots 走査するディレクトリ(provider がある場合は楽曲ルートフォルダ)
+         * @param provider ファイル検索
+         */
+        private void update(List<Path> scanRoots, FileIndexProvider provider) {
+            // 終了要求(Ctrl+C など)を受けたら、書き込み済みのフォルダまでを確定してから終了する
+            final Thread shutdownHook = new Thread(this::requestStop, "songdata-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            try {
+                runUpdate(scanRoots, provider);
+            } finally {
+                finished.countDown();
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // シャットダウン中
+                }
+            }
+        }
+
+        /**
+         * 終了要求を受けた(シャットダウンフック): パイプラインを中断し、書き込み済みのフォルダまでが確定するのを待つ
+         */
+        private void requestStop() {
+            stopRequested = true;
+            final Runnable stop = stopPipeline;
+            if (stop != null) stop.run();
+            Logger.getGlobal().info("終了要求を受けたので、書き込み済みのフォルダまでを確定して更新を中断します");
+            try {
+                finished.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void runUpdate(List<Path> scanRoots, FileIndexProvider provider) {
+            // 前回の更新が中断されていれば続きから再開する(rebuild の途中なら rebuild を続ける)
+            // (rebuild は作りかけのファイルが残っている場合のみ続ける)
+            final UpdateProgress previous = UpdateProgress.load(progressPath);
+            final boolean resumeRebuild = previous != null && previous.isRebuild()
+                    && Files.exists(rebuildPath) && (info == null || info.hasRebuild());
+            final boolean rebuild = updateAll || resumeRebuild;
+            if (previous != null && (resumeRebuild || !previous.isRebuild())) {
+                Logger.getGlobal().info("前回の更新が中断されているので、確定済みのフォルダを飛ばして続きから再開します: " + previous);
+            }
+            // 前回 songinfo.db を確定する前に中断した場合は、作り直して確定するまで記録を引き継ぐ
+            final boolean repairInformation = info != null && previous != null && previous.informationPending() && (!rebuild || resumeRebuild);
+            final UpdateProgress progress = UpdateProgress.begin(progressPath, rebuild, resumeRebuild ? previous.started() : updatetime,
+                    repairInformation);
+            // SQLite の設定(差分更新の場合は変更があったフォルダの数が分かってから選び直す)
+            profile = DatabaseProfile.select(rebuild, -1);
+
+            if(info != null) {
+                // songinfo.db用トランザクション開始(rebuild は作り直すファイルに書き込む)
+                if (rebuild) {
+                    try {
+                        info.startRebuild(resumeRebuild, profile);
+                    } catch (SQLException | IOException e) {
+                        // 譜面を書き込む前に中止する(作り直すファイルがなければ songinfo.db を置き換えられない)
+                        Logger.getGlobal().log(Level.SEVERE, "作り直す songinfo.db を開けないので、楽曲データベースの rebuild を中止します", e);
+                        logResult();
+                        return;
+                    }
+                } else {
+                    info.startUpdate();
+                }
+            }
+
+            // rebuild は songdata.db を直接書き換えず、空の状態から作り直すファイルに書き込んで最後に置き換える
+            // (更新中も songdata.db はそのまま読めて、途中で失敗しても半端な状態にならない)
+            boolean completed = false;
             // songdata.db用トランザクション開始
-			try (Connection conn = ds.getConnection();
+            try (Connection conn = (rebuild ? openRebuild(resumeRebuild, profile) : ds).getConnection();
                  Statement st = conn.createStatement()) {
-				conn.setAutoCommit(false);
-                // songdata.dbをメモリに乗せる
-                st.execute("PRAGMA mmap_size=500000000;");
-
-                // 楽曲のタグ,FAVORITEの保持
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの保持を開始します");
-                // 一時テーブル作成（sha256 PRIMARY KEY）
-                st.executeUpdate(
-                "CREATE TEMP TABLE temp_tags(sha256 TEXT PRIMARY KEY, tag TEXT, favorite INTEGER);");
-                // songのsha256が重複していた場合、最後に現れる行が最終値になる
-                st.executeUpdate(
-                "INSERT OR REPLACE INTO temp_tags (sha256, tag, favorite) " +
-                    "SELECT sha256, tag, favorite FROM song " +
-                    "WHERE (tag IS NOT NULL AND tag <> '') OR favorite > 0 " +
-                    "ORDER BY rowid;"
-                );
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの保持が完了しました");
-
-				if(updateAll) {
-                    // 楽曲全更新、既存テーブルをDELEETE
-					qr.update(conn, "DELETE FROM folder");					
-					qr.update(conn, "DELETE FROM song");
-				} else {
-					// ルートディレクトリに含まれないフォルダの削除
-					StringBuilder dsql = new StringBuilder();
-					Object[] param = new String[bmsroot.length];
-					for (int i = 0; i < bmsroot.length; i++) {
-						dsql.append("path NOT LIKE ?");
-						param[i] = bmsroot[i] + "%";
-						if (i < bmsroot.length - 1) {
-							dsql.append(" AND ");
-						}
-					}
-					qr.update(conn,
-							"DELETE FROM folder WHERE path NOT LIKE 'LR2files%' AND path NOT LIKE '%.lr2folder' AND "
-									+ dsql, param);
-					qr.update(conn, "DELETE FROM song WHERE " + dsql, param);
-				}
-
-                // --- 2つの処理を別スレッドで並列実行 ---
-                Logger.getGlobal().info("フォルダ走査に必要なデータ構築を並列で行います");
-                final ExecutorService executor = Executors.newFixedThreadPool(2);
-
-                CompletableFuture<NavigableMap<String, SongData>> songsFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("songテーブルのハッシュマップ構築を開始します");
-                        NavigableMap<String, SongData> songTbMap = new TreeMap<>();
-                        try {
-                            List<SongData> allSongs = qr.query(conn, "SELECT path, date, preview, sha256 FROM song", songhandler);
-                            if (allSongs != null) {
-                                for (SongData s : allSongs) {
-                                    if (s != null && s.getPath() != null) songTbMap.put(s.getPath(), s);
-                                }
+                conn.setAutoCommit(false);
+
+                // 前回の更新以降の変更だけを更新できる場合は、変更があったフォルダの一覧を先に作る(読み込むレコードをその範囲に絞る)
+                FileIndexProvider.FileIndex changes = null;
+                if (provider != null && !rebuild && UpdaterOptions.incremental()) {
+                    changes = provider.indexChanges(bmsroot);
+                    if (changes != null) profile = DatabaseProfile.select(false, changes.folders().scanFolderCount());
+                }
+                // songdata.db / songinfo.db のキャッシュとメモリマップの大きさを設定する
+                Logger.getGlobal().info("DBプロファイル: " + profile.describe());
+                for (String pragma : profile.pragmas()) {
+                    st.execute(pragma);
+                }
+                if (info != null) {
+                    info.configure(profile);
+                    if (repairInformation) {
+                        repairInformation(conn);
+                    }
+                    // songinfo.db は専用の書き込みスレッドで書き込む(songdata.db はこのスレッドで書き込む)
+                    info.startWriter(UpdaterOptions.queueCapacity());
+                }
+                final ChangeScope scope = changes != null ? new ChangeScope(changes.folders()) : null;
+
+                if (UpdaterOptions.decodeCache()) {
+                    decodeCache = DecodeCache.open(decodeCachePath, rebuild && !resumeRebuild);
+                }
+
+                final SongSnapshot songTbMap;
+                final Map<String, FolderData> folderTbMap;
+                final FileIndexProvider.FileIndex index;
+                if (scope != null) {
+                    // 変更があったフォルダの範囲のレコードだけを読み込む(ルートフォルダは前回と同じなのでルート外の削除は不要)
+                    Logger.getGlobal().info("変更があったフォルダの範囲のレコードを読み込みます");
+                    folderTbMap = scope.loadFolders(conn);
+                    songTbMap = SongSnapshot.load(conn, scope.subtrees, scope.folders);
+                    index = changes;
+                    Logger.getGlobal().info("変更があったフォルダの範囲のレコードの読み込みが完了しました song: " + songTbMap.size() + " folder: " + folderTbMap.size());
+                } else {
+                    // 楽曲全更新(rebuild)は作り直すファイルに書き込むので、ルートディレクトリに含まれないレコードはない
+                    if (!rebuild) {
+                        // ルートディレクトリに含まれないフォルダの削除
+                        StringBuilder dsql = new StringBuilder();
+                        Object[] param = new String[bmsroot.length];
+                        for (int i = 0; i < bmsroot.length; i++) {
+                            dsql.append("path NOT LIKE ?");
+                            param[i] = bmsroot[i] + "%";
+                            if (i < bmsroot.length - 1) {
+                                dsql.append(" AND ");
                             }
-                        } catch (SQLException e) {
-                            throw new CompletionException(e);
                         }
-                        Logger.getGlobal().info("songテーブルのハッシュマップ構築が完了しました");
-                        return songTbMap;
-                    }, executor);
-
-                CompletableFuture<Map<String, FolderData>> foldersFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("folderテーブルのハッシュマップ構築を開始します");
-                        Map<String, FolderData> folderTbMap = new HashMap<>();
-                        try {
-                            List<FolderData> allFolders = qr.query(conn, "SELECT path, date, parent FROM folder", folderhandler);
-                            if (allFolders != null) {
-                                for (FolderData f : allFolders) {
-                                    if (f != null && f.getPath() != null) folderTbMap.put(f.getPath(), f);
+                        qr.update(conn,
+                                "DELETE FROM folder WHERE path NOT LIKE 'LR2files%' AND path NOT LIKE '%.lr2folder' AND "
+                                        + dsql, param);
+                        qr.update(conn, "DELETE FROM song WHERE " + dsql, param);
+                    }
+
+                    // --- 既存レコードの読み込みとファイル一覧の作成を別スレッドで並列実行 ---
+                    Logger.getGlobal().info("フォルダ走査に必要なデータ構築を並列で行います");
+                    final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+                    CompletableFuture<SongSnapshot> songsFuture =
+                        CompletableFuture.supplyAsync(() -> {
+                            Logger.getGlobal().info("songテーブルのスナップショット構築を開始します");
+                            SongSnapshot songs;
+                            try {
+                                songs = SongSnapshot.load(conn);
+                            } catch (SQLException e) {
+                                throw new CompletionException(e);
+                            }
+                            Logger.getGlobal().info("songテーブルのスナップショット構築が完了しました 件数: " + songs.size());
+                            return songs;
+                        }, executor);
+
+                    CompletableFuture<Map<String, FolderData>> foldersFuture =
+                        CompletableFuture.supplyAsync(() -> {
+                            Logger.getGlobal().info("folderテーブルのハッシュマップ構築を開始します");
+                            // discover ステージ(参照)と filter ステージ(削除)から同時にアクセスするので ConcurrentHashMap
+                            Map<String, FolderData> folders = new ConcurrentHashMap<>();
+                            try {
+                                List<FolderData> allFolders = qr.query(conn, "SELECT path, date, parent FROM folder", folderhandler);
+                                if (allFolders != null) {
+                                    for (FolderData f : allFolders) {
+                                        if (f != null && f.getPath() != null) folders.put(f.getPath(), f);
+                                    }
                                 }
+                            } catch (SQLException e) {
+                                throw new CompletionException(e);
                             }
-                        } catch (SQLException e) {
-                            throw new CompletionException(e);
-                        }
-                        Logger.getGlobal().info("folderテーブルのハッシュマップ構築が完了しました");
-                        return folderTbMap;
-                    }, executor);
+                            Logger.getGlobal().info("folderテーブルのハッシュマップ構築が完了しました");
+                            return folders;
+                        }, executor);
+
+                    CompletableFuture<FileIndexProvider.FileIndex> indexFuture = provider == null
+                        ? CompletableFuture.completedFuture(null)
+                        : CompletableFuture.supplyAsync(() -> {
+                            Logger.getGlobal().info(provider.name() + "でBMS/.txt/preview音源と走査フォルダ一覧を取得します");
+                            FileIndexProvider.FileIndex files;
+                            try {
+                                files = provider.index(bmsroot);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                            Logger.getGlobal().info(provider.name() + "によるファイル一覧取得完了");
+                            return files;
+                        }, executor);
+
+                    // 全部揃うまで待つ（例外は unwrap して再スロー）
+                    try {
+                        CompletableFuture<Void> all = CompletableFuture.allOf(songsFuture, foldersFuture, indexFuture);
+                        all.join();
+                    } catch (CompletionException ex) {
+                        // 並列処理で例外が発生した場合は Executor を停止し、原因を unwrap して投げる
+                        executor.shutdownNow();
+                        Throwable cause = ex.getCause();
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        if (cause instanceof Error) throw (Error) cause;
+                        if (cause instanceof Exception) throw (Exception) cause;
+                        throw ex;
+                    }
 
-                // 全部揃うまで待つ（例外は unwrap して再スロー）
-                try {
-                    CompletableFuture<Void> all = CompletableFuture.allOf(songsFuture, foldersFuture);
-                    all.join();
-                } catch (CompletionException ex) {
-                    // 並列処理で例外が発生した場合は Executor を停止し、原因を unwrap して投げる
-                    executor.shutdownNow();
-                    Throwable cause = ex.getCause();
-                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
-                    if (cause instanceof Error) throw (Error) cause;
-                    if (cause instanceof Exception) throw (Exception) cause;
-                    throw ex;
+                    // Executor の終了処理
+                    shutdownExecutor(executor);
+
+                    // 並列結果を個別の変数に取り出す
+                    songTbMap = songsFuture.join();
+                    folderTbMap = foldersFuture.join();
+                    index = indexFuture.join();
                 }
 
-                // Executor の終了処理
-                executor.shutdown();
-                try {
-                    if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                        executor.shutdownNow();
+
+                final StorageDevices devices = StorageDevices.of(scanRoots);
+                final List<DiscoverTask> discoverTasks = new ArrayList<>();
+                int discoverThreads = 0;
+                if (index == null) {
+                    // discover ステージ: 格納デバイスごとに、そのデバイス上のルート以下のツリーを並列に走査するタスク
+                    // (遅いデバイスの走査が他のデバイスの走査を待たせない)
+                    for (StorageDevices.Device device : devices.getDevices()) {
+                        discoverTasks.add((out, stats) -> discoverTrees(device, folderTbMap, out, stats));
+                        discoverThreads += device.walkThreads();
                     }
-                } catch (InterruptedException ie) {
-                    executor.shutdownNow();
-                    Thread.currentThread().interrupt();
+                } else {
+                    // discover ステージ: フォルダの木を順にたどる(サブツリーの除外がたどる順序に依存するので1スレッド)
+                    final PathTrie folders = index.folders();
+                    Logger.getGlobal().info("フォルダ走査を開始します 走査対象フォルダ数: " + folders.scanFolderCount() + " BMSリソース含有フォルダ数: " + folders.bmsFolderCount());
+                    discoverTasks.add((out, stats) -> discoverScanFolders(folders, devices, folderTbMap, out, stats));
+                    discoverThreads = 1;
                 }
 
-                // 並列結果を個別の変数に取り出す
-                final NavigableMap<String, SongData> songTbMap = songsFuture.join();
-                final Map<String, FolderData> folderTbMap = foldersFuture.join();
+                // PreparedStatement を作って再利用する書き込み担当 try-with-resources writer
+                // 楽曲のタグ,FAVORITEは書き換える行では残し、パスか sha256 が変わった行だけ同じ sha256 の行から引き継ぐ
+                // (rebuild では置き換えるときに songdata.db から引き継ぐ)
+                try (final SongWriter writer = new SongWriter(conn, !rebuild, progress)) {
+                    try {
+                        runPipeline(writer, discoverTasks, discoverThreads, devices, songTbMap, folderTbMap);
+                    } catch (UpdateStopped e) {
+                        // 書き込み済みの指示までを確定する(folder レコードはフォルダの譜面の後に書くので、確定したフォルダは次回飛ばされる)
+                        writer.checkpoint();
+                        throw e;
+                    }
 
-                Logger.getGlobal().info("フォルダ走査に必要なデータ構築の並列処理が完了しました");
+                    if (scope != null) {
+                        // 読み込んだ範囲の直下フォルダのうち、変更がなく走査しなかったものは削除しない
+                        scope.retainMissingFolders(folderTbMap);
+                    }
+                    // 走査後、songTbMap / folderTbMap に残っているものは実ファイルが存在しないレコードなので削除
+                    deleteLeftovers(conn, songTbMap.remainingPaths(), folderTbMap.keySet());
+                    // commit は外側で行う（try-with-resources の conn を使用）
+                } // end try-with-resources writer
 
-                // PreparedStatement を作って再利用する（ラムダ内から参照するため final）try-with-resources psSong/psFolder
-                try (final PreparedStatement psSong = conn.prepareStatement(songInsertSQL);
-                     final PreparedStatement psFolder = conn.prepareStatement(folderInsertSQL)) {
+                commitBoth(conn, progress);
+                completed = true;
+            } catch (UpdateStopped e) {
+                Logger.getGlobal().info("楽曲データベースの更新を中断しました。次回の更新で続きから再開します: " + progress);
+            } catch (Exception e) {
+                // 確定していない書き込みは破棄される(前回のチェックポイントまでは確定している)
+                Logger.getGlobal().log(Level.SEVERE, "楽曲データベース更新時の例外、次回の更新で前回のチェックポイントから再開します", e);
+            } // songdata.db用トランザクション終了 try-with-resources
 
-                    // バッチのペンディング件数（ラムダから変更できるよう AtomicInteger を使う）
-                    final AtomicInteger pendingSong = new AtomicInteger(0);
-                    final AtomicInteger pendingFolder = new AtomicInteger(0);
+            if(info != null) {
+                // songinfo.db用トランザクション終了
+                // songdata.db を確定できなかった場合は、最後のチェックポイント以降の詳細情報も確定しない
+                if (completed) {
+                    info.endUpdate();
+                } else {
+                    info.abortUpdate();
+                }
+            }
+
+            if (completed && rebuild) {
+                try {
+                    compactMillis = replaceWithRebuild(info, profile);
+                } catch (SQLException | IOException e) {
+                    Logger.getGlobal().log(Level.SEVERE, "作り直した songdata.db / songinfo.db に置き換えられません。次回の更新で rebuild を続けて置き換えをやり直します", e);
+                    completed = false;
+                }
+            }
+            if (completed) {
+                progress.complete();
+                if (decodeCache != null) decodeCache.save();
+                if (provider != null) {
+                    // 次回の更新で前回の更新以降の変更だけを探せるように、更新日時と楽曲ルートフォルダを保存する
+                    provider.updateCompleted(bmsroot);
+                }
+            }
+            logResult();
+        }
+
+        /**
+         * songdata.db と songinfo.db の書き込みを確定する
+         * songdata.db を先に確定し、songinfo.db はその後に確定する(songdata.db でロールバックされた書き込みを songinfo.db が確定することはない)。
+         * songinfo.db を確定するまでは進捗に informationPending を記録しておき、その間に中断した場合は
+         * 次回の更新で詳細情報がない譜面の詳細情報を作り直す(repairInformation)
+         */
+        private void commitBoth(Connection conn, UpdateProgress progress) throws SQLException {
+            final long commitStart = System.nanoTime();
+            if (info != null) progress.setInformationPending(true);
+            conn.commit();
+            if (info != null) {
+                // 書き込めなかった詳細情報がある場合は informationPending を残し、次回の更新で作り直す
+                info.commitUpdate();
+                if (!info.isIncomplete()) progress.setInformationPending(false);
+            }
+            commitNanos += System.nanoTime() - commitStart;
+        }
+
+        /**
+         * songinfo.db を確定する前に中断された更新の後始末
+         * songdata.db にある譜面のうち詳細情報がないもの(sha256 ごとに1件)をデコードし直し、songinfo.db に書き込む。
+         * 書き込んだ詳細情報は最初の確定(チェックポイント)で確定する
+         */
+        private void repairInformation(Connection conn) throws SQLException {
+            final Set<String> known = info.loadSha256();
+            final List<String> missing = new ArrayList<>();
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT path, sha256 FROM song")) {
+                while (rs.next()) {
+                    final String sha256 = rs.getString(2);
+                    if (sha256 != null && known.add(sha256)) {
+                        missing.add(rs.getString(1));
+                    }
+                }
+            }
+            Logger.getGlobal().info("前回の更新で songinfo.db が確定していないので、詳細情報がない譜面の詳細情報を作り直します: " + missing.size() + " 件");
+            int repaired = 0;
+            for (String pathname : missing) {
+                final DecodedChart decoded = DecodedChart.decode(root.resolve(pathname), pathname, false, null, true, false);
+                if (decoded.information != null) {
+                    info.update(infoBinder.row(decoded.information));
+                    repaired++;
+                }
+            }
+            Logger.getGlobal().info("詳細情報を作り直しました: " + repaired + " 件");
+        }
 
-                    // 小ヘルパ: song バッチ flush（PreparedStatement を executeBatch）
-                    final Runnable flushSong = () -> {
-                        int toFlush = pendingSong.get();
-                        if (toFlush <= 0) return;
+        /**
+         * 更新結果(処理時間、DB操作件数、パイプライン統計)をログ出力する
+         */
+        private void logResult() {
+            long nowtime = System.currentTimeMillis();
+            final UpdateResult result = new UpdateResult(nowtime - starttime, newBmsCount.get(),
+                    songInsertCount.get(), songUpdateCount.get(), songDeleteCount.get(),
+                    folderInsertCount.get(), folderDeleteCount.get());
+            lastUpdateResult = result;
+            Logger.getGlobal().info("楽曲更新完了 : Time - " + (nowtime - starttime) + " 1曲あたりの時間 - "
+                    + (newBmsCount.get() > 0 ? (nowtime - starttime) / newBmsCount.get() : "不明"));
+            Logger.getGlobal().info("DB 操作件数: " + result.operations());
+            for (String s : pipelineSummary) {
+                Logger.getGlobal().info("パイプライン統計: " + s);
+            }
+            if (decodeCache != null) {
+                Logger.getGlobal().info("デコードキャッシュ: " + decodeCache.summary());
+            }
+            if (profile != null) {
+                long size = -1;
+                try {
+                    size = Files.size(songdbPath);
+                } catch (IOException e) {
+                    // サイズは参考値
+                }
+                Logger.getGlobal().info("DBプロファイル " + profile.describe() + " の結果: write busy=" + writeBusyMillis
+                        + "ms commit=" + commitNanos / 1_000_000 + "ms compact=" + compactMillis + "ms songdata.db="
+                        + (size >= 0 ? size / 1024 + "KB" : "不明"));
+            }
+        }
+
+        /**
+         * 走査パイプラインを実行する
+         * discover(フォルダ探索) → filter(更新日時による絞り込み) → decode(BMSデコード) → write(DB書き込み)
+         * の各ステージを容量制限付きキューでつなぎ、ディスクの探索、デコード、SQLiteへの書き込みを重ねて実行する。
+         * write ステージは呼び出しスレッド(songdata.db の JDBC コネクションを持つスレッド)で実行し、
+         * songinfo.db の行は songinfo.db の書き込みスレッドのキューに渡す(2つのファイルへの書き込みを重ねて実行する)。
+         * decode ステージは書き込み用の不変な行(ChartRows)を作って渡す。
+         * decode ステージの結果は filter ステージが投入した順に書き込むので、filterThreads=1 なら書き込み順は逐次処理と同じ。
+         *
+         * @param writer 書き込み担当
+         * @param discoverTasks discover ステージのタスク
+         * @param discoverThreads discover ステージのスレッド数(統計用、タスク内で並列に走査する場合はその数)
+         * @param devices 楽曲ルートの格納デバイス(デバイスごとにデコードの同時実行数を制限し、統計を出力する)
+         */
+        private void runPipeline(SongWriter writer, List<DiscoverTask> discoverTasks, int discoverThreads, StorageDevices devices,
+                                 SongSnapshot songTbMap, Map<String, FolderData> folderTbMap) throws Exception {
+            final long pipelineStart = System.currentTimeMillis();
+            discoverThreads = Math.max(1, discoverThreads);
+            final int filterThreads = UpdaterOptions.filterThreads();
+            final int decodeThreads = UpdaterOptions.decodeThreads();
+            final int capacity = UpdaterOptions.queueCapacity();
+            Logger.getGlobal().info("パイプライン構成: discover=" + discoverThreads + " filter=" + filterThreads
+                    + " decode=" + decodeThreads + " write=1" + (info != null ? "+songinfo" : "") + " queueCapacity=" + capacity);
+
+            final PipelineQueue<ScannedFolder> folderQueue = new PipelineQueue<>("discover->filter", capacity, discoverTasks.size());
+            final PipelineQueue<WriteOp> writeQueue = new PipelineQueue<>("filter->write", capacity, filterThreads);
+            final StageStatistics discoverStats = new StageStatistics("discover", discoverThreads);
+            final StageStatistics filterStats = new StageStatistics("filter", filterThreads);
+            final StageStatistics decodeStats = new StageStatistics("decode", decodeThreads);
+            final StageStatistics writeStats = new StageStatistics("write", 1);
+            // ステージスレッドで発生した最初の例外
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            // 終了要求を受けたらパイプラインを中断する
+            stopPipeline = () -> failPipeline(failure, new UpdateStopped(), folderQueue, writeQueue);
+            if (stopRequested) stopPipeline.run();
+
+            final ExecutorService discoverExecutor = newStageExecutor("discover", Math.min(discoverThreads, discoverTasks.size()));
+            final ExecutorService filterExecutor = newStageExecutor("filter", filterThreads);
+            final ThreadPoolExecutor decodeExecutor = decodeThreads > 1 ? newStageExecutor("decode", decodeThreads) : null;
+            // デコードの実行先(デバイスごと)。HDD などは共有のプールを使いつつ同時実行数を制限する
+            final Map<StorageDevices.Device, Executor> decodeRunners = new HashMap<>();
+            for (StorageDevices.Device device : devices.getDevices()) {
+                final int limit = device.decodeLimit();
+                decodeRunners.put(device, decodeExecutor == null ? Runnable::run
+                        : limit < decodeThreads ? new LimitedExecutor(decodeExecutor, limit) : decodeExecutor);
+            }
+            try {
+                // discover ステージ
+                for (DiscoverTask task : discoverTasks) {
+                    discoverExecutor.execute(() -> {
                         try {
-                            // 実行
-                            psSong.executeBatch();
-                            // 成功件数のカウント（戻り値の解釈はドライバ依存なので、pending をそのまま使う）
-                            songInsertCount.addAndGet(toFlush);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().severe("song バッチ挿入中の例外: " + e.getMessage());
-                            try {
-                                conn.rollback();
-                            } catch (SQLException ex) {
-                                Logger.getGlobal().severe("rollback エラー: " + ex.getMessage());
-                            }
+                            task.run(folderQueue, discoverStats);
+                        } catch (Throwable t) {
+                            failPipeline(failure, t, folderQueue, writeQueue);
                         } finally {
-                            // PreparedStatement の batch は自動的にクリアされる実装が多いが明示的にクリア
-                            try { psSong.clearBatch(); } catch (SQLException ignore) {}
-                            pendingSong.set(0);
+                            folderQueue.producerDone();
                         }
-                    };
+                    });
+                }
 
-                    // 小ヘルパ: folder バッチ flush
-                    final Runnable flushFolder = () -> {
-                        int toFlush = pendingFolder.get();
-                        if (toFlush <= 0) return;
+                // filter ステージ(decode ステージへの投入を含む)
+                for (int i = 0; i < filterThreads; i++) {
+                    filterExecutor.execute(() -> {
                         try {
-                            psFolder.executeBatch();
-                            folderInsertCount.addAndGet(toFlush);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().severe("folder バッチ挿入中の例外: " + e.getMessage());
-                            try {
-                                conn.rollback();
-                            } catch (SQLException ex) {
-                                Logger.getGlobal().severe("rollback エラー: " + ex.getMessage());
+                            ScannedFolder sf;
+                            while ((sf = folderQueue.take()) != null) {
+                                final long t = System.nanoTime();
+                                filterFolder(sf, songTbMap, folderTbMap, writeQueue, decodeExecutor, decodeRunners.get(sf.device()), decodeStats);
+                                filterStats.record(t);
                             }
+                        } catch (Throwable t) {
+                            failPipeline(failure, t, folderQueue, writeQueue);
                         } finally {
-                            try { psFolder.clearBatch(); } catch (SQLException ignore) {}
-                            pendingFolder.set(0);
+                            writeQueue.producerDone();
                         }
-                    };
-
-                    // ルートごとにツリーを走査（preVisitDirectory で完結）
-                    for (Iterator<Path> it = paths.iterator(); it.hasNext();) {
-                        final Path scanRoot = it.next();
-                        Logger.getGlobal().info("走査中ルート: " + scanRoot.toString());
-
-                        Files.walkFileTree(scanRoot, new SimpleFileVisitor<>() {
-                            @Override
-                            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                                final String dirKey = (dir.startsWith(root) ? root.relativize(dir).toString() : dir.toString()) + File.separatorChar;
-                                final FolderData folderRecord = folderTbMap.get(dirKey);
-                                final long dirModTime = attrs.lastModifiedTime().toMillis() / 1000;
-
-                                // ディレクトリ直下ファイル確認(途中ディレクトリかBMSフォルダか判定、preview音源やtxtがあるか)
-                                List<Path> bmsFiles = new ArrayList<>();
-                                boolean hasTxt = false;
-                                String previewFileName = null;
-                                boolean isUpdateDir = folderRecord == null || folderRecord.getDate() != dirModTime;
-
-                                // 更新ありフォルダは全列挙、更新なしフォルダは途中ディレクトリかどうかの判定が出来ればよいのでBMS1個で止める
-                                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
-                                    if (isUpdateDir) {
-                                        // 更新ありフォルダ
-                                        for (Path p : ds) {
-                                            if (Files.isDirectory(p)) continue;
-                                            final String name = p.getFileName().toString();
-                                            final String lname = name.toLowerCase();
-                                            if (lname.endsWith(".bms") || lname.endsWith(".bme") || lname.endsWith(".bml") || lname.endsWith(".pms") || lname.endsWith(".bmson")) {
-                                                bmsFiles.add(p);
-                                            } else {
-                                                if (previewFileName == null) {
-                                                    if (lname.startsWith("preview") && (lname.endsWith(".wav") || lname.endsWith(".ogg") || lname.endsWith(".mp3") || lname.endsWith(".flac"))) {
-                                                        previewFileName = name;
-                                                    }
-                                                }
-                                                if (!hasTxt && lname.endsWith(".txt")) hasTxt = true;
-                                            }
-                                        }
-                                    } else {
-                                        // 更新なしフォルダ
-                                        for (Path p : ds) {
-                                            if (Files.isDirectory(p)) continue;
-                                            final String name = p.getFileName().toString();
-                                            final String lname = name.toLowerCase();
-                                            if (lname.endsWith(".bms") || lname.endsWith(".bme") || lname.endsWith(".bml") || lname.endsWith(".pms") || lname.endsWith(".bmson")) {
-                                                bmsFiles.add(p);
-                                            }
-                                            if (!bmsFiles.isEmpty()) break;
-                                        }
-                                    }
-                                } catch (IOException e) {
-                                    // 無視して続行（従来挙動に合わせる）
-                                }
+                    });
+                }
 
-                                // 走査フォルダがfolderテーブルにある場合は取得しDELETE対象から外す
-                                final FolderData folderDataFromTb = folderTbMap.remove(dirKey);
-
-                                // DBにない or 更新日時が変わっている場合はこのディレクトリの folder レコードをバッチに追加
-                                if (folderDataFromTb == null || folderDataFromTb.getDate() != dirModTime) {
-                                    try {
-                                        Path parentpath = dir.getParent();
-                                        if (parentpath == null) parentpath = dir.toAbsolutePath().getParent();
-                                        // subtitle, command, banner, type, maxはオリジナル実装でもデフォルト値がセットされることになる
-                                        psFolder.setString(1, dir.getFileName().toString());
-                                        psFolder.setString(2, null);
-                                        psFolder.setString(3, null);
-                                        psFolder.setString(4, dirKey);
-                                        psFolder.setString(5, null);
-                                        psFolder.setString(6, SongUtils.crc32(parentpath.toString(), bmsroot, root.toString()));
-                                        psFolder.setInt(7, 0);
-                                        psFolder.setInt(8, (int) dirModTime);
-                                        psFolder.setInt(9, (int) updatetime);
-                                        psFolder.setInt(10, 0);
-
-                                        psFolder.addBatch();
-                                        int fcur = pendingFolder.incrementAndGet();
-                                        if (fcur >= BATCH_SIZE) {
-                                            flushFolder.run();
-                                        }
-                                    } catch (SQLException e) {
-                                        Logger.getGlobal().log(Level.SEVERE, "folder バッチ準備中の例外: ", e);
-                                    }
-                                }
+                // write ステージ(このスレッド)
+                try {
+                    WriteOp op;
+                    while ((op = writeQueue.take()) != null) {
+                        final long t = System.nanoTime();
+                        writer.apply(op);
+                        writeStats.record(t);
+                    }
+                } catch (CancellationException e) {
+                    // 他ステージの失敗で中断された、原因は下で投げる
+                } catch (Throwable t) {
+                    failPipeline(failure, t, folderQueue, writeQueue);
+                }
+                final Throwable cause = failure.get();
+                if (cause != null) {
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
 
-                                // 直下 BMS がない途中ディレクトリの場合は通常走査
-                                if (bmsFiles.isEmpty()) return FileVisitResult.CONTINUE;
-
-                                // [SKIP_SUBTREE] 更新なしフォルダケース: 直下のBMSを処理済みにしてDELETE対象から外す
-                                if (!isUpdateDir) {
-                                    folderTbMap.remove(dirKey);
-                                    // 更新なしフォルダ以下のBMSを処理済みにする
-                                    NavigableMap<String, SongData> tail = songTbMap.tailMap(dirKey, true);
-                                    Iterator<String> tit = tail.keySet().iterator();
-                                    while (tit.hasNext()) {
-                                        String key = tit.next();
-                                        if (!key.startsWith(dirKey)) break;
-                                        tit.remove();
-                                    }
-                                    return FileVisitResult.SKIP_SUBTREE;
-                                }
+                // 走査後: 残っているバッチを flush
+                writer.finish();
+            } finally {
+                stopPipeline = null;
+                writeBusyMillis = writeStats.getBusyMillis();
+                discoverExecutor.shutdownNow();
+                filterExecutor.shutdownNow();
+                if (decodeExecutor != null) decodeExecutor.shutdownNow();
+                final long wall = System.currentTimeMillis() - pipelineStart;
+                pipelineSummary.add(discoverStats.summary(wall));
+                pipelineSummary.add(folderQueue.summary());
+                pipelineSummary.add(filterStats.summary(wall));
+                pipelineSummary.add(writeQueue.summary());
+                pipelineSummary.add(decodeStats.summary(wall));
+                pipelineSummary.add(writeStats.summary(wall));
+                for (StorageDevices.Device device : devices.getDevices()) {
+                    pipelineSummary.add(device + " " + device.getDiscoverStats().summary(wall) + " / " + device.getDecodeStats().summary(wall));
+                }
+            }
+        }
 
-                                // 更新ありフォルダケース: 各BMSを処理
-                                for (Path bmsPath : bmsFiles) {
-                                    final String pathname = (bmsPath.startsWith(root) ? root.relativize(bmsPath).toString() : bmsPath.toString());
-                                    long bmsModTime = -1;
-                                    try {
-                                        bmsModTime = Files.getLastModifiedTime(bmsPath).toMillis() / 1000;
-                                    } catch (IOException e) {
-                                        Logger.getGlobal().log(Level.SEVERE, "BMSファイル更新時間取得の例外", e);
-                                    }
+        /**
+         * ステージで例外が発生した場合にパイプライン全体を中断する
+         */
+        private void failPipeline(AtomicReference<Throwable> failure, Throwable t, PipelineQueue<?>... queues) {
+            // 他ステージの失敗による中断は原因ではないので記録しない
+            if (!(t instanceof CancellationException)) failure.compareAndSet(null, t);
+            for (PipelineQueue<?> q : queues) q.abort();
+        }
 
-                                    // 対象BMSを処理済みにして、songのDELETE対象から外す
-                                    final SongData songDataFromTb = songTbMap.remove(pathname);
-                                    // 既存BMS(フルパスと更新日時が一致)の場合はpreview音源のみ更新処理する
-                                    if (songDataFromTb != null && songDataFromTb.getDate() == bmsModTime) {
-                                        final String oldpp = songDataFromTb.getPreview() == null ? "" : songDataFromTb.getPreview();
-                                        final String newpp = previewFileName == null ? "" : previewFileName;
-                                        // DBのpreviewとフォルダ内のpreviewが一致していない、かつ、フォルダ内のpreviewが空じゃない場合は、フォルダ内のpreviewをsongにUPDATEする
-                                        // 単に一致しない場合新しいものにすると、#PREVIEW _preview.wavのように指定されていた時に、音源が消えてしまうことになるので実在する場合のみ更新
-                                        if (!oldpp.equals(newpp) && !newpp.isEmpty()) {
-                                            try {
-                                                int updated = qr.update(conn, "UPDATE song SET preview=? WHERE path = ?", newpp, pathname);
-                                                if (updated > 0) songUpdateCount.addAndGet(updated);
-                                            } catch (SQLException e) {
-                                                Logger.getGlobal().warning("Error while updating preview at " + pathname + ": " + e.getMessage());
-                                            }
-                                        }
-                                        continue; // 既存BMSはpreview音源のみ更新して次のBMSの処理へ
-                                    }
+        /**
+         * ステージ用のスレッドプールを作る(デーモンスレッド)
+         */
+        private ThreadPoolExecutor newStageExecutor(String name, int threads) {
+            final AtomicInteger threadNo = new AtomicInteger(0);
+            return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "songdata-" + name + "-" + threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
 
-                                    // 新規BMSなのでデコード処理に進む
-                                    BMSModel model = null;
-                                    try {
-                                        if (pathname.toLowerCase().endsWith(".bmson")) {
-                                            BMSONDecoder decoder = new BMSONDecoder(BMSModel.LNTYPE_LONGNOTE);
-                                            model = decoder.decode(bmsPath);
-                                        } else {
-                                            BMSDecoder decoder = new BMSDecoder(BMSModel.LNTYPE_LONGNOTE);
-                                            model = decoder.decode(bmsPath);
-                                        }
-                                    } catch (Exception e) {
-                                        Logger.getGlobal().log(Level.SEVERE, "Error while decoding " + pathname + ": " + e.getMessage(), e);
-                                    }
-                                    if (model == null) continue; // デコードできなかったらcontinue
-
-                                    SongData sd;
-                                    try {
-                                        sd = new SongData(model, hasTxt);
-                                    } catch (Throwable t) {
-                                        Logger.getGlobal().log(Level.SEVERE, "SongData 生成失敗 : path=" + pathname + " cause=" + t.getMessage(), t);
-                                        continue; // BMSをmodelにデコードできたのに、songdataにできなかった場合もcontinue
-                                    }
+        /**
+         * discover ステージ(通常のディレクトリ走査): デバイス上のルート以下のツリーをデバイスのスレッド数で並列に走査してフォルダ情報を送る
+         * 兄弟ディレクトリは並列に列挙するので送る順序は走査ごとに変わる(1スレッドなら従来の Files.walkFileTree と同じ順序)
+         */
+        private void discoverTrees(StorageDevices.Device device, Map<String, FolderData> folderTbMap,
+                                   PipelineQueue<ScannedFolder> out, StageStatistics stats) throws IOException {
+            for (Path scanRoot : device.getRoots()) {
+                Logger.getGlobal().info("走査中ルート: " + scanRoot.toString() + " " + device);
+            }
+            new ParallelTreeWalker(device.walkThreads(), dir -> scanDirectory(device, dir, folderTbMap, out, stats)).walk(device.getRoots());
+        }
 
-                                    // 0ノーツではない、または、WAV定義が0ではない、場合はsongdataの挿入へ進む
-                                    if (sd.getNotes() != 0 || model.getWavList().length != 0) {
-                                        // 難易度未設定時の自動設定
-                                        if (sd.getDifficulty() == 0) {
-                                            final String fulltitle = (sd.getTitle() + sd.getSubtitle()).toLowerCase();
-                                            final String diffname = (sd.getSubtitle()).toLowerCase();
-                                            if (diffname.contains("beginner")) {
-                                                sd.setDifficulty(1);
-                                            } else if (diffname.contains("normal")) {
-                                                sd.setDifficulty(2);
-                                            } else if (diffname.contains("hyper")) {
-                                                sd.setDifficulty(3);
-                                            } else if (diffname.contains("another")) {
-                                                sd.setDifficulty(4);
-                                            } else if (diffname.contains("insane") || diffname.contains("leggendaria")) {
-                                                sd.setDifficulty(5);
-                                            } else {
-                                                if (fulltitle.contains("beginner")) {
-                                                    sd.setDifficulty(1);
-                                                } else if (fulltitle.contains("normal")) {
-                                                    sd.setDifficulty(2);
-                                                } else if (fulltitle.contains("hyper")) {
-                                                    sd.setDifficulty(3);
-                                                } else if (fulltitle.contains("another")) {
-                                                    sd.setDifficulty(4);
-                                                } else if (fulltitle.contains("insane") || fulltitle.contains("leggendaria")) {
-                                                    sd.setDifficulty(5);
-                                                } else {
-                                                    if (sd.getNotes() < 250) {
-                                                        sd.setDifficulty(1);
-                                                    } else if (sd.getNotes() < 600) {
-                                                        sd.setDifficulty(2);
-                                                    } else if (sd.getNotes() < 1000) {
-                                                        sd.setDifficulty(3);
-                                                    } else if (sd.getNotes() < 2000) {
-                                                        sd.setDifficulty(4);
-                                                    } else {
-                                                        sd.setDifficulty(5);
-                                                    }
-                                                }
-                                            }
-                                        }
-
-                                        // BMSの#PREVIEWに記載がない、かつ、フォルダ内にpreviewがあった場合は、フォルダ内のpreviewをセットする
-                                        // フォルダ内に実在するpreviewファイル名を優先したほうが良いような気が？
-                                        if ((sd.getPreview() == null || sd.getPreview().isEmpty()) && previewFileName != null) {
-                                            sd.setPreview(previewFileName);
-                                        }
-
-                                        // PreparedStatement に直接パラメータをセットして addBatch() する（再利用）
-                                        try {
-                                            // 1..29 パラメータ（song テーブルの列順に合わせる）
-                                            psSong.setString(1, sd.getMd5());
-                                            psSong.setString(2, sd.getSha256());
-                                            psSong.setString(3, sd.getTitle());
-                                            psSong.setString(4, sd.getSubtitle());
-                                            psSong.setString(5, sd.getGenre());
-                                            psSong.setString(6, sd.getArtist());
-                                            psSong.setString(7, sd.getSubartist());
-                                            psSong.setString(8, "");
-                                            psSong.setString(9, pathname);
-                                            psSong.setString(10, SongUtils.crc32(bmsPath.getParent().toString(), bmsroot, root.toString()));
-                                            psSong.setString(11, sd.getStagefile());
-                                            psSong.setString(12, sd.getBanner());
-                                            psSong.setString(13, sd.getBackbmp());
-                                            psSong.setString(14, sd.getPreview());
-                                            psSong.setString(15, SongUtils.crc32(bmsPath.getParent().getParent().toString(), bmsroot, root.toString()));
-                                            psSong.setInt(16, sd.getLevel());
-                                            psSong.setInt(17, sd.getDifficulty());
-                                            psSong.setInt(18, sd.getMaxbpm());
-                                            psSong.setInt(19, sd.getMinbpm());
-                                            psSong.setInt(20, sd.getLength());
-                                            psSong.setInt(21, sd.getMode());
-                                            psSong.setInt(22, sd.getJudge());
-                                            psSong.setInt(23, sd.getFeature());
-                                            psSong.setInt(24, sd.getContent());
-                                            psSong.setInt(25, (int) bmsModTime);
-                                            psSong.setInt(26, 0);
-                                            psSong.setInt(27, (int) updatetime);
-                                            psSong.setInt(28, sd.getNotes());
-                                            psSong.setString(29, sd.getCharthash());
-
-                                            psSong.addBatch();
-                                            int cur = pendingSong.incrementAndGet();
-                                            if (cur >= BATCH_SIZE) {
-                                                flushSong.run();
-                                            }
-                                        } catch (SQLException e) {
-                                            Logger.getGlobal().log(Level.SEVERE, "song バッチ用パラメータ設定中の例外: ", e);
-                                        }
-
-                                        // songinfo.dbのUPDATE
-                                        if (info != null) info.update(model);
-
-                                        newBmsCount.incrementAndGet();
-                                    } else {
-                                        // ノーツ0かつwav0 -> 削除 (そもそもDBに登録されていないはず？)
-                                        try {
-                                            int deleted = qr.update(conn, "DELETE FROM song WHERE path = ?", pathname);
-                                            if (deleted > 0) songDeleteCount.addAndGet(deleted);
-                                        } catch (SQLException e) {
-                                            Logger.getGlobal().log(Level.SEVERE, "songレコード削除の例外", e);
-                                        }
-                                    }
-                                } // for bmsFiles
+        /**
+         * 1ディレクトリ分の走査(複数スレッドから同時に呼ばれる)
+         * 直下のファイルからBMSフォルダかどうかを判定してフォルダ情報を送る
+         * HDD 上のフォルダでは、サブディレクトリとBMSファイルを inode 順に並べる(読み込み時のシークを減らす)
+         *
+         * @return 続けて走査するサブディレクトリ。直下BMSフォルダの場合はサブツリーをスキップするので空
+         */
+        private List<ParallelTreeWalker.Directory> scanDirectory(StorageDevices.Device device, ParallelTreeWalker.Directory directory,
+                                                                 Map<String, FolderData> folderTbMap,
+                                                                 PipelineQueue<ScannedFolder> out, StageStatistics stats) throws IOException {
+            final long t = System.nanoTime();
+            final Path dir = directory.path();
+            final String dirKey = (dir.startsWith(root) ? root.relativize(dir).toString() : dir.toString()) + File.separatorChar;
+            final FolderData folderRecord = folderTbMap.get(dirKey);
+            final long dirModTime = directory.attrs().lastModifiedTime().toMillis() / 1000;
+
+            final boolean isUpdateDir = folderRecord == null || folderRecord.getDate() != dirModTime;
+
+            // ディレクトリ直下ファイル確認(途中ディレクトリかBMSフォルダか判定、preview音源やtxtがあるか)
+            // 更新ありフォルダは全列挙、更新なしフォルダは途中ディレクトリかどうかの判定が出来ればよいのでBMS1個で止める
+            // BMSファイルの更新日時も列挙時に取得する(エントリごとの stat は1回)
+            final DirectoryListing listing = DirectoryListing.scan(dir, isUpdateDir, device.isRotational());
+
+            putQuietly(out, new ScannedFolder(dir, dirKey, dirModTime, isUpdateDir, listing.bmsFiles, listing.hasTxt,
+                    listing.previewFileName, device));
+            stats.record(t);
+            device.getDiscoverStats().record(t);
+
+            // 直下 BMS がない途中ディレクトリの場合は通常走査、直下BMSフォルダの場合はサブツリーをスキップ
+            return listing.bmsFiles.isEmpty() ? listing.subdirs : Collections.emptyList();
+        }
 
-                                // 直下BMSフォルダなのでサブツリーをスキップ
-                                return FileVisitResult.SKIP_SUBTREE;
-                            }
-                        }); // end walkFileTree(scanRoot)
-                    } // end for each root
+        /**
+         * discover ステージ(Everything連携など): フォルダの木を先頭から深さ優先でたどり、走査フォルダのフォルダ情報を送る
+         * 直下BMSフォルダのサブツリーはたどらない(サブツリーを走査対象から外すのにパスの比較は要らない)
+         */
+        private void discoverScanFolders(PathTrie folders, StorageDevices devices, Map<String, FolderData> folderTbMap,
+                                         PipelineQueue<ScannedFolder> out, StageStatistics stats) throws InterruptedException {
+            final Deque<PathTrie.Node> pending = new ArrayDeque<>();
+            pending.push(folders.root());
+            while (!pending.isEmpty()){
+                final PathTrie.Node node = pending.pop();
+                List<EverythingSearchResult> bmsFiles = Collections.emptyList();
+                if (node.isScanFolder()) {
+                    final long t = System.nanoTime();
+                    final Path dir = node.toPath();
+                    final String dirKey = (dir.startsWith(root) ? root.relativize(dir).toString() : dir.toString()) + File.separatorChar;
+                    final FolderData folderTbRecord = folderTbMap.get(dirKey);
+                    final long dirModTime  = node.modified();
+
+                    // ディレクトリ直下ファイル確認(途中ディレクトリかBMSフォルダか判定、preview音源やtxtがあるか)
+                    boolean hasTxt = false;
+                    String previewFileName = null;
+                    boolean isUpdateDir = folderTbRecord == null || folderTbRecord.getDate() != dirModTime;
+                    final BmsFolder bf = node.bmsFolder();
+                    if (bf != null) {
+                        bmsFiles = bf.bmsFiles;
+                        if (isUpdateDir) {
+                            // 更新ありフォルダ
+                            hasTxt = bf.hasTxt;
+                            previewFileName = bf.previewFiles.isEmpty() ? null : bf.previewFiles.get(0).getFileName().toString();
+                        }
+                    }
 
-                    // 走査後: 残っているバッチを flush
-                    flushSong.run();
-                    flushFolder.run();
+                    final StorageDevices.Device device = devices.deviceOf(dir);
+                    out.put(new ScannedFolder(dir, dirKey, dirModTime, isUpdateDir, bmsFiles, hasTxt, previewFileName, device));
+                    stats.record(t);
+                    device.getDiscoverStats().record(t);
+                }
 
-                    // 走査後、songTbMap に残っているものは実ファイルが存在しないレコードなので削除
-                    for (SongData leftover : songTbMap.values()) {
-                        try {
-                            int deleted = qr.update(conn, "DELETE FROM song WHERE path = ?", leftover.getPath());
-                            if (deleted > 0) songDeleteCount.addAndGet(deleted);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().log(Level.SEVERE, "ディレクトリ内に存在しないsongレコード削除の例外", e);
+                // [SKIP_SUBTREE] 直下BMSフォルダの場合、サブフォルダは走査対象から外す(子ノードをたどらない)
+                if (bmsFiles.isEmpty()) {
+                    // 名前順にたどるので逆順に積む
+                    for (int i = node.childCount() - 1; i >= 0; i--) {
+                        pending.push(node.child(i));
+                    }
+                }
+            } // end folders
+        }
+
+        /**
+         * 前回の更新以降の変更だけを更新する場合の、読み込む(書き換える可能性がある)レコードの範囲
+         * - 直下BMSフォルダ、新しいフォルダ: フォルダ以下のすべてのレコード(subtrees)
+         * - 途中フォルダ: フォルダ自身と直下のファイル・フォルダのレコード(folders)
+         * 範囲外のレコードは読み込まないので、変更が少なければ song / folder テーブル全体を読まずに済む。
+         * フォルダの削除は親フォルダの更新日時の変化で、移動してきたフォルダは folder レコードがないことで検出する
+         * (移動してきたフォルダはファイルの更新日時が古いままなので、フォルダ以下をすべて走査する)
+         */
+        private final class ChangeScope {
+            private final PathTrie changed;
+            final List<String> subtrees = new ArrayList<>();
+            final List<String> folders = new ArrayList<>();
+
+            ChangeScope(PathTrie changed) {
+                this.changed = changed;
+                final Deque<PathTrie.Node> pending = new ArrayDeque<>();
+                pending.push(changed.root());
+                while (!pending.isEmpty()) {
+                    final PathTrie.Node node = pending.pop();
+                    final BmsFolder bf = node.bmsFolder();
+                    if (node.isScanFolder()) {
+                        if (bf != null && !bf.bmsFiles.isEmpty()) {
+                            subtrees.add(folderKey(node));
+                            continue;
                         }
+                        folders.add(folderKey(node));
                     }
+                    for (int i = node.childCount() - 1; i >= 0; i--) {
+                        pending.push(node.child(i));
+                    }
+                }
+            }
 
-                    // 同様に、folderTbMap に残っているものは実フォルダが存在しないレコードなので削除
-                    for (FolderData leftover : folderTbMap.values()) {
-                        try {
-                            int fd = qr.update(conn, "DELETE FROM folder WHERE path LIKE ?", leftover.getPath() + "%");
-                            if (fd > 0) folderDeleteCount.addAndGet(fd);
-                            int sd = qr.update(conn, "DELETE FROM song WHERE path LIKE ?", leftover.getPath() + "%");
-                            if (sd > 0) songDeleteCount.addAndGet(sd);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().log(Level.SEVERE, "ディレクトリ内に存在しないfolderレコード削除の例外:", e);
+            boolean hasChanges() {
+                return !subtrees.isEmpty() || !folders.isEmpty();
+            }
+
+            /**
+             * 範囲内の folder レコードを読み込む。folder レコードがない(前回の更新以降に現れた)フォルダは
+             * フォルダ以下を走査してファイル一覧に加え、範囲を広げる
+             */
+            Map<String, FolderData> loadFolders(Connection conn) throws SQLException, IOException {
+                final Map<String, FolderData> folderTbMap = new ConcurrentHashMap<>();
+                loadFolders(conn, folderTbMap);
+
+                // 変更があったフォルダと途中フォルダの直下のフォルダのうち、folder レコードがないもの
+                final List<PathTrie.Node> added = new ArrayList<>();
+                final Deque<PathTrie.Node> pending = new ArrayDeque<>();
+                pending.push(changed.root());
+                while (!pending.isEmpty()) {
+                    final PathTrie.Node node = pending.pop();
+                    if (node.parent() != null && (node.isScanFolder() || node.parent().isScanFolder())
+                            && !folderTbMap.containsKey(folderKey(node))) {
+                        added.add(node);
+                        continue;
+                    }
+                    final BmsFolder bf = node.bmsFolder();
+                    if (bf == null || bf.bmsFiles.isEmpty()) {
+                        for (int i = node.childCount() - 1; i >= 0; i--) {
+                            pending.push(node.child(i));
                         }
                     }
-                    // commit は外側で行う（try-with-resources の conn を使用）
-                } // end try-with-resources psSong/psFolder
-
-                // 楽曲のタグ,FAVORITEのを一時テーブルから復元
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの復元を開始します");
-                st.executeUpdate(
-                "UPDATE song SET " +
-                    "tag = COALESCE((SELECT tag FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.tag), " +
-                    "favorite = COALESCE((SELECT favorite FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.favorite) " +
-                    "WHERE EXISTS (SELECT 1 FROM temp_tags WHERE temp_tags.sha256 = song.sha256);"
-                );
-                st.executeUpdate("DROP TABLE IF EXISTS temp_tags;");
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの復元が完了しました");
-
-                conn.commit();
-			} catch (Exception e) {
-                Logger.getGlobal().log(Level.SEVERE, "楽曲データベース更新時の例外", e);
-			} // songdata.db用トランザクション終了 try-with-resources
-
-			if(info != null) {
-                // songinfo.db用トランザクション終了
-				info.endUpdate();
-			}
-			long nowtime = System.currentTimeMillis();
-			Logger.getGlobal().info("楽曲更新完了 : Time - " + (nowtime - starttime) + " 1曲あたりの時間 - "
-					+ (newBmsCount.get() > 0 ? (nowtime - starttime) / newBmsCount.get() : "不明"));
-            Logger.getGlobal().info("DB 操作件数: song insert=" + songInsertCount.get() + " update=" + songUpdateCount.get() + " delete=" + songDeleteCount.get()
-                    + " | folder insert=" + folderInsertCount.get() + " delete=" + folderDeleteCount.get());
-		}
+                }
+                if (added.isEmpty()) {
+                    return folderTbMap;
+                }
+
+                final String[] addedRoots = new String[added.size()];
+                for (int i = 0; i < addedRoots.length; i++) {
+                    addedRoots[i] = added.get(i).toString();
+                }
+                Logger.getGlobal().info("前回の更新以降に現れたフォルダ以下を走査します フォルダ数: " + addedRoots.length);
+                changed.addAll(new TreeWalkIndexProvider().index(addedRoots).folders());
+
+                final List<String> addedKeys = new ArrayList<>();
+                for (PathTrie.Node node : added) {
+                    addedKeys.add(folderKey(node));
+                }
+                subtrees.addAll(addedKeys);
+                final List<String> collapsed = collapsePrefixes(subtrees);
+                subtrees.clear();
+                subtrees.addAll(collapsed);
+                folders.removeIf(this::inSubtree);
+                // 新しいフォルダ以下に古いレコードが残っている場合に備えて読み込む(走査しなければ削除される)
+                loadSubtrees(conn, addedKeys, folderTbMap);
+                return folderTbMap;
+            }
+
+            private void loadFolders(Connection conn, Map<String, FolderData> folderTbMap) throws SQLException {
+                loadSubtrees(conn, subtrees, folderTbMap);
+                for (String prefix : folders) {
+                    // フォルダ自身と直下のフォルダ(prefix 以降の最初の区切り文字が末尾)
+                    // SQLite の substr / length は文字(コードポイント)単位なので、prefix の長さもコードポイント数で渡す
+                    final int length = prefix.codePointCount(0, prefix.length());
+                    putAll(folderTbMap, qr.query(conn, "SELECT path, date, parent FROM folder WHERE path >= ? AND path < ? "
+                            + "AND instr(substr(path, ?), ?) = length(path) - ?", folderhandler,
+                            prefix, prefixUpperBound(prefix), length + 1, File.separator, length));
+                }
+            }
+
+            private void loadSubtrees(Connection conn, List<String> prefixes, Map<String, FolderData> folderTbMap) throws SQLException {
+                for (String prefix : prefixes) {
+                    putAll(folderTbMap, qr.query(conn, "SELECT path, date, parent FROM folder WHERE path >= ? AND path < ?",
+                            folderhandler, prefix, prefixUpperBound(prefix)));
+                }
+            }
+
+            private void putAll(Map<String, FolderData> folderTbMap, List<FolderData> rows) {
+                if (rows == null) return;
+                for (FolderData f : rows) {
+                    if (f != null && f.getPath() != null) folderTbMap.put(f.getPath(), f);
+                }
+            }
+
+            private boolean inSubtree(String key) {
+                for (String prefix : subtrees) {
+                    if (key.startsWith(prefix)) return true;
+                }
+                return false;
+            }
+
+            /**
+             * 走査しなかった folder レコードのうち、フォルダが存在する(変更がなく走査しなかった)ものを外す
+             */
+            void retainMissingFolders(Map<String, FolderData> folderTbMap) {
+                folderTbMap.keySet().removeIf(key -> changed.find(key) != null);
+            }
+
+            private String folderKey(PathTrie.Node node) {
+                final Path dir = node.toPath();
+                return (dir.startsWith(root) ? root.relativize(dir).toString() : dir.toString()) + File.separatorChar;
+            }
+        }
 
         /**
-         * データベースを更新する(Everything連携専用)
+         * filter ステージ: folder / song テーブルと更新日時を比較し、書き込みが必要なものだけを write ステージに送る
+         * デコードが必要な譜面は decode ステージに投入し、結果の Future を投入順に write ステージに送る
+         * folder レコードはフォルダの譜面の書き込み指示の後に送る(チェックポイントで folder レコードが確定していれば、
+         * フォルダの譜面も確定しているので、中断後の再開ではそのフォルダを飛ばせる)
          */
-        public void updateSongDatasWithEverything() {
-            if(info != null) {
-                // songinfo.db用トランザクション開始
-                info.startUpdate();
+        private void filterFolder(ScannedFolder sf, SongSnapshot songTbMap, Map<String, FolderData> folderTbMap,
+                                  PipelineQueue<WriteOp> out, ThreadPoolExecutor decodeExecutor, Executor decodeRunner,
+                                  StageStatistics decodeStats) throws InterruptedException {
+            final String dirKey = sf.dirKey();
+
+            // 走査フォルダがfolderテーブルにある場合は取得しDELETE対象から外す
+            final FolderData folderDataFromTb = folderTbMap.remove(dirKey);
+
+            // DBにない or 更新日時が変わっている場合はこのディレクトリの folder レコードを(譜面の後に)バッチに追加
+            final FolderRow folderRow = folderDataFromTb == null || folderDataFromTb.getDate() != sf.dirModTime()
+                    ? new FolderRow(sf.dir(), dirKey, sf.dirModTime()) : null;
+
+            if (!sf.bmsFiles().isEmpty()) {
+                if (sf.isUpdateDir()) {
+                    // 更新ありフォルダケース: 各BMSを処理
+                    filterCharts(sf, songTbMap, out, decodeExecutor, decodeRunner, decodeStats);
+                    // フォルダ以下に残った(実ファイルがない)譜面はフォルダと同じチェックポイントで削除する
+                    final List<String> leftover = songTbMap.takeRemainingPrefix(dirKey);
+                    if (!leftover.isEmpty()) {
+                        out.put(new SongDelete(leftover));
+                    }
+                } else {
+                    // 更新なしフォルダケース: 直下(以下)のBMSを処理済みにしてDELETE対象から外す
+                    songTbMap.takePrefix(dirKey);
+                }
             }
+            // 直下BMSがない途中ディレクトリの場合は folder レコードのみ
 
-            // songdata.db用トランザクション開始
-            try (Connection conn = ds.getConnection();
-                 Statement st = conn.createStatement()) {
-                conn.setAutoCommit(false);
-                // songdata.dbをメモリに乗せる
-                st.execute("PRAGMA mmap_size=500000000;");
-
-                // 楽曲のタグ,FAVORITEの保持
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの保持を開始します");
-                // 一時テーブル作成（sha256 PRIMARY KEY）
-                st.executeUpdate(
-                "CREATE TEMP TABLE temp_tags(sha256 TEXT PRIMARY KEY, tag TEXT, favorite INTEGER);");
-                // songのsha256が重複していた場合、最後に現れる行が最終値になる
-                st.executeUpdate(
-                "INSERT OR REPLACE INTO temp_tags (sha256, tag, favorite) " +
-                    "SELECT sha256, tag, favorite FROM song " +
-                    "WHERE (tag IS NOT NULL AND tag <> '') OR favorite > 0 " +
-                    "ORDER BY rowid;"
-                );
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの保持が完了しました");
-
-                if(updateAll) {
-                    // 楽曲全更新、既存テーブルをDELEETE
-                    qr.update(conn, "DELETE FROM folder");
-                    qr.update(conn, "DELETE FROM song");
-                } else {
-                    // ルートディレクトリに含まれないフォルダの削除
-                    StringBuilder dsql = new StringBuilder();
-                    Object[] param = new String[bmsroot.length];
-                    for (int i = 0; i < bmsroot.length; i++) {
-                        dsql.append("path NOT LIKE ?");
-                        param[i] = bmsroot[i] + "%";
-                        if (i < bmsroot.length - 1) {
-                            dsql.append(" AND ");
-                        }
+            if (folderRow != null) {
+                out.put(folderRow);
+            }
+        }
+
+        /**
+         * 更新ありフォルダの各BMSを処理する
+         */
+        private void filterCharts(ScannedFolder sf, SongSnapshot songTbMap, PipelineQueue<WriteOp> out,
+                                  ThreadPoolExecutor decodeExecutor, Executor decodeRunner, StageStatistics decodeStats) throws InterruptedException {
+            final String previewFileName = sf.previewFileName();
+            final boolean hasTxt = sf.hasTxt();
+            final boolean withInformation = info != null;
+            for (EverythingSearchResult sr : sf.bmsFiles()) {
+                final Path bmsPath = sr.path();
+                final String pathname = (bmsPath.startsWith(root) ? root.relativize(bmsPath).toString() : bmsPath.toString());
+                long bmsModTime = sr.lastModified();
+                if (bmsModTime == UNKNOWN_MODTIME) {
+                    bmsModTime = -1;
+                    try {
+                        bmsModTime = Files.getLastModifiedTime(bmsPath).toMillis() / 1000;
+                    } catch (IOException e) {
+                        Logger.getGlobal().log(Level.SEVERE, "BMSファイル更新時間取得の例外", e);
                     }
-                    qr.update(conn,
-                            "DELETE FROM folder WHERE path NOT LIKE 'LR2files%' AND path NOT LIKE '%.lr2folder' AND "
-                                    + dsql, param);
-                    qr.update(conn, "DELETE FROM song WHERE " + dsql, param);
                 }
 
-                // --- 4つの処理を別スレッドで並列実行 ---
-                Logger.getGlobal().info("フォルダ走査に必要なデータ構築を並列で行います");
-                final ExecutorService executor = Executors.newFixedThreadPool(4);
-                EverythingBatchIndexer indexer = new EverythingBatchIndexer(this.bmsroot);
+                // 対象BMSを処理済みにして、songのDELETE対象から外す
+                final int songTbIndex = songTbMap.take(pathname);
+                // 既存BMS(songテーブルのレコードとフルパス名と更新日時が一致)の場合はpreview音源のみ更新処理する
+                if (songTbIndex >= 0 && songTbMap.getDate(songTbIndex) == bmsModTime) {
+                    final String oldpp = songTbMap.getPreview(songTbIndex);
+                    final String newpp = previewFileName == null ? "" : previewFileName;
+                    // DBのpreviewとフォルダ内のpreviewが一致していない、かつ、フォルダ内のpreviewが空じゃない場合は、フォルダ内のpreviewをsongにUPDATEする
+                    // 単に一致しない場合新しいものにすると、#PREVIEW _preview.wavのように指定されていた時に、音源が消えてしまうことになるので実在する場合のみ更新
+                    if (!oldpp.equals(newpp) && !newpp.isEmpty()) {
+                        out.put(new PreviewUpdate(pathname, newpp));
+                    }
+                    continue; // 既存BMSはpreview音源のみ更新して次のBMSの処理へ
+                }
 
-                CompletableFuture<NavigableMap<String, SongData>> songsFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("songテーブルのハッシュマップ構築を開始します");
-                        NavigableMap<String, SongData> songTbMap = new TreeMap<>();
-                        try {
-                            List<SongData> allSongs = qr.query(conn, "SELECT path, date, preview, sha256 FROM song", songhandler);
-                            if (allSongs != null) {
-                                for (SongData s : allSongs) {
-                                    if (s != null && s.getPath() != null) songTbMap.put(s.getPath(), s);
-                                }
-                            }
-                        } catch (SQLException e) {
-                            throw new CompletionException(e);
-                        }
-                        Logger.getGlobal().info("songテーブルのハッシュマップ構築が完了しました");
-                        return songTbMap;
-                    }, executor);
-
-                CompletableFuture<Map<String, FolderData>> foldersFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("folderテーブルのハッシュマップ構築を開始します");
-                        Map<String, FolderData> folderTbMap = new HashMap<>();
-                        try {
-                            List<FolderData> allFolders = qr.query(conn, "SELECT path, date, parent FROM folder", folderhandler);
-                            if (allFolders != null) {
-                                for (FolderData f : allFolders) {
-                                    if (f != null && f.getPath() != null) folderTbMap.put(f.getPath(), f);
-                                }
+                // 更新日時だけが変わった既存BMS(デコードキャッシュとサイズ・内容のハッシュが一致)の場合は、更新日時とpreview音源のみ更新する
+                if (songTbIndex >= 0 && decodeCache != null
+                        && decodeCache.isUnchanged(pathname, bmsPath, bmsModTime, songTbMap.getSha256(songTbIndex))) {
+                    out.put(new DateUpdate(pathname, bmsModTime));
+                    final String oldpp = songTbMap.getPreview(songTbIndex);
+                    final String newpp = previewFileName == null ? "" : previewFileName;
+                    if (!oldpp.equals(newpp) && !newpp.isEmpty()) {
+                        out.put(new PreviewUpdate(pathname, newpp));
+                    }
+                    continue;
+                }
+
+                // 新規BMSなのでデコード処理に進む(decode ステージ)
+                if (decodeExecutor != null) decodeStats.sampleBacklog(decodeExecutor.getQueue().size());
+                final DecodeCache cache = decodeCache;
+                final long modTime = bmsModTime;
+                final StageStatistics deviceDecodeStats = sf.device().getDecodeStats();
+                CompletableFuture<ChartRows> result = CompletableFuture.supplyAsync(() -> {
+                    final long t = System.nanoTime();
+                    try {
+                        final DecodedChart decoded = DecodedChart.decode(bmsPath, pathname, hasTxt, previewFileName, withInformation, cache != null);
+                        return toRows(decoded, bmsPath, pathname, modTime, cache);
+                    } catch (SQLException e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        decodeStats.record(t);
+                        deviceDecodeStats.record(t);
+                    }
+                }, decodeRunner);
+                out.put(new ChartWrite(bmsPath, pathname, bmsModTime, songTbIndex >= 0 ? songTbMap.getSha256(songTbIndex) : null, result));
+            }
+        }
+
+        /**
+         * デコード結果を書き込み用の不変な行にする(decode ステージ)
+         * song テーブルの行には登録用の値(パス、フォルダ、更新日時など)をセットする。タグ・FAVORITEは write ステージで決める
+         */
+        private ChartRows toRows(DecodedChart decoded, Path bmsPath, String pathname, long bmsModTime, DecodeCache cache) throws SQLException {
+            if (decoded.isFailed()) return ChartRows.FAILED;
+            if (!decoded.registrable) return ChartRows.UNREGISTRABLE;
+            final SongData sd = decoded.songData;
+            sd.setTag("");
+            sd.setPath(pathname);
+            sd.setFolder(folderCrc.crc32(bmsPath.getParent().toString()));
+            sd.setParent(folderCrc.crc32(bmsPath.getParent().getParent().toString()));
+            sd.setDate((int) bmsModTime);
+            sd.setFavorite(0);
+            sd.setAdddate((int) updatetime);
+            return new ChartRows(false, sd.getSha256(), songBinder.row(sd),
+                    decoded.information != null && infoBinder != null ? infoBinder.row(decoded.information) : null,
+                    cache != null && decoded.hasHash() ? new DecodeCache.Entry(pathname, decoded.size, bmsModTime, decoded.hash, sd.getSha256()) : null);
+        }
+
+        /**
+         * キューに送る(ファイルツリー走査のコールバック内用、割り込まれた場合は非チェック例外にする)
+         */
+        private <T> void putQuietly(PipelineQueue<T> out, T item) {
+            try {
+                out.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("走査が中断されました");
+            }
+        }
+
+        /**
+         * 走査後に残った(実ファイルが存在しない) song / folder レコードを削除する
+         * - song: 削除するパスを一時テーブルに入れ、1回の DELETE で削除する
+         * - folder: フォルダ以下の folder / song をパスの範囲(path >= ? AND path < ?)で削除する。
+         *   LIKE と違い path のインデックスが使える。親フォルダごと消えている場合は親の範囲にまとめる
+         *
+         * @param leftoverSongs 走査で見つからなかった song のパス
+         * @param leftoverFolders 走査で見つからなかった folder のパス
+         * @throws SQLException 削除に失敗した場合(書き込みステージの失敗と同様に、更新を確定せずに中止する)
+         */
+        private void deleteLeftovers(Connection conn, Collection<String> leftoverSongs, Collection<String> leftoverFolders) throws SQLException {
+            // songTbMap に残っている(処理済みになっていない)ものは実ファイルが存在しないレコードなので削除
+            if (!leftoverSongs.isEmpty()) {
+                try (Statement st = conn.createStatement()) {
+                    st.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS temp_leftover_song(path TEXT PRIMARY KEY);");
+                    st.executeUpdate("DELETE FROM temp_leftover_song;");
+                    try (PreparedStatement ps = conn.prepareStatement("INSERT OR IGNORE INTO temp_leftover_song (path) VALUES (?)")) {
+                        int pending = 0;
+                        for (String path : leftoverSongs) {
+                            ps.setString(1, path);
+                            ps.addBatch();
+                            if (++pending >= BATCH_SIZE) {
+                                ps.executeBatch();
+                                pending = 0;
                             }
-                        } catch (SQLException e) {
-                            throw new CompletionException(e);
                         }
-                        Logger.getGlobal().info("folderテーブルのハッシュマップ構築が完了しました");
-                        return folderTbMap;
-                    }, executor);
-
-                CompletableFuture<Map<Path, BmsFolder>> bmsFolderFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("EverythingでBMS/.txt/preview音源を検索しBMSフォルダ情報を構築します");
-                        Map<Path, BmsFolder> m = indexer.buildBmsFolderMap();
-                        Logger.getGlobal().info("EverythingによるBMSフォルダ情報構築完了");
-                        return m;
-                    }, executor);
-
-                CompletableFuture<NavigableMap<Path, Long>> scanFoldersFuture =
-                    CompletableFuture.supplyAsync(() -> {
-                        Logger.getGlobal().info("Everythingで走査フォルダ一覧を取得します");
-                        NavigableMap<Path, Long> m;
-                        try {
-                            m = indexer.buildScanFolders();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                        Logger.getGlobal().info("Everythingによる走査フォルダ一覧取得完了");
-                        return m;
-                    }, executor);
-
-                // 全部揃うまで待つ（例外は unwrap して再スロー）
-                try {
-                    CompletableFuture<Void> all = CompletableFuture.allOf(songsFuture, foldersFuture, bmsFolderFuture, scanFoldersFuture);
-                    all.join();
-                } catch (CompletionException ex) {
-                    // 並列処理で例外が発生した場合は Executor を停止し、原因を unwrap して投げる
-                    executor.shutdownNow();
-                    Throwable cause = ex.getCause();
-                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
-                    if (cause instanceof Error) throw (Error) cause;
-                    if (cause instanceof Exception) throw (Exception) cause;
-                    throw ex;
+                        if (pending > 0) ps.executeBatch();
+                    }
+                    int deleted = st.executeUpdate("DELETE FROM song WHERE path IN (SELECT path FROM temp_leftover_song);");
+                    if (deleted > 0) songDeleteCount.addAndGet(deleted);
+                    st.executeUpdate("DROP TABLE IF EXISTS temp_leftover_song;");
                 }
+            }
 
-                // Executor の終了処理
-                executor.shutdown();
-                try {
-                    if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                        executor.shutdownNow();
+            if (decodeCache != null) {
+                for (String path : leftoverSongs) decodeCache.remove(path);
+            }
+
+            // 同様に、folderTbMap に残っているものは実フォルダが存在しないレコードなので、フォルダ以下を削除
+            final List<String> prefixes = collapsePrefixes(leftoverFolders);
+            if (prefixes.isEmpty()) return;
+            try (PreparedStatement psF = conn.prepareStatement("DELETE FROM folder WHERE path >= ? AND path < ?");
+                 PreparedStatement psS = conn.prepareStatement("DELETE FROM song WHERE path >= ? AND path < ?")) {
+                int pending = 0;
+                for (String prefix : prefixes) {
+                    final String upper = prefixUpperBound(prefix);
+                    psF.setString(1, prefix);
+                    psF.setString(2, upper);
+                    psF.addBatch();
+                    psS.setString(1, prefix);
+                    psS.setString(2, upper);
+                    psS.addBatch();
+                    if (++pending >= BATCH_SIZE) {
+                        folderDeleteCount.addAndGet(sumUpdateCounts(psF.executeBatch()));
+                        songDeleteCount.addAndGet(sumUpdateCounts(psS.executeBatch()));
+                        pending = 0;
                     }
-                } catch (InterruptedException ie) {
+                }
+                if (pending > 0) {
+                    folderDeleteCount.addAndGet(sumUpdateCounts(psF.executeBatch()));
+                    songDeleteCount.addAndGet(sumUpdateCounts(psS.executeBatch()));
+                }
+            }
+            if (decodeCache != null) {
+                for (String prefix : prefixes) decodeCache.removeUnder(prefix);
+            }
+        }
+
+        /**
+         * パスの一覧から、他のパスの接頭辞になっているものだけを残す(子孫は親の範囲削除に含まれる)
+         */
+        private List<String> collapsePrefixes(Collection<String> paths) {
+            final List<String> sorted = new ArrayList<>(paths);
+            Collections.sort(sorted);
+            final List<String> result = new ArrayList<>();
+            String last = null;
+            for (String p : sorted) {
+                if (p == null || p.isEmpty()) continue;
+                if (last != null && p.startsWith(last)) continue;
+                result.add(p);
+                last = p;
+            }
+            return result;
+        }
+
+        /**
+         * prefix で始まる文字列全体の上限(これ未満)を返す。末尾の文字を1つ進めた文字列
+         * (path >= prefix AND path < 上限) が「path が prefix で始まる」と同じになる
+         */
+        private String prefixUpperBound(String prefix) {
+            final int last = prefix.length() - 1;
+            return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+        }
+
+        private int sumUpdateCounts(int[] counts) {
+            int sum = 0;
+            for (int c : counts) {
+                if (c > 0) sum += c;
+            }
+            return sum;
+        }
+
+        /**
+         * Executor の終了処理
+         */
+        private void shutdownExecutor(ExecutorService executor) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
                     executor.shutdownNow();
-                    Thread.currentThread().interrupt();
                 }
+            } catch (InterruptedException ie) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
 
-                // 並列結果を個別の変数に取り出す
-                final NavigableMap<String, SongData> songTbMap = songsFuture.join();
-                final Map<String, FolderData> folderTbMap = foldersFuture.join();
-                final Map<Path, BmsFolder> bmsFolderMap = bmsFolderFuture.join();
-                final NavigableMap<Path, Long> scanFolders = scanFoldersFuture.join();
+        /**
+         * discover ステージのタスク
+         */
+        @FunctionalInterface
+        private interface DiscoverTask {
+            void run(PipelineQueue<ScannedFolder> out, StageStatistics stats) throws Exception;
+        }
 
-                Logger.getGlobal().info("フォルダ走査に必要なデータ構築の並列処理が完了しました");
+        /**
+         * discover ステージから filter ステージに渡す1フォルダ分の情報
+         * - bmsFiles: 直下のBMSファイル、更新日時が未取得の場合は UNKNOWN_MODTIME
+         * - isUpdateDir: folder テーブルにない、または更新日時が変わっているフォルダかどうか
+         * - device: フォルダがある格納デバイス
+         */
+        private record ScannedFolder(Path dir, String dirKey, long dirModTime, boolean isUpdateDir,
+                                     List<EverythingSearchResult> bmsFiles, boolean hasTxt, String previewFileName,
+                                     StorageDevices.Device device) {
+        }
 
-                // PreparedStatement を作って再利用する（ラムダ内から参照するため final）try-with-resources psSong/psFolder
-                try (final PreparedStatement psSong = conn.prepareStatement(songInsertSQL);
-                     final PreparedStatement psFolder = conn.prepareStatement(folderInsertSQL)) {
+        /**
+         * 終了要求による更新の中断
+         */
+        private static final class UpdateStopped extends RuntimeException {
+            UpdateStopped() {
+                super("終了要求により更新を中断しました");
+            }
+        }
 
-                    // バッチのペンディング件数（ラムダから変更できるよう AtomicInteger を使う）
-                    final AtomicInteger pendingSong = new AtomicInteger(0);
-                    final AtomicInteger pendingFolder = new AtomicInteger(0);
+        /**
+         * write ステージへの書き込み指示
+         */
+        private interface WriteOp {
+        }
 
-                    // 小ヘルパ: song バッチ flush（PreparedStatement を executeBatch）
-                    final Runnable flushSong = () -> {
-                        int toFlush = pendingSong.get();
-                        if (toFlush <= 0) return;
-                        try {
-                            // 実行
-                            psSong.executeBatch();
-                            // 成功件数のカウント（戻り値の解釈はドライバ依存なので、pending をそのまま使う）
-                            songInsertCount.addAndGet(toFlush);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().severe("song バッチ挿入中の例外: " + e.getMessage());
-                            try {
-                                conn.rollback();
-                            } catch (SQLException ex) {
-                                Logger.getGlobal().severe("rollback エラー: " + ex.getMessage());
-                            }
-                        } finally {
-                            // PreparedStatement の batch は自動的にクリアされる実装が多いが明示的にクリア
-                            try { psSong.clearBatch(); } catch (SQLException ignore) {}
-                            pendingSong.set(0);
-                        }
-                    };
+        /**
+         * folder レコードの追加
+         */
+        private record FolderRow(Path dir, String dirKey, long dirModTime) implements WriteOp {
+        }
 
-                    // 小ヘルパ: folder バッチ flush
-                    final Runnable flushFolder = () -> {
-                        int toFlush = pendingFolder.get();
-                        if (toFlush <= 0) return;
-                        try {
-                            psFolder.executeBatch();
-                            folderInsertCount.addAndGet(toFlush);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().severe("folder バッチ挿入中の例外: " + e.getMessage());
-                            try {
-                                conn.rollback();
-                            } catch (SQLException ex) {
-                                Logger.getGlobal().severe("rollback エラー: " + ex.getMessage());
-                            }
-                        } finally {
-                            try { psFolder.clearBatch(); } catch (SQLException ignore) {}
-                            pendingFolder.set(0);
-                        }
-                    };
-
-                    // フォルダ走査ループ
-                    Logger.getGlobal().info("フォルダ走査を開始します 走査対象フォルダ数: " + scanFolders.size() + " BMSリソース含有フォルダ数: " + bmsFolderMap.size());
-                    while (!scanFolders.isEmpty()){
-                        Map.Entry<Path, Long> entry = scanFolders.pollFirstEntry();
-                        final Path dir = entry.getKey();
-                        final String dirKey = (dir.startsWith(root) ? root.relativize(dir).toString() : dir.toString()) + File.separatorChar;
-                        final FolderData folderTbRecord = folderTbMap.get(dirKey);
-                        final long dirModTime  = entry.getValue();
-
-                        // ディレクトリ直下ファイル確認(途中ディレクトリかBMSフォルダか判定、preview音源やtxtがあるか)
-                        List<EverythingSearchResult> bmsFiles;
-                        boolean hasTxt = false;
-                        String previewFileName = null;
-                        boolean isUpdateDir = folderTbRecord == null || folderTbRecord.getDate() != dirModTime;
-                        if (isUpdateDir) {
-                            // 更新ありフォルダ
-                            BmsFolder bf = bmsFolderMap.get(dir);
-                            bmsFiles = bf != null ? bf.bmsFiles : Collections.emptyList();
-                            hasTxt = bf != null && bf.hasTxt;
-                            List<Path> previewFiles = bf != null ? bf.previewFiles : Collections.emptyList();
-                            previewFileName = previewFiles.isEmpty() ? null : previewFiles.get(0).getFileName().toString();
-                        } else {
-                            // 更新なしフォルダ
-                            BmsFolder bf = bmsFolderMap.get(dir);
-                            bmsFiles = bf != null ? bf.bmsFiles : Collections.emptyList();
-                        }
+        /**
+         * フォルダ以下に残った(実ファイルがない)譜面の削除
+         */
+        private record SongDelete(List<String> pathnames) implements WriteOp {
+        }
 
-                        // 走査フォルダがfolderテーブルにある場合は取得しDELETE対象から外す
-                        final FolderData folderDataFromTb = folderTbMap.remove(dirKey);
+        /**
+         * 既存BMSのpreview音源の更新
+         */
+        private record PreviewUpdate(String pathname, String preview) implements WriteOp {
+        }
 
-                        // DBにない or 更新日時が変わっている場合はこのディレクトリの folder レコードをバッチに追加
-                        if (folderDataFromTb == null || folderDataFromTb.getDate() != dirModTime) {
-                            try {
-                                Path parentpath = dir.getParent();
-                                if (parentpath == null) parentpath = dir.toAbsolutePath().getParent();
-                                // subtitle, command, banner, type, maxはオリジナル実装でもデフォルト値がセットされることになる
-                                psFolder.setString(1, dir.getFileName().toString());
-                                psFolder.setString(2, null);
-                                psFolder.setString(3, null);
-                                psFolder.setString(4, dirKey);
-                                psFolder.setString(5, null);
-                                psFolder.setString(6, SongUtils.crc32(parentpath.toString(), bmsroot, root.toString()));
-                                psFolder.setInt(7, 0);
-                                psFolder.setInt(8, (int) dirModTime);
-                                psFolder.setInt(9, (int) updatetime);
-                                psFolder.setInt(10, 0);
-
-                                psFolder.addBatch();
-                                int fcur = pendingFolder.incrementAndGet();
-                                if (fcur >= BATCH_SIZE) {
-                                    flushFolder.run();
-                                }
-                            } catch (SQLException e) {
-                                Logger.getGlobal().log(Level.SEVERE,"folder バッチ準備中の例外: ", e);
-                            }
-                        }
+        /**
+         * 内容が変わっていない既存BMSの更新日時の更新
+         */
+        private record DateUpdate(String pathname, long bmsModTime) implements WriteOp {
+        }
 
-                        // 直下BMSがない途中ディレクトリの場合はcontinue
-                        if (bmsFiles.isEmpty()) continue;
-
-                        // [SKIP_SUBTREE] 直下BMSフォルダなので、サブディレクトリが存在する場合走査対象から外す
-                        NavigableMap<Path, Long> foldersTail = scanFolders.tailMap(dir, true);
-                        Iterator<Path> ftit = foldersTail.keySet().iterator();
-                        while (ftit.hasNext()) {
-                            // dirkey = dir + File.separatorChar
-                            String key = ftit.next().toString();
-                            // パス先頭が「dir\」でも「dir」でもない場合は、子孫でも兄弟的フォルダでもないのでbreak
-                            if (!key.startsWith(dirKey) && !key.startsWith(dir.toString())) break;
-                            // パス先頭が「dir\」の場合子孫なので削除
-                            if (key.startsWith(dirKey)) ftit.remove();
-                        }
+        /**
+         * デコード結果の書き込み、result は decode ステージで完了する
+         * oldSha256 は song テーブルにある同じパスの譜面の sha256(新規の場合は null)
+         */
+        private record ChartWrite(Path bmsPath, String pathname, long bmsModTime, String oldSha256,
+                                  CompletableFuture<ChartRows> result) implements WriteOp {
+        }
 
-                        // 更新なしフォルダケース: 直下のBMSを処理済みにしてDELETE対象から外す
-                        if (!isUpdateDir) {
-                            NavigableMap<String, SongData> tail = songTbMap.tailMap(dirKey, true);
-                            Iterator<String> tit = tail.keySet().iterator();
-                            while (tit.hasNext()) {
-                                String key = tit.next();
-                                if (!key.startsWith(dirKey)) break;
-                                tit.remove();
-                            }
-                            continue;
+        /**
+         * decode ステージから write ステージに渡す1譜面分の行(不変)
+         * - song: song テーブルの行、登録しない譜面(デコード失敗、0ノーツかつWAV定義0)は null
+         * - information: songinfo.db の行、不要な場合や生成失敗時は null
+         * - cacheEntry: デコードキャッシュに登録するエントリ、キャッシュを使わない場合は null
+         */
+        private record ChartRows(boolean failed, String sha256, Row song, Row information, DecodeCache.Entry cacheEntry) {
+            static final ChartRows FAILED = new ChartRows(true, null, null, null, null);
+            static final ChartRows UNREGISTRABLE = new ChartRows(false, null, null, null, null);
+        }
+
+        /**
+         * 譜面のタグ・FAVORITE(ユーザーが beatoraja で設定する値)
+         */
+        private record UserColumns(String tag, int favorite) {
+        }
+
+        /**
+         * songdata.db への書き込み担当(write ステージ)
+         * JDBC コネクションと psSong / psFolder のバッチはこのクラスを生成したスレッドだけが操作する。
+         * songinfo.db の行は songinfo.db の書き込みスレッドに渡し、確定(チェックポイント)とロールバックは両方のファイルで揃える。
+         * folder レコードを書いた後、前回のチェックポイントから checkpointInterval 秒経っていれば、ここまでの書き込みを確定する(チェックポイント)
+         */
+        private final class SongWriter implements AutoCloseable {
+
+            private final Connection conn;
+            private final PreparedStatement psSong;
+            private final PreparedStatement psFolder;
+            private final PreparedStatement psDate;
+            private final PreparedStatement psDelete;
+            // バッチのペンディング件数
+            private int pendingSong = 0;
+            private int pendingFolder = 0;
+            private int pendingDate = 0;
+            private int pendingDelete = 0;
+            // パスか sha256 が変わった譜面に、同じ sha256 の譜面のタグ・FAVORITEを引き継ぐかどうか
+            private final boolean carryUserColumns;
+            // sha256 → タグ・FAVORITE(タグかFAVORITEがある行のみ)。引き継ぎが必要になったとき(または最初の削除の前)に読み込む
+            private Map<String, UserColumns> userColumns;
+
+            private final UpdateProgress progress;
+            private final long checkpointNanos;
+            private long lastCheckpoint = System.nanoTime();
+            // 前回のチェックポイント以降に書き込んだフォルダと譜面の数、最後に書き込んだフォルダ
+            private long checkpointFolders = 0;
+            private long checkpointSongs = 0;
+            private String lastFolder;
+
+            SongWriter(Connection conn, boolean carryUserColumns, UpdateProgress progress) throws SQLException {
+                this.conn = conn;
+                this.progress = progress;
+                this.carryUserColumns = carryUserColumns;
+                this.checkpointNanos = TimeUnit.SECONDS.toNanos(UpdaterOptions.checkpointInterval());
+                // 既存の行(path が同じ)は消さずに更新し、sha256 が同じならタグ・FAVORITEを残す
+                this.psSong = conn.prepareStatement(songBinder.getUpsertSQL("path", "sha256", "tag", "favorite"));
+                this.psFolder = folderBinder.prepare(conn);
+                this.psDate = conn.prepareStatement("UPDATE song SET date = ? WHERE path = ?");
+                this.psDelete = conn.prepareStatement("DELETE FROM song WHERE path = ?");
+            }
+
+            /**
+             * タグ・FAVORITEがある行を sha256 ごとに読み込む(初回のみ)
+             * sha256 が重複していた場合、最後に現れる行が最終値になる
+             */
+            private Map<String, UserColumns> userColumns() throws SQLException {
+                if (userColumns == null) {
+                    final Map<String, UserColumns> loaded = new HashMap<>();
+                    try (Statement st = conn.createStatement();
+                         ResultSet rs = st.executeQuery("SELECT sha256, tag, favorite FROM song "
+                                 + "WHERE (tag IS NOT NULL AND tag <> '') OR favorite > 0 ORDER BY rowid")) {
+                        while (rs.next()) {
+                            loaded.put(rs.getString(1), new UserColumns(rs.getString(2), rs.getInt(3)));
                         }
+                    }
+                    userColumns = loaded;
+                    Logger.getGlobal().info("楽曲のタグ,FAVORITEを読み込みました: " + loaded.size() + " 件");
+                }
+                return userColumns;
+            }
 
-                        // 更新ありフォルダケース: 各BMSを処理
-                        for (EverythingSearchResult sr : bmsFiles) {
-                            Path bmsPath = sr.path();
-                            final String pathname = (bmsPath.startsWith(root) ? root.relativize(bmsPath).toString() : bmsPath.toString());
-                            long bmsModTime;
-                            bmsModTime = sr.lastModified();
-
-                            // 対象BMSを処理済みにして、songのDELETE対象から外す
-                            final SongData songDataFromTb = songTbMap.remove(pathname);
-                            // 既存BMS(songテーブルのレコードとフルパス名と更新日時が一致)の場合はpreview音源のみ更新処理する
-                            if (songDataFromTb != null && songDataFromTb.getDate() == bmsModTime) {
-                                final String oldpp = songDataFromTb.getPreview() == null ? "" : songDataFromTb.getPreview();
-                                final String newpp = previewFileName == null ? "" : previewFileName;
-                                // DBのpreviewとフォルダ内のpreviewが一致していない、かつ、フォルダ内のpreviewが空じゃない場合は、フォルダ内のpreviewをsongにUPDATEする
-                                // 単に一致しない場合新しいものにすると、#PREVIEW _preview.wavのように指定されていた時に、音源が消えてしまうことになるので実在する場合のみ更新
-                                if (!oldpp.equals(newpp) && !newpp.isEmpty()) {
-                                    try {
-                                        int updated = qr.update(conn, "UPDATE song SET preview=? WHERE path = ?", newpp, pathname);
-                                        if (updated > 0) songUpdateCount.addAndGet(updated);
-                                    } catch (SQLException e) {
-                                        Logger.getGlobal().warning("Error while updating preview at " + pathname + ": " + e.getMessage());
-                                    }
-                                }
-                                continue; // 既存BMSはpreview音源のみ更新して次のBMSの処理へ
-                            }
+            /**
+             * 書き込み指示を実行する
+             */
+            void apply(WriteOp op) throws SQLException {
+                if (op instanceof FolderRow f) {
+                    addFolder(f.dir(), f.dirKey(), f.dirModTime());
+                    checkpointFolders++;
+                    lastFolder = f.dirKey();
+                    // フォルダの譜面は folder レコードより前に書き込んでいるので、ここで確定してよい
+                    if (checkpointNanos > 0 && System.nanoTime() - lastCheckpoint >= checkpointNanos) {
+                        checkpoint();
+                    }
+                } else if (op instanceof SongDelete d) {
+                    for (String pathname : d.pathnames()) deleteSong(pathname);
+                } else if (op instanceof PreviewUpdate p) {
+                    updatePreview(p.pathname(), p.preview());
+                } else if (op instanceof DateUpdate d) {
+                    updateDate(d.pathname(), d.bmsModTime());
+                } else if (op instanceof ChartWrite c) {
+                    writeChart(c);
+                }
+            }
 
-                            // 新規BMSなのでデコード処理に進む
-                            BMSModel model = null;
-                            try {
-                                if (pathname.toLowerCase().endsWith(".bmson")) {
-                                    BMSONDecoder decoder = new BMSONDecoder(BMSModel.LNTYPE_LONGNOTE);
-                                    model = decoder.decode(bmsPath);
-                                } else {
-                                    BMSDecoder decoder = new BMSDecoder(BMSModel.LNTYPE_LONGNOTE);
-                                    model = decoder.decode(bmsPath);
-                                }
-                            } catch (Exception e) {
-                                Logger.getGlobal().log(Level.SEVERE,"Error while decoding " + pathname + ": " + e.getMessage(), e);
-                            }
-                            if (model == null) continue; // デコードできなかったらcontinue
+            /**
+             * folder レコードをバッチに追加する
+             */
+            private void addFolder(Path dir, String dirKey, long dirModTime) throws SQLException {
+                Path parentpath = dir.getParent();
+                if (parentpath == null) parentpath = dir.toAbsolutePath().getParent();
+                // subtitle, command, banner, type, maxはオリジナル実装でもデフォルト値がセットされることになる
+                FolderData fd = new FolderData();
+                fd.setTitle(dir.getFileName().toString());
+                fd.setPath(dirKey);
+                fd.setParent(folderCrc.crc32(parentpath.toString()));
+                fd.setDate((int) dirModTime);
+                fd.setAdddate((int) updatetime);
+
+                folderBinder.addBatch(psFolder, fd);
+                if (++pendingFolder >= BATCH_SIZE) {
+                    flushFolder();
+                }
+            }
 
-                            SongData sd;
-                            try {
-                                sd = new SongData(model, hasTxt);
-                            } catch (Throwable t) {
-                                Logger.getGlobal().log(Level.SEVERE,"SongData 生成失敗 : path=" + pathname + " cause=" + t.getMessage(), t);
-                                continue; // BMSをmodelにデコードできたのに、songdataにできなかった場合もcontinue
+            /**
+             * 既存BMSのpreview音源を更新する
+             */
+            private void updatePreview(String pathname, String preview) {
+                try {
+                    int updated = qr.update(conn, "UPDATE song SET preview=? WHERE path = ?", preview, pathname);
+                    if (updated > 0) songUpdateCount.addAndGet(updated);
+                } catch (SQLException e) {
+                    Logger.getGlobal().warning("Error while updating preview at " + pathname + ": " + e.getMessage());
+                }
+            }
+
+            /**
+             * 内容が変わっていない既存BMSの更新日時をバッチに追加する
+             */
+            private void updateDate(String pathname, long bmsModTime) throws SQLException {
+                psDate.setInt(1, (int) bmsModTime);
+                psDate.setString(2, pathname);
+                psDate.addBatch();
+                if (++pendingDate >= BATCH_SIZE) {
+                    flushDate();
+                }
+            }
+
+            /**
+             * デコード結果の行をバッチに積む(filter ステージが投入した順に呼ばれる)
+             */
+            private void writeChart(ChartWrite pc) throws SQLException {
+                final ChartRows rows;
+                try {
+                    rows = pc.result().join();
+                } catch (CompletionException | CancellationException e) {
+                    Logger.getGlobal().log(Level.SEVERE, "Error while decoding " + pc.pathname() + ": " + e.getMessage(), e);
+                    return;
+                }
+                if (rows.failed()) return; // デコードできなかったら次へ
+
+                // 0ノーツではない、または、WAV定義が0ではない、場合はsongdataの挿入へ進む
+                if (rows.song() != null) {
+                    // 行(登録用の値はセット済み)を再利用する PreparedStatement に addBatch() する
+                    try {
+                        Row song = rows.song();
+                        // 新規のパスか sha256 が変わった譜面は、同じ sha256 の譜面(移動・コピー元など)のタグ・FAVORITEを引き継ぐ。
+                        // なければ書き換える前の譜面(同じパスの行)の値を残す
+                        // (sha256 が同じ既存の行は upsert がタグ・FAVORITEを残す)
+                        if (carryUserColumns && !rows.sha256().equals(pc.oldSha256())) {
+                            UserColumns carried = userColumns().get(rows.sha256());
+                            if (carried == null && pc.oldSha256() != null) {
+                                carried = userColumns().get(pc.oldSha256());
+                            }
+                            if (carried != null) {
+                                song = song.with("tag", carried.tag()).with("favorite", carried.favorite());
                             }
+                        }
 
-                            // 0ノーツではない、または、WAV定義が0ではない、場合はsongdataの挿入へ進む
-                            if (sd.getNotes() != 0 || model.getWavList().length != 0) {
-                                // 難易度未設定時の自動設定
-                                if (sd.getDifficulty() == 0) {
-                                    final String fulltitle = (sd.getTitle() + sd.getSubtitle()).toLowerCase();
-                                    final String diffname = (sd.getSubtitle()).toLowerCase();
-                                    if (diffname.contains("beginner")) {
-                                        sd.setDifficulty(1);
-                                    } else if (diffname.contains("normal")) {
-                                        sd.setDifficulty(2);
-                                    } else if (diffname.contains("hyper")) {
-                                        sd.setDifficulty(3);
-                                    } else if (diffname.contains("another")) {
-                                        sd.setDifficulty(4);
-                                    } else if (diffname.contains("insane") || diffname.contains("leggendaria")) {
-                                        sd.setDifficulty(5);
-                                    } else {
-                                        if (fulltitle.contains("beginner")) {
-                                            sd.setDifficulty(1);
-                                        } else if (fulltitle.contains("normal")) {
-                                            sd.setDifficulty(2);
-                                        } else if (fulltitle.contains("hyper")) {
-                                            sd.setDifficulty(3);
-                                        } else if (fulltitle.contains("another")) {
-                                            sd.setDifficulty(4);
-                                        } else if (fulltitle.contains("insane") || fulltitle.contains("leggendaria")) {
-                                            sd.setDifficulty(5);
-                                        } else {
-                                            if (sd.getNotes() < 250) {
-                                                sd.setDifficulty(1);
-                                            } else if (sd.getNotes() < 600) {
-                                                sd.setDifficulty(2);
-                                            } else if (sd.getNotes() < 1000) {
-                                                sd.setDifficulty(3);
-                                            } else if (sd.getNotes() < 2000) {
-                                                sd.setDifficulty(4);
-                                            } else {
-                                                sd.setDifficulty(5);
-                                            }
-                                        }
-                                    }
-                                }
+                        songBinder.addRow(psSong, song);
+                    } catch (SQLException e) {
+                        // song の行を書けなかった譜面は、songinfo.db とデコードキャッシュにも書かない
+                        Logger.getGlobal().log(Level.SEVERE, "song バッチ用パラメータ設定中の例外: ", e);
+                        return;
+                    }
+                    if (++pendingSong >= BATCH_SIZE) {
+                        flushSong();
+                    }
 
-                                // BMSの#PREVIEWに記載がない、かつ、フォルダ内にpreviewがあった場合は、フォルダ内のpreviewをセットする
-                                // フォルダ内に実在するpreviewファイル名を優先したほうが良いような気が？
-                                if ((sd.getPreview() == null || sd.getPreview().isEmpty()) && previewFileName != null) {
-                                    sd.setPreview(previewFileName);
-                                }
+                    // songinfo.dbのUPDATE(songinfo.db の書き込みスレッドに渡す)
+                    if (info != null && rows.information() != null) info.update(rows.information());
+                    // デコードキャッシュの更新
+                    if (decodeCache != null && rows.cacheEntry() != null) decodeCache.put(rows.cacheEntry());
 
-                                // PreparedStatement に直接パラメータをセットして addBatch() する（再利用）
-                                try {
-                                    // 1..29 パラメータ（song テーブルの列順に合わせる）
-                                    psSong.setString(1, sd.getMd5());
-                                    psSong.setString(2, sd.getSha256());
-                                    psSong.setString(3, sd.getTitle());
-                                    psSong.setString(4, sd.getSubtitle());
-                                    psSong.setString(5, sd.getGenre());
-                                    psSong.setString(6, sd.getArtist());
-                                    psSong.setString(7, sd.getSubartist());
-                                    psSong.setString(8, "");
-                                    psSong.setString(9, pathname);
-                                    psSong.setString(10, SongUtils.crc32(bmsPath.getParent().toString(), bmsroot, root.toString()));
-                                    psSong.setString(11, sd.getStagefile());
-                                    psSong.setString(12, sd.getBanner());
-                                    psSong.setString(13, sd.getBackbmp());
-                                    psSong.setString(14, sd.getPreview());
-                                    psSong.setString(15, SongUtils.crc32(bmsPath.getParent().getParent().toString(), bmsroot, root.toString()));
-                                    psSong.setInt(16, sd.getLevel());
-                                    psSong.setInt(17, sd.getDifficulty());
-                                    psSong.setInt(18, sd.getMaxbpm());
-                                    psSong.setInt(19, sd.getMinbpm());
-                                    psSong.setInt(20, sd.getLength());
-                                    psSong.setInt(21, sd.getMode());
-                                    psSong.setInt(22, sd.getJudge());
-                                    psSong.setInt(23, sd.getFeature());
-                                    psSong.setInt(24, sd.getContent());
-                                    psSong.setInt(25, (int) bmsModTime);
-                                    psSong.setInt(26, 0);
-                                    psSong.setInt(27, (int) updatetime);
-                                    psSong.setInt(28, sd.getNotes());
-                                    psSong.setString(29, sd.getCharthash());
-
-                                    psSong.addBatch();
-                                    int cur = pendingSong.incrementAndGet();
-                                    if (cur >= BATCH_SIZE) {
-                                        flushSong.run();
-                                    }
-                                } catch (SQLException e) {
-                                    Logger.getGlobal().log(Level.SEVERE,"song バッチ用パラメータ設定中の例外: " ,e);
-                                }
+                    newBmsCount.incrementAndGet();
+                    checkpointSongs++;
+                } else {
+                    // ノーツ0かつwav0 -> 削除 (そもそもDBに登録されていないはず？)
+                    deleteSong(pc.pathname());
+                }
+            }
 
-                                // songinfo.dbのUPDATE
-                                if (info != null) info.update(model);
+            /**
+             * song レコードの削除をバッチに追加する
+             */
+            private void deleteSong(String pathname) throws SQLException {
+                // 削除する行のタグ・FAVORITEを移動先に引き継げるように、削除の前に読み込んでおく
+                if (carryUserColumns) userColumns();
+                psDelete.setString(1, pathname);
+                psDelete.addBatch();
+                if (++pendingDelete >= BATCH_SIZE) {
+                    flushDelete();
+                }
+                if (decodeCache != null) decodeCache.remove(pathname);
+            }
 
-                                newBmsCount.incrementAndGet();
-                            } else {
-                                // ノーツ0かつwav0 -> 削除 (そもそもDBに登録されていないはず？)
-                                try {
-                                    int deleted = qr.update(conn, "DELETE FROM song WHERE path = ?", pathname);
-                                    if (deleted > 0) songDeleteCount.addAndGet(deleted);
-                                } catch (SQLException e) { Logger.getGlobal().log(Level.SEVERE, "songレコード削除の例外", e); }
-                            }
-                        } // for bmsFiles
-                    } // end scanFolders
+            /**
+             * 走査後: 残っているバッチを flush する
+             * バッチの書き込みに失敗した場合は例外を投げる(write ステージを失敗させ、前回のチェックポイントから再開する)
+             */
+            void finish() throws SQLException {
+                flushSong();
+                flushFolder();
+                flushDate();
+                flushDelete();
+            }
 
-                    // 走査後: 残っているバッチを flush
-                    flushSong.run();
-                    flushFolder.run();
+            /**
+             * チェックポイント: ここまでの書き込みを確定し、進捗を記録する
+             */
+            void checkpoint() throws SQLException {
+                finish();
+                commitBoth(conn, progress);
+                // 確定したフォルダのデコードキャッシュも保存する(中断しても次回の更新で使える)
+                if (decodeCache != null) decodeCache.save();
+                progress.checkpoint(checkpointFolders, checkpointSongs, lastFolder);
+                Logger.getGlobal().info("チェックポイント: フォルダ " + checkpointFolders + " 件、譜面 " + checkpointSongs + " 件を確定しました (" + progress + ")");
+                checkpointFolders = 0;
+                checkpointSongs = 0;
+                lastCheckpoint = System.nanoTime();
+            }
 
-                    // 走査後、songTbMap に残っているものは実ファイルが存在しないレコードなので削除
-                    for (SongData leftover : songTbMap.values()) {
-                        try {
-                            int deleted = qr.update(conn, "DELETE FROM song WHERE path = ?", leftover.getPath());
-                            if (deleted > 0) songDeleteCount.addAndGet(deleted);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().log(Level.SEVERE, "ディレクトリ内に存在しないsongレコード削除の例外", e);
-                        }
+            // 小ヘルパ: 削除バッチ flush(失敗した場合は例外を投げる。以下の flush も同様)
+            private void flushDelete() throws SQLException {
+                if (pendingDelete <= 0) return;
+                try {
+                    int deleted = 0;
+                    for (int n : psDelete.executeBatch()) {
+                        if (n > 0) deleted += n;
                     }
+                    if (deleted > 0) songDeleteCount.addAndGet(deleted);
+                } finally {
+                    try { psDelete.clearBatch(); } catch (SQLException ignore) {}
+                    pendingDelete = 0;
+                }
+            }
+
+            // 小ヘルパ: 更新日時バッチ flush
+            private void flushDate() throws SQLException {
+                final int toFlush = pendingDate;
+                if (toFlush <= 0) return;
+                try {
+                    psDate.executeBatch();
+                    songUpdateCount.addAndGet(toFlush);
+                } finally {
+                    try { psDate.clearBatch(); } catch (SQLException ignore) {}
+                    pendingDate = 0;
+                }
+            }
+
+            // 小ヘルパ: song バッチ flush（PreparedStatement を executeBatch）
+            private void flushSong() throws SQLException {
+                final int toFlush = pendingSong;
+                if (toFlush <= 0) return;
+                try {
+                    // 実行
+                    psSong.executeBatch();
+                    // 成功件数のカウント（戻り値の解釈はドライバ依存なので、pending をそのまま使う）
+                    songInsertCount.addAndGet(toFlush);
+                } finally {
+                    // PreparedStatement の batch は自動的にクリアされる実装が多いが明示的にクリア
+                    try { psSong.clearBatch(); } catch (SQLException ignore) {}
+                    pendingSong = 0;
+                }
+            }
+
+            // 小ヘルパ: folder バッチ flush
+            private void flushFolder() throws SQLException {
+                final int toFlush = pendingFolder;
+                if (toFlush <= 0) return;
+                try {
+                    psFolder.executeBatch();
+                    folderInsertCount.addAndGet(toFlush);
+                } finally {
+                    try { psFolder.clearBatch(); } catch (SQLException ignore) {}
+                    pendingFolder = 0;
+                }
+            }
 
-                    // 同様に、folderTbMap に残っているものは実フォルダが存在しないレコードなので削除
-                    for (FolderData leftover : folderTbMap.values()) {
+            @Override
+            public void close() throws SQLException {
+                try {
+                    psSong.close();
+                } finally {
+                    try {
+                        psFolder.close();
+                    } finally {
                         try {
-                            int fd = qr.update(conn, "DELETE FROM folder WHERE path LIKE ?", leftover.getPath() + "%");
-                            if (fd > 0) folderDeleteCount.addAndGet(fd);
-                            int sd = qr.update(conn, "DELETE FROM song WHERE path LIKE ?", leftover.getPath() + "%");
-                            if (sd > 0) songDeleteCount.addAndGet(sd);
-                        } catch (SQLException e) {
-                            Logger.getGlobal().log(Level.SEVERE, "ディレクトリ内に存在しないfolderレコード削除の例外:", e);
+                            psDate.close();
+                        } finally {
+                            psDelete.close();
                         }
                     }
-                    // commit は外側で行う（try-with-resources の conn を使用）
-                } // end try-with-resources psSong/psFolder
-
-                // 楽曲のタグ,FAVORITEのを一時テーブルから復元
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの復元を開始します");
-                st.executeUpdate(
-                "UPDATE song SET " +
-                    "tag = COALESCE((SELECT tag FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.tag), " +
-                    "favorite = COALESCE((SELECT favorite FROM temp_tags WHERE temp_tags.sha256 = song.sha256), song.favorite) " +
-                    "WHERE EXISTS (SELECT 1 FROM temp_tags WHERE temp_tags.sha256 = song.sha256);"
-                );
-                st.executeUpdate("DROP TABLE IF EXISTS temp_tags;");
-                Logger.getGlobal().info("楽曲のタグ,FAVORITEの復元が完了しました");
-
-                conn.commit();
-            } catch (Exception e) {
-                Logger.getGlobal().log(Level.SEVERE, "楽曲データベース更新時の例外", e);
-            } // songdata.db用トランザクション終了 try-with-resources
-
-            if(info != null) {
-                // songinfo.db用トランザクション終了
-                info.endUpdate();
+                }
             }
-            long nowtime = System.currentTimeMillis();
-            Logger.getGlobal().info("楽曲更新完了 : Time - " + (nowtime - starttime) + " 1曲あたりの時間 - "
-                    + (newBmsCount.get() > 0 ? (nowtime - starttime) / newBmsCount.get() : "不明"));
-            Logger.getGlobal().info("DB 操作件数: song insert=" + songInsertCount.get() + " update=" + songUpdateCount.get() + " delete=" + songDeleteCount.get()
-                    + " | folder insert=" + folderInsertCount.get() + " delete=" + folderDeleteCount.get());
         }
 	}
 
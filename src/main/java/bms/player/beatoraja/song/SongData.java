@@ -252,9 +252,9 @@ public class SongData implements Validatable {
 	public void setTag(String tag) {
 		this.tag = tag;
 	}
-//	public int getAdddate() {
-//		return adddate;
-//	}
+	public int getAdddate() {
+		return adddate;
+	}
 	public void setAdddate(int adddate) {
 		this.adddate = adddate;
 	}
@@ -492,18 +492,19 @@ public class SongData implements Validatable {
 //	public void setInformation(SongInformation info) {
 //		this.info = info;
 //	}
-//
-//	public String getFolder() {
-//		return folder;
-//	}
+
+
+	public String getFolder() {
+		return folder;
+	}
 
 	public void setFolder(String folder) {
 		this.folder = folder;
 	}
 
-//	public String getParent() {
-//		return parent;
-//	}
+	public String getParent() {
+		return parent;
+	}
 
 	public void setParent(String parent) {
 		this.parent = parent;
@@ -1,8 +1,23 @@
 package bms.player.beatoraja.song;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,6 +31,7 @@ import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteDataSource;
 
 import bms.model.BMSModel;
+import jp.howan.songdata.DatabaseProfile;
 
 import org.sqlite.SQLiteConfig.SynchronousMode;
 
@@ -28,6 +44,16 @@ public class SongInformationAccessor extends SQLiteDatabaseAccessor {
 
 	private final SQLiteDataSource ds;
 
+	/**
+	 * songinfo.db のパス
+	 */
+	private final Path path;
+
+	/**
+	 * rebuild で作り直す songinfo.db(songinfo.db と同じ場所、置き換えるまで使う)のパス
+	 */
+	private final Path rebuildPath;
+
 	private final ResultSetHandler<List<SongInformation>> songhandler = new BeanListHandler<>(
             SongInformation.class);
 
@@ -35,6 +61,40 @@ public class SongInformationAccessor extends SQLiteDatabaseAccessor {
 
 	private Connection conn;
 
+	/**
+	 * 更新用のINSERT文(startUpdate()からendUpdate()まで再利用する)
+	 */
+	private PreparedStatement psInfo;
+	/**
+	 * psInfoのバッチのペンディング件数
+	 */
+	private int pendingInfo = 0;
+
+	/**
+	 * information テーブルへの書き込み用バインダ
+	 */
+	private RowBinder<SongInformation> infoBinder;
+
+	/**
+	 * 書き込みスレッド(startWriter()からendUpdate()まで。その間、接続とpsInfoはこのスレッドだけが操作する)
+	 */
+	private InformationWriter writer;
+
+	/**
+	 * 作り直すファイルに書き込んでいるかどうか(startRebuild()からendUpdate()まで)
+	 */
+	private boolean rebuilding;
+	/**
+	 * 作り直すファイルへの書き込みを確定して閉じたかどうか(replaceWithRebuild() で置き換える条件)
+	 */
+	private boolean rebuildCommitted;
+	/**
+	 * 書き込めなかった詳細情報があるかどうか(次回の更新で repairInformation が作り直す)
+	 */
+	private volatile boolean incomplete;
+
+	private static final int BATCH_SIZE = 1000;
+
 	public SongInformationAccessor(String filepath) throws ClassNotFoundException {
 		super(new Table("information", 
 				new Column("sha256", "TEXT",1,1),
@@ -52,21 +112,39 @@ public class SongInformationAccessor extends SQLiteDatabaseAccessor {
 				new Column("lanenotes", "TEXT")
 				));
 		Class.forName("org.sqlite.JDBC");
+		ds = dataSource(filepath);
+		qr = new QueryRunner(ds);
+		path = Paths.get(filepath);
+		final String infodb = path.getFileName().toString();
+		rebuildPath = path.resolveSibling((infodb.endsWith(".db") ? infodb.substring(0, infodb.length() - 3) : infodb) + "_rebuild.db");
+		try {
+			validate(qr);
+		} catch (SQLException e) {
+            Logger.getGlobal().log(Level.SEVERE,"楽曲データベース初期化中の例外:", e);
+		}
+	}
+
+	private static SQLiteDataSource dataSource(String filepath) {
+		return dataSource(filepath, 0);
+	}
+
+	/**
+	 * @param pageSize 新しく作るファイルのページサイズ、0 の場合は SQLite の既定
+	 */
+	private static SQLiteDataSource dataSource(String filepath, int pageSize) {
 		SQLiteConfig conf = new SQLiteConfig();
+		if (pageSize > 0) {
+			conf.setPageSize(pageSize);
+		}
 		conf.setSharedCache(true);
 		conf.setSynchronous(SynchronousMode.OFF);
         conf.setJournalMode(SQLiteConfig.JournalMode.MEMORY);
         conf.setTempStore(SQLiteConfig.TempStore.MEMORY);
         conf.setLockingMode(SQLiteConfig.LockingMode.EXCLUSIVE);
         conf.setCacheSize(-50000);
-		ds = new SQLiteDataSource(conf);
+		SQLiteDataSource ds = new SQLiteDataSource(conf);
 		ds.setUrl("jdbc:sqlite:" + filepath);
-		qr = new QueryRunner(ds);
-		try {
-			validate(qr);
-		} catch (SQLException e) {
-            Logger.getGlobal().log(Level.SEVERE,"楽曲データベース初期化中の例外:", e);
-		}
+		return ds;
 	}
 
 //	public SongInformation[] getInformations(String sql) {
@@ -120,8 +198,133 @@ public class SongInformationAccessor extends SQLiteDatabaseAccessor {
 
 	public void startUpdate() {
 		try {
-			conn = ds.getConnection();
+			startUpdate(ds);
+		} catch (SQLException e) {
+            Logger.getGlobal().log(Level.SEVERE, "info.startUpdate()の例外", e);
+		}
+	}
+
+	/**
+	 * rebuild を開始する。更新は songinfo.db ではなく空の状態から作り直すファイルに書き込み、
+	 * endUpdate() の後に replaceWithRebuild() で songinfo.db と置き換える
+	 * 作り直すファイルを開けない場合は例外を投げる(呼び出し側は rebuild を中止すること)
+	 *
+	 * @param resume 中断された rebuild を続ける(作りかけのファイルをそのまま使う)
+	 * @param profile 新しく作るファイルのページサイズ
+	 */
+	public void startRebuild(boolean resume, DatabaseProfile profile) throws SQLException, IOException {
+		rebuildCommitted = false;
+		if (!resume) {
+			Files.deleteIfExists(rebuildPath);
+		}
+		final SQLiteDataSource rebuildDs = dataSource(rebuildPath.toString(), profile.pageSize());
+		validate(new QueryRunner(rebuildDs));
+		startUpdate(rebuildDs);
+		rebuilding = true;
+	}
+
+	/**
+	 * 更新用の接続のキャッシュとメモリマップの大きさを設定する(startUpdate() / startRebuild() の後に呼ぶ)
+	 */
+	public void configure(DatabaseProfile profile) {
+		if (conn == null) return;
+		try (Statement st = conn.createStatement()) {
+			for (String pragma : profile.pragmas()) {
+				st.execute(pragma);
+			}
+		} catch (SQLException e) {
+            Logger.getGlobal().log(Level.WARNING, "info.configure()の例外", e);
+		}
+	}
+
+	/**
+	 * 中断された rebuild の作りかけのファイルがあるかどうか
+	 */
+	public boolean hasRebuild() {
+		return Files.exists(rebuildPath);
+	}
+
+	/**
+	 * rebuild で作り直したファイルを主キー(sha256)順に新しいファイルへ詰め直し、songinfo.db と置き換える
+	 * 作り直したファイルは残す(songdata.db の置き換えが済んだら discardRebuild() で消す)
+	 *
+	 * @param profile 新しいファイルのページサイズとキャッシュ
+	 */
+	public void replaceWithRebuild(DatabaseProfile profile) throws SQLException, IOException {
+		// 作り直すファイルへの書き込みを確定できていない場合は、空や作りかけのファイルで songinfo.db を置き換えない
+		if (!rebuildCommitted) {
+			throw new SQLException("作り直した songinfo.db の書き込みが確定していないので置き換えません");
+		}
+		final Path compact = rebuildPath.resolveSibling(rebuildPath.getFileName() + ".tmp");
+		Files.deleteIfExists(compact);
+		final SQLiteDataSource compactDs = dataSource(compact.toString(), profile.pageSize());
+		validate(new QueryRunner(compactDs));
+		try (Connection con = compactDs.getConnection();
+			 Statement st = con.createStatement()) {
+			for (String pragma : profile.pragmas()) {
+				st.execute(pragma);
+			}
+			attach(con, rebuildPath, "rebuild");
+			con.setAutoCommit(false);
+			st.executeUpdate("INSERT INTO information SELECT * FROM rebuild.information ORDER BY sha256;");
+			con.commit();
+			con.setAutoCommit(true);
+			st.execute("DETACH DATABASE rebuild;");
+		}
+		replaceFile(compact, path);
+		rebuildCommitted = false;
+	}
+
+	/**
+	 * rebuild で作り直したファイルを消す
+	 */
+	public void discardRebuild() throws IOException {
+		Files.deleteIfExists(rebuildPath);
+	}
+
+	/**
+	 * 以降の更新を songinfo.db 専用の書き込みスレッドで行う(startUpdate() / startRebuild() の後に呼ぶ)
+	 * update() は容量 capacity のキューに行を積んで戻り(キューが一杯なら待つ)、
+	 * commitUpdate() / rollbackUpdate() はそれまでに積んだ行を書き込みスレッドが処理し終わるまで待つ
+	 *
+	 * @param capacity キューの容量
+	 */
+	public void startWriter(int capacity) {
+		if (psInfo == null || writer != null) return;
+		writer = new InformationWriter(capacity);
+		writer.thread.start();
+	}
+
+	/**
+	 * 更新中のファイルにある詳細情報の sha256 を読み込む(startUpdate() / startRebuild() の後、startWriter() の前に呼ぶ)
+	 */
+	public Set<String> loadSha256() throws SQLException {
+		final Set<String> result = new HashSet<>();
+		if (conn == null) return result;
+		try (Statement st = conn.createStatement();
+			 ResultSet rs = st.executeQuery("SELECT sha256 FROM information")) {
+			while (rs.next()) {
+				result.add(rs.getString(1));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * information テーブルの行を作るバインダ(デコード用ワーカースレッドで不変な行を作り、update(Row) で渡す)
+	 */
+	public RowBinder<SongInformation> informationBinder() {
+		return binder("information", SongInformation.class);
+	}
+
+	private void startUpdate(SQLiteDataSource target) throws SQLException {
+		try {
+			conn = target.getConnection();
 			conn.setAutoCommit(false);
+			infoBinder = binder("information", SongInformation.class);
+			psInfo = infoBinder.prepare(conn);
+			pendingInfo = 0;
+			incomplete = false;
 		} catch (SQLException e) {
 			if (conn != null) {
 				try {
@@ -131,34 +334,343 @@ public class SongInformationAccessor extends SQLiteDatabaseAccessor {
 				}
 			}
 			conn = null;
+			psInfo = null;
+			throw e;
 		}
 	}
 
 	public void update(BMSModel model) {
-		SongInformation info = new SongInformation(model);
+		update(new SongInformation(model));
+	}
+
+	/**
+	 * 生成済みのSongInformationを登録する(デコード用ワーカースレッドで生成したものを書き込む場合に使う)
+	 * startUpdate()後はPreparedStatementにバッチで積み、BATCH_SIZE件ごとまたはendUpdate()で書き込む
+	 *
+	 * @param info 楽曲詳細情報
+	 */
+	public void update(SongInformation info) {
+		if (writer != null) {
+			try {
+				writer.put(infoBinder.row(info));
+			} catch (SQLException | IllegalStateException e) {
+				// 書き込みスレッドが終了していたら、書けなかった詳細情報は次回の更新で作り直す
+				incomplete = true;
+	            Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
+			}
+			return;
+		}
+		if (psInfo == null) {
+			// startUpdate()していない(または失敗した)場合は1件ずつ登録する
+			try {
+				insert(qr, conn, "information", info);
+			} catch (SQLException e) {
+	            Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
+			}
+			return;
+		}
 		try {
-			insert(qr, conn, "information", info);
+			infoBinder.addBatch(psInfo, info);
+			if (++pendingInfo >= BATCH_SIZE) {
+				flushInfo();
+			}
 		} catch (SQLException e) {
+			incomplete = true;
             Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
 		}
 	}
 
+	/**
+	 * 不変な行を登録する(startUpdate()後のみ)
+	 * startWriter()後は書き込みスレッドのキューに積み、それ以外は呼び出しスレッドでバッチに積む
+	 *
+	 * @param row informationBinder() で作った行
+	 */
+	public void update(Row row) {
+		if (writer != null) {
+			try {
+				writer.put(row);
+			} catch (IllegalStateException e) {
+				incomplete = true;
+	            Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
+			}
+			return;
+		}
+		addInfo(row);
+	}
+
+	// 小ヘルパ: information バッチに行を追加
+	private void addInfo(Row row) {
+		if (psInfo == null) {
+			incomplete = true;
+            Logger.getGlobal().severe("info.update()の例外: startUpdate()されていません");
+			return;
+		}
+		try {
+			infoBinder.addRow(psInfo, row);
+			if (++pendingInfo >= BATCH_SIZE) {
+				flushInfo();
+			}
+		} catch (SQLException e) {
+			incomplete = true;
+            Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
+		}
+	}
+
+	// 小ヘルパ: information バッチ flush(失敗した場合はバッチを捨てて例外を投げる)
+	private void flushInfo() throws SQLException {
+		if (pendingInfo <= 0) return;
+		try {
+			psInfo.executeBatch();
+		} catch (SQLException e) {
+			incomplete = true;
+			throw e;
+		} finally {
+			try { psInfo.clearBatch(); } catch (SQLException ignore) {}
+			pendingInfo = 0;
+		}
+	}
+
+	/**
+	 * startUpdate() 以降に書き込めなかった詳細情報があるかどうか。
+	 * ある場合、呼び出し側は commitUpdate() の後も詳細情報の作り直しが必要なことを記録しておく
+	 *
+	 * @return 書き込めなかった詳細情報がある場合はtrue
+	 */
+	public boolean isIncomplete() {
+		return incomplete;
+	}
+
+	/**
+	 * ここまでの更新を確定する(更新処理のチェックポイント用、endUpdate()までは続けて更新できる)
+	 * 書き込みスレッドがある場合は、それまでに積んだ行をすべて書き込んで確定するまで待つ
+	 */
+	public void commitUpdate() throws SQLException {
+		if (conn == null) return;
+		final SQLAction commit = () -> {
+			if (psInfo != null) {
+				flushInfo();
+			}
+			conn.commit();
+		};
+		if (writer != null) {
+			writer.call(commit, false);
+		} else {
+			commit.run();
+		}
+	}
+
+	/**
+	 * 確定していない更新を破棄する
+	 * (songdata.db の書き込みをロールバックした場合に、その間に積んだ詳細情報を後のチェックポイントで確定しないようにする)
+	 */
+	public void rollbackUpdate() {
+		if (conn == null) return;
+		final SQLAction rollback = () -> {
+			if (psInfo != null) {
+				psInfo.clearBatch();
+				pendingInfo = 0;
+			}
+			conn.rollback();
+		};
+		try {
+			if (writer != null) {
+				writer.call(rollback, false);
+			} else {
+				rollback.run();
+			}
+		} catch (SQLException | IllegalStateException e) {
+            Logger.getGlobal().log(Level.SEVERE, "info.rollbackUpdate()の例外", e);
+		}
+	}
+
+	/**
+	 * 確定していない更新を破棄して更新を終了する(songdata.db の更新が失敗した場合)
+	 */
+	public void abortUpdate() {
+		rollbackUpdate();
+		finishUpdate(false);
+	}
+
 	public void endUpdate() {
+		finishUpdate(true);
+	}
+
+	/**
+	 * 更新を終了する
+	 *
+	 * @param commit 残っている書き込みを確定するかどうか
+	 */
+	private void finishUpdate(boolean commit) {
+		if (writer != null) {
+			// 書き込みスレッドを止める(キューに残っている行は書き込みスレッドがバッチに積んでから終わる)
+			try {
+				writer.call(() -> {}, true);
+				writer.thread.join();
+			} catch (SQLException | IllegalStateException e) {
+                Logger.getGlobal().log(Level.SEVERE, "info.endUpdate()の例外", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Logger.getGlobal().info("songinfo.db 書き込みスレッド: rows=" + writer.rows + " busy=" + writer.busyNanos / 1_000_000 + "ms");
+			writer = null;
+		}
+		if (psInfo != null) {
+			if (commit) {
+				try {
+					flushInfo();
+				} catch (SQLException e) {
+					// 書き込めなかった詳細情報は次回の更新で作り直すので、ここでは確定しない
+	                Logger.getGlobal().log(Level.SEVERE, "information バッチ挿入中の例外", e);
+					commit = false;
+				}
+			}
+			try {
+				psInfo.close();
+			} catch (SQLException e) {
+                Logger.getGlobal().log(Level.SEVERE, "info.endUpdate()の例外", e);
+			}
+			psInfo = null;
+		}
 		if (conn != null) {
 			try {
-				conn.commit();
+				if (commit) {
+					conn.commit();
+					// rebuild は確定できた場合だけ置き換えてよい
+					rebuildCommitted = rebuilding;
+				}
 				conn.close();
 			} catch (SQLException e) {
-				if (conn != null) {
-					try {
-						conn.close();
-					} catch (SQLException e1) {
-                        Logger.getGlobal().log(Level.SEVERE, "info.endUpdate()の例外", e1);
-					}
+                Logger.getGlobal().log(Level.SEVERE, "info.endUpdate()の例外", e);
+				try {
+					conn.close();
+				} catch (SQLException e1) {
+                    Logger.getGlobal().log(Level.SEVERE, "info.endUpdate()の例外", e1);
 				}
-				conn = null;
 			}
+			conn = null;
 		}
+		rebuilding = false;
+	}
+
+	/**
+	 * 書き込みスレッドで実行する処理
+	 */
+	private interface SQLAction {
+		void run() throws SQLException;
+	}
+
+	/**
+	 * 書き込みスレッドへの指示(行以外)、実行結果を done で返す
+	 *
+	 * @param last 実行後に書き込みスレッドを終了するかどうか
+	 */
+	private record WriterTask(SQLAction action, CompletableFuture<Void> done, boolean last) {
 	}
 
+	/**
+	 * songinfo.db の書き込みスレッド
+	 * キューに積まれた行をバッチに積み、確定・破棄の指示は積まれた順(それまでの行を処理した後)に実行する
+	 */
+	private final class InformationWriter implements Runnable {
+
+		private final BlockingQueue<Object> queue;
+		private final Thread thread;
+		// 書き込んだ行数と処理時間(書き込みスレッドだけが更新し、join() 後に読む)
+		private long rows;
+		private long busyNanos;
+
+		InformationWriter(int capacity) {
+			queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+			thread = new Thread(this, "songinfo-writer");
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * キューに積む(キューが一杯なら空くまで待つ)
+		 */
+		void put(Object message) {
+			if (!thread.isAlive()) {
+				throw new IllegalStateException("songinfo.db の書き込みスレッドが終了しています");
+			}
+			try {
+				while (!queue.offer(message, 100, TimeUnit.MILLISECONDS)) {
+					if (!thread.isAlive()) {
+						throw new IllegalStateException("songinfo.db の書き込みスレッドが終了しています");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("songinfo.db への書き込みが中断されました", e);
+			}
+		}
+
+		/**
+		 * 書き込みスレッドで処理を実行し、終わるまで待つ
+		 * 書き込みスレッドが処理せずに終了した場合は例外を投げる(待ち続けない)
+		 */
+		void call(SQLAction action, boolean last) throws SQLException {
+			final CompletableFuture<Void> done = new CompletableFuture<>();
+			put(new WriterTask(action, done, last));
+			for (;;) {
+				try {
+					done.get(100, TimeUnit.MILLISECONDS);
+					return;
+				} catch (TimeoutException e) {
+					if (!thread.isAlive() && !done.isDone()) {
+						throw new SQLException("songinfo.db の書き込みスレッドが終了しています");
+					}
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof SQLException se) throw se;
+					if (cause instanceof RuntimeException re) throw re;
+					if (cause instanceof Error err) throw err;
+					throw new SQLException(cause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("songinfo.db の書き込みスレッドの待機が中断されました", e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					final Object message = queue.take();
+					final long t = System.nanoTime();
+					if (message instanceof Row row) {
+						try {
+							addInfo(row);
+							rows++;
+						} catch (RuntimeException e) {
+							incomplete = true;
+				            Logger.getGlobal().log(Level.SEVERE, "info.update()の例外", e);
+						}
+					} else if (message instanceof WriterTask task) {
+						try {
+							task.action().run();
+							task.done().complete(null);
+						} catch (Throwable e) {
+							task.done().completeExceptionally(e);
+						}
+						if (task.last()) {
+							return;
+						}
+					}
+					busyNanos += System.nanoTime() - t;
+				}
+			} catch (InterruptedException e) {
+				// 終了
+			} finally {
+				// 処理せずに終了する指示は失敗にする(待っている呼び出し側を止めない)
+				Object message;
+				while ((message = queue.poll()) != null) {
+					if (message instanceof WriterTask task) {
+						task.done().completeExceptionally(new SQLException("songinfo.db の書き込みスレッドが終了しています"));
+					}
+				}
+			}
+		}
+	}
 }
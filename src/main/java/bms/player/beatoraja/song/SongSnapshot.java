@@ -0,0 +1,379 @@
+package bms.player.beatoraja.song;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 更新処理で実ファイルと比較するための song テーブルのスナップショット
+ * path, date, preview, sha256 だけを、パス順にソートした配列で保持する。
+ * - path: 1つの char 配列に連結し、開始位置の配列で参照する
+ * - preview: 同じファイル名が多いので文字列表のインデックスで保持する
+ * - sha256: 64桁の16進数は32バイトに詰めて保持する(それ以外の値は別に保持する)
+ * 処理済みにしたパスは削除フラグを立てる。走査後に残ったパスが実ファイルの存在しないレコードになる。
+ * 複数スレッドから呼び出してよい
+ */
+final class SongSnapshot {
+
+	private static final int SHA256_BYTES = 32;
+
+	private final int size;
+	private final char[] pathChars;
+	// i番目のパスは pathChars[pathStart[i] .. pathStart[i + 1])
+	private final int[] pathStart;
+	private final int[] date;
+	private final int[] preview;
+	private final String[] previewTable;
+	private final byte[] sha256;
+	// 32バイトに詰められなかった sha256
+	private final Map<Integer, String> rawSha256;
+	private final BitSet removed;
+	private int remaining;
+
+	private SongSnapshot(int size, char[] pathChars, int[] pathStart, int[] date, int[] preview, String[] previewTable,
+			byte[] sha256, Map<Integer, String> rawSha256) {
+		this.size = size;
+		this.pathChars = pathChars;
+		this.pathStart = pathStart;
+		this.date = date;
+		this.preview = preview;
+		this.previewTable = previewTable;
+		this.sha256 = sha256;
+		this.rawSha256 = rawSha256;
+		this.removed = new BitSet(size);
+		this.remaining = size;
+	}
+
+	/**
+	 * song テーブルを読み込む
+	 */
+	static SongSnapshot load(Connection conn) throws SQLException {
+		final Loader loader = new Loader();
+		try (Statement st = conn.createStatement();
+			 ResultSet rs = st.executeQuery("SELECT path, date, preview, sha256 FROM song ORDER BY path")) {
+			loader.addAll(rs);
+		}
+		return loader.build();
+	}
+
+	/**
+	 * song テーブルのうち、指定フォルダのレコードだけを読み込む(変更があったフォルダだけを更新する場合)
+	 *
+	 * @param subtrees フォルダ以下のすべてのレコードを読み込むフォルダ(末尾に区切り文字があるパス)
+	 * @param folders 直下のレコードだけを読み込むフォルダ(末尾に区切り文字があるパス)
+	 */
+	static SongSnapshot load(Connection conn, Collection<String> subtrees, Collection<String> folders) throws SQLException {
+		final Loader loader = new Loader();
+		try (PreparedStatement subtree = conn.prepareStatement(
+				"SELECT path, date, preview, sha256 FROM song WHERE path >= ? AND path < ? ORDER BY path");
+			 PreparedStatement direct = conn.prepareStatement(
+				"SELECT path, date, preview, sha256 FROM song WHERE path >= ? AND path < ? AND instr(substr(path, ?), ?) = 0 ORDER BY path")) {
+			for (String prefix : subtrees) {
+				subtree.setString(1, prefix);
+				subtree.setString(2, prefixUpperBound(prefix));
+				try (ResultSet rs = subtree.executeQuery()) {
+					loader.addAll(rs);
+				}
+			}
+			for (String prefix : folders) {
+				direct.setString(1, prefix);
+				direct.setString(2, prefixUpperBound(prefix));
+				// SQLite の substr は文字(コードポイント)単位で数えるので、UTF-16 の長さではなくコードポイント数を渡す
+				direct.setInt(3, prefix.codePointCount(0, prefix.length()) + 1);
+				direct.setString(4, String.valueOf(File.separatorChar));
+				try (ResultSet rs = direct.executeQuery()) {
+					loader.addAll(rs);
+				}
+			}
+		}
+		// 範囲ごとに読み込むので全体の並び順は build で確認して並べ直す(同じレコードが2回読まれることはない前提)
+		return loader.build();
+	}
+
+	/**
+	 * prefix で始まる文字列全体の上限(これ未満)。末尾の文字を1つ進めた文字列
+	 */
+	static String prefixUpperBound(String prefix) {
+		final int last = prefix.length() - 1;
+		return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+	}
+
+	/**
+	 * 読み込んだ行を配列に詰める
+	 */
+	private static final class Loader {
+		private char[] chars = new char[1 << 20];
+		private int charCount = 0;
+		private int[] start = new int[1 << 12];
+		private int[] dates = new int[1 << 12];
+		private int[] previews = new int[1 << 12];
+		private byte[] hashes = new byte[(1 << 12) * SHA256_BYTES];
+		private final Map<String, Integer> previewIndex = new HashMap<>();
+		private final List<String> previewTable = new ArrayList<>();
+		private final Map<Integer, String> rawSha256 = new HashMap<>();
+		private int n = 0;
+
+		/**
+		 * path, date, preview, sha256 の順の結果を追加する
+		 */
+		void addAll(ResultSet rs) throws SQLException {
+			while (rs.next()) {
+				final String path = rs.getString(1);
+				if (path == null) {
+					continue;
+				}
+				if (n + 1 >= start.length) {
+					final int cap = start.length * 2;
+					start = Arrays.copyOf(start, cap);
+					dates = Arrays.copyOf(dates, cap);
+					previews = Arrays.copyOf(previews, cap);
+					hashes = Arrays.copyOf(hashes, cap * SHA256_BYTES);
+				}
+				if (charCount + path.length() > chars.length) {
+					chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + path.length()));
+				}
+				path.getChars(0, path.length(), chars, charCount);
+				start[n] = charCount;
+				charCount += path.length();
+				dates[n] = rs.getInt(2);
+				final String pv = rs.getString(3);
+				Integer pi = previewIndex.get(pv == null ? "" : pv);
+				if (pi == null) {
+					pi = previewTable.size();
+					previewTable.add(pv == null ? "" : pv);
+					previewIndex.put(pv == null ? "" : pv, pi);
+				}
+				previews[n] = pi;
+				final String sha = rs.getString(4);
+				if (!packSha256(sha, hashes, n * SHA256_BYTES)) {
+					rawSha256.put(n, sha);
+				}
+				n++;
+			}
+		}
+
+		SongSnapshot build() {
+			start[n] = charCount;
+			SongSnapshot snapshot = new SongSnapshot(n, chars, start, dates, previews, previewTable.toArray(new String[0]),
+					hashes, rawSha256);
+			if (!snapshot.isSorted()) {
+				// SQLite の並び順(UTF-8 のバイト順)と String の並び順はサロゲートペアを含む場合に異なるので並べ直す
+				snapshot = snapshot.sorted();
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * 指定パスのレコードを処理済みにする
+	 *
+	 * @return レコードのインデックス、存在しないか処理済みの場合は-1
+	 */
+	synchronized int take(String path) {
+		final int i = lowerBound(path);
+		if (i < size && !removed.get(i) && compare(path, i) == 0) {
+			removed.set(i);
+			remaining--;
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定フォルダ以下(パスが prefix で始まる)のレコードを処理済みにする
+	 *
+	 * @return 処理済みにした件数
+	 */
+	synchronized int takePrefix(String prefix) {
+		int count = 0;
+		for (int i = lowerBound(prefix); i < size && startsWith(i, prefix); i++) {
+			if (!removed.get(i)) {
+				removed.set(i);
+				count++;
+			}
+		}
+		remaining -= count;
+		return count;
+	}
+
+	/**
+	 * 指定フォルダ以下(パスが prefix で始まる)の、処理済みになっていないレコードを処理済みにする
+	 *
+	 * @return 処理済みにしたレコードのパス(パス順)
+	 */
+	synchronized List<String> takeRemainingPrefix(String prefix) {
+		final List<String> result = new ArrayList<>();
+		for (int i = lowerBound(prefix); i < size && startsWith(i, prefix); i++) {
+			if (!removed.get(i)) {
+				removed.set(i);
+				result.add(getPath(i));
+			}
+		}
+		remaining -= result.size();
+		return result;
+	}
+
+	int getDate(int i) {
+		return date[i];
+	}
+
+	String getPreview(int i) {
+		return previewTable[preview[i]];
+	}
+
+	String getSha256(int i) {
+		final String raw = rawSha256.get(i);
+		if (raw != null || rawSha256.containsKey(i)) {
+			return raw;
+		}
+		final char[] hex = new char[SHA256_BYTES * 2];
+		for (int b = 0; b < SHA256_BYTES; b++) {
+			final int v = sha256[i * SHA256_BYTES + b] & 0xff;
+			hex[b * 2] = Character.forDigit(v >>> 4, 16);
+			hex[b * 2 + 1] = Character.forDigit(v & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * 処理済みになっていないレコードのパス(パス順)
+	 */
+	synchronized List<String> remainingPaths() {
+		final List<String> result = new ArrayList<>(remaining);
+		for (int i = removed.nextClearBit(0); i < size; i = removed.nextClearBit(i + 1)) {
+			result.add(getPath(i));
+		}
+		return result;
+	}
+
+	private String getPath(int i) {
+		return new String(pathChars, pathStart[i], pathStart[i + 1] - pathStart[i]);
+	}
+
+	/**
+	 * key 以上の最初のインデックス
+	 */
+	private int lowerBound(String key) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (compare(key, mid) > 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * key と i番目のパスを String.compareTo と同じ順序で比較する
+	 */
+	private int compare(String key, int i) {
+		final int from = pathStart[i];
+		final int len = pathStart[i + 1] - from;
+		final int lim = Math.min(key.length(), len);
+		for (int k = 0; k < lim; k++) {
+			final char c1 = key.charAt(k);
+			final char c2 = pathChars[from + k];
+			if (c1 != c2) {
+				return c1 - c2;
+			}
+		}
+		return key.length() - len;
+	}
+
+	private boolean startsWith(int i, String prefix) {
+		final int from = pathStart[i];
+		if (pathStart[i + 1] - from < prefix.length()) {
+			return false;
+		}
+		for (int k = 0; k < prefix.length(); k++) {
+			if (prefix.charAt(k) != pathChars[from + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isSorted() {
+		for (int i = 1; i < size; i++) {
+			if (compare(getPath(i - 1), i) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private SongSnapshot sorted() {
+		final Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> getPath(a).compareTo(getPath(b)));
+
+		final char[] chars = new char[pathChars.length];
+		final int[] start = new int[size + 1];
+		final int[] dates = new int[size];
+		final int[] previews = new int[size];
+		final byte[] hashes = new byte[size * SHA256_BYTES];
+		final Map<Integer, String> raw = new HashMap<>();
+		int charCount = 0;
+		for (int i = 0; i < size; i++) {
+			final int o = order[i];
+			final int len = pathStart[o + 1] - pathStart[o];
+			System.arraycopy(pathChars, pathStart[o], chars, charCount, len);
+			start[i] = charCount;
+			charCount += len;
+			dates[i] = date[o];
+			previews[i] = preview[o];
+			System.arraycopy(sha256, o * SHA256_BYTES, hashes, i * SHA256_BYTES, SHA256_BYTES);
+			if (rawSha256.containsKey(o)) {
+				raw.put(i, rawSha256.get(o));
+			}
+		}
+		start[size] = charCount;
+		return new SongSnapshot(size, chars, start, dates, previews, previewTable, hashes, raw);
+	}
+
+	/**
+	 * 64桁の16進数(小文字)を32バイトに詰める
+	 *
+	 * @return 詰められなかった場合はfalse
+	 */
+	private static boolean packSha256(String sha, byte[] dest, int offset) {
+		if (sha == null || sha.length() != SHA256_BYTES * 2) {
+			return false;
+		}
+		for (int b = 0; b < SHA256_BYTES; b++) {
+			final int hi = hexValue(sha.charAt(b * 2));
+			final int lo = hexValue(sha.charAt(b * 2 + 1));
+			if (hi < 0 || lo < 0) {
+				return false;
+			}
+			dest[offset + b] = (byte) ((hi << 4) | lo);
+		}
+		return true;
+	}
+
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		return -1;
+	}
+}
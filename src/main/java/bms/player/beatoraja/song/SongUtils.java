@@ -1,11 +1,39 @@
 package bms.player.beatoraja.song;
 
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 public class SongUtils {
 
 	private static final int Polynomial = 0xEDB88320;
 
+	/**
+	 * 1バイト分(8ビット)のCRC計算結果のテーブル
+	 */
+	private static final int[] CRC_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++)
+				if ((crc & 1) != 0)
+					crc = (crc >>> 1) ^ Polynomial;
+				else
+					crc = crc >>> 1;
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	/**
+	 * LR2互換のフォルダのCRC32を返す
+	 *
+	 * @param path フォルダのパス
+	 * @param rootdirs ルートディレクトリ(ルートディレクトリの親フォルダは固定値になる)
+	 * @param bmspath カレントディレクトリ(先頭にある場合は取り除いて計算する)
+	 */
 	public static String crc32(String path, String[] rootdirs, String bmspath) {
 		for (String s : rootdirs) {
 			if (Paths.get(s).toAbsolutePath().getParent().toString().equals(path)) {
@@ -16,19 +44,81 @@ public class SongUtils {
 		if (path.startsWith(bmspath)) {
 			path = path.substring(bmspath.length() + 1);
 		}
-		final int previousCrc32 = 0;
-		int crc = ~previousCrc32; // same as previousCrc32 ^ 0xFFFFFFFF
+		return crc32(path);
+	}
 
-		for (byte b : (path + "\\\0").getBytes()) {
-			crc ^= b;
-			for (int j = 0; j < 8; j++)
-				if ((crc & 1) != 0)
-					crc = (crc >>> 1) ^ Polynomial;
-				else
-					crc = crc >>> 1;
+	/**
+	 * path + "\\\0" のCRC32(LR2互換)
+	 * LR2の実装に合わせて、各バイトは符号拡張してからCRCに XOR する。
+	 * 全バイトがASCII(0x00-0x7F)なら通常のCRC32と同じ値になるので java.util.zip.CRC32 で計算し、
+	 * それ以外はテーブルで1バイトずつ計算する(負のバイトは符号拡張分 0x00FFFFFF を補正する)
+	 */
+	static String crc32(String path) {
+		final byte[] bytes = (path + "\\\0").getBytes();
+		boolean ascii = true;
+		for (byte b : bytes) {
+			if (b < 0) {
+				ascii = false;
+				break;
+			}
+		}
+		if (ascii) {
+			final CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			return Integer.toHexString((int) crc.getValue());
+		}
+
+		int crc = ~0;
+		for (byte b : bytes) {
+			crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ b) & 0xff];
+			if (b < 0) {
+				crc ^= 0x00FFFFFF;
+			}
 		}
 		return Integer.toHexString(~crc); // same as crc ^ 0xFFFFFFFF
 	}
+
+	/**
+	 * 1回の更新処理の間使う、フォルダのCRC32の計算用クラス
+	 * ルートディレクトリの親フォルダを最初に1度だけ求め、計算結果をフォルダごとに保持する。
+	 * 結果は SongUtils.crc32(path, rootdirs, bmspath) と同じ。複数スレッドから呼び出してよい
+	 */
+	public static final class FolderCrc32 {
+
+		private final String[] rootParents;
+		private final String bmspath;
+		private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+		public FolderCrc32(String[] rootdirs, String bmspath) {
+			this.rootParents = new String[rootdirs.length];
+			for (int i = 0; i < rootdirs.length; i++) {
+				final Path parent = Paths.get(rootdirs[i]).toAbsolutePath().getParent();
+				rootParents[i] = parent != null ? parent.toString() : null;
+			}
+			this.bmspath = bmspath;
+		}
+
+		public String crc32(String path) {
+			String crc = cache.get(path);
+			if (crc == null) {
+				crc = compute(path);
+				cache.put(path, crc);
+			}
+			return crc;
+		}
+
+		private String compute(String path) {
+			for (String s : rootParents) {
+				if (path.equals(s)) {
+					return "e2977170";
+				}
+			}
+			if (path.startsWith(bmspath)) {
+				return SongUtils.crc32(path.substring(bmspath.length() + 1));
+			}
+			return SongUtils.crc32(path);
+		}
+	}
 	
 //	public static String[] illegalsongs = {
 //		     "008c13e1e7614f0e5a7fd0894d11f1e370b1e868179399dfe94e50849e88fbc4",
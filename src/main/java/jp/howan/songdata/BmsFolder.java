@@ -15,6 +15,56 @@ public final class BmsFolder {
     public boolean hasTxt = false;
     public final List<Path> previewFiles = new ArrayList<>();
 
+    /**
+     * ファイルの種類(classify の戻り値)
+     */
+    public static final int OTHER = 0;
+    public static final int CHART = 1;
+    public static final int TXT = 2;
+    public static final int PREVIEW = 3;
+
+    private static final String[] CHART_EXTENSIONS = { ".bms", ".bme", ".bml", ".pms", ".bmson" };
+    private static final String[] PREVIEW_EXTENSIONS = { ".wav", ".ogg", ".mp3", ".flac" };
+
+    /**
+     * 検索結果のファイルを拡張子で分類して追加する(BMS / .txt / preview 音源以外は無視する)
+     */
+    public void add(EverythingSearchResult sr) {
+        final String path = sr.path().toString();
+        switch (classify(path, path.length() - sr.path().getFileName().toString().length())) {
+            case CHART -> bmsFiles.add(sr);
+            case TXT -> hasTxt = true;
+            case PREVIEW -> previewFiles.add(sr.path());
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * ファイル名を大文字小文字を無視して分類する(文字列を作らない)
+     *
+     * @param path ファイルのパス
+     * @param nameStart path 中のファイル名の開始位置
+     * @return CHART(.bms/.bme/.bml/.pms/.bmson)、TXT(.txt)、PREVIEW(preview*.wav/ogg/mp3/flac)、OTHER のいずれか
+     */
+    public static int classify(String path, int nameStart) {
+        if (endsWithAny(path, CHART_EXTENSIONS)) return CHART;
+        if (endsWith(path, ".txt")) return TXT;
+        if (path.regionMatches(true, nameStart, "preview", 0, 7) && endsWithAny(path, PREVIEW_EXTENSIONS)) return PREVIEW;
+        return OTHER;
+    }
+
+    private static boolean endsWithAny(String s, String[] suffixes) {
+        for (String suffix : suffixes) {
+            if (endsWith(s, suffix)) return true;
+        }
+        return false;
+    }
+
+    private static boolean endsWith(String s, String suffix) {
+        return s.regionMatches(true, s.length() - suffix.length(), suffix, 0, suffix.length());
+    }
+
     @Override
     public String toString() {
         return "BmsFolder{bms=" + bmsFiles.size() + ", txt=" + hasTxt + ", preview=" + previewFiles.size() + "}";
@@ -0,0 +1,91 @@
+package jp.howan.songdata;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * DatabaseProfile: 更新処理の種類ごとの SQLite の設定
+ * songdata.db / songinfo.db の接続は共通の設定(journal_mode=MEMORY、synchronous=OFF、locking_mode=EXCLUSIVE)で開き、
+ * 更新の種類に合わせてページキャッシュとメモリマップの大きさ、新しく作るファイルのページサイズを変える。
+ * - INCREMENTAL: 変更があったフォルダが少ない差分更新。書き込みは数十〜数百件なので、メモリを使わない控えめな設定
+ * - FULL: 全フォルダを走査する通常の更新と、変更が多い差分更新(従来の設定)
+ * - BULK: rebuild。作り直すファイル(全レコードを書き込む)を大きいページで作り、キャッシュとメモリマップを大きくする
+ * -Dsongdata.dbProfile で固定できる
+ */
+public enum DatabaseProfile {
+
+    INCREMENTAL(-8000, 64L << 20, 0),
+    FULL(-50000, 500_000_000L, 0),
+    BULK(-262144, 1L << 30, 16384);
+
+    /**
+     * 差分更新で変更があったフォルダがこれより多い場合は FULL にする
+     */
+    public static final int INCREMENTAL_MAX_FOLDERS = 2000;
+
+    /**
+     * PRAGMA cache_size(負の値は KiB 単位)
+     */
+    private final int cacheSize;
+    /**
+     * PRAGMA mmap_size(バイト)
+     */
+    private final long mmapSize;
+    /**
+     * 新しく作るファイルのページサイズ(バイト)、0 は SQLite の既定(4096)
+     */
+    private final int pageSize;
+
+    DatabaseProfile(int cacheSize, long mmapSize, int pageSize) {
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 更新の種類から設定を選ぶ
+     *
+     * @param rebuild rebuild かどうか
+     * @param changedFolders 差分更新で変更があったフォルダの数、差分更新でない場合は負の値
+     */
+    public static DatabaseProfile select(boolean rebuild, int changedFolders) {
+        final String fixed = UpdaterOptions.dbProfile();
+        if (!fixed.equals("auto")) {
+            try {
+                return valueOf(fixed.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Logger.getGlobal().warning("オプション songdata.dbProfile の値が不正なので自動で選びます: " + fixed);
+            }
+        }
+        if (rebuild) return BULK;
+        return changedFolders >= 0 && changedFolders <= INCREMENTAL_MAX_FOLDERS ? INCREMENTAL : FULL;
+    }
+
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    public long mmapSize() {
+        return mmapSize;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * 接続ごとに実行する PRAGMA
+     */
+    public List<String> pragmas() {
+        return List.of("PRAGMA cache_size=" + cacheSize + ";", "PRAGMA mmap_size=" + mmapSize + ";");
+    }
+
+    /**
+     * ログ出力用の設定内容
+     */
+    public String describe() {
+        return name() + " cache_size=" + cacheSize + " mmap_size=" + mmapSize
+                + " page_size=" + (pageSize > 0 ? pageSize : "default");
+    }
+}
@@ -0,0 +1,140 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * DirectoryListing: 1ディレクトリ直下のエントリを列挙して分類した結果(通常のディレクトリ走査の discover ステージ用)
+ * エントリごとに属性(種類、サイズ、更新日時)を1回だけ取得し、BMSファイルの更新日時もここで取得する
+ * (filter ステージで改めて stat しない)。Windows ではディレクトリ列挙時に取得済みの属性が使われるので stat 自体が発生しない。
+ * ファイル名の分類は小文字化した文字列を作らずに大文字小文字を無視して比較する。
+ * - シンボリックリンク: リンク先の属性を取得する(ディレクトリへのリンクは走査も分類もしない、Files.walkFileTree と同じ)
+ * - リンク切れなど属性を取得できないエントリ: BMSファイルなら更新日時を UNKNOWN_MODTIME として返す(filter ステージで再取得する)
+ */
+public final class DirectoryListing {
+
+    /**
+     * BMSファイルの更新日時が未取得であることを示す値
+     */
+    public static final long UNKNOWN_MODTIME = Long.MIN_VALUE;
+
+    private static final String[] CHART_EXTENSIONS = { ".bms", ".bme", ".bml", ".pms", ".bmson" };
+    private static final String[] PREVIEW_EXTENSIONS = { ".wav", ".ogg", ".mp3", ".flac" };
+    private static final String PREVIEW_PREFIX = "preview";
+    private static final String TXT_EXTENSION = ".txt";
+
+    /**
+     * 直下のBMSファイル(更新日時付き)
+     */
+    public final List<EverythingSearchResult> bmsFiles;
+    /**
+     * 直下のサブディレクトリ(シンボリックリンクを除く)
+     */
+    public final List<ParallelTreeWalker.Directory> subdirs;
+    /**
+     * 直下に .txt があるかどうか(full の場合のみ)
+     */
+    public final boolean hasTxt;
+    /**
+     * 直下の最初の preview 音源のファイル名、ない場合は null(full の場合のみ)
+     */
+    public final String previewFileName;
+
+    private DirectoryListing(List<EverythingSearchResult> bmsFiles, List<ParallelTreeWalker.Directory> subdirs,
+                             boolean hasTxt, String previewFileName) {
+        this.bmsFiles = bmsFiles;
+        this.subdirs = subdirs;
+        this.hasTxt = hasTxt;
+        this.previewFileName = previewFileName;
+    }
+
+    /**
+     * ディレクトリ直下を列挙する
+     *
+     * @param dir ディレクトリ
+     * @param full true なら全エントリを分類する。false なら途中ディレクトリかどうかの判定ができればよいので、BMSファイルを1つ見つけた時点で止める
+     * @param inodeOrder サブディレクトリとBMSファイルを inode 順に並べるかどうか(HDD 用)
+     */
+    public static DirectoryListing scan(Path dir, boolean full, boolean inodeOrder) throws IOException {
+        final List<EverythingSearchResult> bmsFiles = new ArrayList<>();
+        final List<BasicFileAttributes> bmsAttrs = inodeOrder ? new ArrayList<>() : null;
+        final List<ParallelTreeWalker.Directory> subdirs = new ArrayList<>();
+        boolean hasTxt = false;
+        String previewFileName = null;
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    // 列挙中に消えた・属性を読めないエントリは飛ばす(ディレクトリの他のエントリは列挙を続ける)
+                    Logger.getGlobal().fine("属性を読めないので飛ばします : " + p + " " + e);
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    subdirs.add(new ParallelTreeWalker.Directory(p, attrs));
+                    continue;
+                }
+                if (attrs.isSymbolicLink()) {
+                    try {
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // リンク切れ: ファイルとして分類する
+                        attrs = null;
+                    }
+                    if (attrs != null && attrs.isDirectory()) continue;
+                }
+
+                final String path = p.toString();
+                final int nameStart = path.lastIndexOf(File.separatorChar) + 1;
+                if (endsWithAny(path, CHART_EXTENSIONS)) {
+                    bmsFiles.add(new EverythingSearchResult(p, attrs != null ? attrs.lastModifiedTime().toMillis() / 1000 : UNKNOWN_MODTIME));
+                    if (bmsAttrs != null) bmsAttrs.add(attrs);
+                    if (!full) break;
+                } else if (full) {
+                    if (previewFileName == null && path.regionMatches(true, nameStart, PREVIEW_PREFIX, 0, PREVIEW_PREFIX.length())
+                            && endsWithAny(path, PREVIEW_EXTENSIONS)) {
+                        previewFileName = path.substring(nameStart);
+                    }
+                    if (!hasTxt && endsWith(path, TXT_EXTENSION)) hasTxt = true;
+                }
+            }
+        }
+
+        if (inodeOrder) {
+            StorageDevices.sortByInode(subdirs, ParallelTreeWalker.Directory::path, ParallelTreeWalker.Directory::attrs);
+            if (bmsFiles.size() > 1) {
+                final List<Integer> order = new ArrayList<>(bmsFiles.size());
+                for (int i = 0; i < bmsFiles.size(); i++) order.add(i);
+                StorageDevices.sortByInode(order, i -> bmsFiles.get(i).path(), bmsAttrs::get);
+                final List<EverythingSearchResult> sorted = new ArrayList<>(order.size());
+                for (int i : order) sorted.add(bmsFiles.get(i));
+                return new DirectoryListing(sorted, subdirs, hasTxt, previewFileName);
+            }
+        }
+        return new DirectoryListing(bmsFiles, subdirs, hasTxt, previewFileName);
+    }
+
+    private static boolean endsWithAny(String s, String[] suffixes) {
+        for (String suffix : suffixes) {
+            if (endsWith(s, suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 大文字小文字を無視した endsWith(suffix は小文字)
+     */
+    private static boolean endsWith(String s, String suffix) {
+        return s.regionMatches(true, s.length() - suffix.length(), suffix, 0, suffix.length());
+    }
+}
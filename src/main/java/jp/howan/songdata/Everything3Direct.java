@@ -8,6 +8,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Logger;
 
 /**
@@ -21,10 +23,17 @@ import java.util.logging.Logger;
  *  - Everything3 API は client ポインタ / search_state / result_list を使うため、
  *    JNA ではポインタは Pointer で扱っています。long (ネイティブポインタ長)でも代替可能
  *  - Everything3_GetResultDateModified は UINT64（100ns 単位の FILETIME 相当）を返すため、UNIX時間(秒)に変換して返します。
+ *  - client は同時に1つの検索しか処理できないので、検索ごとにプールから借りる(同時に検索するスレッドの数だけ接続する)。
+ *    search_state と result_list は検索ごとに作るので、複数スレッドから同時に検索できます。
  */
 public final class Everything3Direct {
     private static volatile boolean loaded = false;
     private static volatile Pointer client;
+    // 接続できたインスタンス名(null はメインのインスタンス)
+    private static volatile WString instanceName;
+    // 検索に使っていない client と、作成したすべての client
+    private static final Deque<Pointer> idleClients = new ConcurrentLinkedDeque<>();
+    private static final Set<Pointer> clients = ConcurrentHashMap.newKeySet();
 
     static {
         try {
@@ -44,9 +53,14 @@ public final class Everything3Direct {
                 // Connect to Everything3 (NULL instance name -> main instance)
                 Pointer client = Everything3_ConnectW(null);
                 if (client == null) {
-                    client = Everything3_ConnectW(new WString("1.5a"));
+                    instanceName = new WString("1.5a");
+                    client = Everything3_ConnectW(instanceName);
                 }
                 Everything3Direct.client = client;
+                if (client != null) {
+                    clients.add(client);
+                    idleClients.add(client);
+                }
 
                 // 軽いプローブ: バージョンを取得してみる
                 int major = Everything3_GetMajorVersion(Everything3Direct.client);
@@ -125,12 +139,39 @@ public final class Everything3Direct {
     private static native long Everything3_GetResultDateCreated(Pointer resultList, long resultIndex);
     private static native long Everything3_GetResultDateAccessed(Pointer resultList, long resultIndex);
     private static native long Everything3_GetResultDateRecentlyChanged(Pointer resultList, long resultIndex);
+    private static native int Everything3_GetResultAttributes(Pointer resultList, long resultIndex); // DWORD
+    private static final int FILE_ATTRIBUTE_DIRECTORY = 0x10;
 
     // full path retrieval
     private static native int Everything3_GetResultFullPathNameW(Pointer resultList, long resultIndex, char[] buf, int bufSize);
 
     // -------------------- Utilities / wrapper --------------------
 
+    /**
+     * 検索に使う client を借りる(空いている client がなければ新しく接続する)
+     * @return client、接続できない場合は null
+     */
+    private static Pointer acquireClient() {
+        final Pointer idle = idleClients.pollFirst();
+        if (idle != null) return idle;
+        final Pointer connected = Everything3_ConnectW(instanceName);
+        if (connected != null) clients.add(connected);
+        return connected;
+    }
+
+    /**
+     * 借りた client を返す(shutdownClient の後なら切断する)
+     */
+    private static void releaseClient(Pointer c) {
+        if (loaded) {
+            idleClients.addFirst(c);
+        } else if (clients.remove(c)) {
+            try {
+                Everything3_DestroyClient(c);
+            } catch (Throwable ignore) {}
+        }
+    }
+
     /**
      * ライブラリがロードされているかどうか。
      */
@@ -145,17 +186,45 @@ public final class Everything3Direct {
      * @return Path と lastModified(UNIX時間) を持つレコードの List
      */
     public static List<EverythingSearchResult> doSearchCollectWithDates(String search) {
-        if (!isAvailable()) return Collections.emptyList();
+        List<EverythingSearchResult> out = new ArrayList<>();
+        try {
+            doSearchForEach(search, UpdaterOptions.everythingPageSize(), (path, lastModified, folder) -> out.add(new EverythingSearchResult(Paths.get(path), lastModified)));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return Collections.emptyList();
+        }
+        return out;
+    }
+
+    /**
+     * 検索クエリの結果をビューポート(offset, pageSize)単位で取得し、1件ずつ consumer に渡す
+     * ページごとに検索を実行し直し、結果リストはページを処理するたびに破棄する(ネイティブ側・Java側とも1ページ分しか保持しない)。
+     * 検索中は client を1つ占有するので、複数スレッドから同時に呼び出してよい。
+     * 結果のインデックスはビューポートの先頭からの位置、GetResultListCount はビューポートに関係なく全件数を返す。
+     * 2ページ目以降で失敗した場合は IllegalStateException(一部の結果だけで更新処理を続けないため)
+     * @param search Everythingでの検索クエリ文字列
+     * @param pageSize 1ページの件数
+     * @param consumer 結果を受け取るコールバック
+     * @return consumer に渡した件数
+     */
+    public static long doSearchForEach(String search, int pageSize, EverythingResultSource.ResultConsumer consumer) {
+        if (!isAvailable()) return 0;
         Objects.requireNonNull(search);
+        pageSize = Math.max(1, pageSize);
 
+        final Pointer client = acquireClient();
+        if (client == null) {
+            Logger.getGlobal().severe("[Everything3Direct] ConnectW failed");
+            return 0;
+        }
         Pointer searchState = null;
-        Pointer resultList = null;
+        long delivered = 0;
         try {
             // create search state
             searchState = Everything3_CreateSearchState();
             if (searchState == null) {
                 Logger.getGlobal().severe("[Everything3Direct] CreateSearchState failed");
-                return Collections.emptyList();
+                return 0;
             }
 
             // set query text
@@ -163,73 +232,87 @@ public final class Everything3Direct {
             if (!t) {
                 int err = Everything3_GetLastError(client);
                 Logger.getGlobal().severe("[Everything3Direct] SetSearchTextW failed. err=" + err + " query=" + search);
-                return Collections.emptyList();
+                return 0;
             }
 
-            // request date modified property so that GetResultDateModified returns a meaningful value
+            // request date modified / attributes property so that GetResultDateModified / GetResultAttributes return meaningful values
             Everything3_ClearSearchPropertyRequests(searchState);
             Everything3_AddSearchPropertyRequest(searchState, EVERYTHING3_PROPERTY_ID_DATE_MODIFIED);
+            Everything3_AddSearchPropertyRequest(searchState, EVERYTHING3_PROPERTY_ID_ATTRIBUTES);
             Everything3_AddSearchPropertyRequest(searchState, EVERYTHING3_PROPERTY_ID_FULL_PATH);
 
-            // execute search (synchronous)
-            resultList = Everything3_Search(client, searchState);
-            if (resultList == null) {
-                int err = Everything3_GetLastError(client);
-                Logger.getGlobal().severe("[Everything3Direct] Search returned null. err=" + err + " query=" + search);
-                return Collections.emptyList();
-            }
-
-            long nLong = Everything3_GetResultListCount(resultList);
-            int n = (nLong > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) nLong;
-            if (n <= 0) return Collections.emptyList();
-
-            List<EverythingSearchResult> out = new ArrayList<>(n);
             final int BUF = 4096;
             char[] buf = new char[BUF];
+            long offset = 0;
+            long total = Long.MAX_VALUE;
+            while (offset < total) {
+                Everything3_SetSearchViewportOffset(searchState, offset);
+                Everything3_SetSearchViewportCount(searchState, pageSize);
 
-            for (int i = 0; i < n; i++) {
-                int r = Everything3_GetResultFullPathNameW(resultList, i, buf, buf.length);
-                Path p = null;
-                if (r > 0) {
-                    if (r >= buf.length) {
-                        char[] big = new char[r + 2];
-                        int r2 = Everything3_GetResultFullPathNameW(resultList, i, big, big.length);
-                        if (r2 > 0) p = Paths.get(new String(big, 0, r2));
-                    } else {
-                        p = Paths.get(new String(buf, 0, r));
+                // execute search (synchronous)
+                Pointer resultList = Everything3_Search(client, searchState);
+                if (resultList == null) {
+                    int err = Everything3_GetLastError(client);
+                    Logger.getGlobal().severe("[Everything3Direct] Search returned null. err=" + err + " query=" + search + " offset=" + offset);
+                    if (delivered > 0) {
+                        // 一部の結果だけで続けると残りのファイルが削除扱いになるので失敗にする
+                        throw new IllegalStateException("Everything の検索が途中で失敗しました offset=" + offset);
                     }
+                    return 0;
                 }
-
-                long unixtime = 0L;
                 try {
-                    long ft100ns = Everything3_GetResultDateModified(resultList, i);
-                    // if zero, maybe property missing -> leave as 0
-                    if (ft100ns != 0L) {
-                        final long FILETIME_EPOCH_DIFF = 116444736000000000L; // 1601 -> 1970 diff in 100ns units
-                        unixtime = (ft100ns - FILETIME_EPOCH_DIFF) / 10_000_000L; // convert 100ns -> UNIX時間
+                    total = Everything3_GetResultListCount(resultList);
+                    final int n = (int) Math.max(0, Math.min(pageSize, total - offset));
+                    for (int i = 0; i < n; i++) {
+                        int r = Everything3_GetResultFullPathNameW(resultList, i, buf, buf.length);
+                        String path = null;
+                        if (r > 0) {
+                            if (r >= buf.length) {
+                                char[] big = new char[r + 2];
+                                int r2 = Everything3_GetResultFullPathNameW(resultList, i, big, big.length);
+                                if (r2 > 0) path = new String(big, 0, r2);
+                            } else {
+                                path = new String(buf, 0, r);
+                            }
+                        }
+
+                        long unixtime = 0L;
+                        try {
+                            long ft100ns = Everything3_GetResultDateModified(resultList, i);
+                            // if zero, maybe property missing -> leave as 0
+                            if (ft100ns != 0L) {
+                                final long FILETIME_EPOCH_DIFF = 116444736000000000L; // 1601 -> 1970 diff in 100ns units
+                                unixtime = (ft100ns - FILETIME_EPOCH_DIFF) / 10_000_000L; // convert 100ns -> UNIX時間
+                            }
+                        } catch (Throwable ex) {
+                            // log minimally; don't fail whole search
+                            Logger.getGlobal().fine("[Everything3Direct] GetResultDateModified exception: " + ex);
+                        }
+
+                        final boolean folder = (Everything3_GetResultAttributes(resultList, i) & FILE_ATTRIBUTE_DIRECTORY) != 0;
+
+                        if (path != null) {
+                            consumer.accept(path, unixtime, folder);
+                            delivered++;
+                        }
                     }
-                } catch (Throwable ex) {
-                    // log minimally; don't fail whole search
-                    Logger.getGlobal().fine("[Everything3Direct] GetResultDateModified exception: " + ex);
+                    if (n == 0) break;
+                    offset += n;
+                } finally {
+                    try {
+                        Everything3_DestroyResultList(resultList);
+                    } catch (Throwable ignore) {}
                 }
-
-                if (p != null) out.add(new EverythingSearchResult(p, unixtime));
             }
-
-            return out;
+            return delivered;
         } catch (UnsatisfiedLinkError e) {
             Logger.getGlobal().severe("[Everything3Direct] Native link error: " + e);
-            return Collections.emptyList();
-        } catch (Throwable t) {
-            t.printStackTrace();
-            return Collections.emptyList();
+            return delivered;
         } finally {
-            try {
-                if (resultList != null) Everything3_DestroyResultList(resultList);
-            } catch (Throwable ignore) {}
             try {
                 if (searchState != null) Everything3_DestroySearchState(searchState);
             } catch (Throwable ignore) {}
+            releaseClient(client);
         }
     }
 
@@ -237,12 +320,15 @@ public final class Everything3Direct {
      * Shutdown を手動で行いたい場合のユーティリティ
      */
     public static void shutdownClient() {
-        try {
-            if (client != null) {
-                Everything3_DestroyClient(client);
-                client = null;
-            }
-        } catch (Throwable ignore) {}
+        // 検索中の client は検索の終了時(releaseClient)に切断する
         loaded = false;
+        client = null;
+        Pointer c;
+        while ((c = idleClients.pollFirst()) != null) {
+            if (!clients.remove(c)) continue;
+            try {
+                Everything3_DestroyClient(c);
+            } catch (Throwable ignore) {}
+        }
     }
 }
@@ -2,29 +2,65 @@ package jp.howan.songdata;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static jp.howan.songdata.EverythingFacade.doSearchCollectWithDates;
-
 /**
  * EverythingBatchIndexer: bmsroot 配列を基に Everything を一括で叩き、
- * フォルダ単位の FolderInfo マップ (Map<Path,FolderInfo>) を作るユーティリティ。
+ * フォルダの木(PathTrie)に走査フォルダとフォルダ単位の BmsFolder を追加するユーティリティ。
  * 動作前提:
  * - EverythingDirect.isAvailable() が true のときに EverythingDirect のネイティブがロードされていること
  * - bmsRoots に指定した文字列配列はパス（絶対 or 相対）として扱えること
  * - ルート群は相対パスであっても検索時は絶対パスに変換する
+ * 検索は EverythingFacade(1.5 優先)で行う。特定のバージョンや Everything 以外で検索する場合は EverythingResultSource を渡す
+ * 検索はフォルダとファイルをまとめて行い、属性でフォルダかどうかを判定する。
+ * 同時に検索できる検索元(Everything 1.5)ではルートフォルダごとの検索を並行して実行し(-Dsongdata.everythingSearchThreads)、
+ * そうでない検索元(Everything 1.4)では全ルートを1回の検索で取得する(検索が1つずつ順に処理されるので、分けると往復が増えるだけ)。
+ * 検索結果はページ単位(-Dsongdata.everythingPageSize 件)で受け取り、受け取った順にフォルダごとに分類する(結果全体のリストは作らない)
  */
 public final class EverythingBatchIndexer {
     private final String[] bmsRoots; // コンフィグ記載の元のパス
     List<Path> absBmsRoots = new ArrayList<>(); // 元が絶対パスのbmsroot
     List<Path> relBmsRoots = new ArrayList<>(); // 元が相対パスのbmsroot(絶対パスに変換後格納)
     Path cd = Path.of("").toAbsolutePath();
+    private final EverythingResultSource source; // 検索結果の取得元
+    private final int pageSize; // 1回に取得する検索結果の件数
+    private final int searchThreads; // ルートフォルダごとの検索を同時に実行する数
 
 
     public EverythingBatchIndexer(String[] bmsRoots) {
+        this(bmsRoots, EverythingResultSource.everything());
+    }
+
+    public EverythingBatchIndexer(String[] bmsRoots, EverythingResultSource source) {
+        this(bmsRoots, source, UpdaterOptions.everythingPageSize());
+    }
+
+    public EverythingBatchIndexer(String[] bmsRoots, EverythingResultSource source, int pageSize) {
+        this(bmsRoots, source, pageSize, UpdaterOptions.everythingSearchThreads());
+    }
+
+    public EverythingBatchIndexer(String[] bmsRoots, EverythingResultSource source, int pageSize, int searchThreads) {
+        this.source = source;
+        this.pageSize = pageSize;
+        this.searchThreads = Math.max(1, searchThreads);
         this.bmsRoots = bmsRoots != null ? bmsRoots.clone() : new String[0];
         for (String root : this.bmsRoots) {
             Path p = Paths.get(root);
@@ -38,93 +74,292 @@ public final class EverythingBatchIndexer {
     }
 
     /**
-     * ルートパス群（bmsRoots）以下の BMS 、txt 、preview を一括で取得し、
-     * BMS が存在するフォルダごとの情報をまとめたマップを構築します。
+     * ルートパス群（bmsRoots）自体とその以下のフォルダ、BMS 、txt 、preview を検索で取得し、folders に追加します。
      * <p>処理の流れ:</p>
      * <ol>
-     *   <li>BMS / txt / preview を Everything で検索（絶対パス・相対パスを区別して取得）</li>
-     *   <li>検索結果からファイルが存在するフォルダをキーとする Map<Path, BmsFolder> を作成</li>
-     *   <li>結果リストをforで回し拡張子ごとにBmsFolderに追加する</li>
+     *   <li>ルート以下のフォルダと BMS / txt / preview を1つのクエリ（属性と更新日時を含む）で検索する(ルートごとに並行して、または全ルートを1回で)</li>
+     *   <li>フォルダの結果は更新日時とともに走査フォルダとして追加する</li>
+     *   <li>ファイルの結果は親フォルダのノードの BmsFolder に拡張子ごとに追加する</li>
      * </ol>
-     * 相対パスの BMS ルートに対しては、検索結果のパスをカレントディレクトリ基準で相対化して格納します。
-     * @return bmsFolderMap
+     * 相対パスの BMS ルート以下の結果は、パスをカレントディレクトリ基準で相対化して格納します。
+     * @param folders 追加先のフォルダの木
      */
-    public Map<Path, BmsFolder> buildBmsFolderMap() {
-        if (bmsRoots.length == 0) return Collections.emptyMap();
-
-        // 1) BMS 一括取得（全サブディレクトリを含む）
-        List<EverythingSearchResult> allAbsFile = new ArrayList<>();
-        List<EverythingSearchResult> allRelFile = new ArrayList<>();
-        if (!absBmsRoots.isEmpty()) {
-            String absSearch = "file:<" + joinPaths(absBmsRoots) + "> <<ext:bms;bme;bml;pms;bmson;txt>|<startwith:preview ext:wav;ogg;mp3;flac>>";
-            allAbsFile = doSearchCollectWithDates(absSearch);
+    public void addFolders(PathTrie folders) throws IOException {
+        // 検索結果にルートフォルダ自体は含まれないのでここで追加
+        for (String s : bmsRoots) {
+            Path p = Paths.get(s);
+            folders.putScanFolder(p, Files.getLastModifiedTime(p).toMillis() / 1000);
         }
-        if (!relBmsRoots.isEmpty()) {
-            String relSearch = "file:<" + joinPaths(relBmsRoots) + "> <<ext:bms;bme;bml;pms;bmson;txt>|<startwith:preview ext:wav;ogg;mp3;flac>>";
-            allRelFile = doSearchCollectWithDates(relSearch);
+        if (bmsRoots.length == 0) return;
+
+        // 絶対パス・相対パスのルートを同じ検索で扱い、相対パスのルート以下かどうかは結果ごとに判定する
+        final long t = System.currentTimeMillis();
+        final List<ResultCollector> collectors = Collections.synchronizedList(new ArrayList<>());
+        final int searches = search(
+                roots -> "<folder:" + roots + ">|<file:" + roots + " <<ext:bms;bme;bml;pms;bmson;txt>|<startwith:preview ext:wav;ogg;mp3;flac>>>",
+                () -> {
+                    final ResultCollector collector = new ResultCollector(folders);
+                    collectors.add(collector);
+                    return collector;
+                });
+        long folderCount = 0;
+        long fileCount = 0;
+        for (ResultCollector collector : collectors) {
+            folderCount += collector.folderCount;
+            fileCount += collector.fileCount;
         }
+        Logger.getGlobal().info("Everything検索結果: フォルダ " + folderCount + " / ファイル " + fileCount
+                + " (検索 " + searches + "回, " + (System.currentTimeMillis() - t) + "ms)");
+    }
 
-        // bmsFolderMap を作る（キー = 親フォルダ）
-        Map<Path, BmsFolder> bmsFolderMap = new HashMap<>(Math.max(16, (allAbsFile.size() + allRelFile.size()) / 4));
-        for (EverythingSearchResult sr : allAbsFile) {
-            Path parent = sr.path().getParent();
-            if (parent == null) continue;
-            BmsFolder bf = bmsFolderMap.computeIfAbsent(parent, k -> new BmsFolder());
-            String s = sr.path().getFileName().toString().toLowerCase();
-            if (s.endsWith(".bms") || s.endsWith(".bme") || s.endsWith(".bml") || s.endsWith(".pms") || s.endsWith(".bmson")) {
-                bf.bmsFiles.add(sr);
+    /**
+     * since 以降に変更があったフォルダだけを、直下を列挙し直して folders に追加します。
+     * 変更があったフォルダは次の2つで、同じ検索(更新日時 dm: または最近の変更日時 rc: が since 以降)で取得する。
+     * <ul>
+     *   <li>フォルダ自体の更新日時・最近の変更日時が新しいフォルダ(直下のエントリの追加・削除・名前変更、移動してきたフォルダ)</li>
+     *   <li>更新日時・最近の変更日時が新しい BMS / txt / preview の親フォルダ</li>
+     * </ul>
+     * 各フォルダは走査フォルダ(更新日時、BmsFolder)として追加し、直下BMSフォルダでなければサブフォルダのノードも追加する
+     * (サブフォルダが実在することを示す。削除されたサブフォルダはノードがないことで分かる)。
+     * 直下BMSフォルダのサブツリー内のフォルダは全体の走査でも対象外なので追加しない。
+     * @param folders 追加先のフォルダの木
+     * @param since 基準時刻(UNIX時間、ミリ秒)
+     * @return 追加した走査フォルダの数
+     */
+    public int addChangedFolders(PathTrie folders, long since) throws IOException {
+        if (bmsRoots.length == 0) return 0;
+        final Set<String> changed = new ConcurrentSkipListSet<>();
+        // ルートフォルダ自体は検索結果に含まれないので更新日時を直接調べる
+        for (String s : bmsRoots) {
+            Path p = Paths.get(s);
+            if (Files.getLastModifiedTime(p).toMillis() >= since) changed.add(p.toString());
+        }
+
+        // Everything の日付はローカル時刻で指定する
+        final String date = LocalDateTime.ofInstant(Instant.ofEpochMilli(since), ZoneId.systemDefault())
+                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss"));
+        final String recent = "<dm:>=" + date + "|rc:>=" + date + ">";
+        final List<String> relRoots = relRootStrings();
+        search(roots -> "<folder:" + roots + " " + recent + ">|<file:" + roots
+                        + " <<ext:bms;bme;bml;pms;bmson;txt>|<startwith:preview ext:wav;ogg;mp3;flac>> " + recent + ">",
+                () -> (path, lastModified, folder) -> {
+                    if (folder) {
+                        changed.add(toRootForm(path, relRoots));
+                        return;
+                    }
+                    final int sep = Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/'));
+                    if (sep <= 0 || BmsFolder.classify(path, sep + 1) == BmsFolder.OTHER) return;
+                    changed.add(toRootForm(path.substring(0, sep), relRoots));
+                });
+
+        // 親フォルダから順に(名前順)列挙する。直下BMSフォルダかどうかは祖先の判定に使う
+        final Map<Path, Boolean> chartFolders = new HashMap<>();
+        final List<Path> rootPaths = new ArrayList<>();
+        for (String s : bmsRoots) rootPaths.add(Paths.get(s).normalize());
+        int count = 0;
+        for (String dir : changed) {
+            final Path p = Paths.get(dir);
+            if (insideChartFolder(p, rootPaths, chartFolders)) continue;
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // 検索の後に削除された: 親フォルダの更新日時が変わるので次回の更新で反映される
+                continue;
             }
-            if (s.endsWith(".txt")) bf.hasTxt = true;
-            if (s.startsWith("preview") && (s.endsWith(".wav") || s.endsWith(".ogg") || s.endsWith(".mp3") || s.endsWith(".flac"))) {
-                bf.previewFiles.add(sr.path());
+            if (!attrs.isDirectory()) continue;
+            final DirectoryListing listing = DirectoryListing.scan(p, true, false);
+            chartFolders.put(p.normalize(), !listing.bmsFiles.isEmpty());
+            folders.putScanFolder(p, attrs.lastModifiedTime().toMillis() / 1000);
+            if (!listing.bmsFiles.isEmpty() || listing.hasTxt || listing.previewFileName != null) {
+                final BmsFolder bf = new BmsFolder();
+                bf.bmsFiles.addAll(listing.bmsFiles);
+                bf.hasTxt = listing.hasTxt;
+                if (listing.previewFileName != null) bf.previewFiles.add(p.resolve(listing.previewFileName));
+                folders.putBmsFolder(p, bf);
             }
-        }
-        for (EverythingSearchResult absSr : allRelFile) {
-            // 相対パスbmsrootの場合、検索結果のBMSフォルダパスやBMSファイルパスを相対パスに変換してbmsFolderMapに格納する
-            EverythingSearchResult relSr = new EverythingSearchResult(cd.relativize(absSr.path().normalize()), absSr.lastModified());
-            Path parent = relSr.path().getParent();
-            if (parent == null) continue;
-            BmsFolder bf = bmsFolderMap.computeIfAbsent(parent, k -> new BmsFolder());
-            String s = relSr.path().getFileName().toString().toLowerCase();
-            if (s.endsWith(".bms") || s.endsWith(".bme") || s.endsWith(".bml") || s.endsWith(".pms") || s.endsWith(".bmson")) {
-                bf.bmsFiles.add(relSr);
+            if (listing.bmsFiles.isEmpty()) {
+                for (ParallelTreeWalker.Directory sub : listing.subdirs) {
+                    folders.folder(sub.path().toString());
+                }
             }
-            if (s.endsWith(".txt")) bf.hasTxt = true;
-            if (s.startsWith("preview") && (s.endsWith(".wav") || s.endsWith(".ogg") || s.endsWith(".mp3") || s.endsWith(".flac"))) {
-                bf.previewFiles.add(relSr.path());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * ルートフォルダの条件(<"D:\BMS\"|...>)から作ったクエリで検索する
+     * 同時に検索できる検索元でルートフォルダが複数ある場合は、ルートごとの検索を searchThreads 個まで並行して実行する。
+     * 他のルートの下にあるルートは外側のルートの検索に含まれるので、単独では検索しない(同じ結果を2回受け取らないため)。
+     * いずれかの検索が失敗した場合は残りの検索を中断して例外を投げる
+     * @param queryFor ルートフォルダの条件から検索クエリを作る
+     * @param consumerFor 検索ごとの結果の受け取り先を作る(受け取り先は検索を実行するスレッドから呼ばれる)
+     * @return 実行した検索の数
+     */
+    private int search(Function<String, String> queryFor, Supplier<EverythingResultSource.ResultConsumer> consumerFor) throws IOException {
+        final List<Path> allRoots = new ArrayList<>(absBmsRoots);
+        allRoots.addAll(relBmsRoots);
+        final List<Path> outerRoots = new ArrayList<>();
+        for (int i = 0; i < allRoots.size(); i++) {
+            final String root = allRoots.get(i).toString();
+            boolean nested = false;
+            for (int j = 0; j < allRoots.size() && !nested; j++) {
+                final String other = allRoots.get(j).toString();
+                // 他のルートの下にある、または前に同じルートがある
+                nested = j != i && (isUnder(root, List.of(other)) || (j < i && root.equalsIgnoreCase(other)));
             }
+            if (!nested) outerRoots.add(allRoots.get(i));
+        }
+        final int threads = Math.min(outerRoots.size(), searchThreads);
+        if (threads <= 1 || !source.concurrentSearch()) {
+            source.search(queryFor.apply(joinPaths(allRoots)), pageSize, consumerFor.get());
+            return 1;
         }
 
-        return bmsFolderMap;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "everything-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<?>> searches = new ArrayList<>();
+            for (Path root : outerRoots) {
+                final String query = queryFor.apply(joinPaths(List.of(root)));
+                searches.add(executor.submit(() -> source.search(query, pageSize, consumerFor.get())));
+            }
+            for (Future<?> search : searches) {
+                search.get();
+            }
+            return searches.size();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            if (cause instanceof Error err) throw err;
+            throw new IOException("Everything の検索に失敗しました", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Everything の検索が中断されました", e);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    public NavigableMap<Path, Long> buildScanFolders() throws IOException {
-        NavigableMap<Path, Long> scanFolders = new TreeMap<>();
+    /**
+     * ルートフォルダより下の祖先フォルダに直下BMSフォルダがあるかどうか(判定結果は chartFolders に保持する)
+     */
+    private static boolean insideChartFolder(Path dir, List<Path> roots, Map<Path, Boolean> chartFolders) throws IOException {
+        final Path normalized = dir.normalize();
+        Path root = null;
+        for (Path r : roots) {
+            if (normalized.startsWith(r) && (root == null || r.getNameCount() > root.getNameCount())) root = r;
+        }
+        if (root == null) return false;
+        for (Path a = normalized.getParent(); a != null && a.startsWith(root); a = a.getParent()) {
+            Boolean chart = chartFolders.get(a);
+            if (chart == null) {
+                // 直下にBMSファイルが1つあるかどうかだけ調べる
+                try {
+                    chart = !DirectoryListing.scan(a, false, false).bmsFiles.isEmpty();
+                } catch (NoSuchFileException e) {
+                    chart = false;
+                }
+                chartFolders.put(a, chart);
+            }
+            if (chart) return true;
+        }
+        return false;
+    }
 
-        // 検索結果にルートフォルダ自体は含まれないのでここで追加
-        for (String s : bmsRoots) {
-            Path p = Paths.get(s);
-            scanFolders.put(p, Files.getLastModifiedTime(p).toMillis() / 1000);
+    /**
+     * 相対パスのルートの絶対パス(検索結果との比較用)
+     */
+    private List<String> relRootStrings() {
+        final List<String> relRoots = new ArrayList<>();
+        for (Path p : relBmsRoots) {
+            relRoots.add(p.toString());
         }
+        return relRoots;
+    }
 
-        // 絶対/相対パスごとに検索しscanFoldersに格納
-        if (!absBmsRoots.isEmpty()) {
-            List<EverythingSearchResult> allAbsFolder;
-            String allAbsFolderSearch = "folder:<" + joinPaths(absBmsRoots) + ">";
-            allAbsFolder = doSearchCollectWithDates(allAbsFolderSearch);
-            for (EverythingSearchResult sr : allAbsFolder) {
-                scanFolders.put(sr.path(), sr.lastModified());
+    /**
+     * 検索結果のフルパスを、相対パスのルート以下の場合はカレントディレクトリ基準の相対パスにする
+     */
+    private String toRootForm(String path, List<String> relRoots) {
+        return isUnder(path, relRoots) ? cd.relativize(Paths.get(path).normalize()).toString() : path;
+    }
+
+    /**
+     * roots のいずれかより下のパスかどうか(Everything のパスの一致は大文字小文字を区別しない)
+     */
+    private static boolean isUnder(String path, List<String> roots) {
+        for (String root : roots) {
+            if (path.length() > root.length() && path.regionMatches(true, 0, root, 0, root.length())) {
+                final char c = path.charAt(root.length());
+                if (c == '\\' || c == '/') return true;
             }
         }
-        if (!relBmsRoots.isEmpty()) {
-            List<EverythingSearchResult> allRelFolder;
-            String allRelFolderSearch = "folder:<" + joinPaths(relBmsRoots) + ">";
-            allRelFolder = doSearchCollectWithDates(allRelFolderSearch);
-            for (EverythingSearchResult sr : allRelFolder) {
-                scanFolders.put(cd.relativize(sr.path()), sr.lastModified());
+        return false;
+    }
+
+    /**
+     * 検索結果を1件ずつフォルダの木に追加する
+     * フォルダは走査フォルダとして追加し、ファイルは BmsFolder に分類する。
+     * BMS / txt / preview 以外のファイルの結果は Path を作らずに捨てる。
+     * 同じフォルダの結果は続けて返ることが多いので、直前の親フォルダの Path と BmsFolder を使い回す
+     */
+    private final class ResultCollector implements EverythingResultSource.ResultConsumer {
+        private final PathTrie folders;
+        private final List<String> relRoots = relRootStrings();
+        private String lastParent;
+        private Path lastParentPath;
+        private BmsFolder lastFolder;
+        private long folderCount;
+        private long fileCount;
+
+        ResultCollector(PathTrie folders) {
+            this.folders = folders;
+        }
+
+        @Override
+        public void accept(String path, long lastModified, boolean folder) {
+            if (folder) {
+                folderCount++;
+                if (isUnder(path, relRoots)) {
+                    folders.putScanFolder(cd.relativize(Paths.get(path)), lastModified);
+                } else {
+                    folders.putScanFolder(path, lastModified);
+                }
+                return;
+            }
+
+            // EverythingはWindows専用なので区切り文字は\、InMemoryEverythingResultSource の / も受け付ける
+            final int sep = Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/'));
+            if (sep <= 0) return;
+            final int kind = BmsFolder.classify(path, sep + 1);
+            if (kind == BmsFolder.OTHER) return;
+            fileCount++;
+
+            if (lastParent == null || lastParent.length() != sep || !path.startsWith(lastParent)) {
+                lastParent = path.substring(0, sep);
+                final Path parent = Paths.get(lastParent);
+                if (isUnder(path, relRoots)) {
+                    lastParentPath = cd.relativize(parent.normalize());
+                    final String rel = lastParentPath.toString();
+                    lastFolder = folders.bmsFolder(rel, rel.length());
+                } else {
+                    lastParentPath = parent;
+                    lastFolder = folders.bmsFolder(path, sep);
+                }
+            }
+            switch (kind) {
+                case BmsFolder.CHART -> lastFolder.bmsFiles.add(new EverythingSearchResult(lastParentPath.resolve(path.substring(sep + 1)), lastModified));
+                case BmsFolder.TXT -> lastFolder.hasTxt = true;
+                case BmsFolder.PREVIEW -> lastFolder.previewFiles.add(lastParentPath.resolve(path.substring(sep + 1)));
+                default -> {
+                }
             }
         }
-        return scanFolders;
     }
 
     /**
@@ -21,7 +21,8 @@ import java.util.logging.Logger;
 public final class EverythingDirect {
     // ロード成功フラグ（static 初期化で設定される）
     private static volatile boolean loaded = false;
-    // 検索はスレッドセーフではないのでロック
+    // 検索はスレッドセーフではない(検索文字列・範囲・結果が SDK 内でプロセスに1つ)のでロック
+    // 複数スレッドから呼び出した場合は1つずつ順に検索する(Everything 1.5 の Everything3Direct は同時に検索できる)
     private static final Object LOCK = new Object();
 
     static {
@@ -78,6 +79,7 @@ public final class EverythingDirect {
     public static native void Everything_SetRequestFlags(int flags);
     private static final int EVERYTHING_REQUEST_FULL_PATH_AND_FILE_NAME = 0x00000004;
     private static final int EVERYTHING_REQUEST_DATE_MODIFIED = 0x00000040;
+    private static final int EVERYTHING_REQUEST_ATTRIBUTES = 0x00000100;
 
     /**
      * QueryW の wait パラメータ
@@ -88,6 +90,17 @@ public final class EverythingDirect {
 
     public static native int Everything_GetNumResults();
 
+    /**
+     * 取得する結果の範囲(ページング用)
+     * Everything_SetOffset: 最初に取得する結果の位置、Everything_SetMax: 取得する最大件数
+     * Everything_GetNumResults は取得した範囲の件数、Everything_GetTotResults は全件数を返す。結果のインデックスは範囲の先頭からの位置
+     */
+    public static native void Everything_SetOffset(int offset);
+
+    public static native void Everything_SetMax(int max);
+
+    public static native int Everything_GetTotResults();
+
     /**
      * Everything_GetResultFullPathNameW
      *  - index: 0-based index
@@ -103,6 +116,16 @@ public final class EverythingDirect {
      */
     public static native boolean Everything_GetResultDateModified(int index, FILETIME ft);
 
+    /**
+     * Everything_GetResultAttributes
+     * 戻り: ファイル属性(DWORD)、EVERYTHING_REQUEST_ATTRIBUTES を指定していない場合などは INVALID_FILE_ATTRIBUTES
+     */
+    public static native int Everything_GetResultAttributes(int index);
+    private static final int INVALID_FILE_ATTRIBUTES = 0xFFFFFFFF;
+    private static final int FILE_ATTRIBUTE_DIRECTORY = 0x10;
+
+    public static native boolean Everything_IsFolderResult(int index);
+
     public static native int Everything_GetLastError();
 
     public static native boolean Everything_IsDBLoaded();
@@ -180,68 +203,111 @@ public final class EverythingDirect {
      * @return Path と lastModified(UNIX時間) を持つレコードの List
      */
     public static List<EverythingSearchResult> doSearchCollectWithDates(String search) {
-        if (!isAvailable()) return Collections.emptyList();
+        List<EverythingSearchResult> out = new ArrayList<>();
+        try {
+            doSearchForEach(search, UpdaterOptions.everythingPageSize(), (path, lastModified, folder) -> out.add(new EverythingSearchResult(Paths.get(path), lastModified)));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return Collections.emptyList();
+        }
+        return out;
+    }
+
+    /**
+     * 検索クエリの結果を pageSize 件ずつ(Everything_SetOffset / Everything_SetMax)取得し、1件ずつ consumer に渡す
+     * ページごとにクエリを実行し直す。検索状態はグローバルなので、全ページを取得し終わるまでロックを保持する。
+     * 2ページ目以降で失敗した場合は IllegalStateException(一部の結果だけで更新処理を続けないため)
+     * @param search Everythingでの検索クエリ文字列
+     * @param pageSize 1ページの件数
+     * @param consumer 結果を受け取るコールバック
+     * @return consumer に渡した件数
+     */
+    public static long doSearchForEach(String search, int pageSize, EverythingResultSource.ResultConsumer consumer) {
+        if (!isAvailable()) return 0;
         Objects.requireNonNull(search);
+        pageSize = Math.max(1, pageSize);
 
         synchronized (LOCK) {
+            long delivered = 0;
             try {
                 // --- クエリ実行前に必ず request flags をセットする ---
-                Everything_SetRequestFlags(EVERYTHING_REQUEST_FULL_PATH_AND_FILE_NAME | EVERYTHING_REQUEST_DATE_MODIFIED);
-
+                Everything_SetRequestFlags(EVERYTHING_REQUEST_FULL_PATH_AND_FILE_NAME | EVERYTHING_REQUEST_DATE_MODIFIED | EVERYTHING_REQUEST_ATTRIBUTES);
                 Everything_SetSearchW(new WString(search));
-                boolean ok = Everything_QueryW(true);
-                if (!ok) {
-                    int err = Everything_GetLastError();
-                    Logger.getGlobal().severe("[EverythingDirect] QueryW returned false. err=" + err + " query=" + search);
-                    return Collections.emptyList();
-                }
 
-                int n = Everything_GetNumResults();
-                if (n <= 0) return Collections.emptyList();
-
-                List<EverythingSearchResult> out = new ArrayList<>(n);
                 final int BUF = 4096;
                 char[] buf = new char[BUF];
-
-                for (int i = 0; i < n; i++) {
-                    int r = Everything_GetResultFullPathNameW(i, buf, buf.length);
-                    Path p = null;
-                    if (r > 0) {
-                        if (r >= buf.length) {
-                            char[] big = new char[r + 2];
-                            int r2 = Everything_GetResultFullPathNameW(i, big, big.length);
-                            if (r2 > 0) p = Paths.get(new String(big, 0, r2));
-                        } else {
-                            p = Paths.get(new String(buf, 0, r));
+                FILETIME ft = new FILETIME();
+                int offset = 0;
+                int total = Integer.MAX_VALUE;
+                try {
+                    while (offset < total) {
+                        Everything_SetOffset(offset);
+                        Everything_SetMax(pageSize);
+                        boolean ok = Everything_QueryW(true);
+                        if (!ok) {
+                            int err = Everything_GetLastError();
+                            Logger.getGlobal().severe("[EverythingDirect] QueryW returned false. err=" + err + " query=" + search + " offset=" + offset);
+                            if (delivered > 0) {
+                                // 一部の結果だけで続けると残りのファイルが削除扱いになるので失敗にする
+                                throw new IllegalStateException("Everything の検索が途中で失敗しました offset=" + offset);
+                            }
+                            return 0;
                         }
-                    }
 
-                    long unixtime = 0L;
-                    try {
-                        // FILETIMEはunsigned long long (64bit, 100ns単位, 1601-01-01 UTCから)
-                        FILETIME ft = new FILETIME();
-                        boolean got = Everything_GetResultDateModified(i, ft);
-                        int err = Everything_GetLastError();
-                        if (got) {
-                            long ft100ns = filetimeStructTo100ns(ft);
-                            final long FILETIME_EPOCH_DIFF = 116444736000000000L;
-                            unixtime = (ft100ns - FILETIME_EPOCH_DIFF) / 10_000_000L;
-                        } else {
-                            // 取得失敗: err をログに残す (err が EVERYTHING_ERROR_INVALIDCALL 等)
-                            Logger.getGlobal().severe("[EverythingDirect] GetResultDateModified returned false. err=" + err + " query=" + search);
+                        total = Everything_GetTotResults();
+                        int n = Everything_GetNumResults();
+                        if (n <= 0) break;
+
+                        for (int i = 0; i < n; i++) {
+                            int r = Everything_GetResultFullPathNameW(i, buf, buf.length);
+                            String path = null;
+                            if (r > 0) {
+                                if (r >= buf.length) {
+                                    char[] big = new char[r + 2];
+                                    int r2 = Everything_GetResultFullPathNameW(i, big, big.length);
+                                    if (r2 > 0) path = new String(big, 0, r2);
+                                } else {
+                                    path = new String(buf, 0, r);
+                                }
+                            }
+
+                            long unixtime = 0L;
+                            try {
+                                // FILETIMEはunsigned long long (64bit, 100ns単位, 1601-01-01 UTCから)
+                                boolean got = Everything_GetResultDateModified(i, ft);
+                                int err = Everything_GetLastError();
+                                if (got) {
+                                    long ft100ns = filetimeStructTo100ns(ft);
+                                    final long FILETIME_EPOCH_DIFF = 116444736000000000L;
+                                    unixtime = (ft100ns - FILETIME_EPOCH_DIFF) / 10_000_000L;
+                                } else {
+                                    // 取得失敗: err をログに残す (err が EVERYTHING_ERROR_INVALIDCALL 等)
+                                    Logger.getGlobal().severe("[EverythingDirect] GetResultDateModified returned false. err=" + err + " query=" + search);
+                                }
+                            } catch (Throwable ignore) {
+                            }
+
+                            // 属性を取得できない場合(INVALID_FILE_ATTRIBUTES)は結果の種類で判定する
+                            final int attributes = Everything_GetResultAttributes(i);
+                            final boolean folder = attributes != INVALID_FILE_ATTRIBUTES
+                                    ? (attributes & FILE_ATTRIBUTE_DIRECTORY) != 0
+                                    : Everything_IsFolderResult(i);
+
+                            if (path != null) {
+                                consumer.accept(path, unixtime, folder);
+                                delivered++;
+                            }
                         }
-                    } catch (Throwable ignore) {
+                        offset += n;
                     }
-
-                    if (p != null) out.add(new EverythingSearchResult(p, unixtime));
+                } finally {
+                    // 他の検索(doSearchCollect)に範囲指定が残らないように戻す
+                    Everything_SetOffset(0);
+                    Everything_SetMax(Integer.MAX_VALUE);
                 }
-
-                return out;
+                return delivered;
             } catch (UnsatisfiedLinkError e) {
-                return Collections.emptyList();
-            } catch (Throwable t) {
-                t.printStackTrace();
-                return Collections.emptyList();
+                return delivered;
             }
         }
     }
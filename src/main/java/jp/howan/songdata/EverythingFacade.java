@@ -40,6 +40,32 @@ public final class EverythingFacade {
         }
     }
 
+    /**
+     * doSearchForEach: Everything 用の検索を行い、結果を pageSize 件ずつ取得して1件ずつ consumer に渡す。
+     * 優先: Everything3Direct (1.5) -> fallback: EverythingDirect (既存)
+     * 1.5 で例外が発生した場合、まだ1件も渡していなければ 1.4 で検索し直す。渡した後なら例外をそのまま投げる
+     * (一部の結果だけで更新処理を続けると、残りのファイルが削除扱いになるため)
+     * @return consumer に渡した件数
+     */
+    public static long doSearchForEach(String query, int pageSize, EverythingResultSource.ResultConsumer consumer) {
+        if (Everything3Direct.isAvailable()) {
+            final long[] delivered = { 0 };
+            try {
+                return Everything3Direct.doSearchForEach(query, pageSize, (path, lastModified, folder) -> {
+                    delivered[0]++;
+                    consumer.accept(path, lastModified, folder);
+                });
+            } catch (Throwable t) {
+                if (delivered[0] > 0) {
+                    throw t;
+                }
+                System.err.println("Everything3Direct failed during search; falling back to legacy EverythingDirect. error=" + t);
+            }
+        }
+
+        return EverythingDirect.doSearchForEach(query, pageSize, consumer);
+    }
+
     /**
      * EverythingIsAvailable: いずれかの SDK が利用可能なら true を返す。
      */
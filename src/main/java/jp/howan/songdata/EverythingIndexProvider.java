@@ -0,0 +1,157 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * EverythingIndexProvider: Everything のインデックスを検索してファイル一覧を作る(EverythingBatchIndexer を使う)
+ * BMSフォルダ情報と走査フォルダ一覧は1回の検索でまとめて取得する。
+ * 検索結果の取得元(EverythingResultSource)を差し替えれば Everything がない環境でも同じ処理を動かせる。
+ * 前回の更新時刻の保存ファイルを指定した場合、更新処理が完了するたびに検索を始めた時刻を保存し、
+ * 次回の indexChanges はそれ以降に変更があったフォルダだけを検索する(ルートフォルダが前回と同じ場合のみ)
+ */
+public final class EverythingIndexProvider implements FileIndexProvider {
+
+    // 保存した時刻より少し前からの変更を検索する(ファイルシステムの時刻の粒度、検索開始直前の変更を見逃さないため)
+    private static final long MARGIN_MILLIS = 2000;
+
+    private final EverythingResultSource source;
+    private final Path lastUpdateFile;
+    // 直前の index / indexChanges の検索開始時刻(updateCompleted で保存する)
+    private volatile long searchStarted;
+
+    /**
+     * @param source 検索結果の取得元
+     */
+    public EverythingIndexProvider(EverythingResultSource source) {
+        this(source, null);
+    }
+
+    /**
+     * @param source 検索結果の取得元
+     * @param lastUpdateFile 前回の更新時刻の保存ファイル、null の場合は変更だけの検索を行わない
+     */
+    public EverythingIndexProvider(EverythingResultSource source, Path lastUpdateFile) {
+        this.source = source;
+        this.lastUpdateFile = lastUpdateFile;
+    }
+
+    /**
+     * Everything 1.5 を優先し、利用できない・失敗した場合は 1.4 を使う(EverythingFacade)
+     */
+    public static EverythingIndexProvider everything() {
+        return new EverythingIndexProvider(EverythingResultSource.everything());
+    }
+
+    /**
+     * Everything 1.5 (Everything3 SDK)
+     */
+    public static EverythingIndexProvider everything15() {
+        return new EverythingIndexProvider(EverythingResultSource.everything15());
+    }
+
+    /**
+     * Everything 1.4 (Everything SDK)
+     */
+    public static EverythingIndexProvider everything14() {
+        return new EverythingIndexProvider(EverythingResultSource.everything14());
+    }
+
+    @Override
+    public String name() {
+        return source.name();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return source.isAvailable();
+    }
+
+    @Override
+    public FileIndex index(String[] bmsRoots) throws IOException {
+        searchStarted = System.currentTimeMillis();
+        final PathTrie folders = new PathTrie();
+        new EverythingBatchIndexer(bmsRoots, source).addFolders(folders);
+        return new FileIndex(folders);
+    }
+
+    @Override
+    public FileIndex indexChanges(String[] bmsRoots) throws IOException {
+        if (lastUpdateFile == null || !UpdaterOptions.incremental()) {
+            return null;
+        }
+        final Properties saved = new Properties();
+        try (Reader r = Files.newBufferedReader(lastUpdateFile, StandardCharsets.UTF_8)) {
+            saved.load(r);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        final long lastUpdate;
+        try {
+            lastUpdate = Long.parseLong(saved.getProperty("lastUpdate", ""));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!Arrays.equals(roots(saved), bmsRoots)) {
+            Logger.getGlobal().info("楽曲ルートフォルダが前回の更新から変わったので、変更だけの検索は行いません");
+            return null;
+        }
+
+        searchStarted = System.currentTimeMillis();
+        final PathTrie folders = new PathTrie();
+        final int changed = new EverythingBatchIndexer(bmsRoots, source).addChangedFolders(folders, lastUpdate - MARGIN_MILLIS);
+        Logger.getGlobal().info("前回の更新以降に変更があったフォルダ: " + changed + " (" + (System.currentTimeMillis() - searchStarted) + "ms)");
+        return new FileIndex(folders, true);
+    }
+
+    @Override
+    public void updateCompleted(String[] bmsRoots) {
+        if (lastUpdateFile == null || searchStarted == 0) {
+            return;
+        }
+        final Properties state = new Properties();
+        state.setProperty("lastUpdate", Long.toString(searchStarted));
+        state.setProperty("roots", Integer.toString(bmsRoots.length));
+        for (int i = 0; i < bmsRoots.length; i++) {
+            state.setProperty("root." + i, bmsRoots[i]);
+        }
+        final Path tmp = lastUpdateFile.resolveSibling(lastUpdateFile.getFileName() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                state.store(w, "songdata updater: last completed update");
+            }
+            try {
+                Files.move(tmp, lastUpdateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, lastUpdateFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().log(Level.WARNING, "前回の更新時刻の保存に失敗しました : " + lastUpdateFile, e);
+        }
+    }
+
+    private static String[] roots(Properties saved) {
+        final int n;
+        try {
+            n = Integer.parseInt(saved.getProperty("roots", ""));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final String[] roots = new String[n];
+        for (int i = 0; i < n; i++) {
+            roots[i] = saved.getProperty("root." + i);
+        }
+        return roots;
+    }
+}
@@ -0,0 +1,101 @@
+package jp.howan.songdata;
+
+/**
+ * EverythingResultSource: Everything の検索結果を1件ずつコールバックで受け取る検索
+ * 結果は pageSize 件ずつ(Everything 1.5 はビューポート、1.4 はオフセットと最大件数を指定して)取得するので、
+ * 結果全体をリストにする doSearchCollectWithDates と違い、検索中のメモリは結果の件数ではなくページの大きさで決まる。
+ * InMemoryEverythingResultSource を使えば Everything なしで同じ処理を動かせる
+ */
+public interface EverythingResultSource {
+
+    /**
+     * 検索結果を受け取るコールバック(検索を呼び出したスレッドで呼ばれる)
+     */
+    @FunctionalInterface
+    interface ResultConsumer {
+        /**
+         * @param path 結果のフルパス
+         * @param lastModified 更新日時(UNIX時間、秒)、取得できない場合は0
+         * @param folder フォルダかどうか(属性の FILE_ATTRIBUTE_DIRECTORY)
+         */
+        void accept(String path, long lastModified, boolean folder);
+    }
+
+    /**
+     * 名前(ログ出力用)
+     */
+    String name();
+
+    /**
+     * この環境で利用できるかどうか
+     */
+    boolean isAvailable();
+
+    /**
+     * 複数スレッドから同時に検索して、検索が実際に並行して処理されるかどうか
+     * false の場合も複数スレッドから呼び出してよいが、検索は1つずつ順に処理される
+     */
+    boolean concurrentSearch();
+
+    /**
+     * 検索して、結果を1件ずつ consumer に渡す
+     *
+     * @param query Everything の検索クエリ
+     * @param pageSize 1回に取得する結果の件数
+     * @return consumer に渡した件数
+     */
+    long search(String query, int pageSize, ResultConsumer consumer);
+
+    /**
+     * Everything 1.5 を優先し、利用できない・失敗した場合は 1.4 を使う(EverythingFacade)
+     */
+    static EverythingResultSource everything() {
+        return of("everything", EverythingFacade.EverythingIsAvailable(), Everything3Direct.isAvailable(), EverythingFacade::doSearchForEach);
+    }
+
+    /**
+     * Everything 1.5 (Everything3 SDK)
+     */
+    static EverythingResultSource everything15() {
+        return of("everything15", Everything3Direct.isAvailable(), true, Everything3Direct::doSearchForEach);
+    }
+
+    /**
+     * Everything 1.4 (Everything SDK)。SDK の検索状態がプロセスで1つなので、検索は1つずつ順に処理される
+     */
+    static EverythingResultSource everything14() {
+        return of("everything14", EverythingDirect.isAvailable(), false, EverythingDirect::doSearchForEach);
+    }
+
+    /**
+     * 検索関数の型(各 SDK の doSearchForEach)
+     */
+    @FunctionalInterface
+    interface Search {
+        long search(String query, int pageSize, ResultConsumer consumer);
+    }
+
+    private static EverythingResultSource of(String name, boolean available, boolean concurrent, Search search) {
+        return new EverythingResultSource() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return available;
+            }
+
+            @Override
+            public boolean concurrentSearch() {
+                return concurrent;
+            }
+
+            @Override
+            public long search(String query, int pageSize, ResultConsumer consumer) {
+                return search.search(query, pageSize, consumer);
+            }
+        };
+    }
+}
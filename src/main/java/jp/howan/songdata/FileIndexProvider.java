@@ -0,0 +1,105 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * FileIndexProvider: 楽曲ルートフォルダ以下のファイル一覧(BMSフォルダ情報と走査フォルダ一覧)を返すファイル検索の実装
+ * 更新処理(SQLiteSongDatabaseAccessor)はどの実装でも同じ手順で folder / song テーブルを更新する。
+ * - everything / everything15 / everything14: Everything のインデックスを検索する(Windows のみ、EverythingIndexProvider)
+ * - walk: ディレクトリツリーを並列に走査する(全OS、TreeWalkIndexProvider)
+ * - persistent: 前回の走査結果を保存し、変更のあったフォルダだけを列挙する(全OS、PersistentIndexProvider)
+ * - InMemoryFileIndexProvider: 登録したファイル一覧をそのまま返す(計測・動作確認用)
+ * 返すパスは、絶対パスのルートの場合は絶対パス、相対パスのルートの場合はカレントディレクトリ基準の相対パス
+ */
+public interface FileIndexProvider {
+
+    /**
+     * ファイル一覧
+     * @param folders ルートフォルダ自体を含む、ルート以下の走査フォルダと更新日時(秒)、
+     *                BMS / .txt / preview 音源があるフォルダごとの情報(BmsFolder)を持つフォルダの木
+     * @param changesOnly 前回の更新以降に変更があったフォルダだけの一覧かどうか(indexChanges)
+     */
+    record FileIndex(PathTrie folders, boolean changesOnly) {
+
+        /**
+         * ルートフォルダ以下すべての一覧
+         */
+        public FileIndex(PathTrie folders) {
+            this(folders, false);
+        }
+    }
+
+    /**
+     * 実装の名前(ログ出力、-Dsongdata.fileIndex の値)
+     */
+    String name();
+
+    /**
+     * この環境で利用できるかどうか
+     */
+    boolean isAvailable();
+
+    /**
+     * ルートフォルダ以下のファイル一覧を作る
+     *
+     * @param bmsRoots 楽曲ルートフォルダ(絶対パスまたは相対パス)
+     */
+    FileIndex index(String[] bmsRoots) throws IOException;
+
+    /**
+     * 前回の更新処理(updateCompleted を呼んだもの)以降に変更があったフォルダだけのファイル一覧を作る
+     * 走査フォルダは変更があったフォルダだけで、それぞれ直下の内容(BmsFolder、直下BMSフォルダでない場合はサブフォルダのノード)が揃っている。
+     * 木のノードはすべて実在するフォルダ。変更がない場合は走査フォルダのない木を返す
+     *
+     * @param bmsRoots 楽曲ルートフォルダ(前回と同じでなければならない)
+     * @return 変更だけの一覧を作れない場合(未対応、前回の記録がない、ルートフォルダが変わった)は null
+     */
+    default FileIndex indexChanges(String[] bmsRoots) throws IOException {
+        return null;
+    }
+
+    /**
+     * 直前の index / indexChanges の結果でデータベースの更新が完了したことを通知する(次回の indexChanges の基準になる)
+     */
+    default void updateCompleted(String[] bmsRoots) {
+    }
+
+    /**
+     * -Dsongdata.fileIndex で指定された実装を返す
+     * auto(デフォルト)の場合は利用可能な Everything(1.5 優先、失敗時は 1.4)。
+     * Everything が利用できない場合、Windows 以外では persistent、Windows では null(通常のディレクトリ走査)
+     * (Windows はディレクトリの列挙時にエントリの属性も取得できるので、保存した一覧を使うより列挙し直すほうが速い)
+     *
+     * @param indexFile persistent の保存ファイルのパス
+     * @param lastUpdateFile Everything で変更だけを検索するための、前回の更新時刻の保存ファイルのパス
+     */
+    static FileIndexProvider fromOptions(Path indexFile, Path lastUpdateFile) {
+        final String name = UpdaterOptions.fileIndex();
+        if (name.equals("auto")) {
+            final FileIndexProvider everything = new EverythingIndexProvider(EverythingResultSource.everything(), lastUpdateFile);
+            if (everything.isAvailable()) {
+                return everything;
+            }
+            return File.separatorChar == '\\' ? null : new PersistentIndexProvider(indexFile);
+        }
+        final FileIndexProvider provider = switch (name) {
+            case "everything" -> new EverythingIndexProvider(EverythingResultSource.everything(), lastUpdateFile);
+            case "everything15" -> new EverythingIndexProvider(EverythingResultSource.everything15(), lastUpdateFile);
+            case "everything14" -> new EverythingIndexProvider(EverythingResultSource.everything14(), lastUpdateFile);
+            case "walk" -> new TreeWalkIndexProvider();
+            case "persistent" -> new PersistentIndexProvider(indexFile);
+            default -> {
+                Logger.getGlobal().warning("オプション songdata.fileIndex の値が不正なので auto として扱います: " + name);
+                yield new EverythingIndexProvider(EverythingResultSource.everything(), lastUpdateFile);
+            }
+        };
+        if (!provider.isAvailable()) {
+            Logger.getGlobal().warning("ファイル検索 " + provider.name() + " は利用できません");
+            return null;
+        }
+        return provider;
+    }
+}
@@ -0,0 +1,236 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * InMemoryEverythingResultSource: 登録したファイル・フォルダから Everything の検索結果を返す(Everything なしでの計測・動作確認用)
+ * EverythingBatchIndexer が使うクエリだけを解釈する。
+ * - "folder:<"ルート\"|...>" を含む: ルート以下のフォルダ(ルート自体は含まない)
+ * - "file:<"ルート\"|...> ..." を含む: ルート以下の BMS / .txt / preview 音源
+ * 両方を含むクエリ(<folder:...>|<file:...>)では両方を登録順に返す。
+ * "dm:>=yyyy-MM-ddTHH:mm:ss" を含む場合はその時刻(ローカル時刻)以降に更新されたものだけを返す
+ * (最近の変更日時 rc: は登録しないので、更新日時で代用する)。
+ * 結果は pageSize 件ずつのページに分けて渡し、ページ数と最大のページの件数を記録する。
+ * 検索は複数スレッドから同時に実行できる(serialized(true) で Everything 1.4 と同じく1つずつ順に実行する)。
+ * pageLatency を指定するとページごとに待ち(IPC の往復の代わり)、同時に実行していた検索の最大数を記録する
+ */
+public final class InMemoryEverythingResultSource implements EverythingResultSource {
+
+    private static final Pattern QUOTED = Pattern.compile("\"([^\"]*)\"");
+    private static final Pattern MODIFIED_SINCE = Pattern.compile("dm:>=([0-9T:-]+)");
+
+    private record Entry(String path, long lastModified, boolean folder) {
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Object serialLock = new Object();
+    private volatile boolean serialized;
+    private volatile long pageLatencyMillis;
+    private final AtomicInteger searches = new AtomicInteger();
+    private final AtomicInteger pages = new AtomicInteger();
+    private final AtomicInteger maxPage = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public boolean concurrentSearch() {
+        return !serialized;
+    }
+
+    /**
+     * 検索を1つずつ順に実行するかどうか(Everything 1.4 の代わり)
+     */
+    public InMemoryEverythingResultSource serialized(boolean serialized) {
+        this.serialized = serialized;
+        return this;
+    }
+
+    /**
+     * ページごとの待ち時間(ミリ秒)
+     */
+    public InMemoryEverythingResultSource pageLatency(long millis) {
+        this.pageLatencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * ファイルを登録する
+     *
+     * @param lastModified 更新日時(秒)
+     */
+    public synchronized InMemoryEverythingResultSource addFile(String path, long lastModified) {
+        entries.add(new Entry(path, lastModified, false));
+        return this;
+    }
+
+    /**
+     * フォルダを登録する
+     *
+     * @param lastModified 更新日時(秒)
+     */
+    public synchronized InMemoryEverythingResultSource addFolder(String path, long lastModified) {
+        entries.add(new Entry(path, lastModified, true));
+        return this;
+    }
+
+    /**
+     * 実際のディレクトリツリーの現在の内容を絶対パスで登録する(シンボリックリンクはたどらない)
+     */
+    public InMemoryEverythingResultSource addTree(Path root) throws IOException {
+        final Path abs = root.toAbsolutePath().normalize();
+        try (Stream<Path> paths = Files.walk(abs)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                if (p.equals(abs)) continue;
+                final BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                final long lastModified = attrs.lastModifiedTime().toMillis() / 1000;
+                if (attrs.isDirectory()) {
+                    addFolder(p.toString(), lastModified);
+                } else {
+                    addFile(p.toString(), lastModified);
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public long search(String query, int pageSize, ResultConsumer consumer) {
+        if (serialized) {
+            synchronized (serialLock) {
+                return run(query, pageSize, consumer);
+            }
+        }
+        return run(query, pageSize, consumer);
+    }
+
+    private long run(String query, int pageSize, ResultConsumer consumer) {
+        searches.incrementAndGet();
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            return doSearch(query, pageSize, consumer);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private long doSearch(String query, int pageSize, ResultConsumer consumer) {
+        final List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(this.entries);
+        }
+        final boolean folders = query.contains("folder:");
+        final boolean files = query.contains("file:");
+        final Set<String> roots = new LinkedHashSet<>();
+        final Matcher m = QUOTED.matcher(query);
+        while (m.find()) {
+            String root = m.group(1);
+            while (root.endsWith("\\") || root.endsWith("/")) root = root.substring(0, root.length() - 1);
+            roots.add(root);
+        }
+        long since = Long.MIN_VALUE;
+        final Matcher dm = MODIFIED_SINCE.matcher(query);
+        if (dm.find()) {
+            since = LocalDateTime.parse(dm.group(1)).atZone(ZoneId.systemDefault()).toEpochSecond();
+        }
+
+        pageSize = Math.max(1, pageSize);
+        final List<Entry> page = new ArrayList<>(Math.min(pageSize, 1024));
+        long delivered = 0;
+        for (Entry e : entries) {
+            if (!(e.folder() ? folders : files) || e.lastModified() < since || !under(e.path(), roots)) continue;
+            if (!e.folder()) {
+                final int sep = Math.max(e.path().lastIndexOf('\\'), e.path().lastIndexOf('/'));
+                if (BmsFolder.classify(e.path(), sep + 1) == BmsFolder.OTHER) continue;
+            }
+            page.add(e);
+            if (page.size() == pageSize) {
+                delivered += deliver(page, consumer);
+            }
+        }
+        if (!page.isEmpty()) {
+            delivered += deliver(page, consumer);
+        }
+        return delivered;
+    }
+
+    private int deliver(List<Entry> page, ResultConsumer consumer) {
+        pages.incrementAndGet();
+        maxPage.accumulateAndGet(page.size(), Math::max);
+        if (pageLatencyMillis > 0) {
+            try {
+                Thread.sleep(pageLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("検索が中断されました", e);
+            }
+        }
+        for (Entry e : page) {
+            consumer.accept(e.path(), e.lastModified(), e.folder());
+        }
+        final int n = page.size();
+        page.clear();
+        return n;
+    }
+
+    private static boolean under(String path, Set<String> roots) {
+        for (String root : roots) {
+            if (path.length() > root.length() + 1 && path.startsWith(root)
+                    && (path.charAt(root.length()) == '\\' || path.charAt(root.length()) == File.separatorChar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * これまでの検索の回数
+     */
+    public int searchCount() {
+        return searches.get();
+    }
+
+    /**
+     * これまでに渡したページの数
+     */
+    public int pageCount() {
+        return pages.get();
+    }
+
+    /**
+     * これまでに渡した最大のページの件数
+     */
+    public int maxPageSize() {
+        return maxPage.get();
+    }
+
+    /**
+     * これまでに同時に実行していた検索の最大数
+     */
+    public int maxConcurrentSearches() {
+        return maxRunning.get();
+    }
+}
@@ -0,0 +1,97 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * InMemoryFileIndexProvider: 登録したファイル・フォルダの一覧をそのまま返すファイル検索(計測・動作確認用)
+ * ファイル検索のコストなしで更新処理だけを計測したり、Everything の検索結果を再現したりするのに使う。
+ * 分類は Everything 連携と同じ(BmsFolder.add)で、Everything と同様に走査フォルダ一覧はサブツリーを除外しない。
+ * 登録するパスはルートフォルダと同じ形式(絶対パスまたは相対パス)にする
+ */
+public final class InMemoryFileIndexProvider implements FileIndexProvider {
+
+    private final NavigableMap<Path, Long> files = new TreeMap<>();
+    private final NavigableMap<Path, Long> folders = new TreeMap<>();
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * ファイルを登録する
+     *
+     * @param lastModified 更新日時(秒)
+     */
+    public synchronized InMemoryFileIndexProvider addFile(Path file, long lastModified) {
+        files.put(file, lastModified);
+        return this;
+    }
+
+    /**
+     * フォルダを登録する(ルートフォルダ自体も登録する)
+     *
+     * @param lastModified 更新日時(秒)
+     */
+    public synchronized InMemoryFileIndexProvider addFolder(Path folder, long lastModified) {
+        folders.put(folder, lastModified);
+        return this;
+    }
+
+    /**
+     * 実際のディレクトリツリーの現在の内容を登録する(シンボリックリンクはたどらない)
+     */
+    public InMemoryFileIndexProvider addTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                final BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                final long lastModified = attrs.lastModifiedTime().toMillis() / 1000;
+                if (attrs.isDirectory()) {
+                    addFolder(p, lastModified);
+                } else {
+                    addFile(p, lastModified);
+                }
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized FileIndex index(String[] bmsRoots) {
+        final PathTrie tree = new PathTrie();
+        for (String s : bmsRoots) {
+            final Path root = Paths.get(s);
+            // ルートフォルダ自体は登録がなくても走査対象にする(更新日時不明)
+            tree.putScanFolder(root, folders.getOrDefault(root, 0L));
+            // Path の順序では子孫が連続するとは限らない("a-b" が "a/b" より前になる)ので全件を調べる
+            for (Map.Entry<Path, Long> e : folders.entrySet()) {
+                if (!e.getKey().startsWith(root)) continue;
+                tree.putScanFolder(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<Path, Long> e : files.entrySet()) {
+                if (!e.getKey().startsWith(root)) continue;
+                final Path parent = e.getKey().getParent();
+                if (parent == null) continue;
+                // BMS / .txt / preview 音源以外のファイルだけのフォルダには BmsFolder を作らない(Everything 連携と同じ)
+                final String name = e.getKey().toString();
+                if (BmsFolder.classify(name, name.length() - e.getKey().getFileName().toString().length()) == BmsFolder.OTHER) continue;
+                final String dir = parent.toString();
+                tree.bmsFolder(dir, dir.length()).add(new EverythingSearchResult(e.getKey(), e.getValue()));
+            }
+        }
+        return new FileIndex(tree);
+    }
+}
@@ -0,0 +1,58 @@
+package jp.howan.songdata;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LimitedExecutor: 共有のスレッドプールに、同時実行数を limit 件までに制限してタスクを渡す
+ * 上限を超えた分はこのクラスのキューで待ち、実行中のタスクが終わると投入順に渡す。
+ * デコード用スレッドプールを共有したまま、HDD 上の譜面の同時読み込み数だけを制限するために使う
+ */
+public final class LimitedExecutor implements Executor {
+
+    private final Executor delegate;
+    private final int limit;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger(0);
+
+    public LimitedExecutor(Executor delegate, int limit) {
+        this.delegate = delegate;
+        this.limit = Math.max(1, limit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        waiting.add(command);
+        schedule();
+    }
+
+    /**
+     * 空きがあれば待ちタスクを共有プールに渡す
+     */
+    private void schedule() {
+        while (!waiting.isEmpty()) {
+            final int n = running.get();
+            if (n >= limit) {
+                return;
+            }
+            if (!running.compareAndSet(n, n + 1)) {
+                continue;
+            }
+            final Runnable next = waiting.poll();
+            if (next == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            delegate.execute(() -> {
+                try {
+                    next.run();
+                } finally {
+                    running.decrementAndGet();
+                    schedule();
+                }
+            });
+        }
+    }
+}
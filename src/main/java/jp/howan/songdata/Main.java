@@ -52,7 +52,7 @@ public class Main {
 
         if (args.length > 0) {
             if ("rebuild".equals(args[0])) {
-                Logger.getGlobal().info("songdata.dbはfolder/songテーブルをDELETEした上で再構築します");
+                Logger.getGlobal().info("songdata.db / songinfo.dbを別ファイルに再構築してから置き換えます");
                 updateAll = true;
             } else {
                 // jconsole.exeで接続するための一時停止用
@@ -0,0 +1,121 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelTreeWalker: ディレクトリツリーを複数スレッドで走査する(Everything を使わない場合の discover ステージ用)
+ * - ディレクトリごとに DirectoryVisitor を呼び、返されたサブディレクトリを ForkJoinPool で並列に走査する(兄弟ディレクトリの列挙が重なる)
+ * - Files.walkFileTree(FOLLOW_LINKS なし)と同様にシンボリックリンクはたどらない。ルート自体がディレクトリでなければ何もしない
+ * - threads が1以下の場合は呼び出しスレッドで逐次走査する(Files.walkFileTree と同じ訪問順)
+ * - DirectoryVisitor で例外が発生した場合は走査全体を失敗にする(Files.walkFileTree と同じ)
+ */
+public final class ParallelTreeWalker {
+
+    /**
+     * 走査するディレクトリ
+     * @param attrs ディレクトリの属性(親ディレクトリの列挙時に取得したもの)
+     */
+    public record Directory(Path path, BasicFileAttributes attrs) {
+    }
+
+    /**
+     * ディレクトリごとの処理(複数スレッドから同時に呼ばれる)
+     */
+    @FunctionalInterface
+    public interface DirectoryVisitor {
+        /**
+         * @return 続けて走査するサブディレクトリ、空の場合はこのディレクトリ以下をスキップする
+         */
+        List<Directory> visit(Directory dir) throws IOException;
+    }
+
+    private final int threads;
+    private final DirectoryVisitor visitor;
+
+    public ParallelTreeWalker(int threads, DirectoryVisitor visitor) {
+        this.threads = Math.max(1, threads);
+        this.visitor = visitor;
+    }
+
+    /**
+     * roots 以下を走査する。全ディレクトリの処理が終わるまでブロックする
+     */
+    public void walk(List<Path> roots) throws IOException {
+        final List<Directory> dirs = new ArrayList<>(roots.size());
+        for (Path root : roots) {
+            final BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                dirs.add(new Directory(root, attrs));
+            }
+        }
+        if (threads <= 1) {
+            for (Directory dir : dirs) {
+                walkSequential(dir);
+            }
+            return;
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(threads, p -> {
+            final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("songdata-walk-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+        try {
+            pool.invoke(new DirectoryTask(dirs));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void walkSequential(Directory dir) throws IOException {
+        for (Directory sub : visitor.visit(dir)) {
+            walkSequential(sub);
+        }
+    }
+
+    /**
+     * ディレクトリ群を走査するタスク。1件の場合はその場で処理し、サブディレクトリを新しいタスクに分ける
+     */
+    private final class DirectoryTask extends RecursiveAction {
+
+        private final List<Directory> dirs;
+
+        DirectoryTask(List<Directory> dirs) {
+            this.dirs = dirs;
+        }
+
+        @Override
+        protected void compute() {
+            if (dirs.size() == 1) {
+                final List<Directory> subs;
+                try {
+                    subs = visitor.visit(dirs.get(0));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!subs.isEmpty()) {
+                    new DirectoryTask(subs).compute();
+                }
+                return;
+            }
+            final List<DirectoryTask> tasks = new ArrayList<>(dirs.size());
+            for (Directory dir : dirs) {
+                tasks.add(new DirectoryTask(List.of(dir)));
+            }
+            invokeAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * PathTrie: フォルダのパスを区切り文字ごとの名前(セグメント)の木で保持する
+ * ファイル一覧(FileIndexProvider.FileIndex)の走査フォルダの更新日時と BmsFolder をノードに持つ。
+ * - セグメントの文字列は木全体で共有する(同じ名前のフォルダが多いライブラリでもセグメントの文字列は1つ)
+ * - 検索はパス文字列の範囲と子ノードの名前を直接比較する(既存のノードをたどるときは文字列を作らない)
+ * - 子ノードは名前順の配列で持つので、先頭からたどるとフォルダが名前順に得られる
+ * - フォルダ以下(サブツリー)はノード以下なので、サブツリーを除外・列挙する処理はサブツリーの大きさだけで済む
+ * パスは区切り文字(Windows では \ と /、それ以外は /)で分割し、"." と空のセグメントは無視する
+ * (相対パスの "./bms" と "bms" は同じノードになる)。絶対パスのルート("/"、"C:\" など)は先頭のセグメントになる。
+ * 木を変更するメソッドは複数スレッドから呼び出してよい
+ */
+public final class PathTrie {
+
+    /**
+     * 走査フォルダでないノードの更新日時
+     */
+    public static final long NOT_SCANNED = Long.MIN_VALUE;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final boolean WINDOWS = File.separatorChar == '\\';
+
+    /**
+     * 1フォルダ分のノード
+     */
+    public static final class Node {
+        private final Node parent;
+        private final String name;
+        private Node[] children = NO_CHILDREN;
+        private int childCount;
+        private long modified = NOT_SCANNED;
+        private BmsFolder bmsFolder;
+
+        private Node(Node parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        public Node parent() {
+            return parent;
+        }
+
+        /**
+         * フォルダ名(絶対パスのルートの場合は "/" や "C:\")
+         */
+        public String name() {
+            return name;
+        }
+
+        public int childCount() {
+            return childCount;
+        }
+
+        /**
+         * i番目(名前順)の子ノード
+         */
+        public Node child(int i) {
+            return children[i];
+        }
+
+        /**
+         * ファイル一覧の走査フォルダかどうか
+         */
+        public boolean isScanFolder() {
+            return modified != NOT_SCANNED;
+        }
+
+        /**
+         * 走査フォルダの更新日時(秒)、走査フォルダでない場合は NOT_SCANNED
+         */
+        public long modified() {
+            return modified;
+        }
+
+        /**
+         * BMS / .txt / preview 音源があるフォルダの場合はその情報、それ以外は null
+         */
+        public BmsFolder bmsFolder() {
+            return bmsFolder;
+        }
+
+        /**
+         * フォルダのパス(登録時の形式、区切り文字は File.separatorChar)
+         */
+        public Path toPath() {
+            return Paths.get(toString());
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            append(sb);
+            return sb.toString();
+        }
+
+        private void append(StringBuilder sb) {
+            if (parent == null) {
+                // 木の根(相対パスの "." を登録した場合)
+                return;
+            }
+            if (parent.parent != null) {
+                parent.append(sb);
+                if (!isSeparator(sb.charAt(sb.length() - 1))) {
+                    sb.append(File.separatorChar);
+                }
+            }
+            sb.append(name);
+        }
+
+        /**
+         * 名前順の位置。見つからない場合は -(挿入位置) - 1
+         */
+        private int indexOf(String path, int from, int to) {
+            int lo = 0;
+            int hi = childCount - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final int c = compare(children[mid].name, path, from, to);
+                if (c < 0) {
+                    lo = mid + 1;
+                } else if (c > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+
+        private Node insert(int pos, String segment) {
+            if (childCount == children.length) {
+                children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+            }
+            System.arraycopy(children, pos, children, pos + 1, childCount - pos);
+            final Node child = new Node(this, segment);
+            children[pos] = child;
+            childCount++;
+            return child;
+        }
+    }
+
+    private final Node root = new Node(null, "");
+    private final Map<String, String> segments = new HashMap<>();
+    private int scanFolderCount;
+    private int bmsFolderCount;
+
+    /**
+     * 木の根(どのフォルダにも対応しない)。子ノードが絶対パスのルートと相対パスの先頭のフォルダになる
+     */
+    public Node root() {
+        return root;
+    }
+
+    /**
+     * フォルダのノードを返す(なければ作る)
+     */
+    public Node folder(String path) {
+        return folder(path, path.length());
+    }
+
+    /**
+     * path の先頭 end 文字のフォルダのノードを返す(なければ作る)
+     */
+    public synchronized Node folder(String path, int end) {
+        Node node = root;
+        int from = rootLength(path, end);
+        if (from > 0) {
+            node = child(node, path, 0, from);
+        }
+        while (from < end) {
+            int to = from;
+            while (to < end && !isSeparator(path.charAt(to))) to++;
+            if (to > from && !(to - from == 1 && path.charAt(from) == '.')) {
+                node = child(node, path, from, to);
+            }
+            from = to + 1;
+        }
+        return node;
+    }
+
+    /**
+     * フォルダのノードを返す(なければ null)
+     */
+    public synchronized Node find(String path) {
+        final int end = path.length();
+        Node node = root;
+        int from = rootLength(path, end);
+        if (from > 0) {
+            final int i = node.indexOf(path, 0, from);
+            if (i < 0) return null;
+            node = node.children[i];
+        }
+        while (from < end) {
+            int to = from;
+            while (to < end && !isSeparator(path.charAt(to))) to++;
+            if (to > from && !(to - from == 1 && path.charAt(from) == '.')) {
+                final int i = node.indexOf(path, from, to);
+                if (i < 0) return null;
+                node = node.children[i];
+            }
+            from = to + 1;
+        }
+        return node;
+    }
+
+    /**
+     * 走査フォルダとして登録する
+     *
+     * @param modified 更新日時(秒)
+     */
+    public void putScanFolder(Path dir, long modified) {
+        putScanFolder(dir.toString(), modified);
+    }
+
+    /**
+     * 走査フォルダとして登録する
+     *
+     * @param modified 更新日時(秒)
+     */
+    public synchronized void putScanFolder(String dir, long modified) {
+        final Node node = folder(dir);
+        if (node.modified == NOT_SCANNED) scanFolderCount++;
+        node.modified = modified;
+    }
+
+    /**
+     * path の先頭 end 文字のフォルダの BmsFolder を返す(なければ作る)
+     */
+    public synchronized BmsFolder bmsFolder(String path, int end) {
+        final Node node = folder(path, end);
+        if (node.bmsFolder == null) {
+            node.bmsFolder = new BmsFolder();
+            bmsFolderCount++;
+        }
+        return node.bmsFolder;
+    }
+
+    /**
+     * フォルダの BmsFolder を登録する(既にある場合は置き換える)
+     */
+    public void putBmsFolder(Path dir, BmsFolder bmsFolder) {
+        putBmsFolder(dir.toString(), bmsFolder);
+    }
+
+    /**
+     * フォルダの BmsFolder を登録する(既にある場合は置き換える)
+     */
+    public synchronized void putBmsFolder(String dir, BmsFolder bmsFolder) {
+        final Node node = folder(dir);
+        if (node.bmsFolder == null) bmsFolderCount++;
+        node.bmsFolder = bmsFolder;
+    }
+
+    /**
+     * フォルダの BmsFolder を返す(なければ null)
+     */
+    public BmsFolder getBmsFolder(Path dir) {
+        final Node node = find(dir.toString());
+        return node != null ? node.bmsFolder : null;
+    }
+
+    /**
+     * other の走査フォルダと BmsFolder、ノードをこの木に追加する(同じフォルダは other の内容で置き換える)
+     */
+    public void addAll(PathTrie other) {
+        final Deque<Node> pending = new ArrayDeque<>();
+        pending.push(other.root());
+        while (!pending.isEmpty()) {
+            final Node node = pending.pop();
+            if (node.parent != null) {
+                final String path = node.toString();
+                if (node.isScanFolder()) {
+                    putScanFolder(path, node.modified);
+                } else {
+                    folder(path);
+                }
+                if (node.bmsFolder != null) {
+                    putBmsFolder(path, node.bmsFolder);
+                }
+            }
+            for (int i = 0; i < node.childCount; i++) {
+                pending.push(node.children[i]);
+            }
+        }
+    }
+
+    /**
+     * 走査フォルダの数
+     */
+    public synchronized int scanFolderCount() {
+        return scanFolderCount;
+    }
+
+    /**
+     * BmsFolder があるフォルダの数
+     */
+    public synchronized int bmsFolderCount() {
+        return bmsFolderCount;
+    }
+
+    private Node child(Node node, String path, int from, int to) {
+        final int i = node.indexOf(path, from, to);
+        if (i >= 0) return node.children[i];
+        final String segment = path.substring(from, to);
+        return node.insert(-(i + 1), segments.computeIfAbsent(segment, k -> k));
+    }
+
+    /**
+     * 絶対パスのルート部分の長さ(相対パスは0)
+     * "/"、Windows では "C:\"、"C:"、"\\server\share\"、"\"
+     */
+    private static int rootLength(String path, int end) {
+        if (end == 0) return 0;
+        if (!WINDOWS) return path.charAt(0) == '/' ? 1 : 0;
+        if (end >= 2 && path.charAt(1) == ':') {
+            return end >= 3 && isSeparator(path.charAt(2)) ? 3 : 2;
+        }
+        if (end >= 2 && isSeparator(path.charAt(0)) && isSeparator(path.charAt(1))) {
+            // UNC: \\server\share\ までをルートにする
+            int i = 2;
+            for (int part = 0; part < 2 && i < end; part++) {
+                while (i < end && !isSeparator(path.charAt(i))) i++;
+                if (i < end) i++;
+            }
+            return i;
+        }
+        return isSeparator(path.charAt(0)) ? 1 : 0;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '/' || (WINDOWS && c == '\\');
+    }
+
+    /**
+     * name と path[from, to) を String.compareTo と同じ順序で比較する
+     */
+    private static int compare(String name, String path, int from, int to) {
+        final int len = to - from;
+        final int lim = Math.min(name.length(), len);
+        for (int k = 0; k < lim; k++) {
+            final char c1 = name.charAt(k);
+            final char c2 = path.charAt(from + k);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return name.length() - len;
+    }
+}
@@ -0,0 +1,356 @@
+package jp.howan.songdata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PersistentIndexProvider: 前回の走査結果をファイル(songdata_fileindex.bin)に保存し、次回は変更のあったフォルダだけを列挙する
+ * Everything のない環境(Linux など)で、Everything 連携と同じく差分だけを調べる更新処理にするためのファイル検索。
+ * - フォルダごとに更新日時、サブフォルダ名、BMSファイル名、.txt の有無、preview 音源名を保存する
+ * - フォルダの更新日時が前回と同じなら直下のエントリは変わっていないので列挙せず、保存したBMSファイルとサブフォルダだけを stat する
+ *   (BMSファイルの内容の変更はフォルダの更新日時に現れないため、BMSファイルの更新日時は毎回取得する)
+ * - 更新日時が変わったフォルダ、前回の走査直前(2秒以内)に更新されていたフォルダは列挙し直す
+ *   (同じ時刻内の2回目の変更を見逃さないため)
+ * - 保存ファイルは読み込み時にメモリマップし、フォルダのパスと位置だけを先に読む(フォルダの内容は参照したときに読む)
+ *   Windows ではマップ中のファイルを置き換えられないので、全体をヒープに読み込む
+ * 直下にBMSファイルがあるフォルダのサブツリーは走査しない(TreeWalkIndexProvider と同じ)
+ */
+public final class PersistentIndexProvider implements FileIndexProvider {
+
+    private static final int MAGIC = 0x53444958; // "SDIX"
+    private static final int VERSION = 1;
+    // この時間以内に更新されたフォルダは次回も列挙し直す(ファイルシステムの時刻の粒度より十分長く)
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final int FLAG_STABLE = 1;
+    private static final int FLAG_TXT = 2;
+
+    private final Path indexFile;
+
+    /**
+     * @param indexFile 保存ファイルのパス
+     */
+    public PersistentIndexProvider(Path indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    @Override
+    public String name() {
+        return "persistent";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * 1フォルダ分の保存内容
+     * @param mtime フォルダの更新日時(ナノ秒)
+     * @param stable 次回、更新日時が同じなら列挙を省略してよいかどうか
+     */
+    private record DirRecord(long mtime, boolean stable, boolean hasTxt, String previewFileName,
+                             List<String> subdirs, List<String> charts) {
+    }
+
+    @Override
+    public FileIndex index(String[] bmsRoots) throws IOException {
+        final long t = System.currentTimeMillis();
+        final SavedIndex saved = SavedIndex.load(indexFile);
+        final Map<String, DirRecord> records = new ConcurrentHashMap<>();
+        final PathTrie folders = new PathTrie();
+        final AtomicInteger reused = new AtomicInteger();
+        final AtomicInteger listed = new AtomicInteger();
+        final long listStart = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+        final List<Path> roots = new ArrayList<>();
+        for (String s : bmsRoots) {
+            final Path root = Paths.get(s);
+            if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) roots.add(root);
+        }
+        final StorageDevices devices = StorageDevices.of(roots);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (StorageDevices.Device device : devices.getDevices()) {
+            final Thread th = new Thread(() -> {
+                try {
+                    new ParallelTreeWalker(device.walkThreads(), dir -> {
+                        final Path p = dir.path();
+                        final long mtime = dir.attrs().lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                        folders.putScanFolder(p, mtime / 1_000_000_000L);
+                        final DirRecord old = saved.get(p.toString());
+                        final List<ParallelTreeWalker.Directory> subdirs;
+                        final DirRecord record;
+                        if (old != null && old.stable() && old.mtime() == mtime) {
+                            reused.incrementAndGet();
+                            record = old;
+                            subdirs = revisit(device, p, old, folders);
+                        } else {
+                            listed.incrementAndGet();
+                            final DirectoryListing listing = DirectoryListing.scan(p, true, device.isRotational());
+                            final List<String> subdirNames = new ArrayList<>(listing.subdirs.size());
+                            for (ParallelTreeWalker.Directory sub : listing.subdirs) {
+                                subdirNames.add(sub.path().getFileName().toString());
+                            }
+                            final List<String> chartNames = new ArrayList<>(listing.bmsFiles.size());
+                            for (EverythingSearchResult sr : listing.bmsFiles) {
+                                chartNames.add(sr.path().getFileName().toString());
+                            }
+                            record = new DirRecord(mtime, listStart - mtime > RACY_NANOS, listing.hasTxt, listing.previewFileName,
+                                    subdirNames, chartNames);
+                            addBmsFolder(p, listing.bmsFiles, record, folders);
+                            subdirs = listing.subdirs;
+                        }
+                        records.put(p.toString(), record);
+                        return record.charts().isEmpty() ? subdirs : Collections.emptyList();
+                    }).walk(device.getRoots());
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "songdata-index-" + device.getName());
+            th.setDaemon(true);
+            th.start();
+            threads.add(th);
+        }
+        try {
+            for (Thread th : threads) th.join();
+        } catch (InterruptedException e) {
+            for (Thread th : threads) th.interrupt();
+            Thread.currentThread().interrupt();
+            throw new IOException("ファイル一覧の作成が中断されました", e);
+        }
+        if (failure.get() != null) throw failure.get();
+
+        try {
+            save(records);
+        } catch (IOException e) {
+            Logger.getGlobal().log(Level.WARNING, "ファイル一覧の保存に失敗しました : " + indexFile, e);
+        }
+        Logger.getGlobal().info("ファイル一覧: 保存内容を使ったフォルダ " + reused.get() + " / 列挙したフォルダ " + listed.get()
+                + " (" + (System.currentTimeMillis() - t) + "ms)");
+        return new FileIndex(folders);
+    }
+
+    /**
+     * 前回から直下のエントリが変わっていないフォルダ: 保存したBMSファイルの更新日時とサブフォルダの属性だけを取得する
+     */
+    private List<ParallelTreeWalker.Directory> revisit(StorageDevices.Device device, Path dir, DirRecord record,
+                                                       PathTrie folders) throws IOException {
+        final List<EverythingSearchResult> bmsFiles = new ArrayList<>(record.charts().size());
+        for (String name : record.charts()) {
+            final Path p = dir.resolve(name);
+            long lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(p).toMillis() / 1000;
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                // リンク切れなど: filter ステージで再取得する
+                lastModified = DirectoryListing.UNKNOWN_MODTIME;
+            }
+            bmsFiles.add(new EverythingSearchResult(p, lastModified));
+        }
+        addBmsFolder(dir, bmsFiles, record, folders);
+        if (!record.charts().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ParallelTreeWalker.Directory> subdirs = new ArrayList<>(record.subdirs().size());
+        for (String name : record.subdirs()) {
+            final Path p = dir.resolve(name);
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory()) subdirs.add(new ParallelTreeWalker.Directory(p, attrs));
+            } catch (NoSuchFileException e) {
+                // 削除された(フォルダの更新日時が変わらない削除はないが念のため)
+            }
+        }
+        if (device.isRotational()) {
+            StorageDevices.sortByInode(subdirs, ParallelTreeWalker.Directory::path, ParallelTreeWalker.Directory::attrs);
+        }
+        return subdirs;
+    }
+
+    private static void addBmsFolder(Path dir, List<EverythingSearchResult> bmsFiles, DirRecord record, PathTrie folders) {
+        if (bmsFiles.isEmpty() && !record.hasTxt() && record.previewFileName() == null) {
+            return;
+        }
+        final BmsFolder bf = new BmsFolder();
+        bf.bmsFiles.addAll(bmsFiles);
+        bf.hasTxt = record.hasTxt();
+        if (record.previewFileName() != null) bf.previewFiles.add(dir.resolve(record.previewFileName()));
+        folders.putBmsFolder(dir, bf);
+    }
+
+    /**
+     * 走査したフォルダの内容を保存する(走査しなかったフォルダは削除されたものとして保存しない)
+     * 一時ファイルに書いてから置き換える
+     */
+    private void save(Map<String, DirRecord> records) throws IOException {
+        final Path parent = indexFile.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        final Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeChar(File.separatorChar);
+            out.writeInt(records.size());
+            for (Map.Entry<String, DirRecord> e : records.entrySet()) {
+                final DirRecord r = e.getValue();
+                writeString(out, e.getKey());
+                out.writeLong(r.mtime());
+                out.writeByte((r.stable() ? FLAG_STABLE : 0) | (r.hasTxt() ? FLAG_TXT : 0));
+                writeString(out, r.previewFileName());
+                out.writeInt(r.subdirs().size());
+                for (String s : r.subdirs()) writeString(out, s);
+                out.writeInt(r.charts().size());
+                for (String s : r.charts()) writeString(out, s);
+            }
+        }
+        try {
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * 保存ファイルの内容。フォルダのパスと位置の表だけを持ち、フォルダの内容は参照時にバッファから読む(複数スレッドから参照可)
+     */
+    private static final class SavedIndex {
+
+        private static final SavedIndex EMPTY = new SavedIndex(null, Collections.emptyMap());
+
+        private final ByteBuffer buffer;
+        private final Map<String, Integer> offsets;
+
+        private SavedIndex(ByteBuffer buffer, Map<String, Integer> offsets) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+        }
+
+        static SavedIndex load(Path file) {
+            if (!Files.isRegularFile(file)) {
+                return EMPTY;
+            }
+            try {
+                final ByteBuffer buffer;
+                if (File.separatorChar == '\\') {
+                    buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+                } else {
+                    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                        buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    }
+                }
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getChar(8) != File.separatorChar) {
+                    Logger.getGlobal().info("ファイル一覧の保存形式が異なるので使いません : " + file);
+                    return EMPTY;
+                }
+                final int count = buffer.getInt(10);
+                final Map<String, Integer> offsets = new HashMap<>(Math.max(16, count * 4 / 3));
+                int pos = 14;
+                for (int i = 0; i < count; i++) {
+                    final int len = buffer.getInt(pos);
+                    final String path = readString(buffer, pos);
+                    pos += 4 + len;
+                    offsets.put(path, pos);
+                    pos = skipRecord(buffer, pos);
+                }
+                return new SavedIndex(buffer, offsets);
+            } catch (IOException | RuntimeException e) {
+                // 壊れている場合は全フォルダを列挙する
+                Logger.getGlobal().log(Level.WARNING, "ファイル一覧の読み込みに失敗しました : " + file, e);
+                return EMPTY;
+            }
+        }
+
+        DirRecord get(String path) {
+            final Integer offset = offsets.get(path);
+            if (offset == null) {
+                return null;
+            }
+            int pos = offset;
+            final long mtime = buffer.getLong(pos);
+            final int flags = buffer.get(pos + 8);
+            pos += 9;
+            final String preview = readString(buffer, pos);
+            pos += 4 + Math.max(0, buffer.getInt(pos));
+            final List<String> subdirs = new ArrayList<>(buffer.getInt(pos));
+            pos = readStrings(buffer, pos, subdirs);
+            final List<String> charts = new ArrayList<>(buffer.getInt(pos));
+            readStrings(buffer, pos, charts);
+            return new DirRecord(mtime, (flags & FLAG_STABLE) != 0, (flags & FLAG_TXT) != 0, preview, subdirs, charts);
+        }
+
+        private static int skipRecord(ByteBuffer buffer, int pos) {
+            pos += 9;
+            pos += 4 + Math.max(0, buffer.getInt(pos));
+            for (int list = 0; list < 2; list++) {
+                final int n = buffer.getInt(pos);
+                pos += 4;
+                for (int i = 0; i < n; i++) {
+                    pos += 4 + buffer.getInt(pos);
+                }
+            }
+            return pos;
+        }
+
+        private static int readStrings(ByteBuffer buffer, int pos, List<String> out) {
+            final int n = buffer.getInt(pos);
+            pos += 4;
+            for (int i = 0; i < n; i++) {
+                out.add(readString(buffer, pos));
+                pos += 4 + buffer.getInt(pos);
+            }
+            return pos;
+        }
+
+        /**
+         * pos の位置の文字列(長さ + UTF-8)を読む。長さが-1の場合は null
+         */
+        private static String readString(ByteBuffer buffer, int pos) {
+            final int len = buffer.getInt(pos);
+            if (len < 0) {
+                return null;
+            }
+            final byte[] b = new byte[len];
+            buffer.get(pos + 4, b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jp.howan.songdata;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PipelineQueue: 更新処理のステージ間をつなぐ容量制限付きキュー
+ * - 容量いっぱいの場合 put() はブロックする(バックプレッシャー)ので、前段が先走ってもメモリは増えない
+ * - 生産者は終わったら producerDone() を呼ぶ。全生産者が終わりキューが空になると take() は null を返す
+ * - abort() するとブロック中の put()/take() は CancellationException で抜ける(後段が失敗した場合の停止用)
+ * - キュー深さの最大値・平均値、put() でブロックした時間を統計として保持する
+ */
+public final class PipelineQueue<T> {
+
+    private static final long POLL_INTERVAL_MS = 50;
+
+    private final String name;
+    private final int capacity;
+    private final ArrayBlockingQueue<T> queue;
+    private final AtomicInteger openProducers;
+    private volatile boolean aborted = false;
+
+    // 統計
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder depthSum = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger(0);
+    private final LongAdder blockedNanos = new LongAdder();
+
+    /**
+     * @param name ログ出力用の名前
+     * @param capacity キュー容量
+     * @param producers 生産者(put する側)のスレッド数
+     */
+    public PipelineQueue(String name, int capacity, int producers) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayBlockingQueue<>(this.capacity);
+        this.openProducers = new AtomicInteger(producers);
+    }
+
+    /**
+     * 要素を追加する。容量いっぱいの場合は空きができるまでブロックする
+     * @throws CancellationException abort() された場合
+     */
+    public void put(T item) throws InterruptedException {
+        if (!queue.offer(item)) {
+            final long start = System.nanoTime();
+            while (!queue.offer(item, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (aborted) throw new CancellationException(name + " は中断されました");
+            }
+            blockedNanos.add(System.nanoTime() - start);
+        }
+        if (aborted) throw new CancellationException(name + " は中断されました");
+        final int depth = queue.size();
+        puts.increment();
+        depthSum.add(depth);
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * 要素を取り出す。空の場合は要素が来るか全生産者が終わるまでブロックする
+     * @return 要素、全生産者が終わっていてキューが空の場合は null
+     * @throws CancellationException abort() された場合
+     */
+    public T take() throws InterruptedException {
+        while (true) {
+            if (aborted) throw new CancellationException(name + " は中断されました");
+            // 生産者数を先に読んでから poll する(0 を読んだ後に空なら本当に終わり)
+            final int open = openProducers.get();
+            T item = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (item != null) return item;
+            if (open <= 0) return null;
+        }
+    }
+
+    /**
+     * 生産者が1つ終わったことを通知する
+     */
+    public void producerDone() {
+        openProducers.decrementAndGet();
+    }
+
+    /**
+     * キューを中断し、残っている要素を破棄する
+     */
+    public void abort() {
+        aborted = true;
+        queue.clear();
+    }
+
+    /**
+     * キューの統計をログ出力用の文字列で返す
+     */
+    public String summary() {
+        final long n = puts.sum();
+        return String.format("queue[%s] capacity=%d max=%d avg=%.1f blocked=%dms",
+                name, capacity, maxDepth.get(), n > 0 ? (double) depthSum.sum() / n : 0.0, blockedNanos.sum() / 1_000_000);
+    }
+}
@@ -0,0 +1,71 @@
+package jp.howan.songdata;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StageStatistics: 更新処理の1ステージ分の統計
+ * - items: 処理件数
+ * - busy: 全スレッドの処理時間の合計
+ * - backlog: 実行待ち件数(スレッドプールのキュー長など)、サンプルがある場合のみ出力する
+ */
+public final class StageStatistics {
+
+    private final String name;
+    private final int threads;
+    private final LongAdder items = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder backlogSum = new LongAdder();
+    private final LongAdder backlogSamples = new LongAdder();
+    private final AtomicInteger maxBacklog = new AtomicInteger(0);
+
+    public StageStatistics(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+    }
+
+    /**
+     * 1件処理したことを記録する
+     * @param startNanos 処理開始時の System.nanoTime()
+     */
+    public void record(long startNanos) {
+        items.increment();
+        busyNanos.add(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 実行待ち件数をサンプリングする
+     */
+    public void sampleBacklog(int backlog) {
+        backlogSum.add(backlog);
+        backlogSamples.increment();
+        maxBacklog.accumulateAndGet(backlog, Math::max);
+    }
+
+    public long getItems() {
+        return items.sum();
+    }
+
+    /**
+     * 全スレッドの処理時間の合計(ms)
+     */
+    public long getBusyMillis() {
+        return busyNanos.sum() / 1_000_000;
+    }
+
+    /**
+     * ステージの統計をログ出力用の文字列で返す
+     * @param wallMillis パイプライン全体の経過時間(ms)、スループットの計算に使う
+     */
+    public String summary(long wallMillis) {
+        final long n = items.sum();
+        final long busyMillis = busyNanos.sum() / 1_000_000;
+        StringBuilder sb = new StringBuilder(String.format("stage[%s] threads=%d items=%d busy=%dms throughput=%.1f/s",
+                name, threads, n, busyMillis, wallMillis > 0 ? n * 1000.0 / wallMillis : 0.0));
+        final long samples = backlogSamples.sum();
+        if (samples > 0) {
+            sb.append(String.format(" backlog max=%d avg=%.1f", maxBacklog.get(), (double) backlogSum.sum() / samples));
+        }
+        return sb.toString();
+    }
+}
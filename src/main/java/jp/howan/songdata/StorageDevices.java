@@ -0,0 +1,362 @@
+package jp.howan.songdata;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Platform;
+import com.sun.jna.platform.win32.Kernel32;
+import com.sun.jna.platform.win32.WinBase;
+import com.sun.jna.platform.win32.WinDef;
+import com.sun.jna.platform.win32.WinNT;
+import com.sun.jna.ptr.IntByReference;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * StorageDevices: 楽曲ルートフォルダを格納デバイス(FileStore)ごとにまとめ、デバイスの種類に応じた並列数を決める
+ * - SSD / 不明: フォルダ探索は discoverThreads 本、デコードの同時実行数は制限なし(decodeThreads)
+ * - HDD: フォルダ探索・デコードとも hddThreads 本(シークを減らすため、ディレクトリとBMSファイルは inode 順に読む)
+ * - ネットワーク: フォルダ探索・デコードとも networkThreads 本
+ * デバイスごとに別々に走査するので、遅いデバイスが他のデバイスの走査を止めない。
+ * デバイスの種類は Linux では /sys/class/block の rotational、Windows では IOCTL_STORAGE_QUERY_PROPERTY(シークペナルティ)で判定する。
+ * 判定できない場合は -Dsongdata.hddRoots で HDD として扱うルートを指定する
+ */
+public final class StorageDevices {
+
+    /**
+     * デバイスの種類
+     */
+    public enum Kind {
+        SSD, HDD, NETWORK, UNKNOWN
+    }
+
+    /**
+     * 1つの格納デバイスとその上にある楽曲ルートフォルダ
+     */
+    public static final class Device {
+
+        private final String name;
+        private final Kind kind;
+        private final List<Path> roots = new ArrayList<>();
+        private final StageStatistics discoverStats;
+        private final StageStatistics decodeStats;
+
+        Device(String name, Kind kind) {
+            this.name = name;
+            this.kind = kind;
+            this.discoverStats = new StageStatistics("discover@" + name, walkThreads());
+            this.decodeStats = new StageStatistics("decode@" + name, decodeLimit());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public List<Path> getRoots() {
+            return roots;
+        }
+
+        /**
+         * シークのコストが大きい(inode 順に読むべき)デバイスかどうか
+         */
+        public boolean isRotational() {
+            return kind == Kind.HDD;
+        }
+
+        /**
+         * フォルダ探索のスレッド数
+         */
+        public int walkThreads() {
+            return switch (kind) {
+                case HDD -> UpdaterOptions.hddThreads();
+                case NETWORK -> UpdaterOptions.networkThreads();
+                default -> UpdaterOptions.discoverThreads();
+            };
+        }
+
+        /**
+         * デコードの同時実行数の上限
+         */
+        public int decodeLimit() {
+            return switch (kind) {
+                case HDD -> UpdaterOptions.hddThreads();
+                case NETWORK -> UpdaterOptions.networkThreads();
+                default -> Integer.MAX_VALUE;
+            };
+        }
+
+        public StageStatistics getDiscoverStats() {
+            return discoverStats;
+        }
+
+        public StageStatistics getDecodeStats() {
+            return decodeStats;
+        }
+
+        @Override
+        public String toString() {
+            return "device[" + name + " " + kind + " roots=" + roots.size() + " walk=" + walkThreads()
+                    + " decode=" + (decodeLimit() == Integer.MAX_VALUE ? "-" : decodeLimit()) + "]";
+        }
+    }
+
+    private final List<Device> devices;
+
+    private StorageDevices(List<Device> devices) {
+        this.devices = devices;
+    }
+
+    /**
+     * ルートフォルダをデバイスごとにまとめる(FileStore を取得できないルートは "unknown" にまとめる)
+     */
+    public static StorageDevices of(List<Path> roots) {
+        final Set<String> hddRoots = UpdaterOptions.hddRoots();
+        final Map<Object, Device> byStore = new LinkedHashMap<>();
+        for (Path root : roots) {
+            Object key = "unknown";
+            String name = "unknown";
+            Kind kind = Kind.UNKNOWN;
+            try {
+                final FileStore store = Files.getFileStore(root);
+                key = store;
+                name = store.name().isEmpty() ? root.getRoot() + "" : store.name();
+                kind = detect(root, store);
+            } catch (IOException | RuntimeException e) {
+                Logger.getGlobal().warning("格納デバイスを取得できません : " + root + " " + e.getMessage());
+            }
+            if (hddRoots.contains(root.toString()) || hddRoots.contains(root.toAbsolutePath().toString())) {
+                // HDD 指定のルートは同じデバイスの他のルートと分けて扱う
+                key = "hdd:" + key;
+                kind = Kind.HDD;
+            }
+            final String deviceName = name;
+            final Kind deviceKind = kind;
+            byStore.computeIfAbsent(key, k -> new Device(deviceName, deviceKind)).roots.add(root);
+        }
+        final StorageDevices result = new StorageDevices(new ArrayList<>(byStore.values()));
+        for (Device d : result.devices) {
+            Logger.getGlobal().info("格納デバイス: " + d + " " + d.roots);
+        }
+        return result;
+    }
+
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * パスが含まれるルートフォルダのデバイス(最も長く一致するルート)、該当なしの場合は最初のデバイス
+     */
+    public Device deviceOf(Path path) {
+        final Path p = path.toAbsolutePath();
+        Device found = devices.isEmpty() ? null : devices.get(0);
+        int length = -1;
+        for (Device d : devices) {
+            for (Path root : d.roots) {
+                final Path r = root.toAbsolutePath();
+                if (p.startsWith(r) && r.getNameCount() > length) {
+                    found = d;
+                    length = r.getNameCount();
+                }
+            }
+        }
+        return found;
+    }
+
+    private static final boolean WINDOWS = Platform.isWindows();
+
+    /**
+     * 属性から inode 番号を取得する(UNIX 系の fileKey "(dev=...,ino=...)")
+     *
+     * @return inode 番号、取得できない場合は-1
+     */
+    public static long inode(BasicFileAttributes attrs) {
+        final Object key = attrs.fileKey();
+        if (key == null) {
+            return -1;
+        }
+        final String s = key.toString();
+        final int i = s.indexOf("ino=");
+        if (i < 0) {
+            return -1;
+        }
+        long ino = 0;
+        for (int k = i + 4; k < s.length(); k++) {
+            final char c = s.charAt(k);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            ino = ino * 10 + (c - '0');
+        }
+        return ino;
+    }
+
+    /**
+     * ファイルの inode 番号を取得する。fileKey がない Windows(NTFS) では代わりにファイル ID(MFT のレコード番号)を取得する
+     *
+     * @param path ファイルのパス
+     * @param attrs ファイルの属性、ない場合は null
+     * @return inode 番号、取得できない場合は-1
+     */
+    public static long inode(Path path, BasicFileAttributes attrs) {
+        final long ino = attrs != null ? inode(attrs) : -1;
+        if (ino >= 0 || !WINDOWS) {
+            return ino;
+        }
+        try {
+            return fileIdWindows(path);
+        } catch (Throwable t) {
+            return -1;
+        }
+    }
+
+    /**
+     * inode 番号の順に並べ替える(HDD 用)。
+     * inode 番号は要素ごとに1回だけ求める(Windows ではファイルを開いて求めるので、比較のたびには求めない)
+     *
+     * @param items 並べ替えるリスト
+     * @param path 要素のパス
+     * @param attrs 要素の属性(ない場合は null を返す)
+     */
+    public static <T> void sortByInode(List<T> items, Function<T, Path> path, Function<T, BasicFileAttributes> attrs) {
+        if (items.size() < 2) {
+            return;
+        }
+        final long[] keys = new long[items.size()];
+        final Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            final T item = items.get(i);
+            keys[i] = inode(path.apply(item), attrs.apply(item));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        final List<T> sorted = new ArrayList<>(keys.length);
+        for (int i : order) {
+            sorted.add(items.get(i));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            items.set(i, sorted.get(i));
+        }
+    }
+
+    private static Kind detect(Path root, FileStore store) {
+        final String type = store.type().toLowerCase(Locale.ROOT);
+        if (type.startsWith("nfs") || type.startsWith("cifs") || type.startsWith("smb") || type.equals("9p")
+                || type.startsWith("fuse.sshfs") || type.equals("afpfs") || type.equals("webdav")) {
+            return Kind.NETWORK;
+        }
+        try {
+            if (Platform.isLinux()) {
+                return detectLinux(store.name());
+            }
+            if (Platform.isWindows()) {
+                return detectWindows(root.toAbsolutePath());
+            }
+        } catch (Throwable t) {
+            Logger.getGlobal().fine("格納デバイスの種類を判定できません : " + root + " " + t);
+        }
+        return Kind.UNKNOWN;
+    }
+
+    /**
+     * /sys/class/block/デバイス名/queue/rotational で判定する(パーティションの場合は親デバイス)
+     */
+    private static Kind detectLinux(String deviceName) throws IOException {
+        if (!deviceName.startsWith("/dev/")) {
+            return Kind.UNKNOWN;
+        }
+        // /dev/mapper/xxx などはシンボリックリンクなので実体(/dev/dm-0 など)にする
+        final String dev = Paths.get(deviceName).toRealPath().getFileName().toString();
+        Path block = Paths.get("/sys/class/block", dev).toRealPath();
+        if (Files.exists(block.resolve("partition"))) {
+            block = block.getParent();
+        }
+        final Path rotational = block.resolve("queue").resolve("rotational");
+        if (!Files.exists(rotational)) {
+            return Kind.UNKNOWN;
+        }
+        return Files.readString(rotational).trim().equals("1") ? Kind.HDD : Kind.SSD;
+    }
+
+    /**
+     * GetFileInformationByHandleEx(FileIdInfo) でファイル ID を取得する(アクセス権なしで開ける)
+     * NTFS のファイル ID の下位48ビットは MFT のレコード番号なので、その順に読むとシークが減る
+     */
+    private static long fileIdWindows(Path path) {
+        final WinNT.HANDLE h = Kernel32.INSTANCE.CreateFile(path.toAbsolutePath().toString(), 0,
+                WinNT.FILE_SHARE_READ | WinNT.FILE_SHARE_WRITE | WinNT.FILE_SHARE_DELETE, null, WinNT.OPEN_EXISTING,
+                WinNT.FILE_FLAG_BACKUP_SEMANTICS | WinNT.FILE_FLAG_OPEN_REPARSE_POINT, null);
+        if (WinBase.INVALID_HANDLE_VALUE.equals(h)) {
+            return -1;
+        }
+        try {
+            // FILE_ID_INFO { VolumeSerialNumber(8), FileId(16) }
+            final Memory info = new Memory(24);
+            info.clear();
+            if (!Kernel32.INSTANCE.GetFileInformationByHandleEx(h, WinBase.FileIdInfo, info, new WinDef.DWORD(info.size()))) {
+                return -1;
+            }
+            return info.getLong(8) & 0xFFFF_FFFF_FFFFL;
+        } finally {
+            Kernel32.INSTANCE.CloseHandle(h);
+        }
+    }
+
+    private static final int IOCTL_STORAGE_QUERY_PROPERTY = 0x002D1400;
+    private static final int STORAGE_DEVICE_SEEK_PENALTY_PROPERTY = 7;
+    private static final int PROPERTY_STANDARD_QUERY = 0;
+
+    /**
+     * ネットワークドライブは GetDriveType、ローカルドライブはシークペナルティの有無で判定する
+     */
+    private static Kind detectWindows(Path root) {
+        final Path drive = root.getRoot();
+        if (drive == null) {
+            return Kind.UNKNOWN;
+        }
+        final String d = drive.toString();
+        if (d.startsWith("\\\\") || Kernel32.INSTANCE.GetDriveType(d) == WinBase.DRIVE_REMOTE) {
+            return Kind.NETWORK;
+        }
+        // \\.\C: (アクセス権なしで開ける)
+        final WinNT.HANDLE h = Kernel32.INSTANCE.CreateFile("\\\\.\\" + d.substring(0, 2), 0,
+                WinNT.FILE_SHARE_READ | WinNT.FILE_SHARE_WRITE, null, WinNT.OPEN_EXISTING, 0, null);
+        if (WinBase.INVALID_HANDLE_VALUE.equals(h)) {
+            return Kind.UNKNOWN;
+        }
+        try {
+            // STORAGE_PROPERTY_QUERY { PropertyId, QueryType, AdditionalParameters[1] }
+            final Memory query = new Memory(12);
+            query.clear();
+            query.setInt(0, STORAGE_DEVICE_SEEK_PENALTY_PROPERTY);
+            query.setInt(4, PROPERTY_STANDARD_QUERY);
+            // DEVICE_SEEK_PENALTY_DESCRIPTOR { Version, Size, IncursSeekPenalty }
+            final Memory descriptor = new Memory(12);
+            descriptor.clear();
+            final IntByReference returned = new IntByReference();
+            if (!Kernel32.INSTANCE.DeviceIoControl(h, IOCTL_STORAGE_QUERY_PROPERTY, query, (int) query.size(),
+                    descriptor, (int) descriptor.size(), returned, null) || returned.getValue() < 9) {
+                return Kind.UNKNOWN;
+            }
+            return descriptor.getByte(8) != 0 ? Kind.HDD : Kind.SSD;
+        } finally {
+            Kernel32.INSTANCE.CloseHandle(h);
+        }
+    }
+}
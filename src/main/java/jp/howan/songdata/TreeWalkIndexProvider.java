@@ -0,0 +1,81 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * TreeWalkIndexProvider: ディレクトリツリーを走査してファイル一覧を作る(Everything がない環境用、全OS)
+ * 格納デバイスごとに並列に、デバイス内は ParallelTreeWalker でデバイスの種類に応じたスレッド数で走査する。
+ * 直下にBMSファイルがあるフォルダのサブツリーは走査しない(更新処理でも走査対象外になるため)。
+ * 通常のディレクトリ走査(更新処理の discover ステージで直接ツリーを走査する)と違い、一覧が揃うまでデコードは始まらない。
+ * Everything 連携と同じ更新処理を Everything なしで動かす・計測するために使う
+ */
+public final class TreeWalkIndexProvider implements FileIndexProvider {
+
+    @Override
+    public String name() {
+        return "walk";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public FileIndex index(String[] bmsRoots) throws IOException {
+        final PathTrie folders = new PathTrie();
+        final List<Path> roots = new ArrayList<>();
+        for (Path root : Stream.of(bmsRoots).map(Paths::get).toList()) {
+            if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) roots.add(root);
+        }
+
+        final StorageDevices devices = StorageDevices.of(roots);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (StorageDevices.Device device : devices.getDevices()) {
+            final Thread t = new Thread(() -> {
+                try {
+                    new ParallelTreeWalker(device.walkThreads(), dir -> visit(device, dir, folders)).walk(device.getRoots());
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "songdata-index-" + device.getName());
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        try {
+            for (Thread t : threads) t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : threads) t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new IOException("ファイル一覧の作成が中断されました", e);
+        }
+        if (failure.get() != null) throw failure.get();
+        return new FileIndex(folders);
+    }
+
+    private List<ParallelTreeWalker.Directory> visit(StorageDevices.Device device, ParallelTreeWalker.Directory directory,
+                                                     PathTrie folders) throws IOException {
+        final Path dir = directory.path();
+        folders.putScanFolder(dir, directory.attrs().lastModifiedTime().toMillis() / 1000);
+        final DirectoryListing listing = DirectoryListing.scan(dir, true, device.isRotational());
+        if (!listing.bmsFiles.isEmpty() || listing.hasTxt || listing.previewFileName != null) {
+            final BmsFolder bf = new BmsFolder();
+            bf.bmsFiles.addAll(listing.bmsFiles);
+            bf.hasTxt = listing.hasTxt;
+            if (listing.previewFileName != null) bf.previewFiles.add(dir.resolve(listing.previewFileName));
+            folders.putBmsFolder(dir, bf);
+        }
+        return listing.bmsFiles.isEmpty() ? listing.subdirs : Collections.emptyList();
+    }
+}
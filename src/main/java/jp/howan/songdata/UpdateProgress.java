@@ -0,0 +1,196 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UpdateProgress: 楽曲データベース更新の進捗の記録(songdata.db と同じ場所の songdata_progress.properties)
+ * 更新の開始時に作り、チェックポイント(書き込みの確定)ごとに確定したフォルダ数などを書き直し、更新が完了したら削除する。
+ * 更新の開始時にファイルが残っていれば、前回の更新は中断されている。
+ * 中断された更新の続きは folder レコード(フォルダの譜面を書き込んだ後に書くので、確定していればフォルダの譜面も確定している)
+ * で判定するので、再開に必要なのは rebuild の途中かどうかだけ
+ * (rebuild は作り直すファイルに書き込むので、そのファイルにある folder レコードのフォルダは rebuild 済み)。
+ * songdata.db を確定してから songinfo.db を確定するまでの間は informationPending を記録しておき、
+ * その間に中断した場合は、次回の更新で詳細情報がない譜面の詳細情報を作り直す。
+ */
+public final class UpdateProgress {
+
+    private final Path file;
+    private final boolean rebuild;
+    private final long started;
+    private int checkpoints;
+    private long folders;
+    private long songs;
+    private String lastFolder = "";
+    private boolean informationPending;
+
+    private UpdateProgress(Path file, boolean rebuild, long started) {
+        this.file = file;
+        this.rebuild = rebuild;
+        this.started = started;
+    }
+
+    /**
+     * 前回中断された更新の進捗を読み込む
+     *
+     * @return 進捗、前回の更新が完了している(ファイルがない・読めない)場合は null
+     */
+    public static UpdateProgress load(Path file) {
+        final Properties saved = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved.load(r);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Logger.getGlobal().log(Level.WARNING, "更新の進捗を読み込めません : " + file, e);
+            return null;
+        }
+        try {
+            final UpdateProgress progress = new UpdateProgress(file, "rebuild".equals(saved.getProperty("kind")),
+                    Long.parseLong(saved.getProperty("started", "")));
+            progress.checkpoints = Integer.parseInt(saved.getProperty("checkpoints", "0"));
+            progress.folders = Long.parseLong(saved.getProperty("folders", "0"));
+            progress.songs = Long.parseLong(saved.getProperty("songs", "0"));
+            progress.lastFolder = saved.getProperty("lastFolder", "");
+            progress.informationPending = Boolean.parseBoolean(saved.getProperty("informationPending", "false"));
+            return progress;
+        } catch (NumberFormatException e) {
+            Logger.getGlobal().warning("更新の進捗の形式が不正なので無視します : " + file);
+            return null;
+        }
+    }
+
+    /**
+     * 更新の開始を記録する
+     *
+     * @param rebuild rebuild かどうか
+     * @param started 更新(rebuild を続ける場合は元の rebuild)の開始日時(UNIX時間、秒)
+     * @param informationPending 前回の更新で songinfo.db が確定していないかどうか(作り直して確定するまで引き継ぐ)
+     */
+    public static UpdateProgress begin(Path file, boolean rebuild, long started, boolean informationPending) {
+        final UpdateProgress progress = new UpdateProgress(file, rebuild, started);
+        progress.informationPending = informationPending;
+        progress.store();
+        return progress;
+    }
+
+    public boolean isRebuild() {
+        return rebuild;
+    }
+
+    /**
+     * 更新の開始日時(UNIX時間、秒)
+     */
+    public long started() {
+        return started;
+    }
+
+    /**
+     * 確定したフォルダの数
+     */
+    public long folders() {
+        return folders;
+    }
+
+    /**
+     * 確定した譜面の数
+     */
+    public long songs() {
+        return songs;
+    }
+
+    /**
+     * 最後に確定したフォルダ(folder レコードのパス)
+     */
+    public String lastFolder() {
+        return lastFolder;
+    }
+
+    /**
+     * songdata.db を確定した後、songinfo.db がまだ確定していないかどうか
+     */
+    public boolean informationPending() {
+        return informationPending;
+    }
+
+    /**
+     * songinfo.db の確定待ちを記録する(songdata.db の確定前に true、songinfo.db の確定後に false)
+     */
+    public void setInformationPending(boolean pending) {
+        this.informationPending = pending;
+        store();
+    }
+
+    /**
+     * チェックポイントを記録する
+     *
+     * @param folders 今回のチェックポイントで確定したフォルダの数
+     * @param songs 今回のチェックポイントで確定した譜面の数
+     * @param lastFolder 最後に確定したフォルダ
+     */
+    public void checkpoint(long folders, long songs, String lastFolder) {
+        this.checkpoints++;
+        this.folders += folders;
+        this.songs += songs;
+        if (lastFolder != null) this.lastFolder = lastFolder;
+        store();
+    }
+
+    /**
+     * 更新の完了を記録する(進捗のファイルを削除する)
+     * songinfo.db が確定していない場合は、次回の更新で詳細情報を作り直せるように informationPending だけを残す
+     */
+    public void complete() {
+        if (informationPending) {
+            final UpdateProgress pending = new UpdateProgress(file, false, started);
+            pending.informationPending = true;
+            pending.store();
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Logger.getGlobal().log(Level.WARNING, "更新の進捗を削除できません : " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (rebuild ? "rebuild" : "update") + " checkpoints=" + checkpoints + " folders=" + folders + " songs=" + songs
+                + (lastFolder.isEmpty() ? "" : " lastFolder=" + lastFolder) + (informationPending ? " informationPending" : "");
+    }
+
+    private void store() {
+        final Properties state = new Properties();
+        state.setProperty("kind", rebuild ? "rebuild" : "update");
+        state.setProperty("started", Long.toString(started));
+        state.setProperty("checkpoints", Integer.toString(checkpoints));
+        state.setProperty("folders", Long.toString(folders));
+        state.setProperty("songs", Long.toString(songs));
+        state.setProperty("lastFolder", lastFolder);
+        state.setProperty("informationPending", Boolean.toString(informationPending));
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                state.store(w, "songdata updater: progress of the running update");
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.getGlobal().log(Level.WARNING, "更新の進捗を保存できません : " + file, e);
+        }
+    }
+}
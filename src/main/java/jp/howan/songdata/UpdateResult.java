@@ -0,0 +1,21 @@
+package jp.howan.songdata;
+
+/**
+ * UpdateResult: 更新処理1回分の結果(処理時間とDB操作件数)
+ * 更新処理の最後にログ出力と同じ値で作られる。計測用ハーネスなどから参照する
+ *
+ * @param elapsedMillis 更新処理全体の経過時間(ms)
+ * @param decodedCount デコードした譜面数
+ */
+public record UpdateResult(long elapsedMillis, int decodedCount,
+                           int songInsert, int songUpdate, int songDelete,
+                           int folderInsert, int folderDelete) {
+
+    /**
+     * DB操作件数をログ出力用の文字列で返す
+     */
+    public String operations() {
+        return "song insert=" + songInsert + " update=" + songUpdate + " delete=" + songDelete
+                + " | folder insert=" + folderInsert + " delete=" + folderDelete;
+    }
+}
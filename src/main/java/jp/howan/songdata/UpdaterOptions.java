@@ -0,0 +1,168 @@
+package jp.howan.songdata;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * UpdaterOptions: 更新処理の調整用オプション
+ * JVM のシステムプロパティ (-Dsongdata.xxx=値) で指定する。未指定・不正値の場合はデフォルト値を使う。
+ * songdata-updater-run.bat の JVM_OPTION に追記して使う想定。
+ */
+public final class UpdaterOptions {
+
+    private UpdaterOptions() {
+        // static utility
+    }
+
+    /**
+     * BMSデコードを行うワーカースレッド数 (-Dsongdata.decodeThreads)
+     * デフォルトは論理コア数。1以下の場合は filter ステージのスレッド上で逐次デコードする
+     */
+    public static int decodeThreads() {
+        return intProperty("songdata.decodeThreads", Runtime.getRuntime().availableProcessors(), 1);
+    }
+
+    /**
+     * フォルダ探索(discover)ステージのスレッド数 (-Dsongdata.discoverThreads)
+     * 通常のディレクトリ走査では兄弟ディレクトリを並列に列挙する(ルートが1つでも並列になる)。Everything連携時は常に1
+     * SSD では8程度まで走査時間がほぼ比例して短くなる。HDD では2以上にするとシークが増えて遅くなることがある
+     * デフォルトは1(ルート順に逐次走査、従来と同じ書き込み順)
+     */
+    public static int discoverThreads() {
+        return intProperty("songdata.discoverThreads", 1, 1);
+    }
+
+    /**
+     * 更新日時による絞り込み(filter)ステージのスレッド数 (-Dsongdata.filterThreads)
+     * BMSファイルの更新日時取得を並列化する。2以上にすると書き込み順は走査順と一致しなくなる(登録内容は同じ)
+     * デフォルトは1
+     */
+    public static int filterThreads() {
+        return intProperty("songdata.filterThreads", 1, 1);
+    }
+
+    /**
+     * ステージ間キューの容量 (-Dsongdata.queueCapacity)
+     * キューが埋まると前段のステージは待機するので、デコード待ちの譜面数もこの値程度で頭打ちになる
+     * デフォルトは4096
+     */
+    public static int queueCapacity() {
+        return intProperty("songdata.queueCapacity", 4096, 1);
+    }
+
+    /**
+     * デコードキャッシュを使うかどうか (-Dsongdata.decodeCache=true)
+     * songdata.db と同じ場所に songdata_decodecache.db を作り、更新日時だけが変わった譜面のデコードを省略する
+     * デフォルトはfalse
+     */
+    public static boolean decodeCache() {
+        return Boolean.parseBoolean(System.getProperty("songdata.decodeCache", "false").trim());
+    }
+
+    /**
+     * 前回の更新以降に変更があったフォルダだけを更新するかどうか (-Dsongdata.incremental=false で無効)
+     * Everything 連携で、前回の更新処理(ルートフォルダが同じもの)が完了した時刻を songdata_lastupdate.properties に保存し、
+     * 次回はそれ以降に更新日時・最近の変更日時が変わったフォルダだけを検索して更新する。楽曲全更新では使わない
+     * デフォルトはtrue
+     */
+    public static boolean incremental() {
+        return Boolean.parseBoolean(System.getProperty("songdata.incremental", "true").trim());
+    }
+
+    /**
+     * 更新中にここまでの書き込みを確定する間隔(秒) (-Dsongdata.checkpointInterval)
+     * 中断された更新は、次回の更新で確定済みのフォルダを飛ばして続きから再開する。0 の場合は更新の最後にだけ確定する
+     * デフォルトは30
+     */
+    public static int checkpointInterval() {
+        return intProperty("songdata.checkpointInterval", 30, 0);
+    }
+
+    /**
+     * SQLite の設定 (-Dsongdata.dbProfile=auto|incremental|full|bulk)
+     * auto は更新の種類(rebuild、差分更新で変更があったフォルダの数)で選ぶ。DatabaseProfile を参照
+     * デフォルトはauto
+     */
+    public static String dbProfile() {
+        return System.getProperty("songdata.dbProfile", "auto").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * HDD(回転ディスク)上のルートのフォルダ探索スレッド数とデコードの同時実行数 (-Dsongdata.hddThreads)
+     * デフォルトは1
+     */
+    public static int hddThreads() {
+        return intProperty("songdata.hddThreads", 1, 1);
+    }
+
+    /**
+     * ネットワークドライブ(NAS など)上のルートのフォルダ探索スレッド数とデコードの同時実行数 (-Dsongdata.networkThreads)
+     * デフォルトは2
+     */
+    public static int networkThreads() {
+        return intProperty("songdata.networkThreads", 2, 1);
+    }
+
+    /**
+     * HDD として扱うルートフォルダ (-Dsongdata.hddRoots、複数の場合はパス区切り文字(Windowsでは;)で区切る)
+     * デバイスの種類を自動判定できない場合に指定する。デフォルトは空
+     */
+    public static Set<String> hddRoots() {
+        final String v = System.getProperty("songdata.hddRoots", "");
+        final Set<String> roots = new HashSet<>();
+        for (String r : v.split(Pattern.quote(File.pathSeparator))) {
+            if (!r.isBlank()) roots.add(r.trim());
+        }
+        return roots;
+    }
+
+    /**
+     * ファイル検索の実装 (-Dsongdata.fileIndex=auto|everything|everything15|everything14|walk)
+     * auto は Everything が利用可能なら Everything、利用できなければ通常のディレクトリ走査。
+     * walk は Everything 連携と同じ手順(ファイル一覧を作ってから更新)をディレクトリ走査で行う
+     * デフォルトはauto
+     */
+    public static String fileIndex() {
+        return System.getProperty("songdata.fileIndex", "auto").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Everything の検索結果を1回に取得する件数 (-Dsongdata.everythingPageSize)
+     * 検索中に保持する結果はこの件数分だけになる。小さくするとメモリは減るが検索の実行回数が増える
+     * デフォルトは65536
+     */
+    public static int everythingPageSize() {
+        return intProperty("songdata.everythingPageSize", 65536, 1);
+    }
+
+    /**
+     * Everything 1.5 でルートフォルダごとの検索を同時に実行する数 (-Dsongdata.everythingSearchThreads)
+     * 1 またはルートフォルダが1つの場合、Everything 1.4 の場合は全ルートを1回の検索で取得する
+     * デフォルトは4
+     */
+    public static int everythingSearchThreads() {
+        return intProperty("songdata.everythingSearchThreads", 4, 1);
+    }
+
+    /**
+     * int のシステムプロパティを取得する
+     * @param key プロパティ名
+     * @param defaultValue 未指定・不正値の場合の値
+     * @param min 下限値、これを下回る場合は下限値に丸める
+     * @return プロパティ値
+     */
+    static int intProperty(String key, int defaultValue, int min) {
+        String v = System.getProperty(key);
+        if (v == null || v.isBlank()) return Math.max(min, defaultValue);
+        try {
+            return Math.max(min, Integer.parseInt(v.trim()));
+        } catch (NumberFormatException e) {
+            Logger.getGlobal().warning("オプション " + key + " の値が不正なのでデフォルト値を使います: " + v);
+            return Math.max(min, defaultValue);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package bms.player.beatoraja.song;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jp.howan.songdata.TreeWalkIndexProvider;
+import jp.howan.songdata.UpdateProgress;
+import jp.howan.songdata.UpdateResult;
+
+/**
+ * 楽曲データベースの更新処理(songdata.db / songinfo.db)を小さなライブラリで確認する
+ */
+class SQLiteSongDatabaseAccessorTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * 4ノーツ、WAV定義1つの譜面を書く
+	 */
+	private static Path writeChart(Path folder, String title) throws IOException {
+		Files.createDirectories(folder);
+		final Path chart = folder.resolve("chart.bms");
+		Files.writeString(chart, "#PLAYER 1\n#TITLE " + title + "\n#ARTIST test\n#BPM 120\n#WAV01 a.wav\n#00111:01010101\n",
+				StandardCharsets.US_ASCII);
+		return chart;
+	}
+
+	private static SQLiteSongDatabaseAccessor accessor(Path songdb) throws ClassNotFoundException {
+		final SQLiteSongDatabaseAccessor accessor = new SQLiteSongDatabaseAccessor(songdb.toString());
+		accessor.setFileIndexProvider(new TreeWalkIndexProvider());
+		return accessor;
+	}
+
+	private static UpdateResult update(Path songdb, Path infodb, Path library, boolean updateAll) throws ClassNotFoundException {
+		final SQLiteSongDatabaseAccessor accessor = accessor(songdb);
+		accessor.updateSongDatas(null, new String[] { library.toString() }, updateAll, new SongInformationAccessor(infodb.toString()));
+		return accessor.getLastUpdateResult();
+	}
+
+	private static Connection open(Path db) throws SQLException {
+		return DriverManager.getConnection("jdbc:sqlite:" + db);
+	}
+
+	private static int count(Path db, String sql) throws SQLException {
+		try (Connection conn = open(db);
+			 ResultSet rs = conn.createStatement().executeQuery(sql)) {
+			return rs.next() ? rs.getInt(1) : -1;
+		}
+	}
+
+	private static String column(Path db, String column, Path chart) throws SQLException {
+		try (Connection conn = open(db);
+			 PreparedStatement ps = conn.prepareStatement("SELECT " + column + " FROM song WHERE path = ?")) {
+			ps.setString(1, chart.toString());
+			try (ResultSet rs = ps.executeQuery()) {
+				return rs.next() ? rs.getString(1) : null;
+			}
+		}
+	}
+
+	private static void setTag(Path db, Path chart, String tag, int favorite) throws SQLException {
+		try (Connection conn = open(db);
+			 PreparedStatement ps = conn.prepareStatement("UPDATE song SET tag = ?, favorite = ? WHERE path = ?")) {
+			ps.setString(1, tag);
+			ps.setInt(2, favorite);
+			ps.setString(3, chart.toString());
+			assertEquals(1, ps.executeUpdate());
+		}
+	}
+
+	@Test
+	void resumeInterruptedRebuild() throws Exception {
+		final Path library = dir.resolve("library").toAbsolutePath();
+		final Path first = writeChart(library.resolve("song1"), "first");
+
+		// 置き換え前の songdata.db には song1 だけがあり、タグと FAVORITE が付いている
+		final Path work = dir.resolve("work");
+		Files.createDirectories(work);
+		final Path songdb = work.resolve("songdata.db");
+		final Path infodb = work.resolve("songinfo.db");
+		update(songdb, infodb, library, true);
+		setTag(songdb, first, "mytag", 1);
+
+		// song1, song2 までをチェックポイントで確定して中断した rebuild の状態を作る
+		final Path second = writeChart(library.resolve("song2"), "second");
+		final Path partial = dir.resolve("partial");
+		Files.createDirectories(partial);
+		update(partial.resolve("songdata.db"), partial.resolve("songinfo.db"), library, true);
+		Files.copy(partial.resolve("songdata.db"), work.resolve("songdata_rebuild.db"));
+		Files.copy(partial.resolve("songinfo.db"), work.resolve("songinfo_rebuild.db"));
+		UpdateProgress.begin(work.resolve("songdata_progress.properties"), true, System.currentTimeMillis() / 1000, false);
+		final Path third = writeChart(library.resolve("song3"), "third");
+
+		// 通常の更新でも、中断された rebuild の続きから再開して置き換える
+		final UpdateResult result = update(songdb, infodb, library, false);
+		assertEquals(1, result.decodedCount(), "確定済みのフォルダはデコードし直さない");
+		assertFalse(Files.exists(work.resolve("songdata_rebuild.db")));
+		assertFalse(Files.exists(work.resolve("songinfo_rebuild.db")));
+		assertFalse(Files.exists(work.resolve("songdata_progress.properties")));
+
+		assertEquals(3, count(songdb, "SELECT COUNT(*) FROM song"));
+		assertEquals("second", column(songdb, "title", second));
+		assertEquals("third", column(songdb, "title", third));
+		assertEquals("mytag", column(songdb, "tag", first));
+		assertEquals("1", column(songdb, "favorite", first));
+		assertEquals(3, count(infodb, "SELECT COUNT(*) FROM information"));
+	}
+
+	@Test
+	void rebuildAbortsWhenInformationCannotBeOpened() throws Exception {
+		final Path library = dir.resolve("library").toAbsolutePath();
+		final Path first = writeChart(library.resolve("song1"), "first");
+		final Path songdb = dir.resolve("songdata.db");
+		final Path infodb = dir.resolve("songinfo.db");
+		update(songdb, infodb, library, true);
+		setTag(songdb, first, "mytag", 1);
+
+		// 作り直す songinfo.db を消せない(空でないフォルダがある)
+		final Path blocker = dir.resolve("songinfo_rebuild.db");
+		Files.createDirectories(blocker.resolve("child"));
+		writeChart(library.resolve("song2"), "second");
+		update(songdb, infodb, library, true);
+
+		// 譜面を書き込む前に中止し、どちらのデータベースも置き換えない
+		assertFalse(Files.exists(dir.resolve("songdata_rebuild.db")));
+		assertTrue(Files.isDirectory(blocker.resolve("child")));
+		assertEquals(1, count(songdb, "SELECT COUNT(*) FROM song"));
+		assertEquals("mytag", column(songdb, "tag", first));
+		assertEquals(1, count(infodb, "SELECT COUNT(*) FROM information"));
+
+		// 開けるようになれば次の rebuild で置き換える
+		Files.delete(blocker.resolve("child"));
+		Files.delete(blocker);
+		update(songdb, infodb, library, true);
+		assertEquals(2, count(songdb, "SELECT COUNT(*) FROM song"));
+		assertEquals("mytag", column(songdb, "tag", first));
+		assertEquals(2, count(infodb, "SELECT COUNT(*) FROM information"));
+		assertFalse(Files.exists(dir.resolve("songdata_progress.properties")));
+	}
+
+	@Test
+	void updateKeepsTagAndFavorite() throws Exception {
+		final Path library = dir.resolve("library").toAbsolutePath();
+		final Path chart = writeChart(library.resolve("song1"), "first");
+		final Path songdb = dir.resolve("songdata.db");
+		final Path infodb = dir.resolve("songinfo.db");
+		update(songdb, infodb, library, false);
+		setTag(songdb, chart, "mytag", 1);
+		final String sha256 = column(songdb, "sha256", chart);
+
+		// 譜面を書き換える(更新日時を確実に進める)
+		writeChart(library.resolve("song1"), "changed");
+		final FileTime later = FileTime.fromMillis(Files.getLastModifiedTime(chart).toMillis() + 10_000);
+		Files.setLastModifiedTime(chart, later);
+		Files.setLastModifiedTime(chart.getParent(), later);
+		final UpdateResult result = update(songdb, infodb, library, false);
+		// 消して入れ直すのではなく、同じパスの行を書き換える
+		assertEquals(1, result.songInsert());
+		assertEquals(0, result.songDelete());
+
+		// 書き換えた行でもタグと FAVORITE は残る
+		assertEquals(1, count(songdb, "SELECT COUNT(*) FROM song"));
+		assertEquals("changed", column(songdb, "title", chart));
+		assertNotEquals(sha256, column(songdb, "sha256", chart));
+		assertEquals("mytag", column(songdb, "tag", chart));
+		assertEquals("1", column(songdb, "favorite", chart));
+	}
+}
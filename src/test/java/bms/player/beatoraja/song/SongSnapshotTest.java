@@ -0,0 +1,87 @@
+package bms.player.beatoraja.song;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SongSnapshot の読み込み(全体、フォルダ以下の範囲、フォルダ直下)と処理済みの管理を確認する
+ */
+class SongSnapshotTest {
+
+	private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+	private static String path(String... names) {
+		return String.join(File.separator, names);
+	}
+
+	private static Connection open(String... paths) throws SQLException {
+		final Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+		try (Statement st = conn.createStatement()) {
+			st.executeUpdate("CREATE TABLE song (path TEXT PRIMARY KEY, date INTEGER, preview TEXT, sha256 TEXT)");
+		}
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO song (path, date, preview, sha256) VALUES (?, ?, ?, ?)")) {
+			int date = 1;
+			for (String p : paths) {
+				ps.setString(1, p);
+				ps.setInt(2, date++);
+				// y.bms だけ preview があり、sha256 が64桁の16進数でない
+				ps.setString(3, p.endsWith("y.bms") ? "preview.ogg" : "");
+				ps.setString(4, p.endsWith("y.bms") ? "not-a-hash" : SHA256);
+				ps.executeUpdate();
+			}
+		}
+		return conn;
+	}
+
+	@Test
+	void loadAll() throws SQLException {
+		// サロゲートペアを含むパスは SQLite(UTF-8 のバイト順)と String で並び順が違う
+		final String[] paths = { path("bms", "a", "x.bms"), path("bms", "Ａ", "y.bms"), path("bms", "🎵", "z.bms") };
+		try (Connection conn = open(paths)) {
+			final SongSnapshot snapshot = SongSnapshot.load(conn);
+			assertEquals(3, snapshot.size());
+			assertEquals(List.of(paths[0], paths[2], paths[1]), snapshot.remainingPaths());
+
+			final int i = snapshot.take(paths[1]);
+			assertTrue(i >= 0);
+			assertEquals(2, snapshot.getDate(i));
+			assertEquals("preview.ogg", snapshot.getPreview(i));
+			assertEquals("not-a-hash", snapshot.getSha256(i));
+			assertEquals(-1, snapshot.take(paths[1]));
+			assertEquals(SHA256, snapshot.getSha256(snapshot.take(paths[0])));
+			assertEquals(List.of(paths[2]), snapshot.remainingPaths());
+		}
+	}
+
+	@Test
+	void loadSubtreesAndDirectChildren() throws SQLException {
+		final String a = path("bms", "a") + File.separator;
+		// 直下だけを読み込むフォルダ名にサロゲートペアを含める(SQLite の substr は文字単位)
+		final String music = path("bms", "🎵🎵") + File.separator;
+		try (Connection conn = open(
+				path("bms", "a", "x.bms"),
+				path("bms", "a", "sub", "y.bms"),
+				path("bms", "ab", "z.bms"),
+				path("bms", "b", "w.bms"),
+				path("bms", "🎵🎵", "v.bms"),
+				path("bms", "🎵🎵", "d", "u.bms"),
+				path("bms", "🎵🎵🎵", "t.bms"))) {
+			final SongSnapshot snapshot = SongSnapshot.load(conn, List.of(a), List.of(music));
+			assertEquals(List.of(path("bms", "a", "sub", "y.bms"), path("bms", "a", "x.bms"),
+					path("bms", "🎵🎵", "v.bms")), snapshot.remainingPaths());
+
+			assertEquals(2, snapshot.takePrefix(a));
+			assertEquals(List.of(path("bms", "🎵🎵", "v.bms")), snapshot.takeRemainingPrefix(music));
+			assertTrue(snapshot.remainingPaths().isEmpty());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package bms.player.beatoraja.song;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SongUtils.crc32 が以前の1ビットずつの計算(LR2互換)と同じ値を返すことを確認する
+ */
+class SongUtilsTest {
+
+	/**
+	 * 以前の SongUtils.crc32 の計算
+	 */
+	private static String legacyCrc32(String path) {
+		int crc = ~0;
+		for (byte b : (path + "\\\0").getBytes()) {
+			crc ^= b;
+			for (int j = 0; j < 8; j++)
+				if ((crc & 1) != 0)
+					crc = (crc >>> 1) ^ 0xEDB88320;
+				else
+					crc = crc >>> 1;
+		}
+		return Integer.toHexString(~crc);
+	}
+
+	private static List<String> samples() {
+		final List<String> samples = new ArrayList<>(List.of("", "BMS", "BMS\\song", "bms/pack/song A",
+				"D:\\BMS\\難易度表\\★1", "曲🎵\\譜面", "Ünïcödé\\ß", "\u00ff\u0080\u007f"));
+		final Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = random.nextInt(40);
+			for (int j = 0; j < length; j++) {
+				// ASCII、ラテン文字、かな・漢字、サロゲートペアを混ぜる
+				switch (random.nextInt(4)) {
+				case 0 -> sb.append((char) (0x20 + random.nextInt(0x5f)));
+				case 1 -> sb.append((char) (0xa0 + random.nextInt(0x160)));
+				case 2 -> sb.append((char) (0x3040 + random.nextInt(0x6000)));
+				default -> sb.appendCodePoint(0x1f300 + random.nextInt(0x300));
+				}
+			}
+			samples.add(sb.toString());
+		}
+		return samples;
+	}
+
+	@Test
+	void crc32MatchesLegacy() {
+		for (String s : samples()) {
+			assertEquals(legacyCrc32(s), SongUtils.crc32(s), s);
+		}
+	}
+
+	@Test
+	void folderCrc32MatchesCrc32() {
+		final String bmspath = Paths.get("").toAbsolutePath().toString();
+		final String[] roots = { "bms", Paths.get("other", "songs").toAbsolutePath().toString() };
+		final SongUtils.FolderCrc32 folderCrc = new SongUtils.FolderCrc32(roots, bmspath);
+		final List<String> paths = new ArrayList<>();
+		for (String s : samples()) {
+			paths.add(s);
+			paths.add(bmspath + File.separator + s);
+		}
+		paths.add(bmspath);
+		paths.add(Paths.get("other").toAbsolutePath().toString());
+		for (String path : paths) {
+			assertEquals(SongUtils.crc32(path, roots, bmspath), folderCrc.crc32(path), path);
+			// 2回目はキャッシュから
+			assertEquals(SongUtils.crc32(path, roots, bmspath), folderCrc.crc32(path), path);
+		}
+		assertEquals("e2977170", folderCrc.crc32(bmspath));
+	}
+}
@@ -0,0 +1,51 @@
+package jp.howan.songdata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * ルートフォルダごとに並行してページ単位で検索した結果が、全ルートを1回で検索した結果と同じになることを確認する
+ */
+class EverythingBatchIndexerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentPagedSearchMatchesSequential() throws IOException {
+        final Path first = dir.resolve("first").toAbsolutePath();
+        final Path second = dir.resolve("second").toAbsolutePath();
+        TestLibrary.create(first);
+        TestLibrary.create(second);
+        // 他のルートの下にあるルートは外側のルートの検索に含まれる
+        final Path nested = first.resolve("pack");
+        final String[] roots = { first.toString(), second.toString(), nested.toString() };
+
+        final InMemoryEverythingResultSource sequentialSource = new InMemoryEverythingResultSource().addTree(dir).serialized(true);
+        final PathTrie sequential = new PathTrie();
+        new EverythingBatchIndexer(roots, sequentialSource, 3, 4).addFolders(sequential);
+        assertEquals(1, sequentialSource.searchCount());
+
+        final InMemoryEverythingResultSource concurrentSource = new InMemoryEverythingResultSource().addTree(dir).pageLatency(5);
+        final PathTrie concurrent = new PathTrie();
+        new EverythingBatchIndexer(roots, concurrentSource, 3, 4).addFolders(concurrent);
+        // ネストしたルートは単独では検索しない
+        assertEquals(2, concurrentSource.searchCount());
+        assertTrue(concurrentSource.maxPageSize() <= 3);
+
+        final Set<String> expected = TestLibrary.summary(sequential);
+        assertEquals(expected, TestLibrary.summary(concurrent));
+        // ページの大きさによらず同じ
+        final PathTrie single = new PathTrie();
+        new EverythingBatchIndexer(roots, new InMemoryEverythingResultSource().addTree(dir), 1, 4).addFolders(single);
+        assertEquals(expected, TestLibrary.summary(single));
+        final PathTrie walk = new TreeWalkIndexProvider().index(new String[] { first.toString(), second.toString() }).folders();
+        assertEquals(TestLibrary.summary(walk), expected);
+    }
+}
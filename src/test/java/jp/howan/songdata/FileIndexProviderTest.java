@@ -0,0 +1,46 @@
+package jp.howan.songdata;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * FileIndexProvider の実装ごとに、同じフォルダの木から同じファイル一覧を作ることを確認する
+ */
+class FileIndexProviderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void providersReturnSameIndex() throws IOException {
+        final Path root = dir.resolve("bms").toAbsolutePath();
+        TestLibrary.create(root);
+        final String[] roots = { root.toString() };
+
+        final Set<String> walk = TestLibrary.summary(new TreeWalkIndexProvider().index(roots).folders());
+        assertTrue(walk.contains("S " + root.resolve("pack/songB") + " " + modified(root.resolve("pack/songB"))), walk.toString());
+        assertTrue(walk.stream().anyMatch(s -> s.startsWith("B " + root.resolve("曲🎵") + " bms=[d.bml@")), walk.toString());
+
+        final PersistentIndexProvider persistent = new PersistentIndexProvider(dir.resolve("index.bin"));
+        assertEquals(walk, TestLibrary.summary(persistent.index(roots).folders()), "persistent");
+        // 保存した一覧を使う2回目も同じ
+        assertEquals(walk, TestLibrary.summary(persistent.index(roots).folders()), "persistent (saved)");
+
+        final InMemoryEverythingResultSource source = new InMemoryEverythingResultSource().addTree(root);
+        assertEquals(walk, TestLibrary.summary(new EverythingIndexProvider(source).index(roots).folders()), "everything");
+
+        final InMemoryFileIndexProvider memory = new InMemoryFileIndexProvider().addTree(root);
+        assertEquals(walk, TestLibrary.summary(memory.index(roots).folders()), "memory");
+    }
+
+    private static long modified(Path p) throws IOException {
+        return Files.getLastModifiedTime(p).toMillis() / 1000;
+    }
+}
@@ -0,0 +1,76 @@
+package jp.howan.songdata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * テスト用の小さな楽曲フォルダの木と、ファイル一覧(PathTrie)の比較用の要約
+ * 直下BMSフォルダの下にはフォルダを置かない(Everything 連携はサブツリーも返し、ディレクトリ走査は返さないので、
+ * その違いは更新処理の側で吸収している)。preview 音源はフォルダごとに1つまで(ディレクトリ走査は最初の1つだけを返す)
+ */
+final class TestLibrary {
+
+    private TestLibrary() {
+    }
+
+    /**
+     * ルートフォルダ以下にフォルダとファイルを作る
+     */
+    static void create(Path root) throws IOException {
+        write(root.resolve("songA/a_7key.bms"));
+        write(root.resolve("songA/a_another.bme"));
+        write(root.resolve("songA/readme.txt"));
+        write(root.resolve("songA/preview_a.ogg"));
+        write(root.resolve("songA/bgm.wav"));
+        write(root.resolve("pack/songB/b.bmson"));
+        write(root.resolve("pack/songC/c.PMS"));
+        write(root.resolve("pack/songC/Preview.wav"));
+        write(root.resolve("pack/notes/only.txt"));
+        write(root.resolve("曲🎵/d.bml"));
+        write(root.resolve("other/image.png"));
+        Files.createDirectories(root.resolve("empty"));
+    }
+
+    private static void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, file.getFileName().toString());
+    }
+
+    /**
+     * ファイル一覧の内容を比較できる文字列の集合にする
+     * - "S パス 更新日時": 走査フォルダ
+     * - "B パス bms=[ファイル名@更新日時...] txt=有無 preview=[ファイル名...]": BmsFolder(ファイルは名前順)
+     */
+    static Set<String> summary(PathTrie folders) {
+        final Set<String> result = new TreeSet<>();
+        final List<PathTrie.Node> stack = new ArrayList<>();
+        stack.add(folders.root());
+        while (!stack.isEmpty()) {
+            final PathTrie.Node node = stack.remove(stack.size() - 1);
+            for (int i = 0; i < node.childCount(); i++) {
+                stack.add(node.child(i));
+            }
+            if (node.isScanFolder()) {
+                result.add("S " + node + " " + node.modified());
+            }
+            final BmsFolder bf = node.bmsFolder();
+            if (bf != null) {
+                final Set<String> charts = new TreeSet<>();
+                for (EverythingSearchResult sr : bf.bmsFiles) {
+                    charts.add(sr.path().getFileName() + "@" + sr.lastModified());
+                }
+                final Set<String> previews = new TreeSet<>();
+                for (Path p : bf.previewFiles) {
+                    previews.add(p.getFileName().toString());
+                }
+                result.add("B " + node + " bms=" + charts + " txt=" + bf.hasTxt + " preview=" + previews);
+            }
+        }
+        return result;
+    }
+}